@@ -1,7 +1,7 @@
 package heger.christian.checkbook;
 
 import heger.christian.checkbook.accounts.Authenticator;
-import heger.christian.checkbook.network.CheckbookSSLContextFactory;
+import heger.christian.checkbook.network.CheckbookHttpClient;
 import heger.christian.checkbook.network.TruststoreException;
 import heger.christian.checkbook.network.UnauthorizedAccessException;
 import heger.christian.checkbook.providers.MetaContentProvider.KeyGenerationContract;
@@ -160,7 +160,7 @@ public class OutOfKeysReaction extends Fragment {
 		 */
 		protected void prepareRequester() throws TruststoreException {
 			requester = new KeySeriesRequester();
-			requester.setSSLSocketFactory(new CheckbookSSLContextFactory(getActivity()).createSSLContext().getSocketFactory());
+			requester.setSSLSocketFactory(CheckbookHttpClient.getInstance(getActivity()).getSSLSocketFactory());
 		}
 		protected boolean requestKeys(String token) throws IOException {
 			// Request new key series from the server using the connection
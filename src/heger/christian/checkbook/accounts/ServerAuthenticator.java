@@ -1,6 +1,6 @@
 package heger.christian.checkbook.accounts;
 
-import heger.christian.checkbook.network.CheckbookSSLContextFactory;
+import heger.christian.checkbook.network.CheckbookHttpClient;
 import heger.christian.checkbook.network.Endpoints;
 import heger.christian.checkbook.network.TruststoreException;
 
@@ -133,9 +133,9 @@ public class ServerAuthenticator {
 	 */
 	private TokenSet handleAuthentication(StrategyBodyBuilder payloadBuilder) throws AuthenticationFailedException, TruststoreException, IOException {
 		TokenSet tokens = null;
-		Webb webb = Webb.create();
+		Webb webb;
 		try {
-			webb.setSSLSocketFactory(new CheckbookSSLContextFactory(context).createSSLContext().getSocketFactory());
+			webb = CheckbookHttpClient.getInstance(context).createWebb();
 		} catch (TruststoreException x) {
 			Log.e(TAG, "There was an error when setting up the SSL context: \n "
 					+ "Error type: + " + x.getCause().getClass().getSimpleName() + "\n"
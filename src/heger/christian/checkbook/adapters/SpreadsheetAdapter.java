@@ -1,12 +1,25 @@
 package heger.christian.checkbook.adapters;
 
 import heger.christian.checkbook.R;
+import heger.christian.checkbook.control.MonthsElapsedCalculator;
 import heger.christian.checkbook.providers.CategoryContract;
 import heger.christian.checkbook.providers.EntryContract;
+import heger.christian.checkbook.providers.MonthSnapshot;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
 import android.os.Build;
@@ -27,7 +40,34 @@ public class SpreadsheetAdapter extends SimpleCursorTreeAdapter {
 	protected static final int GRP_TYPE_ITEM = 0;
 	protected static final int GRP_TYPE_DIVIDER = 1;
 
-	private final String sqlTimestamp;
+	/**
+	 * Base of the ids of the month loaders used in single query mode. Far below zero, so that no month's id can
+	 * collide with the ids of the group loaders, which are the non-negative group positions.
+	 */
+	private static final int MONTH_LOADER_ID_BASE = Integer.MIN_VALUE / 2;
+
+	private static final String[] CHILD_PROJECTION = new String[] { EntryContract._ID, EntryContract.COL_NAME_CAPTION, EntryContract.COL_NAME_CATEGORY, EntryContract.COL_NAME_DATETIME, EntryContract.COL_NAME_VALUE };
+	/**
+	 * Half-open range selection for the month, so that it can be answered from the index on (category, datetime)
+	 * instead of applying a date function to every row
+	 */
+	private static final String MONTH_SELECTION = EntryContract.COL_NAME_DATETIME + ">=? AND "
+			+ EntryContract.COL_NAME_DATETIME + "<?";
+
+	/** SQL timestring for the beginning of the month this adapter was created for */
+	private final String sqlMonthStart;
+	/** SQL timestring for the beginning of the month after the one this adapter was created for */
+	private final String sqlMonthEnd;
+	/** Id of the loader for all children of the month in single query mode */
+	private final int monthLoaderId;
+
+	/** Snapshot the adapter is currently bound to, if any */
+	private MonthSnapshot snapshot;
+	private boolean singleQuery = false;
+	/** In single query mode, the rows of the month's entries, partitioned by category */
+	private Map<Long, List<Object[]>> partitions;
+	/** In single query mode, the positions in the group cursor of the groups whose children have been requested */
+	private Set<Integer> requestedGroups = new HashSet<Integer>();
 
 	private LoaderCallbacks<Cursor> loaderCallbacks = new LoaderCallbacks<Cursor>() {
 		/*
@@ -37,14 +77,13 @@ public class SpreadsheetAdapter extends SimpleCursorTreeAdapter {
 		public Loader<Cursor> onCreateLoader(int groupPosition, Bundle args) {
 			Cursor groupCursor = getGroup(groupPosition);
 			long category = groupCursor.getLong(groupIdColumn);
-			// Get all entries that belong to the given category and whose date/time column, when reset to the
-			// beginning of the month, matches the month/year combo this adapter was created for
+			// Get all entries that belong to the given category and whose date/time column lies within
+			// the month/year combo this adapter was created for
 			return new CursorLoader(context,
 					EntryContract.CONTENT_URI,
-					new String[] { EntryContract._ID, EntryContract.COL_NAME_CAPTION, EntryContract.COL_NAME_CATEGORY, EntryContract.COL_NAME_DATETIME, EntryContract.COL_NAME_VALUE },
-					EntryContract.COL_NAME_CATEGORY + "=" + category + " AND "
-							+ "datetime(" + EntryContract.COL_NAME_DATETIME + ",'start of month')=?",
-					new String[] { sqlTimestamp },
+					CHILD_PROJECTION,
+					EntryContract.COL_NAME_CATEGORY + "=" + category + " AND " + MONTH_SELECTION,
+					new String[] { sqlMonthStart, sqlMonthEnd },
 
 					EntryContract.COL_NAME_DATETIME);
 		}
@@ -60,6 +99,35 @@ public class SpreadsheetAdapter extends SimpleCursorTreeAdapter {
 		}
 	};
 
+	/**
+	 * Callbacks for single query mode: Loads all entries of the month at once and partitions them
+	 * by category in memory.
+	 */
+	private LoaderCallbacks<Cursor> monthLoaderCallbacks = new LoaderCallbacks<Cursor>() {
+		@Override
+		public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+			return new CursorLoader(context,
+					EntryContract.CONTENT_URI,
+					CHILD_PROJECTION,
+					MONTH_SELECTION,
+					new String[] { sqlMonthStart, sqlMonthEnd },
+					EntryContract.COL_NAME_DATETIME);
+		}
+
+		@Override
+		public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+			partitions = partition(data);
+			// Hand out the new partitions to all groups that have asked for their children
+			for (int groupPosition: requestedGroups)
+				setPartition(groupPosition);
+		}
+
+		@Override
+		public void onLoaderReset(Loader<Cursor> loader) {
+			partitions = null;
+		}
+	};
+
 	public SpreadsheetAdapter(Context context, Cursor cursor, int groupLayout,
 			String[] groupFrom, int[] groupTo, int childLayout,
 			String[] childFrom, int[] childTo, int month, int year) {
@@ -68,9 +136,106 @@ public class SpreadsheetAdapter extends SimpleCursorTreeAdapter {
 		this.context = context;
 		if (cursor != null)
 			indexGroupColumns(cursor);
-		// Prepare SQL timestring for the beginning of the month and year this adapter is created for
+		// Prepare SQL timestrings for the beginning of the month and year this adapter is created for,
+		// and for the beginning of the month after that
+		sqlMonthStart = getSQLTimestamp(month, year);
+		sqlMonthEnd = month == Calendar.DECEMBER ? getSQLTimestamp(Calendar.JANUARY, year + 1) : getSQLTimestamp(month + 1, year);
+		// Distinct per month, because all months share the activity's loader manager
+		monthLoaderId = MONTH_LOADER_ID_BASE + MonthsElapsedCalculator.getMonthsElapsed(month, year);
+	}
+
+	private static String getSQLTimestamp(int month, int year) {
 		// month + 1: passed month is zero-based here, but isn't in SQL
-		sqlTimestamp = String.valueOf(year) + "-" + String.format("%02d",month + 1) + "-01 00:00:00";
+		return String.format(Locale.US, "%04d-%02d-01 00:00:00", year, month + 1);
+	}
+
+	/**
+	 * Binds this adapter to the passed snapshot. Groups and children are taken from the snapshot without
+	 * any further database access or loaders. Passing <code>null</code> clears the adapter.
+	 */
+	public void setSnapshot(MonthSnapshot snapshot) {
+		this.snapshot = snapshot;
+		setGroupCursor(snapshot != null ? snapshot.getCategoriesCursor() : null);
+	}
+
+	public MonthSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Sets whether children are loaded by a single query for the whole month, partitioned by category in memory,
+	 * or by one query per expanded group. The latter is the default.
+	 */
+	public void setSingleQuery(boolean singleQuery) {
+		this.singleQuery = singleQuery;
+	}
+
+	public boolean isSingleQuery() {
+		return singleQuery;
+	}
+
+	/**
+	 * Splits the rows of the passed cursor by category, keeping their order.
+	 */
+	private static Map<Long, List<Object[]>> partition(Cursor cursor) {
+		Map<Long, List<Object[]>> result = new HashMap<Long, List<Object[]>>();
+		if (cursor == null)
+			return result;
+		int categoryColumn = cursor.getColumnIndex(EntryContract.COL_NAME_CATEGORY);
+		cursor.moveToPosition(-1);
+		while (cursor.moveToNext()) {
+			Object[] row = new Object[CHILD_PROJECTION.length];
+			for (int i = 0; i < row.length; i++) {
+				switch (cursor.getType(i)) {
+					case Cursor.FIELD_TYPE_NULL:
+						row[i] = null;
+						break;
+					case Cursor.FIELD_TYPE_INTEGER:
+						row[i] = cursor.getLong(i);
+						break;
+					case Cursor.FIELD_TYPE_FLOAT:
+						row[i] = cursor.getDouble(i);
+						break;
+					default:
+						row[i] = cursor.getString(i);
+				}
+			}
+			long category = cursor.getLong(categoryColumn);
+			List<Object[]> rows = result.get(category);
+			if (rows == null) {
+				rows = new ArrayList<Object[]>();
+				result.put(category, rows);
+			}
+			rows.add(row);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a new cursor holding the loaded entries of the passed category. Must only be called
+	 * when partitions are available.
+	 */
+	private Cursor getPartition(long category) {
+		List<Object[]> rows = partitions.get(category);
+		MatrixCursor cursor = new MatrixCursor(CHILD_PROJECTION, rows != null ? rows.size() : 0);
+		if (rows != null) {
+			for (Object[] row: rows)
+				cursor.addRow(row);
+		}
+		return cursor;
+	}
+
+	/**
+	 * Sets the loaded entries of the group at the passed position in the group cursor as its children. Must only
+	 * be called when partitions are available.
+	 */
+	private void setPartition(int groupPosition) {
+		Cursor groupCursor = getCursor();
+		if (groupCursor == null || !groupCursor.moveToPosition(groupPosition))
+			return;
+		Cursor children = getPartition(groupCursor.getLong(groupIdColumn));
+		indexChildColumns(children);
+		super.setChildrenCursor(groupPosition, children);
 	}
 
 	private int groupIdColumn;
@@ -80,10 +245,24 @@ public class SpreadsheetAdapter extends SimpleCursorTreeAdapter {
 
 	@Override
 	protected Cursor getChildrenCursor(Cursor groupCursor) {
+		if (snapshot != null)
+			// Group cursor positions match category indices in the snapshot
+			return snapshot.getEntriesCursor(groupCursor.getPosition());
+
+		LoaderManager loaderManager = ((FragmentActivity) context).getSupportLoaderManager();
+		if (singleQuery) {
+			requestedGroups.add(groupCursor.getPosition());
+			if (partitions != null)
+				return getPartition(groupCursor.getLong(groupIdColumn));
+			// The month loader will hand out children to all requested groups when it finishes
+			if (loaderManager.getLoader(monthLoaderId) == null)
+				loaderManager.initLoader(monthLoaderId, null, monthLoaderCallbacks);
+			return null;
+		}
+
 		int groupPosition = groupCursor.getPosition();
 		groupPosition *= 2;
 
-		LoaderManager loaderManager = ((FragmentActivity) context).getSupportLoaderManager();
 		Loader<?> loader = loaderManager.getLoader(groupPosition);
 		// If a loader is already associated with this position, and that loader has not been reset, do so.
 		// Otherwise initialize a new loader.
@@ -231,6 +410,8 @@ public class SpreadsheetAdapter extends SimpleCursorTreeAdapter {
 	public void setGroupCursor(Cursor groupCursor) {
 		if (groupCursor != null)
 			indexGroupColumns(groupCursor);
+		// Group positions may have changed
+		requestedGroups.clear();
 		super.setGroupCursor(groupCursor);
 	}
 
@@ -1,8 +1,12 @@
 package heger.christian.checkbook.db;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 
 /**
@@ -11,16 +15,293 @@ import android.provider.BaseColumns;
  */
 public class CheckbookDbHelper extends SQLiteOpenHelper {
 	public static abstract class MonthContract extends heger.christian.checkbook.providers.MonthContract {
-		protected static final String SQL_CREATE =
-				"create view " + TABLE_NAME + " as " +
+		/**
+		 * Name of the table holding the materialized monthly totals. As of schema version 3, this
+		 * replaces the view of version 1.
+		 */
+		public static final String TABLE_NAME = "month_totals";
+		/** Number of entries in the month. Rows are removed when this drops to zero. */
+		public static final String COL_NAME_ENTRY_COUNT = "entry_count";
+		/** Name of the view used up to schema version 2 */
+		protected static final String VIEW_NAME = heger.christian.checkbook.providers.MonthContract.TABLE_NAME;
+
+		protected static final String SQL_CREATE_VIEW =
+				"create view " + VIEW_NAME + " as " +
 				"select strftime('%m'," + EntryContract.COL_NAME_DATETIME +
 						")+12*(strftime('%Y'," + EntryContract.COL_NAME_DATETIME + ")-1970) as " + _ID
 						+ ",  sum(value) as " + COL_NAME_VALUE
 						+ " from " + EntryContract.TABLE_NAME
 						+ " group by " + _ID;
+		protected static final String SQL_DROP_VIEW =
+				"drop view if exists " + VIEW_NAME;
+
+		protected static final String SQL_CREATE =
+				"create table " + TABLE_NAME + " (" +
+				_ID + " integer primary key, " +
+				COL_NAME_VALUE + " integer not null default 0, " +
+				COL_NAME_ENTRY_COUNT + " integer not null default 0);";
+		/** Keeps the table up to date, grouping entries by their month */
+		protected static final EntryTotals TOTALS = new EntryTotals(TABLE_NAME,
+				new String[] { _ID },
+				new String[] { monthOf(EntryTotals.ROW + EntryContract.COL_NAME_DATETIME) },
+				new String[] { EntryContract.COL_NAME_DATETIME, EntryContract.COL_NAME_VALUE },
+				COL_NAME_VALUE, COL_NAME_ENTRY_COUNT);
+
+		/**
+		 * Returns an SQL expression calculating the elapsed months since January 1970 for the passed
+		 * datetime expression, in the same way as <code>MonthsElapsedCalculator</code> does.
+		 */
+		public static String monthOf(String datetime) {
+			return "(strftime('%m'," + datetime + ")+12*(strftime('%Y'," + datetime + ")-1970))";
+		}
+
+		/**
+		 * Creates the view of schema version 1.
+		 */
+		public static void createView(SQLiteDatabase db) {
+			db.execSQL(SQL_CREATE_VIEW);
+		}
+
+		/**
+		 * Replaces the view by the materialized table, its maintenance triggers, and populates it.
+		 */
+		public static void createTable(SQLiteDatabase db) {
+			db.execSQL(SQL_DROP_VIEW);
+			db.execSQL(SQL_CREATE);
+			TOTALS.createTriggers(db);
+			TOTALS.populate(db);
+		}
+
+		/**
+		 * Recalculates the materialized totals from scratch. This is meant for repair, it should not be
+		 * necessary during normal operation.
+		 */
+		public static void rebuild(SQLiteDatabase db) {
+			TOTALS.rebuild(db);
+		}
+
+		/**
+		 * Recalculates the totals from scratch and compares them to the materialized ones.
+		 * @return The number of rows that are missing, superfluous or differ in the materialized
+		 * totals. A consistent table gives 0.
+		 */
+		public static long verify(SQLiteDatabase db) {
+			return TOTALS.verify(db);
+		}
+	}
+
+	/**
+	 * Contract for the per-category, per-month totals backing <code>CategorySubtotalsContract</code>.
+	 * This table is purely internal and not exposed by the content provider directly. It is kept up to
+	 * date by triggers on the entries table, so it is always changed in the same transaction as the
+	 * entries themselves.
+	 */
+	public static abstract class CategoryMonthTotalsContract {
+		public static final String TABLE_NAME = "category_month_totals";
+		public static final String COL_NAME_CATEGORY = "category";
+		/** Elapsed months since January 1970, as in <code>MonthContract</code> */
+		public static final String COL_NAME_MONTH = "month";
+		public static final String COL_NAME_VALUE = "value";
+		/** Number of entries in the category and month. Rows are removed when this drops to zero. */
+		public static final String COL_NAME_ENTRY_COUNT = "entry_count";
 
+		protected static final String SQL_CREATE =
+				"create table " + TABLE_NAME + " (" +
+				COL_NAME_CATEGORY + " integer not null, " +
+				COL_NAME_MONTH + " integer not null, " +
+				COL_NAME_VALUE + " integer not null default 0, " +
+				COL_NAME_ENTRY_COUNT + " integer not null default 0, " +
+				// The primary key serves the lookups by category and month
+				"primary key (" + COL_NAME_CATEGORY + "," + COL_NAME_MONTH + "));";
+		/** Keeps the table up to date, grouping entries by their category and month */
+		protected static final EntryTotals TOTALS = new EntryTotals(TABLE_NAME,
+				new String[] { COL_NAME_CATEGORY, COL_NAME_MONTH },
+				new String[] { EntryTotals.ROW + EntryContract.COL_NAME_CATEGORY, MonthContract.monthOf(EntryTotals.ROW + EntryContract.COL_NAME_DATETIME) },
+				new String[] { EntryContract.COL_NAME_DATETIME, EntryContract.COL_NAME_VALUE, EntryContract.COL_NAME_CATEGORY },
+				COL_NAME_VALUE, COL_NAME_ENTRY_COUNT);
+
+		/**
+		 * Creates the table and its maintenance triggers, and populates it from the entries table.
+		 */
 		public static void createTable(SQLiteDatabase db) {
 			db.execSQL(SQL_CREATE);
+			TOTALS.createTriggers(db);
+			TOTALS.populate(db);
+		}
+
+		/**
+		 * Recalculates the totals from scratch. This is meant for repair, it should not be
+		 * necessary during normal operation.
+		 */
+		public static void rebuild(SQLiteDatabase db) {
+			TOTALS.rebuild(db);
+		}
+
+		/**
+		 * Recalculates the totals from scratch and compares them to the materialized ones.
+		 * @return The number of rows that are missing, superfluous or differ in the materialized
+		 * totals. A consistent table gives 0.
+		 */
+		public static long verify(SQLiteDatabase db) {
+			return TOTALS.verify(db);
+		}
+	}
+
+	/**
+	 * Generates and runs the SQL for a table of materialized totals of the entries' values, grouped by some
+	 * expressions over the entries. The table is kept up to date by triggers on the entries table, so it is always
+	 * changed in the same transaction as the entries themselves. Each row also counts its entries, and is removed
+	 * when that count drops to zero.
+	 * <p>
+	 * {@link MonthContract} and {@link CategoryMonthTotalsContract} differ only in what they group by, and create
+	 * their tables themselves.
+	 */
+	protected static class EntryTotals {
+		/**
+		 * Placeholder in grouping expressions for the qualifier of the entries row, which is replaced by
+		 * <code>new.</code> or <code>old.</code> in triggers, and removed elsewhere
+		 */
+		public static final String ROW = "{row}";
+
+		private final String table;
+		private final String[] keyColumns;
+		private final String[] keyExpressions;
+		private final String valueColumn;
+		private final String countColumn;
+		private final String[] sqlCreateTriggers;
+		private final String sqlCalculate;
+		private final String sqlPopulate;
+		private final String sqlSelectAll;
+
+		/**
+		 * @param table - The table holding the totals
+		 * @param keyColumns - The columns of <code>table</code> identifying a row
+		 * @param keyExpressions - For every key column, the expression over the entries row that is grouped by,
+		 * using {@link #ROW} to qualify the row's columns
+		 * @param triggerColumns - The columns of the entries table whose update changes the totals
+		 * @param valueColumn - The column of <code>table</code> holding the sum of the entries' values
+		 * @param countColumn - The column of <code>table</code> holding the number of entries
+		 */
+		public EntryTotals(String table, String[] keyColumns, String[] keyExpressions, String[] triggerColumns, String valueColumn, String countColumn) {
+			this.table = table;
+			this.keyColumns = keyColumns;
+			this.keyExpressions = keyExpressions;
+			this.valueColumn = valueColumn;
+			this.countColumn = countColumn;
+
+			sqlCreateTriggers = new String[] {
+					"create trigger " + table + "_insert after insert on " + EntryContract.TABLE_NAME +
+					" for each row begin " +
+						addEntry("new.") +
+					"end;",
+
+					"create trigger " + table + "_delete after delete on " + EntryContract.TABLE_NAME +
+					" for each row begin " +
+						removeEntry("old.") +
+					"end;",
+
+					// Only fires if any of the columns contributing to the totals were touched
+					"create trigger " + table + "_update after update of " + join(triggerColumns) +
+						" on " + EntryContract.TABLE_NAME +
+					" for each row begin " +
+						addEntry("new.") +
+						removeEntry("old.") +
+					"end;"
+			};
+			String[] keys = new String[keyColumns.length];
+			String[] aliases = new String[keyColumns.length];
+			for (int i = 0; i < keys.length; i++) {
+				aliases[i] = "k" + i;
+				keys[i] = key(i, "") + " as " + aliases[i];
+			}
+			sqlCalculate = "select " + join(keys) + ", " +
+					"sum(" + EntryContract.COL_NAME_VALUE + "), count(*) " +
+					"from " + EntryContract.TABLE_NAME + " group by " + join(aliases);
+			sqlPopulate = "insert into " + table + " (" + join(keyColumns) + "," + valueColumn + "," + countColumn + ") " +
+					sqlCalculate;
+			sqlSelectAll = "select " + join(keyColumns) + "," + valueColumn + "," + countColumn + " from " + table;
+		}
+
+		private static String join(String[] parts) {
+			StringBuilder result = new StringBuilder();
+			for (int i = 0; i < parts.length; i++) {
+				if (i > 0)
+					result.append(',');
+				result.append(parts[i]);
+			}
+			return result.toString();
+		}
+
+		private String key(int i, String row) {
+			return keyExpressions[i].replace(ROW, row);
+		}
+
+		/**
+		 * Returns a condition selecting the row of <code>table</code> the passed entries row counts towards.
+		 */
+		private String where(String row) {
+			StringBuilder where = new StringBuilder();
+			for (int i = 0; i < keyColumns.length; i++) {
+				if (i > 0)
+					where.append(" and ");
+				where.append(keyColumns[i]).append('=').append(key(i, row));
+			}
+			return where.toString();
+		}
+
+		private String addEntry(String row) {
+			String[] keys = new String[keyColumns.length];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = key(i, row);
+			return "insert or ignore into " + table + " (" + join(keyColumns) + ") values (" + join(keys) + "); " +
+					"update " + table + " set " +
+						valueColumn + "=" + valueColumn + "+" + row + EntryContract.COL_NAME_VALUE + ", " +
+						countColumn + "=" + countColumn + "+1 " +
+						"where " + where(row) + "; ";
+		}
+
+		private String removeEntry(String row) {
+			return "update " + table + " set " +
+						valueColumn + "=" + valueColumn + "-" + row + EntryContract.COL_NAME_VALUE + ", " +
+						countColumn + "=" + countColumn + "-1 " +
+						"where " + where(row) + "; " +
+					"delete from " + table + " where " + where(row) + " and " + countColumn + "<=0; ";
+		}
+
+		public void createTriggers(SQLiteDatabase db) {
+			for (String trigger: sqlCreateTriggers)
+				db.execSQL(trigger);
+		}
+
+		/**
+		 * Fills the table from the entries table. It must be empty.
+		 */
+		public void populate(SQLiteDatabase db) {
+			db.execSQL(sqlPopulate);
+		}
+
+		/**
+		 * Recalculates the totals from scratch. This is meant for repair, it should not be
+		 * necessary during normal operation.
+		 */
+		public void rebuild(SQLiteDatabase db) {
+			db.beginTransaction();
+			try {
+				db.execSQL("delete from " + table);
+				db.execSQL(sqlPopulate);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		/**
+		 * Recalculates the totals from scratch and compares them to the materialized ones.
+		 * @return The number of rows that are missing, superfluous or differ in the materialized
+		 * totals. A consistent table gives 0.
+		 */
+		public long verify(SQLiteDatabase db) {
+			return countDifferences(db, sqlCalculate, sqlSelectAll);
 		}
 	}
 
@@ -36,10 +317,18 @@ public class CheckbookDbHelper extends SQLiteOpenHelper {
 				"foreign key (" + COL_NAME_CATEGORY + ") references " +
 					CategoryContract.TABLE_NAME + "(" + CategoryContract._ID + ") " +
 					"on update cascade on delete cascade deferrable initially deferred);";
+		protected static final String SQL_CREATE_INDEX =
+				// Serves the per-category, per-month lookups of the spreadsheet
+				"create index " + TABLE_NAME + "_category_datetime on " + TABLE_NAME +
+				" (" + COL_NAME_CATEGORY + "," + COL_NAME_DATETIME + ");";
 
 		public static void createTable(SQLiteDatabase db) {
 			db.execSQL(SQL_CREATE);
 		}
+
+		public static void createIndex(SQLiteDatabase db) {
+			db.execSQL(SQL_CREATE_INDEX);
+		}
 	}
 
 	public static abstract class EntryMetaDataContract extends heger.christian.checkbook.providers.EntryMetadataContract {
@@ -125,11 +414,20 @@ public class CheckbookDbHelper extends SQLiteOpenHelper {
 				 // Delete the illegal entry again
 				 "begin delete from " + TABLE_NAME + " where " + COL_NAME_SEQUENCE_NUMBER + "=new." + COL_NAME_SEQUENCE_NUMBER + "; " +
 				 "select raise(fail,\"sequence number too low\"); end;";
+		protected static final String SQL_CREATE_INDEX =
+				// Covers the lookups for client side optimizations, which filter on all of these columns.
+				// The sequence number is the rowid and therefore implicitly part of the index.
+				"create index " + TABLE_NAME + "_lookup on " + TABLE_NAME + " (" +
+				COL_NAME_TABLE + "," + COL_NAME_ROW + "," + COL_NAME_COLUMN + "," + COL_NAME_OPERATION + ");";
 ;
 		public static void createTable(SQLiteDatabase db) {
 			db.execSQL(SQL_CREATE);
 			db.execSQL(SQL_CREATE_TRIGGER);
 		}
+
+		public static void createIndex(SQLiteDatabase db) {
+			db.execSQL(SQL_CREATE_INDEX);
+		}
 	}
 
 	public static abstract class RevisionTableContract extends heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract {
@@ -144,6 +442,255 @@ public class CheckbookDbHelper extends SQLiteOpenHelper {
 		public static void createTable(SQLiteDatabase db) {
 			db.execSQL(SQL_CREATE);
 		}
+
+		/**
+		 * As of schema version 5, the revision table is a view over {@link RowRevisionContract row revisions}
+		 * and {@link ColumnRevisionContract column revisions}. It has one row for every revisioned column of
+		 * every row that has a row revision. A column's revision is its column revision if there is one, and
+		 * its row's revision otherwise.
+		 */
+		protected static final String SQL_CREATE_VIEW =
+				"create view " + TABLE_NAME + " as " +
+				"select r." + COL_NAME_TABLE + " as " + COL_NAME_TABLE + ", " +
+					"r." + COL_NAME_ROW + " as " + COL_NAME_ROW + ", " +
+					"c." + COL_NAME_COLUMN + " as " + COL_NAME_COLUMN + ", " +
+					"coalesce(o." + COL_NAME_REVISION + ", r." + COL_NAME_REVISION + ") as " + COL_NAME_REVISION + " " +
+				"from " + RowRevisionContract.TABLE_NAME + " r " +
+				"join " + RevisionColumnsContract.TABLE_NAME + " c on c." + COL_NAME_TABLE + "=r." + COL_NAME_TABLE + " " +
+				"left join " + ColumnRevisionContract.TABLE_NAME + " o on o." + COL_NAME_TABLE + "=r." + COL_NAME_TABLE +
+					" and o." + COL_NAME_ROW + "=r." + COL_NAME_ROW +
+					" and o." + COL_NAME_COLUMN + "=c." + COL_NAME_COLUMN;
+		/**
+		 * Writes through the view keep the old per-column semantics: The first revision written for a row
+		 * becomes the row's revision, any column deviating from it gets a column revision. Deletions always
+		 * remove the revisions of the entire row.
+		 */
+		protected static final String[] SQL_CREATE_VIEW_TRIGGERS = {
+				"create trigger " + TABLE_NAME + "_insert instead of insert on " + TABLE_NAME +
+				" for each row begin " +
+					setRevision("new") +
+				"end;",
+
+				"create trigger " + TABLE_NAME + "_update instead of update on " + TABLE_NAME +
+				" for each row begin " +
+					setRevision("new") +
+				"end;",
+
+				"create trigger " + TABLE_NAME + "_delete instead of delete on " + TABLE_NAME +
+				" for each row begin " +
+					"delete from " + ColumnRevisionContract.TABLE_NAME + " where " + whereRow("old") + "; " +
+					"delete from " + RowRevisionContract.TABLE_NAME + " where " + whereRow("old") + "; " +
+				"end;"
+		};
+		protected static final String SQL_DROP =
+				"drop table " + TABLE_NAME;
+
+		private static String whereRow(String row) {
+			return COL_NAME_TABLE + "=" + row + "." + COL_NAME_TABLE + " and " + COL_NAME_ROW + "=" + row + "." + COL_NAME_ROW;
+		}
+
+		private static String setRevision(String row) {
+			return "insert or ignore into " + RowRevisionContract.TABLE_NAME + " (" + COL_NAME_TABLE + "," + COL_NAME_ROW + "," + COL_NAME_REVISION + ") " +
+						"values (" + row + "." + COL_NAME_TABLE + "," + row + "." + COL_NAME_ROW + "," + row + "." + COL_NAME_REVISION + "); " +
+					"insert into " + ColumnRevisionContract.TABLE_NAME + " (" + COL_NAME_TABLE + "," + COL_NAME_ROW + "," + COL_NAME_COLUMN + "," + COL_NAME_REVISION + ") " +
+						"values (" + row + "." + COL_NAME_TABLE + "," + row + "." + COL_NAME_ROW + "," + row + "." + COL_NAME_COLUMN + "," + row + "." + COL_NAME_REVISION + "); " +
+					// Column revisions that coincide with their row's revision are redundant
+					"delete from " + ColumnRevisionContract.TABLE_NAME + " where " + whereRow(row) +
+						" and " + COL_NAME_COLUMN + "=" + row + "." + COL_NAME_COLUMN +
+						" and " + COL_NAME_REVISION + "=(select " + COL_NAME_REVISION + " from " + RowRevisionContract.TABLE_NAME + " where " + whereRow(row) + "); ";
+		}
+
+		/**
+		 * Converts the per-column revision table of schema versions 1 to 4 into row and column revisions,
+		 * and replaces it with the view. The smallest revision of each row becomes the row's revision.
+		 */
+		public static void convertToDeltas(SQLiteDatabase db) {
+			RevisionColumnsContract.createTable(db);
+			RowRevisionContract.createTable(db);
+			ColumnRevisionContract.createTable(db);
+			db.execSQL("insert into " + RowRevisionContract.TABLE_NAME + " (" + COL_NAME_TABLE + "," + COL_NAME_ROW + "," + COL_NAME_REVISION + ") " +
+					"select " + COL_NAME_TABLE + "," + COL_NAME_ROW + ",min(" + COL_NAME_REVISION + ") from " + TABLE_NAME +
+					" group by " + COL_NAME_TABLE + "," + COL_NAME_ROW);
+			db.execSQL("insert into " + ColumnRevisionContract.TABLE_NAME + " (" + COL_NAME_TABLE + "," + COL_NAME_ROW + "," + COL_NAME_COLUMN + "," + COL_NAME_REVISION + ") " +
+					"select t." + COL_NAME_TABLE + ",t." + COL_NAME_ROW + ",t." + COL_NAME_COLUMN + ",t." + COL_NAME_REVISION + " " +
+					"from " + TABLE_NAME + " t join " + RowRevisionContract.TABLE_NAME + " r " +
+					"on r." + COL_NAME_TABLE + "=t." + COL_NAME_TABLE + " and r." + COL_NAME_ROW + "=t." + COL_NAME_ROW + " " +
+					"where t." + COL_NAME_REVISION + "<>r." + COL_NAME_REVISION);
+			db.execSQL(SQL_DROP);
+			db.execSQL(SQL_CREATE_VIEW);
+			for (String trigger: SQL_CREATE_VIEW_TRIGGERS)
+				db.execSQL(trigger);
+		}
+
+		/**
+		 * Adds one to the revisions of everything in the passed agenda, given as parallel arrays. An entry with a
+		 * <code>null</code> column stands for all columns of its row. Columns of rows that are also on the agenda
+		 * as a whole are only incremented once.
+		 * <p>
+		 * The agenda is written to a temporary table, from which the revisions are incremented in a fixed number
+		 * of statements. This must be called within a transaction, because temporary tables are only visible to
+		 * the connection that created them.
+		 * @return The number of rows and columns whose revisions were changed
+		 */
+		public static int incrementAgenda(SQLiteDatabase db, String[] tables, long[] rows, String[] columns) {
+			RevisionAgendaContract.createTable(db);
+			SQLiteStatement insert = db.compileStatement(RevisionAgendaContract.SQL_INSERT);
+			try {
+				for (int i = 0; i < tables.length; i++) {
+					insert.bindString(1, tables[i]);
+					insert.bindLong(2, rows[i]);
+					if (columns[i] != null)
+						insert.bindString(3, columns[i]);
+					else
+						insert.bindNull(3);
+					insert.executeInsert();
+				}
+			} finally {
+				insert.close();
+			}
+			int result = 0;
+			// Columns first, while the revision table still shows the old revisions
+			result += update(db, "insert or replace into " + ColumnRevisionContract.TABLE_NAME + " (" + COL_NAME_TABLE + "," + COL_NAME_ROW + "," + COL_NAME_COLUMN + "," + COL_NAME_REVISION + ") " +
+					"select v." + COL_NAME_TABLE + ",v." + COL_NAME_ROW + ",v." + COL_NAME_COLUMN + ",v." + COL_NAME_REVISION + "+1 " +
+					"from " + TABLE_NAME + " v join " + RevisionAgendaContract.TABLE_NAME + " a " +
+					"on a." + COL_NAME_TABLE + "=v." + COL_NAME_TABLE + " and a." + COL_NAME_ROW + "=v." + COL_NAME_ROW + " and a." + COL_NAME_COLUMN + "=v." + COL_NAME_COLUMN + " " +
+					"where not " + RevisionAgendaContract.containsRow("v"), null);
+			result += update(db, "update " + RowRevisionContract.TABLE_NAME + " set " + COL_NAME_REVISION + "=" + COL_NAME_REVISION + "+1 " +
+					"where " + RevisionAgendaContract.containsRow(RowRevisionContract.TABLE_NAME), null);
+			update(db, "update " + ColumnRevisionContract.TABLE_NAME + " set " + COL_NAME_REVISION + "=" + COL_NAME_REVISION + "+1 " +
+					"where " + RevisionAgendaContract.containsRow(ColumnRevisionContract.TABLE_NAME), null);
+			db.execSQL(RevisionAgendaContract.SQL_CLEAR);
+			return result;
+		}
+
+		private static int update(SQLiteDatabase db, String sql, String[] selectionArgs) {
+			SQLiteStatement statement = db.compileStatement(sql);
+			try {
+				if (selectionArgs != null)
+					statement.bindAllArgsAsStrings(selectionArgs);
+				return statement.executeUpdateDelete();
+			} finally {
+				statement.close();
+			}
+		}
+	}
+
+	public static abstract class RowRevisionContract extends heger.christian.checkbook.providers.MetaContentProvider.RowRevisionContract {
+		protected static final String SQL_CREATE =
+				"create table " + TABLE_NAME + " (" +
+				COL_NAME_TABLE + " text not null, " +
+				COL_NAME_ROW + " integer not null, " +
+				// Revision of all columns of the row that have no column revision
+				COL_NAME_REVISION + " integer not null, " +
+				"primary key (" + COL_NAME_TABLE + "," + COL_NAME_ROW + ") " +
+				"on conflict replace)";
+
+		public static void createTable(SQLiteDatabase db) {
+			db.execSQL(SQL_CREATE);
+		}
+	}
+
+	/**
+	 * Revisions of single columns that differ from their row's revision. Only accessible through the
+	 * revision table view.
+	 */
+	public static abstract class ColumnRevisionContract {
+		public static final String TABLE_NAME = "column_revisions";
+		protected static final String SQL_CREATE =
+				"create table " + TABLE_NAME + " (" +
+				RevisionTableContract.COL_NAME_TABLE + " text not null, " +
+				RevisionTableContract.COL_NAME_ROW + " integer not null, " +
+				RevisionTableContract.COL_NAME_COLUMN + " text not null, " +
+				RevisionTableContract.COL_NAME_REVISION + " integer not null, " +
+				"primary key (" + RevisionTableContract.COL_NAME_TABLE + "," + RevisionTableContract.COL_NAME_ROW + "," + RevisionTableContract.COL_NAME_COLUMN + ") " +
+				"on conflict replace)";
+
+		public static void createTable(SQLiteDatabase db) {
+			db.execSQL(SQL_CREATE);
+		}
+	}
+
+	/**
+	 * Temporary table holding the rows and columns whose revisions are to be incremented by
+	 * {@link RevisionTableContract#incrementAgenda(SQLiteDatabase, String[], long[], String[])}. It is
+	 * created on demand and not part of the schema.
+	 */
+	protected static abstract class RevisionAgendaContract {
+		public static final String TABLE_NAME = "revision_agenda";
+		protected static final String SQL_CREATE =
+				"create temp table if not exists " + TABLE_NAME + " (" +
+				RevisionTableContract.COL_NAME_TABLE + " text not null, " +
+				RevisionTableContract.COL_NAME_ROW + " integer not null, " +
+				// Null for all columns of the row
+				RevisionTableContract.COL_NAME_COLUMN + " text)";
+		protected static final String SQL_CREATE_INDEX =
+				"create index if not exists temp." + TABLE_NAME + "_row on " + TABLE_NAME + " (" +
+				RevisionTableContract.COL_NAME_TABLE + "," + RevisionTableContract.COL_NAME_ROW + ")";
+		protected static final String SQL_INSERT =
+				"insert into " + TABLE_NAME + " (" +
+				RevisionTableContract.COL_NAME_TABLE + "," + RevisionTableContract.COL_NAME_ROW + "," + RevisionTableContract.COL_NAME_COLUMN + ") " +
+				"values (?,?,?)";
+		protected static final String SQL_CLEAR =
+				"delete from " + TABLE_NAME;
+
+		public static void createTable(SQLiteDatabase db) {
+			db.execSQL(SQL_CREATE);
+			db.execSQL(SQL_CREATE_INDEX);
+		}
+
+		/**
+		 * Returns an SQL condition that is true if the agenda contains the entire row referred to by
+		 * the passed table alias.
+		 */
+		protected static String containsRow(String alias) {
+			return "exists (select 1 from " + TABLE_NAME + " a where " +
+					"a." + RevisionTableContract.COL_NAME_TABLE + "=" + alias + "." + RevisionTableContract.COL_NAME_TABLE + " and " +
+					"a." + RevisionTableContract.COL_NAME_ROW + "=" + alias + "." + RevisionTableContract.COL_NAME_ROW + " and " +
+					"a." + RevisionTableContract.COL_NAME_COLUMN + " is null)";
+		}
+	}
+
+	/**
+	 * The columns of each application data table that are subject to revision keeping. Populated
+	 * from the tables' definitions when created.
+	 */
+	public static abstract class RevisionColumnsContract {
+		public static final String TABLE_NAME = "revision_columns";
+		protected static final String SQL_CREATE =
+				"create table " + TABLE_NAME + " (" +
+				RevisionTableContract.COL_NAME_TABLE + " text not null, " +
+				RevisionTableContract.COL_NAME_COLUMN + " text not null, " +
+				"primary key (" + RevisionTableContract.COL_NAME_TABLE + "," + RevisionTableContract.COL_NAME_COLUMN + "))";
+		protected static final String[] TABLES = {
+				CategoryContract.TABLE_NAME,
+				EntryContract.TABLE_NAME,
+				EntryMetaDataContract.TABLE_NAME,
+				RuleContract.TABLE_NAME
+		};
+
+		public static void createTable(SQLiteDatabase db) {
+			db.execSQL(SQL_CREATE);
+			for (String table: TABLES)
+				populate(db, table);
+		}
+
+		/**
+		 * Registers all columns currently defined for the passed table.
+		 */
+		public static void populate(SQLiteDatabase db, String table) {
+			Cursor cursor = db.rawQuery("pragma table_info(" + table + ")", null);
+			try {
+				int colName = cursor.getColumnIndex("name");
+				while (cursor.moveToNext()) {
+					ContentValues values = new ContentValues();
+					values.put(RevisionTableContract.COL_NAME_TABLE, table);
+					values.put(RevisionTableContract.COL_NAME_COLUMN, cursor.getString(colName));
+					db.insertOrThrow(TABLE_NAME, null, values);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
 	}
 
 	public static abstract class SequenceAnchorContract extends heger.christian.checkbook.providers.MetaContentProvider.SequenceAnchorContract {
@@ -165,18 +712,102 @@ public class CheckbookDbHelper extends SQLiteOpenHelper {
 		}
 	}
 
-	public static final int DB_VERSION = 1;
+	public static abstract class SyncTraceContract extends heger.christian.checkbook.providers.MetaContentProvider.SyncTraceContract {
+		protected static final String SQL_CREATE =
+				"create table " + TABLE_NAME + " (" +
+				COL_NAME_SYNC + " integer not null, " +
+				COL_NAME_PHASE + " text not null, " +
+				COL_NAME_DURATION + " integer not null, " +
+				COL_NAME_SPANS + " integer not null default 1, " +
+				COL_NAME_COUNT + " integer not null default 0, " +
+				COL_NAME_BYTES + " integer not null default 0);";
+		protected static final String SQL_CREATE_TRIGGER =
+				// Keep only the most recent syncs
+				"create trigger " + TABLE_NAME + "_limit after insert on " + TABLE_NAME + " " +
+				"for each row begin delete from " + TABLE_NAME + " where " + COL_NAME_SYNC + " not in " +
+				"(select distinct " + COL_NAME_SYNC + " from " + TABLE_NAME + " order by " + COL_NAME_SYNC + " desc limit " + MAX_SYNCS + "); end;";
+
+		public static void createTable(SQLiteDatabase db) {
+			db.execSQL(SQL_CREATE);
+			db.execSQL(SQL_CREATE_TRIGGER);
+		}
+	}
+
+	/**
+	 * A single step in the evolution of the database schema, taking it from <code>version - 1</code>
+	 * to <code>version</code>. Migrations are run inside the transaction <code>SQLiteOpenHelper</code>
+	 * wraps around creating and upgrading the database.
+	 */
+	protected static abstract class Migration {
+		/** The schema version this migration results in */
+		public final int version;
+
+		public Migration(int version) {
+			this.version = version;
+		}
+
+		public abstract void apply(SQLiteDatabase db);
+	}
+
+	/**
+	 * All migrations, in ascending order of version. Version 1 is the base schema created by
+	 * {@link CheckbookDbHelper#createBaseSchema(SQLiteDatabase)}. To change the schema, append a
+	 * new migration here and increase {@link #DB_VERSION}. Existing migrations must never be changed,
+	 * as devices out there will already have run them.
+	 */
+	protected static final Migration[] MIGRATIONS = new Migration[] {
+		new Migration(2) {
+			// Indexes for the journal lookups and for per-category entry lookups
+			@Override
+			public void apply(SQLiteDatabase db) {
+				JournalContract.createIndex(db);
+				EntryContract.createIndex(db);
+			}
+		},
+		new Migration(3) {
+			// Materialized monthly totals instead of the months view
+			@Override
+			public void apply(SQLiteDatabase db) {
+				MonthContract.createTable(db);
+			}
+		},
+		new Migration(4) {
+			// Materialized per-category monthly totals
+			@Override
+			public void apply(SQLiteDatabase db) {
+				CategoryMonthTotalsContract.createTable(db);
+			}
+		},
+		new Migration(5) {
+			// One revision per row, with per-column revisions only where they differ
+			@Override
+			public void apply(SQLiteDatabase db) {
+				RevisionTableContract.convertToDeltas(db);
+			}
+		},
+		new Migration(6) {
+			// Timings of recent syncs
+			@Override
+			public void apply(SQLiteDatabase db) {
+				SyncTraceContract.createTable(db);
+			}
+		}
+	};
+
+	public static final int DB_VERSION = 6;
 	public static final String DB_NAME = "checkbook.db";
 
 	public CheckbookDbHelper(Context context) {
 		super(context, DB_NAME, null, DB_VERSION);
 	}
 
-	@Override
-	public void onCreate(SQLiteDatabase db) {
+	/**
+	 * Creates the schema as of version 1 of the database.
+	 */
+	protected static void createBaseSchema(SQLiteDatabase db) {
 		CategoryContract.createTable(db);
 		EntryContract.createTable(db);
-		MonthContract.createTable(db);
+		MonthContract.createView(db);
 		EntryMetaDataContract.createTable(db);
 		RuleContract.createTable(db);
 		// Metadata tables:
@@ -186,8 +817,37 @@ public class CheckbookDbHelper extends SQLiteOpenHelper {
 		RevisionTableContract.createTable(db);
 	}
 
+	/**
+	 * Counts the rows of the two passed queries that are not also in the other one.
+	 * Both queries must have compatible columns.
+	 */
+	protected static long countDifferences(SQLiteDatabase db, String query1, String query2) {
+		return DatabaseUtils.longForQuery(db, "select count(*) from (" + query1 + " except " + query2 + ")", null)
+				+ DatabaseUtils.longForQuery(db, "select count(*) from (" + query2 + " except " + query1 + ")", null);
+	}
+
+	/**
+	 * Applies all migrations resulting in versions greater than <code>oldVersion</code> and less than
+	 * or equal to <code>newVersion</code>, in order.
+	 */
+	protected static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+		for (Migration migration: MIGRATIONS) {
+			if (migration.version > oldVersion && migration.version <= newVersion)
+				migration.apply(db);
+		}
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		// Fresh databases go through the same migrations as upgraded ones, so both end up with
+		// identical schemas
+		createBaseSchema(db);
+		migrate(db, 1, DB_VERSION);
+	}
+
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		migrate(db, oldVersion, newVersion);
 	}
 
 	@Override
@@ -0,0 +1,56 @@
+package heger.christian.checkbook.network;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.content.Context;
+
+import com.goebl.david.Webb;
+
+/**
+ * Process-wide client for talking to the server. The truststore is read and the SSL context is set up only
+ * once, and all connections share the same socket factory. This matters beyond saving the work of parsing the
+ * truststore: <code>HttpURLConnection</code> only reuses pooled keep-alive connections for the same socket
+ * factory, and TLS sessions are cached per SSL context, so sharing them lets a sync, a key request and a token
+ * refresh in short succession get by with a single full handshake.
+ * <p>
+ * Pooled connections are only reused if the response body has been read completely before the connection is
+ * disconnected.
+ */
+public class CheckbookHttpClient {
+	private static CheckbookHttpClient instance;
+
+	private final SSLSocketFactory factory;
+
+	protected CheckbookHttpClient(SSLContext sslContext) {
+		factory = sslContext.getSocketFactory();
+	}
+
+	/**
+	 * Returns the shared client, creating it on first use.
+	 * @param context - Any context. Only the application context is retained.
+	 * @throws TruststoreException If setting up the truststore failed. Creation is attempted again on the next call.
+	 */
+	public static synchronized CheckbookHttpClient getInstance(Context context) throws TruststoreException {
+		if (instance == null) {
+			instance = new CheckbookHttpClient(new CheckbookSSLContextFactory(context.getApplicationContext()).createSSLContext());
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the socket factory shared by all connections to the server.
+	 */
+	public SSLSocketFactory getSSLSocketFactory() {
+		return factory;
+	}
+
+	/**
+	 * Returns a new <code>Webb</code> that uses the shared socket factory.
+	 */
+	public Webb createWebb() {
+		Webb webb = Webb.create();
+		webb.setSSLSocketFactory(factory);
+		return webb;
+	}
+}
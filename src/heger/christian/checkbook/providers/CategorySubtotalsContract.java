@@ -1,5 +1,7 @@
 package heger.christian.checkbook.providers;
 
+import heger.christian.checkbook.db.CheckbookDbHelper;
+import heger.christian.checkbook.db.CheckbookDbHelper.CategoryMonthTotalsContract;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -13,15 +15,24 @@ public abstract class CategorySubtotalsContract implements BaseColumns {
 	public static final String MIME_SUBTYPE_SUFFIX = TABLE_NAME;
 	public static final String QUERY_ARG_MONTH = "month";
 
+	/**
+	 * Generates the SQL for the subtotals of all categories in the passed month, served from the
+	 * materialized per-category monthly totals. Categories without entries in the month have a
+	 * <code>null</code> value. If <code>month</code> is <code>null</code>, all months are included.
+	 * @throws IllegalArgumentException - If <code>month</code> is not a number
+	 */
 	static String generateSQL(String month) {
-		return "categories	left join (" +
-				"select sum(" + EntryContract.COL_NAME_VALUE + ") as " + COL_NAME_VALUE +
-				", " + EntryContract.COL_NAME_CATEGORY +
-				", strftime('%m',datetime) + 12*(strftime('%Y',datetime)-1970) as " + COL_NAME_MONTH +
-				" from " + EntryContract.TABLE_NAME +
-				" group by " + EntryContract.COL_NAME_CATEGORY + "," + COL_NAME_MONTH +
-				(month != null ? " having " + COL_NAME_MONTH + " is null or " + COL_NAME_MONTH + "=" + month : "") +
-				") on " + CategoryContract._ID + "=" + EntryContract.COL_NAME_CATEGORY;
+		String condition = "";
+		if (month != null) {
+			try {
+				condition = " and " + CategoryMonthTotalsContract.COL_NAME_MONTH + "=" + Long.parseLong(month);
+			} catch (NumberFormatException x) {
+				throw new IllegalArgumentException("Invalid month: " + month, x);
+			}
+		}
+		return CheckbookDbHelper.CategoryContract.TABLE_NAME + " left join " + CategoryMonthTotalsContract.TABLE_NAME +
+				" on " + CheckbookDbHelper.CategoryContract.TABLE_NAME + "." + CategoryContract._ID + "=" + CategoryMonthTotalsContract.COL_NAME_CATEGORY +
+				condition;
 	}
 	protected static String mapToDBContract(String in) {
 //		if (in.equals(TABLE_NAME))
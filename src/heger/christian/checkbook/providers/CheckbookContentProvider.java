@@ -2,29 +2,42 @@ package heger.christian.checkbook.providers;
 
 import heger.christian.checkbook.db.CheckbookDbHelper;
 import heger.christian.checkbook.db.CheckbookDbHelper.EntryMetaDataContract;
+import heger.christian.checkbook.providers.MetaContentProvider.JournalContract;
 import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
+import heger.christian.checkbook.providers.MetaContentProvider.RowRevisionContract;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import android.content.ContentProvider;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
+import android.util.Log;
 
 /**
  * Content provider for accessing the application logic level data (as opposed to the metadata accessible
@@ -41,9 +54,16 @@ import android.text.TextUtils;
  * journaling will be rolled back as well, and a <code>JournalingFailedException</code> will be thrown.
  * Therefore, any calls to <code>insert(Uri, ContentValues)</code>, {@link #update(Uri, ContentValues, String, String[])},
  * {@link #delete(Uri, String, String[])} should always be prepared to handle this exception.
- * Automatic journaling and revision keeping can be turned off using {@link #setJournaling(boolean)}.
+ * Writes made on behalf of the sync adapter are neither journaled nor given revisions. They are marked by
+ * passing a URI obtained from {@link #asSyncAdapter(Uri)}, so that writes made by anybody else at the same time
+ * are still journaled. Automatic journaling and revision keeping can also be turned off altogether using
+ * {@link #setJournaling(boolean)}.
  */
 public class CheckbookContentProvider extends ContentProvider {
+	private static final String TAG = CheckbookContentProvider.class.getSimpleName();
+	/** Maximum number of ids inlined into a single statement when looking up the months of inserted entries */
+	private static final int MONTH_QUERY_CHUNK_SIZE = 500;
+
 	public static final String AUTHORITY = "heger.christian.checkbook.providers.checkbookcontentprovider";
 	public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
@@ -78,9 +98,27 @@ public class CheckbookContentProvider extends ContentProvider {
 	public static final String MIME_TYPE = "vnd.android.cursor";
 	public static final String MIME_SUBTYPE = "vnd.heger.christian.Checkbook.provider";
 
+	/**
+	 * Query parameter marking a write as made by the sync adapter when set to <code>true</code>.
+	 * @see #asSyncAdapter(Uri)
+	 */
+	public static final String QUERY_PARAM_CALLER_IS_SYNC_ADAPTER = "caller_is_sync_adapter";
+
 	public static final String METHOD_ENABLE_JOURNALING = "enableJournaling";
 	public static final String METHOD_DISABLE_JOURNALING = "disableJournaling";
 	public static final String METHOD_WANTS_KEYS = "wantsKeys";
+	public static final String METHOD_REBUILD_AGGREGATES = "rebuildAggregates";
+	public static final String METHOD_VERIFY_AGGREGATES = "verifyAggregates";
+
+	/**
+	 * Returns <code>uri</code> marked as being written by the sync adapter. Inserts, updates and deletions
+	 * through the returned URI apply changes that came from the server, so they are not journaled and no
+	 * revisions are kept for them, regardless of {@link #setJournaling(boolean)}. This only affects the
+	 * single call it is passed to.
+	 */
+	public static Uri asSyncAdapter(Uri uri) {
+		return uri.buildUpon().appendQueryParameter(QUERY_PARAM_CALLER_IS_SYNC_ADAPTER, "true").build();
+	}
 
 	public static Uri getUriForTable(String table) {
 		if (table.equals(CategoryContract.TABLE_NAME)) {
@@ -98,14 +136,15 @@ public class CheckbookContentProvider extends ContentProvider {
 	/* package private */ SQLiteOpenHelper dbHelper;
 	private KeyGenerator keyGenerator;
 	private Journaler journaler;
-	private boolean journaling = true;
-	private RevisionHelper revisionHelper;
+	private volatile boolean journaling = true;
+	private JournalIndex journalIndex;
+	private NotificationCoalescer notifications;
 
 	@Override
 	public boolean onCreate() {
 		keyGenerator = new KeyGenerator(getContext().getContentResolver());
 		journaler = new Journaler(getContext().getContentResolver());
-		revisionHelper = new RevisionHelper(this);
+		notifications = new NotificationCoalescer(getContext().getContentResolver());
 
 		return true;
 	}
@@ -130,6 +169,156 @@ public class CheckbookContentProvider extends ContentProvider {
 		return dbHelper;
 	}
 
+	/**
+	 * Returns the journal index kept by the <code>MetaContentProvider</code> sharing the database with this
+	 * provider, or <code>null</code> if it is unavailable.
+	 */
+	protected JournalIndex getJournalIndex() {
+		if (journalIndex == null)
+			journalIndex = MetaContentProvider.getJournalIndex(getContext().getContentResolver());
+		return journalIndex;
+	}
+
+	/**
+	 * Returns the coalescer through which this provider sends its change notifications. Transactions spanning
+	 * several operations on this provider should be mirrored on it, so that observers are notified only once
+	 * after they have been committed.
+	 */
+	/* package private */ NotificationCoalescer getNotificationCoalescer() {
+		return notifications;
+	}
+
+	/**
+	 * Begins a transaction on the passed database. Because the transaction may contain journal
+	 * writes, the journal index is registered to be invalidated if it is rolled back. Change
+	 * notifications are held back until the transaction has been committed.
+	 */
+	private void beginTransaction(SQLiteDatabase db) {
+		JournalIndex index = getJournalIndex();
+		if (index != null)
+			db.beginTransactionWithListener(index);
+		else
+			db.beginTransaction();
+		notifications.beginTransaction();
+	}
+
+	private void setTransactionSuccessful(SQLiteDatabase db) {
+		db.setTransactionSuccessful();
+		notifications.setTransactionSuccessful();
+	}
+
+	private void endTransaction(SQLiteDatabase db) {
+		try {
+			db.endTransaction();
+		} finally {
+			notifications.endTransaction();
+		}
+	}
+
+	/**
+	 * Returns whether a write to <code>uri</code> is to be journaled, that is whether journaling is enabled and
+	 * the write is not made by the sync adapter.
+	 */
+	private boolean isJournaling(Uri uri) {
+		return journaling && !uri.getBooleanQueryParameter(QUERY_PARAM_CALLER_IS_SYNC_ADAPTER, false);
+	}
+
+	/**
+	 * Returns the ids of all rows in the passed table matching the passed selection.
+	 */
+	private static List<Long> queryIds(SQLiteDatabase db, String table, String selection, String[] selectionArgs) {
+		return queryIds(db, table, selection, selectionArgs, -1);
+	}
+
+	/**
+	 * Returns the ids of the rows in the passed table matching the passed selection, or <code>null</code> if
+	 * there are more than <code>limit</code> of them. A negative limit returns all ids.
+	 */
+	private static List<Long> queryIds(SQLiteDatabase db, String table, String selection, String[] selectionArgs, int limit) {
+		List<Long> ids = new ArrayList<Long>();
+		Cursor cursor = db.query(table, new String[] { BaseColumns._ID }, selection, selectionArgs, null, null, null,
+				limit >= 0 ? String.valueOf(limit + 1) : null);
+		try {
+			if (limit >= 0 && cursor.getCount() > limit)
+				return null;
+			while (cursor.moveToNext())
+				ids.add(cursor.getLong(0));
+		} finally {
+			cursor.close();
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the months (as months elapsed since January 1970) of the entries matching the passed selection.
+	 * @param table - The table the selection applies to. If this is not the entries table, the result is empty.
+	 */
+	private static Set<Long> queryMonths(SQLiteDatabase db, String table, String selection, String[] selectionArgs) {
+		Set<Long> months = new HashSet<Long>();
+		if (!table.equals(CheckbookDbHelper.EntryContract.TABLE_NAME))
+			return months;
+		Cursor cursor = db.query(true, table,
+				new String[] { CheckbookDbHelper.MonthContract.monthOf(CheckbookDbHelper.EntryContract.COL_NAME_DATETIME) },
+				selection, selectionArgs, null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				if (!cursor.isNull(0))
+					months.add(cursor.getLong(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		return months;
+	}
+
+	/**
+	 * Returns the months of the passed entries. The ids are looked up in chunks of
+	 * {@link #MONTH_QUERY_CHUNK_SIZE}, so that the statements stay short no matter how many there are.
+	 */
+	private static Set<Long> queryMonths(SQLiteDatabase db, String table, List<Long> ids) {
+		Set<Long> months = new HashSet<Long>();
+		if (!table.equals(CheckbookDbHelper.EntryContract.TABLE_NAME))
+			return months;
+		for (int start = 0; start < ids.size(); start += MONTH_QUERY_CHUNK_SIZE) {
+			List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MONTH_QUERY_CHUNK_SIZE));
+			months.addAll(queryMonths(db, table, BaseColumns._ID + " in (" + TextUtils.join(",", chunk) + ")", null));
+		}
+		return months;
+	}
+
+	/**
+	 * Returns the month of the passed SQL timestring, or <code>null</code> if it isn't a valid one.
+	 */
+	private static Long queryMonth(SQLiteDatabase db, String datetime) {
+		Cursor cursor = db.rawQuery("select " + CheckbookDbHelper.MonthContract.monthOf("d") + " from (select ? as d)", new String[] { datetime });
+		try {
+			return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Records change notifications for the passed rows of the passed table, and for the passed months
+	 * and their category subtotals.
+	 * @param ids - The changed rows, or <code>null</code> to notify the table as a whole
+	 */
+	/* package private */ void notifyChange(String table, Collection<Long> ids, Set<Long> months) {
+		Uri uri = getUriForTable(table);
+		if (ids == null)
+			notifications.notifyChange(uri);
+		else {
+			for (long id: ids)
+				notifications.notifyRow(uri, id);
+		}
+		for (long month: months) {
+			notifications.notifyChange(ContentUris.withAppendedId(MonthContract.CONTENT_URI, month));
+			notifications.notifyChange(CategorySubtotalsContract.CONTENT_URI.buildUpon()
+					.appendQueryParameter(CategorySubtotalsContract.QUERY_ARG_MONTH, String.valueOf(month))
+					.build());
+		}
+	}
+
 	protected String getTableFromUri(Uri uri) {
 		String table;
 		switch (URI_MATCHER.match(uri)) {
@@ -148,7 +337,7 @@ public class CheckbookContentProvider extends ContentProvider {
 				break;
 			case URI_MONTHS: //$FALL_THROUGH$
 			case URI_MONTHS_ID:
-				table = MonthContract.TABLE_NAME;
+				table = MonthContract.mapToDBContract(MonthContract.TABLE_NAME);
 				break;
 			case URI_RULES: //$FALL-THROUGH$
 			case URI_RULES_ID:
@@ -228,6 +417,10 @@ public class CheckbookContentProvider extends ContentProvider {
 		return keyGenerator.generateKey(table);
 	}
 
+	protected long generateKeys(String table, int count) throws OutOfKeysException {
+		return keyGenerator.generateKeys(table, count);
+	}
+
 	/**
 	 * Inserts the supplied <code>values</code> under the supplied <code>uri</code>.
 	 * If <code>values</code> contains an id (under <code>BaseColumns._ID</code>), it will be used,
@@ -246,6 +439,7 @@ public class CheckbookContentProvider extends ContentProvider {
 	@Override
 	public Uri insert(Uri uri, ContentValues values) throws OutOfKeysException, JournalingFailedException {
 		String table = getTableFromUri(uri);
+		boolean journal = isJournaling(uri);
 		// Copy so the original won't be changed when we add the primary key
 		values = new ContentValues(values);
 		SQLiteDatabase db = getHelper().getWritableDatabase();
@@ -274,7 +468,7 @@ public class CheckbookContentProvider extends ContentProvider {
 
 		// Wrap the insert and the subsequent journaling in a transaction: If journaling fails,
 		// the changes will be rolled back
-		db.beginTransaction();
+		beginTransaction(db);
 		try {
 			long rowID = db.insertOrThrow(table, null, values);
 			// If no primary key had been supplied: check if insertion really happened with the generated key
@@ -284,7 +478,7 @@ public class CheckbookContentProvider extends ContentProvider {
 			uri = ContentUris.withAppendedId(uri, rowID);
 			if (rowID > -1) {
 				// Put the insertion in the journal
-				if (journaling) {
+				if (journal) {
 					try {
 						journaler.journalCreate(table, rowID);
 					} catch (RemoteException x) {
@@ -295,28 +489,165 @@ public class CheckbookContentProvider extends ContentProvider {
 						throw new JournalingFailedException(x);
 					}
 
-					Set<String> columns = revisionHelper.getColumns(table);
+					// Write a revision number of 0 for the inserted row, which covers all of its columns
 					ContentValues revisionValues = new ContentValues();
-					revisionValues.put(RevisionTableContract.COL_NAME_TABLE, table);
-					revisionValues.put(RevisionTableContract.COL_NAME_ROW, rowID);
-					revisionValues.put(RevisionTableContract.COL_NAME_REVISION, 0);
-					for (String column: columns) {
-						// Write a revision number of 0 to the revision table for each column of the inserted row
-						revisionValues.put(RevisionTableContract.COL_NAME_COLUMN, column);
-						getContext().getContentResolver().insert(RevisionTableContract.CONTENT_URI, revisionValues);
-					}
+					revisionValues.put(RowRevisionContract.COL_NAME_TABLE, table);
+					revisionValues.put(RowRevisionContract.COL_NAME_ROW, rowID);
+					revisionValues.put(RowRevisionContract.COL_NAME_REVISION, 0);
+					getContext().getContentResolver().insert(RowRevisionContract.CONTENT_URI, revisionValues);
 				}
+				// Notify content observers once the transaction has been committed
+				List<Long> ids = Collections.singletonList(rowID);
+				notifyChange(table, ids, queryMonths(db, table, ids));
 				// If journal and revision table were written without error, mark transaction as a success
-				db.setTransactionSuccessful();
-				// Notify content observers
-				getContext().getContentResolver().notifyChange(uri, null);
-
+				setTransactionSuccessful(db);
 			} else
-				db.setTransactionSuccessful(); // Nothing was inserted, so nothing could have gone wrong
+				setTransactionSuccessful(db); // Nothing was inserted, so nothing could have gone wrong
 			return uri;
 		} finally {
-			db.endTransaction();
+			endTransaction(db);
+		}
+	}
+
+	/**
+	 * Inserts all of the supplied <code>values</code> under the supplied <code>uri</code> in a single
+	 * transaction. Semantics are the same as for {@link #insert(Uri, ContentValues)}, but keys for all
+	 * rows lacking an id are reserved from the key generator in one step, and the rows, their journal
+	 * entries and their revision numbers are written using precompiled statements instead of going
+	 * through the content resolver for each of them. Content observers are notified once after the
+	 * transaction has been committed.
+	 * <p>
+	 * If any of the rows can not be inserted or journaled, none of them will be.
+	 * @throws OutOfKeysException - If the key generator could not supply enough keys for all rows
+	 * lacking an id. In this case, nothing will have been written.
+	 * @throws JournalingFailedException - If a record of the inserts could not be written to the journal
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) throws OutOfKeysException, JournalingFailedException {
+		String table = getTableFromUri(uri);
+		boolean journal = isJournaling(uri);
+		switch (URI_MATCHER.match(uri)) {
+			case URI_ENTRIES_ID: 				//$FALL-THROUGH$
+			case URI_CATEGORIES_ID: 			//$FALL-THROUGH$
+			case URI_RULES_ID: 					//$FALL-THROUGH$
+			case URI_ENTRY_METADATA_ID:
+				// All rows would get the same id from the URI fragment, so there is nothing to be gained here
+				return super.bulkInsert(uri, values);
+			case URI_CATEGORIES_SUBTOTALS: 		//$FALL-THROUGH$
+			case URI_CATEGORIES_SUBTOTALS_ID: 	//$FALL-THROUGH$
+			case URI_MONTHS: 					//$FALL_THROUGH$
+			case URI_MONTHS_ID:
+				throw new UnsupportedOperationException("Unsupported operation: INSERT into " + table);
+		}
+		if (values.length == 0)
+			return 0;
+
+		// Copy so the originals won't be changed when we add the primary keys, and count the keys we need
+		ContentValues[] rows = new ContentValues[values.length];
+		int keysNeeded = 0;
+		for (int i = 0; i < values.length; i++) {
+			rows[i] = new ContentValues(values[i]);
+			if (!rows[i].containsKey(BaseColumns._ID))
+				keysNeeded++;
+		}
+		// Reserve all needed keys at once. If the key supply can't satisfy this, nothing has been written yet
+		boolean[] checkKey = new boolean[rows.length];
+		if (keysNeeded > 0) {
+			long key = generateKeys(table, keysNeeded);
+			for (int i = 0; i < rows.length; i++) {
+				if (!rows[i].containsKey(BaseColumns._ID)) {
+					rows[i].put(BaseColumns._ID, key++);
+					checkKey[i] = true;
+				}
+			}
+		}
+
+		SQLiteDatabase db = getHelper().getWritableDatabase();
+		// Insert statements are compiled once per distinct set of columns. Usually, all rows will have the same
+		// columns, so there will only be one.
+		Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+		SQLiteStatement journalStatement = null;
+		SQLiteStatement revisionStatement = null;
+		List<Long> ids = new ArrayList<Long>(rows.length);
+		beginTransaction(db);
+		try {
+			if (journal) {
+				journalStatement = db.compileStatement("insert into " + JournalContract.TABLE_NAME + " ("
+						+ JournalContract.COL_NAME_SEQUENCE_NUMBER + ","
+						+ JournalContract.COL_NAME_TABLE + ","
+						+ JournalContract.COL_NAME_ROW + ","
+						+ JournalContract.COL_NAME_OPERATION + ") values (?,?,?,?)");
+				revisionStatement = db.compileStatement("insert into " + RowRevisionContract.TABLE_NAME + " ("
+						+ RowRevisionContract.COL_NAME_TABLE + ","
+						+ RowRevisionContract.COL_NAME_ROW + ","
+						+ RowRevisionContract.COL_NAME_REVISION + ") values (?,?,0)");
+			}
+
+			for (int i = 0; i < rows.length; i++) {
+				ContentValues row = rows[i];
+				// Sort the column names so that rows with the same columns map to the same statement
+				List<String> columns = new ArrayList<String>(row.keySet());
+				Collections.sort(columns);
+				String signature = TextUtils.join(",", columns);
+				SQLiteStatement statement = statements.get(signature);
+				if (statement == null) {
+					String[] placeholders = new String[columns.size()];
+					Arrays.fill(placeholders, "?");
+					statement = db.compileStatement("insert into " + table + " (" + signature + ") values (" + TextUtils.join(",", placeholders) + ")");
+					statements.put(signature, statement);
+				}
+				statement.clearBindings();
+				for (int j = 0; j < columns.size(); j++) {
+					DatabaseUtils.bindObjectToProgram(statement, j + 1, row.get(columns.get(j)));
+				}
+				long rowID = statement.executeInsert();
+				if (rowID == -1)
+					throw new SQLException("Failed to insert row into " + table + ": " + row);
+				// If no primary key had been supplied: check if insertion really happened with the generated key
+				if (checkKey[i] && rowID != row.getAsLong(BaseColumns._ID))
+					throw new IllegalStateException("Generated key was " + row.getAsLong(BaseColumns._ID) + " but database inserted as " + rowID + " in table " + table);
+				ids.add(rowID);
+
+				if (journal) {
+					try {
+						// Put the insertion in the journal. Nothing has been journaled for this row yet, so there
+						// can't be any optimizations
+						long sqn = journaler.getSequenceNumber();
+						journalStatement.bindLong(1, sqn);
+						journalStatement.bindString(2, table);
+						journalStatement.bindLong(3, rowID);
+						journalStatement.bindString(4, Journaler.OP_TYPE_CREATE);
+						journalStatement.executeInsert();
+						// This bypasses the MetaContentProvider, so the journal index needs to be told directly
+						if (journalIndex != null)
+							journalIndex.onInsert(sqn, table, rowID, null, Journaler.OP_TYPE_CREATE);
+
+						// Write a revision number of 0 for the inserted row, which covers all of its columns
+						revisionStatement.bindString(1, table);
+						revisionStatement.bindLong(2, rowID);
+						revisionStatement.executeInsert();
+					} catch (SQLException x) {
+						throw new JournalingFailedException(x);
+					}
+				}
+			}
+			// Notify content observers once for the whole batch, after it has been committed
+			notifyChange(table, ids, queryMonths(db, table, ids));
+			if (journal) {
+				notifications.notifyChange(JournalContract.CONTENT_URI);
+				notifications.notifyChange(RevisionTableContract.CONTENT_URI);
+				notifications.notifyChange(RowRevisionContract.CONTENT_URI);
+			}
+			// If all rows, journal entries and revisions were written without error, mark transaction as a success
+			setTransactionSuccessful(db);
+		} finally {
+			endTransaction(db);
+			for (SQLiteStatement statement: statements.values())
+				statement.close();
+			if (journalStatement != null) journalStatement.close();
+			if (revisionStatement != null) revisionStatement.close();
 		}
+		return rows.length;
 	}
 
 	@Override
@@ -355,6 +686,9 @@ public class CheckbookContentProvider extends ContentProvider {
 	@Override
 	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) throws JournalingFailedException {
 		String table = getTableFromUri(uri);
+		boolean journal = isJournaling(uri);
+		// If an exact row was identified through the URI fragment, this will hold its id
+		Long id = null;
 		SQLiteDatabase db = getHelper().getWritableDatabase();
 		// If an id was supplied in the uri fragment, modify the selection accordingly
 		switch (URI_MATCHER.match(uri)) {
@@ -362,10 +696,11 @@ public class CheckbookContentProvider extends ContentProvider {
 			case URI_CATEGORIES_ID:					// $FALL-THROUGH$
 			case URI_RULES_ID:						// $FALL-THROUGH$
 			case URI_ENTRY_METADATA_ID:
+				id = Long.valueOf(uri.getLastPathSegment());
 				if (TextUtils.isEmpty(selection))
-					selection = BaseColumns._ID + "=" + uri.getLastPathSegment();
+					selection = BaseColumns._ID + "=" + id;
 				else
-					selection = "(" + selection + ") and " + BaseColumns._ID + "=" + uri.getLastPathSegment();
+					selection = "(" + selection + ") and " + BaseColumns._ID + "=" + id;
 				break;
 			case URI_CATEGORIES_SUBTOTALS:			// $FALL-THROUGH$
 			case URI_CATEGORIES_SUBTOTALS_ID: 		// $FALL-THROUGH$
@@ -376,7 +711,7 @@ public class CheckbookContentProvider extends ContentProvider {
 
 		// There's some heavy lifting ahead of us that can be skipped if we're not journaling anyway...
 		Cursor affected = null;
-		if (journaling) {
+		if (journal) {
 			// Make new ArrayList for the columns. If _id column was already included in the ContentValues
 			// (which for an update should really never be the case), initialize to values.size(), otherwise
 			// make one column extra for the _id
@@ -407,11 +742,31 @@ public class CheckbookContentProvider extends ContentProvider {
 		}
 		// Wrap the update and subsequent journaling in a single transaction. That way, if the journaling fails,
 		// the update will be rolled back
-		db.beginTransaction();
+		beginTransaction(db);
 		try {
+			// Collect the rows to be updated and the months they are in, for change notifications. Without
+			// journaling, the ids are only needed if there are few enough of them to be notified one by one.
+			List<Long> ids;
+			if (journal) {
+				ids = new ArrayList<Long>(affected.getCount());
+				affected.moveToPosition(-1);
+				while (affected.moveToNext())
+					ids.add(affected.getLong(0));
+			} else if (id != null)
+				ids = Collections.singletonList(id);
+			else
+				ids = queryIds(db, table, selection, selectionArgs, notifications.getRowLimit());
+			Set<Long> months = queryMonths(db, table, selection, selectionArgs);
 			// Do the actual update
 			int result = db.update(table, values, selection, selectionArgs);
-			if (journaling) {
+			// Entries may have been moved to another month, which is the same for all of them
+			String datetime = values.getAsString(EntryContract.COL_NAME_DATETIME);
+			if (table.equals(CheckbookDbHelper.EntryContract.TABLE_NAME) && datetime != null && result > 0) {
+				Long month = queryMonth(db, datetime);
+				if (month != null)
+					months.add(month);
+			}
+			if (journal) {
 				// Make sure there is no discrepancy between the expected and actual number of updated rows
 				if (result != affected.getCount())
 					throw new IllegalStateException("Expected to affect " + affected.getCount() + " rows, but found actually " + result + " rows were affected.");
@@ -436,13 +791,13 @@ public class CheckbookContentProvider extends ContentProvider {
 					throw new JournalingFailedException(x);
 				}
 			}
-			// If we get to here, journaling completed without errors (or was switched off) - mark the entire transaction as successful
-			db.setTransactionSuccessful();
 			if (result > 0)
-				getContext().getContentResolver().notifyChange(uri, null);
+				notifyChange(table, ids, months);
+			// If we get to here, journaling completed without errors (or was switched off) - mark the entire transaction as successful
+			setTransactionSuccessful(db);
 			return result;
 		} finally {
-			db.endTransaction();
+			endTransaction(db);
 		}
 	}
 
@@ -457,6 +812,7 @@ public class CheckbookContentProvider extends ContentProvider {
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) throws JournalingFailedException {
 		String table = getTableFromUri(uri);
+		boolean journal = isJournaling(uri);
 		// If an exact row was identified through the URI fragment, this will hold its id
 		Long id = null;
 		SQLiteDatabase db = getHelper().getWritableDatabase();
@@ -484,8 +840,10 @@ public class CheckbookContentProvider extends ContentProvider {
 
 		// Wrap the delete and the subsequent journaling in a single transaction. That way, if journaling fails,
 		// the delete will be rolled back
-		db.beginTransaction();
+		beginTransaction(db);
 		try {
+			// The months the deleted entries were in, for change notifications
+			Set<Long> months = queryMonths(db, table, selection, selectionArgs);
 			// Was this a simple delete of one row identified by its id? If yes, that makes our life easier
 			// While not strictly necessary, this is probably the most frequent use case, so for performance reasons,
 			// it gets an optimized code path working on scalars instead of lists.
@@ -496,25 +854,19 @@ public class CheckbookContentProvider extends ContentProvider {
 				if (result > 0) {
 					ids.add(id);
 				}
-			} else if (id == null && !journaling) {
-				// Not a precisely identified row, but we're not journaling anyway, so we can save ourselves the heavy stuff
-				result = db.delete(table, selection, selectionArgs);
-			} else if (id == null && journaling){
-				// There wasn't one precisely identified row by id, get a cursor of all the rows that will be
-				// affected by running a query with the same selection
-				Cursor affected = query(uri, new String[] { BaseColumns._ID }, selection, selectionArgs, null);
+			} else {
+				// There wasn't one precisely identified row by id, get all the rows that will be
+				// affected by running a query with the same selection. They are needed for journaling.
+				// Otherwise they are only needed if there are few enough of them to be notified one by one.
+				ids = queryIds(db, table, selection, selectionArgs, journal ? -1 : notifications.getRowLimit());
 				result = db.delete(table, selection, selectionArgs);
 				// Make sure there is no discrepancy between the expected and actual number of deleted rows
-				if (result != affected.getCount())
-					throw new IllegalStateException("Expected to affect " + affected.getCount() + " rows, but found actually " + result + " rows were affected.");
-				// Add the id of all affected rows to ids
-				affected.moveToPosition(-1);
-				while (affected.moveToNext())
-					ids.add(affected.getLong(0)); // We projected to only the _id column
+				if (ids != null && result != ids.size())
+					throw new IllegalStateException("Expected to affect " + ids.size() + " rows, but found actually " + result + " rows were affected.");
 			}
 			if (result > 0) {
-				getContext().getContentResolver().notifyChange(uri, null);
-				if (journaling) {
+				notifyChange(table, ids, months);
+				if (journal) {
 					// Journal deletions for all affected rows
 					ArrayList<ContentProviderOperation> journalOperations = new ArrayList<ContentProviderOperation>();
 					for (Long i: ids)
@@ -530,12 +882,12 @@ public class CheckbookContentProvider extends ContentProvider {
 						throw new JournalingFailedException(x);
 					}
 				}
-				db.setTransactionSuccessful();
+				setTransactionSuccessful(db);
 			} else
-				db.setTransactionSuccessful(); // Nothing was done, so nothing could have gone wrong
+				setTransactionSuccessful(db); // Nothing was done, so nothing could have gone wrong
 			return result;
 		} finally {
-				db.endTransaction();
+				endTransaction(db);
 		}
 	}
 
@@ -546,6 +898,9 @@ public class CheckbookContentProvider extends ContentProvider {
 	 * <li> <code>METHOD_DISABLE_JOURNALING</code> - results in a call to <code>setJournaling(false)</code>
 	 * <li> <code>METHOD_WANTS_KEYS</code> - results in a call to <code>wantsKeys()</code>. The result of the
 	 * call is returned through the bundle under the key <code>METHOD_WANTS_KEYS</code>
+	 * <li> <code>METHOD_REBUILD_AGGREGATES</code> - results in a call to <code>rebuildAggregates()</code>
+	 * <li> <code>METHOD_VERIFY_AGGREGATES</code> - results in a call to <code>verifyAggregates()</code>. The result
+	 * of the call is returned through the bundle under the key <code>METHOD_VERIFY_AGGREGATES</code>
 	 * </ul>
 	 * @see ContentProvider#call(String, String, Bundle)
 	 */
@@ -559,12 +914,83 @@ public class CheckbookContentProvider extends ContentProvider {
 		else if (method.equals(METHOD_WANTS_KEYS)) {
 			bundle = new Bundle();
 			bundle.putBoolean(METHOD_WANTS_KEYS, wantsKeys());
+		} else if (method.equals(METHOD_REBUILD_AGGREGATES))
+			rebuildAggregates();
+		else if (method.equals(METHOD_VERIFY_AGGREGATES)) {
+			bundle = new Bundle();
+			bundle.putLong(METHOD_VERIFY_AGGREGATES, verifyAggregates());
 		}
 		return bundle;
 	}
 
 	/**
-	 * Turns journaling and revision keeping on and off.
+	 * Recalculates all materialized aggregates (the monthly totals behind <code>MonthContract</code> and
+	 * the per-category monthly totals behind <code>CategorySubtotalsContract</code>) from the entries table.
+	 * Aggregates are kept up to date automatically, so this is only needed for repair.
+	 */
+	public void rebuildAggregates() {
+		SQLiteDatabase db = getHelper().getWritableDatabase();
+		CheckbookDbHelper.MonthContract.rebuild(db);
+		CheckbookDbHelper.CategoryMonthTotalsContract.rebuild(db);
+		getContext().getContentResolver().notifyChange(MonthContract.CONTENT_URI, null);
+		getContext().getContentResolver().notifyChange(CategorySubtotalsContract.CONTENT_URI, null);
+	}
+
+	/**
+	 * Recalculates all materialized aggregates from the entries table and compares them to the stored ones,
+	 * without changing anything.
+	 * @return The number of aggregate rows that are missing, superfluous or differ from their expected
+	 * values. If the aggregates are consistent, this is 0.
+	 */
+	public long verifyAggregates() {
+		SQLiteDatabase db = getHelper().getReadableDatabase();
+		long drift = CheckbookDbHelper.MonthContract.verify(db) + CheckbookDbHelper.CategoryMonthTotalsContract.verify(db);
+		if (drift > 0)
+			Log.w(TAG, "Found " + drift + " drifted aggregate rows");
+		return drift;
+	}
+
+	/**
+	 * Reads everything displayed for the passed month into an immutable in-memory snapshot. All reads happen
+	 * within one transaction, so the snapshot is consistent even if the data is changed concurrently.
+	 * @param month - The month to read, in months elapsed since January 1970
+	 */
+	public MonthSnapshot getMonthSnapshot(int month) {
+		SQLiteDatabase db = getHelper().getReadableDatabase();
+		db.beginTransactionNonExclusive();
+		try {
+			MonthSnapshot snapshot = MonthSnapshot.read(db, month);
+			db.setTransactionSuccessful();
+			return snapshot;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Reads a month snapshot from the local <code>CheckbookContentProvider</code> available through the
+	 * passed resolver.
+	 * @return The snapshot, or <code>null</code> if no local <code>CheckbookContentProvider</code> is available.
+	 * @see #getMonthSnapshot(int)
+	 */
+	public static MonthSnapshot getMonthSnapshot(ContentResolver resolver, int month) {
+		ContentProviderClient client = resolver.acquireContentProviderClient(AUTHORITY);
+		if (client == null)
+			return null;
+		try {
+			ContentProvider provider = client.getLocalContentProvider();
+			// Not local, or not a CheckbookContentProvider
+			if (!(provider instanceof CheckbookContentProvider))
+				return null;
+			return ((CheckbookContentProvider) provider).getMonthSnapshot(month);
+		} finally {
+			client.release();
+		}
+	}
+
+	/**
+	 * Turns journaling and revision keeping on and off for all writes, whoever makes them. To keep only the
+	 * sync adapter's own writes from being journaled, use {@link #asSyncAdapter(Uri)} instead.
 	 */
 	public void setJournaling(boolean journaling) {
 		this.journaling = journaling;
@@ -0,0 +1,264 @@
+package heger.christian.checkbook.providers;
+
+import heger.christian.checkbook.providers.MetaContentProvider.JournalContract;
+import heger.christian.checkbook.providers.MetaContentProvider.SequenceAnchorContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteTransactionListener;
+
+/**
+ * In-memory index of all journal entries at or above the current sequence anchor, grouped by
+ * table and row. It allows the <code>Journaler</code> to find possible optimizations with a hash
+ * lookup instead of a query against the journal table for every journaled operation.
+ * <p>
+ * The index is loaded lazily from the database on first use. It is kept up to date by
+ * {@link MetaContentProvider}, through which all journal and sequence anchor writes are routed.
+ * Where that is not possible (e.g. for writes with an arbitrary selection), the index is invalidated
+ * and will be reloaded on next use. In order to notice rollbacks, it can be registered as a listener
+ * on any transaction that may contain journal writes, using
+ * {@link SQLiteDatabase#beginTransactionWithListener(SQLiteTransactionListener)}. Rolling back such a
+ * transaction will invalidate the index.
+ * <p>
+ * All methods of this class are thread safe.
+ */
+public class JournalIndex implements SQLiteTransactionListener {
+	/**
+	 * A single journal entry.
+	 */
+	public static class Entry {
+		public final long sqn;
+		public final String table;
+		public final long row;
+		public final String column;
+		public final String operation;
+
+		public Entry(long sqn, String table, long row, String column, String operation) {
+			this.sqn = sqn;
+			this.table = table;
+			this.row = row;
+			this.column = column;
+			this.operation = operation;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Entry)) return false;
+			Entry other = (Entry) o;
+			return sqn == other.sqn && row == other.row
+					&& table.equals(other.table)
+					&& (column == null ? other.column == null : column.equals(other.column))
+					&& operation.equals(other.operation);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (sqn ^ (sqn >>> 32));
+		}
+
+		@Override
+		public String toString() {
+			return "(" + sqn + ", " + table + ", " + row + ", " + column + ", " + operation + ")";
+		}
+	}
+
+	private final SQLiteOpenHelper helper;
+	/** Map from table names to maps from row ids to the journal entries for that row */
+	private final Map<String, Map<Long, List<Entry>>> entries = new HashMap<String, Map<Long, List<Entry>>>();
+	/** Map from sequence numbers to journal entries, for removal by sequence number */
+	private final Map<Long, Entry> bySequenceNumber = new HashMap<Long, Entry>();
+	private long anchor;
+	private boolean loaded = false;
+
+	public JournalIndex(SQLiteOpenHelper helper) {
+		this.helper = helper;
+	}
+
+	/**
+	 * Reads the sequence anchor and all journal entries at or above it from the database.
+	 */
+	private static List<Entry> read(SQLiteDatabase db, long[] anchor) {
+		List<Entry> result = new ArrayList<Entry>();
+		Cursor cursor = db.query(SequenceAnchorContract.TABLE_NAME,
+				new String[] { SequenceAnchorContract.COL_NAME_SEQUENCE_ANCHOR },
+				null, null, null, null, null);
+		try {
+			// Without an anchor, the journal is never consulted for optimizations, so treat it as empty
+			if (!cursor.moveToFirst()) {
+				anchor[0] = Long.MAX_VALUE;
+				return result;
+			}
+			anchor[0] = cursor.getLong(0);
+		} finally {
+			cursor.close();
+		}
+
+		cursor = db.query(JournalContract.TABLE_NAME,
+				new String[] { JournalContract.COL_NAME_SEQUENCE_NUMBER,
+					JournalContract.COL_NAME_TABLE,
+					JournalContract.COL_NAME_ROW,
+					JournalContract.COL_NAME_COLUMN,
+					JournalContract.COL_NAME_OPERATION },
+				JournalContract.COL_NAME_SEQUENCE_NUMBER + ">=" + anchor[0],
+				null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				result.add(new Entry(cursor.getLong(0),
+						cursor.getString(1),
+						cursor.getLong(2),
+						cursor.isNull(3) ? null : cursor.getString(3),
+						cursor.getString(4)));
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	private void ensureLoaded() {
+		if (loaded)
+			return;
+		clear();
+		long[] anchor = new long[1];
+		for (Entry entry: read(helper.getReadableDatabase(), anchor))
+			add(entry);
+		this.anchor = anchor[0];
+		loaded = true;
+	}
+
+	private void clear() {
+		entries.clear();
+		bySequenceNumber.clear();
+	}
+
+	private void add(Entry entry) {
+		Map<Long, List<Entry>> rows = entries.get(entry.table);
+		if (rows == null) {
+			rows = new HashMap<Long, List<Entry>>();
+			entries.put(entry.table, rows);
+		}
+		List<Entry> list = rows.get(entry.row);
+		if (list == null) {
+			list = new ArrayList<Entry>(2);
+			rows.put(entry.row, list);
+		}
+		list.add(entry);
+		bySequenceNumber.put(entry.sqn, entry);
+	}
+
+	private void remove(Entry entry) {
+		bySequenceNumber.remove(entry.sqn);
+		Map<Long, List<Entry>> rows = entries.get(entry.table);
+		List<Entry> list = rows.get(entry.row);
+		list.remove(entry);
+		if (list.isEmpty()) {
+			rows.remove(entry.row);
+			if (rows.isEmpty())
+				entries.remove(entry.table);
+		}
+	}
+
+	/**
+	 * Returns all journal entries at or above the sequence anchor for the specified row in the
+	 * specified table. If the index is not currently loaded, it is loaded from the database first.
+	 * @param table - The table name to look up
+	 * @param row - The row id to look up
+	 * @return A list of the matching entries, in no particular order. The list is a copy and may
+	 * be freely modified.
+	 */
+	public synchronized List<Entry> getEntries(String table, long row) {
+		ensureLoaded();
+		Map<Long, List<Entry>> rows = entries.get(table);
+		if (rows == null)
+			return new ArrayList<Entry>(0);
+		List<Entry> list = rows.get(row);
+		return list == null ? new ArrayList<Entry>(0) : new ArrayList<Entry>(list);
+	}
+
+	/**
+	 * Records the insertion of a journal entry. Does nothing if the index is not currently loaded,
+	 * because the entry will be picked up when loading.
+	 */
+	public synchronized void onInsert(long sqn, String table, long row, String column, String operation) {
+		if (!loaded)
+			return;
+		// Entries below the anchor are rejected by the database, but don't count on it
+		if (sqn < anchor)
+			return;
+		Entry existing = bySequenceNumber.get(sqn);
+		if (existing != null)
+			remove(existing);
+		add(new Entry(sqn, table, row, column, operation));
+	}
+
+	/**
+	 * Records the deletion of the journal entry with the given sequence number.
+	 */
+	public synchronized void onDelete(long sqn) {
+		if (!loaded)
+			return;
+		Entry existing = bySequenceNumber.get(sqn);
+		if (existing != null)
+			remove(existing);
+	}
+
+	/**
+	 * Records a change of the sequence anchor. All entries below the new anchor are dropped from the
+	 * index.
+	 */
+	public synchronized void onAnchorChange(long anchor) {
+		if (!loaded)
+			return;
+		if (anchor < this.anchor) {
+			// Entries between the new and the old anchor would have to be read back in
+			invalidate();
+			return;
+		}
+		this.anchor = anchor;
+		for (Entry entry: new ArrayList<Entry>(bySequenceNumber.values())) {
+			if (entry.sqn < anchor)
+				remove(entry);
+		}
+	}
+
+	/**
+	 * Discards the contents of the index. It will be reloaded from the database on next use.
+	 */
+	public synchronized void invalidate() {
+		loaded = false;
+		clear();
+	}
+
+	/**
+	 * Checks whether the contents of this index match the contents of the journal table at or above
+	 * the sequence anchor. This is intended for testing and debugging. If the index is not currently
+	 * loaded, it is trivially consistent.
+	 */
+	public synchronized boolean isConsistent() {
+		if (!loaded)
+			return true;
+		long[] anchor = new long[1];
+		Set<Entry> expected = new HashSet<Entry>(read(helper.getReadableDatabase(), anchor));
+		return anchor[0] == this.anchor && expected.equals(new HashSet<Entry>(bySequenceNumber.values()));
+	}
+
+	@Override
+	public void onBegin() {}
+
+	@Override
+	public void onCommit() {}
+
+	@Override
+	public void onRollback() {
+		invalidate();
+	}
+}
@@ -4,8 +4,10 @@ import heger.christian.checkbook.providers.MetaContentProvider.JournalContract;
 import heger.christian.checkbook.providers.MetaContentProvider.SequenceAnchorContract;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
@@ -25,6 +27,11 @@ import android.os.RemoteException;
  * <a href="file:../../../../../notes/Sync algorithm.html#client_side_optimizations">.
  * Sequence numbers are automatically determined. Thus, this class registers a
  * <code>ContentObserver</code> on the sequence anchor table's content URI.
+ * <p>
+ * Optimization checks are answered from the {@link JournalIndex} kept by the local
+ * <code>MetaContentProvider</code>, if available, and by querying the journal otherwise. In consistency
+ * checking mode, every lookup from the index is additionally compared against the result of the query,
+ * and an <code>IllegalStateException</code> is thrown if they differ. This is intended for testing.
  */
 public class Journaler {
 	protected class JournalerContentObserver extends ContentObserver {
@@ -62,6 +69,8 @@ public class Journaler {
 	private ContentResolver resolver;
 	private boolean needsUpdate = true;
 	private long nextSequenceNumber = 0;
+	private JournalIndex journalIndex;
+	private boolean consistencyChecking = false;
 
 	public Journaler(ContentResolver resolver) {
 		this.resolver = resolver;
@@ -126,6 +135,46 @@ public class Journaler {
 		return false;
 	}
 
+	/**
+	 * Returns the journal index of the local <code>MetaContentProvider</code>, looking it up
+	 * on first use.
+	 * @return The journal index, or <code>null</code> if none is available.
+	 */
+	protected synchronized JournalIndex getJournalIndex() {
+		if (journalIndex == null)
+			journalIndex = MetaContentProvider.getJournalIndex(resolver);
+		return journalIndex;
+	}
+
+	/**
+	 * Compares optimizations found through the journal index to those found by querying the journal.
+	 * @throws IllegalStateException - If they differ.
+	 */
+	private void checkConsistency(OptimizationOperations indexed, OptimizationOperations queried) {
+		Set<Uri> indexedUris = new HashSet<Uri>();
+		for (ContentProviderOperation operation: indexed.operations)
+			indexedUris.add(operation.getUri());
+		Set<Uri> queriedUris = new HashSet<Uri>();
+		for (ContentProviderOperation operation: queried.operations)
+			queriedUris.add(operation.getUri());
+		if (indexed.discardCurrent != queried.discardCurrent || !indexedUris.equals(queriedUris))
+			throw new IllegalStateException("Journal index is inconsistent with journal: index gave "
+					+ indexedUris + " (discard current: " + indexed.discardCurrent + "), journal gave "
+					+ queriedUris + " (discard current: " + queried.discardCurrent + ")");
+	}
+
+	/**
+	 * Turns consistency checking mode on or off. In consistency checking mode, every optimization
+	 * lookup made through the journal index is checked against a query of the journal.
+	 */
+	public void setConsistencyChecking(boolean consistencyChecking) {
+		this.consistencyChecking = consistencyChecking;
+	}
+
+	public boolean isConsistencyChecking() {
+		return consistencyChecking;
+	}
+
 	/**
 	 * Gets a <code>ContentProviderOperation</code> for writing the creation of the specified row
 	 * within the specified table to the journal, using the next available sequence number.
@@ -161,6 +210,30 @@ public class Journaler {
 	 * possible given the current update.
 	 */
 	protected OptimizationOperations getUpdateOptimizations(String table, long id, String column) {
+		JournalIndex index = getJournalIndex();
+		if (index == null)
+			return queryUpdateOptimizations(table, id, column);
+
+		// If there is a CREATE for the same table and row, or an UPDATE for the same table,
+		// row and column, the current update doesn't need to be written to the journal
+		OptimizationOperations optimizations = new OptimizationOperations();
+		for (JournalIndex.Entry entry: index.getEntries(table, id)) {
+			if (entry.operation.equals(OP_TYPE_CREATE)
+					|| entry.operation.equals(OP_TYPE_UPDATE) && column.equals(entry.column)) {
+				optimizations.discardCurrent = true;
+				break;
+			}
+		}
+		if (consistencyChecking)
+			checkConsistency(optimizations, queryUpdateOptimizations(table, id, column));
+		return optimizations;
+	}
+
+	/**
+	 * Finds the optimizations possible from an update by querying the journal.
+	 * @see #getUpdateOptimizations(String, long, String)
+	 */
+	private OptimizationOperations queryUpdateOptimizations(String table, long id, String column) {
 		// Select all UPDATES for the same table, row and column, or all
 		// CREATES for the same table and row that have a
 		// sequence number higher than N
@@ -231,6 +304,31 @@ public class Journaler {
 	 * possible given the current deletion.
 	 */
 	protected OptimizationOperations getDeleteOptimizations(String table, long id) {
+		JournalIndex index = getJournalIndex();
+		if (index == null)
+			return queryDeleteOptimizations(table, id);
+
+		// Put delete operations for all updates or creates for the same table and row
+		// into the optimizations and check if the current delete can be discarded
+		OptimizationOperations optimizations = new OptimizationOperations();
+		for (JournalIndex.Entry entry: index.getEntries(table, id)) {
+			if (entry.operation.equals(OP_TYPE_UPDATE) || entry.operation.equals(OP_TYPE_CREATE)) {
+				Uri uri = ContentUris.withAppendedId(JournalContract.CONTENT_URI, entry.sqn);
+				optimizations.operations.add(ContentProviderOperation.newDelete(uri).build());
+				if (entry.operation.equals(OP_TYPE_CREATE))
+					optimizations.discardCurrent = true;
+			}
+		}
+		if (consistencyChecking)
+			checkConsistency(optimizations, queryDeleteOptimizations(table, id));
+		return optimizations;
+	}
+
+	/**
+	 * Finds the optimizations possible from a deletion by querying the journal.
+	 * @see #getDeleteOptimizations(String, long)
+	 */
+	private OptimizationOperations queryDeleteOptimizations(String table, long id) {
 		// Select all updates or creates for the same table and row that have a
 		// sequence number higher than N
 		String where = JournalContract.COL_NAME_TABLE + "=? and " +
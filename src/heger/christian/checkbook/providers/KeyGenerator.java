@@ -7,10 +7,37 @@ import android.database.Cursor;
 import android.os.Handler;
 
 /**
- * Key generator based loosely on the high-low algorithm. Keys are generated with calls to {@link #generateKey(String)}.
- *
+ * Key generator based loosely on the high-low algorithm. Keys are generated with calls to {@link #generateKey(String)},
+ * or in consecutive ranges with calls to {@link #reserveKeys(int)}.
+ * <p>
+ * To avoid writing to storage for every single key, the key generator leases blocks of keys from its current series.
+ * Before the first key of a new lease is issued, the end of the lease is written through to storage as the next
+ * available key. Keys from the lease are then handed out from memory. When the process dies while a lease is
+ * active, the keys remaining in it are lost, but no key will ever be issued twice. This is deliberate: Android
+ * gives content providers no reliable point at which to hand unused keys back, and at most one block is abandoned
+ * per process.
  */
 public class KeyGenerator {
+	/**
+	 * A range of consecutive keys, as issued by {@link KeyGenerator#reserveKeys(int)}.
+	 */
+	public static class KeyRange {
+		/** First key of the range */
+		public final long first;
+		/** Last key of the range (inclusively) */
+		public final long last;
+		public KeyRange(long first, long last) {
+			this.first = first;
+			this.last = last;
+		}
+		/**
+		 * @return The number of keys in this range
+		 */
+		public int size() {
+			return (int) (last - first + 1);
+		}
+	}
+
 	/**
 	 * Content observer that marks the key generator as in need of new initialization when a change of the
 	 * key generation table is detected.
@@ -28,11 +55,20 @@ public class KeyGenerator {
 	}
 	private ContentObserver observer = new ContentObserver(null);
 
+	/** Default number of keys leased from the current series per write to storage */
+	public static final int DEFAULT_BLOCK_SIZE = 16;
+
 	/** Next key to be issued by {@link #generateKey(String)} */
 	private long nextKey;
 	/** Upper bound (inclusively) of the current series */
 	private long upperBound;
+	/**
+	 * Last key (inclusively) of the current lease. Storage holds <code>leaseEnd + 1</code> as the next key, so keys
+	 * up to and including this one may be issued without writing to storage.
+	 */
+	private long leaseEnd;
 	private boolean initialized = false;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
 
 	private final ContentResolver resolver;
 
@@ -45,7 +81,7 @@ public class KeyGenerator {
 
 	/**
 	 * Loads the initial values for the next key and the upper bound of the current series from
-	 * storage.
+	 * storage. Any previous lease is discarded.
 	 * <p>
 	 * <strong>Storage access is blocking.</strong> If necessary, it is the caller's responsibility
 	 * to call this method asynchronously. However, in most cases, this will be invoked as part of
@@ -61,6 +97,8 @@ public class KeyGenerator {
 		if (cursor != null && cursor.moveToFirst()) {
 			nextKey = cursor.getLong(cursor.getColumnIndex(KeyGenerationContract.COL_NAME_NEXT_KEY));
 			upperBound = cursor.getLong(cursor.getColumnIndex(KeyGenerationContract.COL_NAME_UPPER_BOUND));
+			// Nothing is leased yet
+			leaseEnd = nextKey - 1;
 		} else {
 			throw new OutOfKeysException();
 		}
@@ -79,38 +117,105 @@ public class KeyGenerator {
 	}
 
 	/**
-	 * Generates a new key from the current series.
-	 * <p>
-	 * The generated key will immediately be written through to storage, so key generation must be considered a
-	 * long-running operations Consequently, it should always be called asynchronously, either directly or
-	 * indirectly by performing the storage insertion requesting the key asynchronously (this should be the more common case).
-	 * <p>
-	 * This method is thread safe.
-	 * @param table - The table for which a new primary key is requested
-	 * @return A new primary key from the current series
-	 * @throws OutOfKeysException - If the current series is exhausted.
+	 * Writes the passed value through to storage as the next available key.
 	 */
-	public synchronized long generateKey(String table) throws OutOfKeysException {
-		// Load nextKey and upperBound lazily
-		if (!initialized) initialize();
-
-		if (nextKey > upperBound) throw new OutOfKeysException();
-
-		long key = nextKey++;
-
+	private void writeNextKey(long value) {
 		ContentValues values = new ContentValues();
-		values.put(KeyGenerationContract.COL_NAME_NEXT_KEY, nextKey);
+		values.put(KeyGenerationContract.COL_NAME_NEXT_KEY, value);
 		values.put(KeyGenerationContract.COL_NAME_UPPER_BOUND, upperBound);
 		try {
 			// Avoid re-reading the values we're inserting from storage
 			observer.active = false;
 			if (resolver.insert(KeyGenerationContract.CONTENT_URI, values) == null)
-				throw new IllegalStateException("Could not mark issued key " + key + " as used");
+				throw new IllegalStateException("Could not mark keys up to " + (value - 1) + " as used");
 		} finally {
 			observer.active = true;
 		}
+	}
+
+	/**
+	 * Reserves <code>count</code> consecutive keys from the current series.
+	 * <p>
+	 * If the current lease does not hold enough keys, a new lease covering at least <code>count</code>
+	 * keys, but no less than the block size, is taken out and written through to storage before any
+	 * key is issued. Key reservation must therefore be considered a long-running operation. Consequently,
+	 * it should always be called asynchronously, either directly or indirectly by performing the storage
+	 * insertion requesting the keys asynchronously (this should be the more common case).
+	 * <p>
+	 * If the current series does not hold enough keys to satisfy the request, no keys are issued at all.
+	 * <p>
+	 * This method is thread safe.
+	 * @param count - The number of keys to reserve. Must be positive.
+	 * @return The range of reserved keys
+	 * @throws OutOfKeysException - If the current series holds less than <code>count</code> keys.
+	 */
+	public synchronized KeyRange reserveKeys(int count) throws OutOfKeysException {
+		if (count < 1) throw new IllegalArgumentException("Key count must be positive, but was " + count);
+		// Load nextKey and upperBound lazily
+		if (!initialized) initialize();
+
+		if (upperBound - nextKey + 1 < count) throw new OutOfKeysException();
+
+		long last = nextKey + count - 1;
+		if (last > leaseEnd) {
+			// Take out a new lease and persist it before issuing anything from it. That way, if we get
+			// killed, the keys will have been marked as used already.
+			long newLeaseEnd = Math.min(upperBound, Math.max(last, nextKey + blockSize - 1));
+			writeNextKey(newLeaseEnd + 1);
+			leaseEnd = newLeaseEnd;
+		}
+
+		KeyRange range = new KeyRange(nextKey, last);
+		nextKey = last + 1;
+		return range;
+	}
+
+	/**
+	 * Generates a new key from the current series.
+	 * <p>
+	 * Keys are issued from the current lease. If it is exhausted, a new one will be written through to storage
+	 * (see {@link #reserveKeys(int)}), so key generation must be considered a long-running operation.
+	 * Consequently, it should always be called asynchronously, either directly or indirectly by performing the
+	 * storage insertion requesting the key asynchronously (this should be the more common case).
+	 * <p>
+	 * This method is thread safe.
+	 * @param table - The table for which a new primary key is requested
+	 * @return A new primary key from the current series
+	 * @throws OutOfKeysException - If the current series is exhausted.
+	 */
+	public long generateKey(String table) throws OutOfKeysException {
+		return reserveKeys(1).first;
+	}
+
+	/**
+	 * Generates <code>count</code> consecutive keys from the current series in one step. The keys
+	 * issued are <code>[result, result + count)</code>.
+	 * <p>
+	 * This is a convenience method for {@link #reserveKeys(int)}. If the current series does not
+	 * hold enough keys to satisfy the request, no keys are issued at all.
+	 * <p>
+	 * This method is thread safe.
+	 * @param table - The table for which the primary keys are requested
+	 * @param count - The number of keys to generate. Must be positive.
+	 * @return The first key of the generated range
+	 * @throws OutOfKeysException - If the current series holds less than <code>count</code> keys.
+	 */
+	public long generateKeys(String table, int count) throws OutOfKeysException {
+		return reserveKeys(count).first;
+	}
+
+	/**
+	 * Sets the number of keys to lease from the current series with every write through to storage.
+	 * Larger blocks mean fewer writes, but more keys lost if the process is killed.
+	 * @param blockSize - The new block size. Must be positive.
+	 */
+	public synchronized void setBlockSize(int blockSize) {
+		if (blockSize < 1) throw new IllegalArgumentException("Block size must be positive, but was " + blockSize);
+		this.blockSize = blockSize;
+	}
 
-		return key++;
+	public int getBlockSize() {
+		return blockSize;
 	}
 
 	/**
@@ -5,8 +5,10 @@ import heger.christian.checkbook.db.CheckbookDbHelper;
 import java.util.ArrayList;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
@@ -15,6 +17,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 
 /**
@@ -22,9 +25,11 @@ import android.text.TextUtils;
  * <ul>
  * <li>the <i>key_generation</i> table that holds data associated with the key generation algorithm
  * <li>the <i>journal</i> table that holds data necessary for syncing
- * <li>the <i>revision table</i> holding revision numbers for all application data
+ * <li>the <i>revision table</i> holding revision numbers for all application data, and the
+ * <i>row_revisions</i> table holding the revision numbers common to all columns of a row
  * <li>the <i>sequence_anchor</i> table which holds a single cell with the
  * sequence anchor (the next sequence number to be synchronized)
+ * <li>the <i>sync_trace</i> table holding the time spent in each phase of recent syncs
  * </ul>
  * <p>
  * Internally, this data is stored in the same database file along with the actual application data to
@@ -73,6 +78,20 @@ public class MetaContentProvider extends ContentProvider {
 		public static final String MIME_SUBTYPE_SUFFIX = TABLE_NAME;
 	}
 
+	/**
+	 * Revisions of entire rows. Inserting a row revision sets the revision of all columns of the row
+	 * that are subject to revision keeping, and the revision table reflects it for every one of these
+	 * columns. Selections may only refer to the table and row.
+	 */
+	public static class RowRevisionContract {
+		public static final String TABLE_NAME = "row_revisions";
+		public static final Uri CONTENT_URI = MetaContentProvider.CONTENT_URI.buildUpon().appendPath(TABLE_NAME).build();
+		public static final String COL_NAME_TABLE = RevisionTableContract.COL_NAME_TABLE;
+		public static final String COL_NAME_ROW = RevisionTableContract.COL_NAME_ROW;
+		public static final String COL_NAME_REVISION = RevisionTableContract.COL_NAME_REVISION;
+		public static final String MIME_SUBTYPE_SUFFIX = TABLE_NAME;
+	}
+
 	public static class SequenceAnchorContract {
 		public static final String TABLE_NAME = "sequence_anchor";
 		public static final Uri CONTENT_URI = MetaContentProvider.CONTENT_URI.buildUpon().appendPath(TABLE_NAME).build();
@@ -80,11 +99,36 @@ public class MetaContentProvider extends ContentProvider {
 		public static final String MIME_SUBTYPE_SUFFIX = TABLE_NAME;
 	}
 
+	/**
+	 * Holds one row per phase of each of the most recent syncs, as recorded by
+	 * {@link heger.christian.checkbook.sync.SyncTrace}. Older syncs are removed as new ones are inserted,
+	 * so that no more than {@link #MAX_SYNCS} are kept.
+	 */
+	public static class SyncTraceContract {
+		public static final String TABLE_NAME = "sync_trace";
+		public static final Uri CONTENT_URI = MetaContentProvider.CONTENT_URI.buildUpon().appendPath(TABLE_NAME).build();
+		/** Wall clock time in milliseconds at which the sync started, identifying the sync */
+		public static final String COL_NAME_SYNC = "sync";
+		public static final String COL_NAME_PHASE = "phase";
+		/** Total time spent in the phase in microseconds, excluding nested phases */
+		public static final String COL_NAME_DURATION = "duration";
+		/** Number of times the phase was entered */
+		public static final String COL_NAME_SPANS = "spans";
+		/** Number of items processed in the phase, such as journal entries or operations */
+		public static final String COL_NAME_COUNT = "count";
+		public static final String COL_NAME_BYTES = "bytes";
+		public static final String MIME_SUBTYPE_SUFFIX = TABLE_NAME;
+		/** Number of syncs kept in the table */
+		public static final int MAX_SYNCS = 50;
+	}
+
 	public static final int URI_KEY_GENERATION = 10;
 	public static final int URI_JOURNAL = 20;
 	public static final int URI_JOURNAL_ID = 21;
 	public static final int URI_REVISION_TABLE = 30;
+	public static final int URI_ROW_REVISIONS = 32;
 	public static final int URI_SEQUENCE_ANCHOR = 40;
+	public static final int URI_SYNC_TRACE = 50;
 
 	public static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 	static {
@@ -92,13 +136,60 @@ public class MetaContentProvider extends ContentProvider {
 		URI_MATCHER.addURI(AUTHORITY, JournalContract.TABLE_NAME, URI_JOURNAL);
 		URI_MATCHER.addURI(AUTHORITY, JournalContract.TABLE_NAME + "/#", URI_JOURNAL_ID);
 		URI_MATCHER.addURI(AUTHORITY, RevisionTableContract.TABLE_NAME, URI_REVISION_TABLE);
+		URI_MATCHER.addURI(AUTHORITY, RowRevisionContract.TABLE_NAME, URI_ROW_REVISIONS);
 		URI_MATCHER.addURI(AUTHORITY, SequenceAnchorContract.TABLE_NAME, URI_SEQUENCE_ANCHOR);
+		URI_MATCHER.addURI(AUTHORITY, SyncTraceContract.TABLE_NAME, URI_SYNC_TRACE);
 	}
 
+	/**
+	 * Method for {@link #call(String, String, Bundle)} that adds one to the revisions of a whole agenda of
+	 * rows and columns at once. The agenda is passed as parallel arrays in the extras under
+	 * {@link #EXTRA_TABLES}, {@link #EXTRA_ROWS} and {@link #EXTRA_COLUMNS}. A <code>null</code> column
+	 * stands for all columns of the row. The result holds the number of changed rows and columns under
+	 * {@link #EXTRA_COUNT}.
+	 */
+	public static final String METHOD_INCREMENT_REVISIONS = "increment_revisions";
+	public static final String EXTRA_TABLES = "tables";
+	public static final String EXTRA_ROWS = "rows";
+	public static final String EXTRA_COLUMNS = "columns";
+	public static final String EXTRA_COUNT = "count";
+
 	public static final String MIME_TYPE = "vnd.android.cursor";
 	public static final String MIME_SUBTYPE = "vnd.heger.christian.Checkbook.provider";
 
 	/* package private */ SQLiteOpenHelper dbHelper;
+	private JournalIndex journalIndex;
+
+	/**
+	 * Returns the in-memory index of the journal kept by this provider, creating it if necessary.
+	 */
+	/* package private */ synchronized JournalIndex getJournalIndex() {
+		if (journalIndex == null) {
+			journalIndex = new JournalIndex(getHelper());
+		}
+		return journalIndex;
+	}
+
+	/**
+	 * Looks up the journal index kept by the local <code>MetaContentProvider</code> available through
+	 * the passed resolver.
+	 * @return The journal index, or <code>null</code> if no local <code>MetaContentProvider</code> is
+	 * available.
+	 */
+	/* package private */ static JournalIndex getJournalIndex(ContentResolver resolver) {
+		ContentProviderClient client = resolver.acquireContentProviderClient(AUTHORITY);
+		if (client == null)
+			return null;
+		try {
+			return ((MetaContentProvider) client.getLocalContentProvider()).getJournalIndex();
+		} catch (ClassCastException x /* Wasn't a MetaContentProvider */) {
+			return null;
+		} catch (NullPointerException x /* MetaContentProvider is not local */) {
+			return null;
+		} finally {
+			client.release();
+		}
+	}
 
 	protected SQLiteOpenHelper getHelper() {
 		if (dbHelper == null) {
@@ -143,10 +234,18 @@ public class MetaContentProvider extends ContentProvider {
 				typeSuffix = "dir";
 				subtypeSuffix = RevisionTableContract.MIME_SUBTYPE_SUFFIX;
 				break;
+			case URI_ROW_REVISIONS:
+				typeSuffix = "dir";
+				subtypeSuffix = RowRevisionContract.MIME_SUBTYPE_SUFFIX;
+				break;
 			case URI_SEQUENCE_ANCHOR:
 				typeSuffix = "item";
 				subtypeSuffix = SequenceAnchorContract.MIME_SUBTYPE_SUFFIX;
 				break;
+			case URI_SYNC_TRACE:
+				typeSuffix = "dir";
+				subtypeSuffix = SyncTraceContract.MIME_SUBTYPE_SUFFIX;
+				break;
 			default:
 				throw new IllegalArgumentException("Could not match passed URI to a known path: " + uri);
 		}
@@ -166,9 +265,15 @@ public class MetaContentProvider extends ContentProvider {
 			case URI_REVISION_TABLE:
 				table = RevisionTableContract.TABLE_NAME;
 				break;
+			case URI_ROW_REVISIONS:
+				table = RowRevisionContract.TABLE_NAME;
+				break;
 			case URI_SEQUENCE_ANCHOR:
 				table = SequenceAnchorContract.TABLE_NAME;
 				break;
+			case URI_SYNC_TRACE:
+				table = SyncTraceContract.TABLE_NAME;
+				break;
 			default:
 				throw new IllegalArgumentException(
 						"Could not match passed URI to a known path: " + uri);
@@ -179,7 +284,8 @@ public class MetaContentProvider extends ContentProvider {
 	@Override
 	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
 		SQLiteDatabase db = getHelper().getWritableDatabase();
-		db.beginTransaction();
+		// The journal index will be invalidated if the batch fails
+		db.beginTransactionWithListener(getJournalIndex());
 		try {
 			ContentProviderResult[] results = super.applyBatch(operations);
 			db.setTransactionSuccessful();
@@ -214,8 +320,25 @@ public class MetaContentProvider extends ContentProvider {
 		SQLiteDatabase db = getHelper().getWritableDatabase();
 		long rowID = db.insertOrThrow(table, null, values);
 		uri = ContentUris.withAppendedId(uri, rowID);
-		if (rowID > -1)
+		if (isRevisionUri(uri)) {
+			// The revision table is a view, so inserts into it never report a row id
+			notifyRevisionsChanged();
+		} else if (rowID > -1) {
+			// Keep the journal index up to date
+			switch (URI_MATCHER.match(uri)) {
+				case URI_JOURNAL:
+					getJournalIndex().onInsert(rowID,
+							values.getAsString(JournalContract.COL_NAME_TABLE),
+							values.getAsLong(JournalContract.COL_NAME_ROW),
+							values.getAsString(JournalContract.COL_NAME_COLUMN),
+							values.getAsString(JournalContract.COL_NAME_OPERATION));
+					break;
+				case URI_SEQUENCE_ANCHOR:
+					getJournalIndex().onAnchorChange(values.getAsLong(SequenceAnchorContract.COL_NAME_SEQUENCE_ANCHOR));
+					break;
+			}
 			getContext().getContentResolver().notifyChange(uri, null);
+		}
 		// If we get to here, the insertion was successful
 		return uri;
 	}
@@ -232,8 +355,22 @@ public class MetaContentProvider extends ContentProvider {
 					selection = "(" + selection + ") and " + JournalContract.COL_NAME_SEQUENCE_NUMBER + "=" + uri.getLastPathSegment();
 		}
 		int result = db.delete(table, selection, selectionArgs);
-		if (result > 0)
+		if (isRevisionUri(uri)) {
+			notifyRevisionsChanged();
+		} else if (result > 0) {
+			switch (URI_MATCHER.match(uri)) {
+				case URI_JOURNAL_ID:
+					// Keep the journal index up to date
+					getJournalIndex().onDelete(Long.parseLong(uri.getLastPathSegment()));
+					break;
+				case URI_JOURNAL: 			//$FALL-THROUGH$
+				case URI_SEQUENCE_ANCHOR:
+					// Deletes with arbitrary selections can't be tracked by the journal index, so have it reloaded
+					getJournalIndex().invalidate();
+					break;
+			}
 			getContext().getContentResolver().notifyChange(uri, null);
+		}
 		return result;
 	}
 
@@ -249,8 +386,65 @@ public class MetaContentProvider extends ContentProvider {
 					selection = "(" + selection + ") and " + JournalContract.COL_NAME_SEQUENCE_NUMBER + "=" + uri.getLastPathSegment();
 		}
 		int result = db.update(table, values, selection, selectionArgs);
-		if (result > 0)
+		if (isRevisionUri(uri)) {
+			// Changes made through the revision table view are not counted
+			notifyRevisionsChanged();
+		} else if (result > 0) {
+			switch (URI_MATCHER.match(uri)) {
+				case URI_JOURNAL: 			//$FALL-THROUGH$
+				case URI_JOURNAL_ID: 		//$FALL-THROUGH$
+				case URI_SEQUENCE_ANCHOR:
+					// Updates can't be tracked by the journal index, so have it reloaded
+					getJournalIndex().invalidate();
+					break;
+			}
 			getContext().getContentResolver().notifyChange(uri, null);
+		}
+		return result;
+	}
+
+	@Override
+	public Bundle call(String method, String arg, Bundle extras) {
+		if (!METHOD_INCREMENT_REVISIONS.equals(method))
+			return super.call(method, arg, extras);
+		String[] tables = extras.getStringArray(EXTRA_TABLES);
+		long[] rows = extras.getLongArray(EXTRA_ROWS);
+		String[] columns = extras.getStringArray(EXTRA_COLUMNS);
+		if (tables == null || rows == null || columns == null || rows.length != tables.length || columns.length != tables.length)
+			throw new IllegalArgumentException("Agenda must be given as arrays of equal length");
+		SQLiteDatabase db = getHelper().getWritableDatabase();
+		int count;
+		db.beginTransaction();
+		try {
+			count = CheckbookDbHelper.RevisionTableContract.incrementAgenda(db, tables, rows, columns);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		if (count > 0)
+			notifyRevisionsChanged();
+		Bundle result = new Bundle();
+		result.putInt(EXTRA_COUNT, count);
 		return result;
 	}
+
+	private static boolean isRevisionUri(Uri uri) {
+		switch (URI_MATCHER.match(uri)) {
+			case URI_REVISION_TABLE: 			//$FALL-THROUGH$
+			case URI_ROW_REVISIONS:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Row revisions and the revision table are two views of the same data, so a change to either is
+	 * notified for both.
+	 */
+	/* package private */ void notifyRevisionsChanged() {
+		ContentResolver resolver = getContext().getContentResolver();
+		resolver.notifyChange(RevisionTableContract.CONTENT_URI, null);
+		resolver.notifyChange(RowRevisionContract.CONTENT_URI, null);
+	}
 }
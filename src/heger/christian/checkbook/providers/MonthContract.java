@@ -1,10 +1,12 @@
 package heger.christian.checkbook.providers;
 
+import heger.christian.checkbook.db.CheckbookDbHelper;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
 /**
- * Contract class for the months view.
+ * Contract class for the months view. Internally, it is backed by a table of monthly totals which is
+ * kept up to date as entries change.
  
  * @author chris
  * 
@@ -24,4 +26,14 @@ public class MonthContract implements BaseColumns {
 			+ " FROM "
 			+ EntryContract.mapToDBContract(EntryContract.TABLE_NAME)
 			+ " GROUP BY " + _ID;
+
+	protected static String mapToDBContract(String in) {
+		if (in.equals(TABLE_NAME))
+			return CheckbookDbHelper.MonthContract.TABLE_NAME;
+		if (in.equals(_ID))
+			return CheckbookDbHelper.MonthContract._ID;
+		if (in.equals(COL_NAME_VALUE))
+			return CheckbookDbHelper.MonthContract.COL_NAME_VALUE;
+		return null;
+	}
 }
\ No newline at end of file
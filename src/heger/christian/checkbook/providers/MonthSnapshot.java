@@ -0,0 +1,187 @@
+package heger.christian.checkbook.providers;
+
+import heger.christian.checkbook.control.MonthsElapsedCalculator;
+import heger.christian.checkbook.db.CheckbookDbHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Immutable in-memory model of everything displayed for one month: all categories with their subtotals,
+ * the entries of the month grouped by category, and the month's total. Snapshots are read in a single
+ * read transaction by {@link CheckbookContentProvider#getMonthSnapshot(int)}, so they are always consistent
+ * in themselves.
+ * <p>
+ * For binding to cursor based adapters, the snapshot can be exposed as cursors through
+ * {@link #getCategoriesCursor()} and {@link #getEntriesCursor(int)}. These are built from memory and
+ * do not access the database.
+ */
+public class MonthSnapshot {
+	/**
+	 * Columns of the cursors returned by {@link MonthSnapshot#getCategoriesCursor()}
+	 */
+	public static final String[] CATEGORY_COLUMNS = new String[] { CategorySubtotalsContract._ID,
+		CategorySubtotalsContract.COL_NAME_CAPTION,
+		CategorySubtotalsContract.COL_NAME_VALUE };
+	/**
+	 * Columns of the cursors returned by {@link MonthSnapshot#getEntriesCursor(int)}
+	 */
+	public static final String[] ENTRY_COLUMNS = new String[] { EntryContract._ID,
+		EntryContract.COL_NAME_CAPTION,
+		EntryContract.COL_NAME_CATEGORY,
+		EntryContract.COL_NAME_DATETIME,
+		EntryContract.COL_NAME_VALUE };
+
+	public static class Entry {
+		public final long id;
+		public final String caption;
+		public final long category;
+		public final String datetime;
+		public final long value;
+
+		public Entry(long id, String caption, long category, String datetime, long value) {
+			this.id = id;
+			this.caption = caption;
+			this.category = category;
+			this.datetime = datetime;
+			this.value = value;
+		}
+	}
+
+	public static class Category {
+		public final long id;
+		public final String caption;
+		/** Sum of the values of this category's entries in the month, or <code>null</code> if there are none */
+		public final Long subtotal;
+		/** Unmodifiable list of this category's entries in the month, ordered by date/time */
+		public final List<Entry> entries;
+
+		public Category(long id, String caption, Long subtotal, List<Entry> entries) {
+			this.id = id;
+			this.caption = caption;
+			this.subtotal = subtotal;
+			this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+		}
+	}
+
+	/** Id of the month, in months elapsed since January 1970 (see {@link MonthsElapsedCalculator}) */
+	public final int month;
+	/** Unmodifiable list of all categories, ordered by id */
+	public final List<Category> categories;
+	/** Total of all entries in the month */
+	public final long total;
+
+	public MonthSnapshot(int month, List<Category> categories, long total) {
+		this.month = month;
+		this.categories = Collections.unmodifiableList(new ArrayList<Category>(categories));
+		this.total = total;
+	}
+
+	/**
+	 * Returns the SQL timestring for the beginning of the passed month.
+	 * @param month - The month, in months elapsed since January 1970
+	 */
+	public static String getStart(int month) {
+		return String.format(Locale.US, "%04d-%02d-01 00:00:00",
+				MonthsElapsedCalculator.getYear(month),
+				// Calculated month is zero-based, but SQL months aren't
+				MonthsElapsedCalculator.getMonth(month) + 1);
+	}
+
+	/**
+	 * Reads the snapshot for the passed month from the passed database. The caller is responsible
+	 * for running this within a transaction if consistency between the individual reads is required.
+	 */
+	static MonthSnapshot read(SQLiteDatabase db, int month) {
+		List<Category> categories = new ArrayList<Category>();
+		// Read the month's entries first and group them by category
+		Map<Long, List<Entry>> groups = new HashMap<Long, List<Entry>>();
+		Cursor cursor = db.query(CheckbookDbHelper.EntryContract.TABLE_NAME,
+				new String[] { CheckbookDbHelper.EntryContract._ID,
+					CheckbookDbHelper.EntryContract.COL_NAME_CAPTION,
+					CheckbookDbHelper.EntryContract.COL_NAME_CATEGORY,
+					CheckbookDbHelper.EntryContract.COL_NAME_DATETIME,
+					CheckbookDbHelper.EntryContract.COL_NAME_VALUE },
+				CheckbookDbHelper.EntryContract.COL_NAME_DATETIME + ">=? AND " + CheckbookDbHelper.EntryContract.COL_NAME_DATETIME + "<?",
+				new String[] { getStart(month), getStart(month + 1) },
+				null, null,
+				CheckbookDbHelper.EntryContract.COL_NAME_DATETIME);
+		try {
+			while (cursor.moveToNext()) {
+				Entry entry = new Entry(cursor.getLong(0), cursor.getString(1), cursor.getLong(2), cursor.getString(3), cursor.getLong(4));
+				List<Entry> group = groups.get(entry.category);
+				if (group == null) {
+					group = new ArrayList<Entry>();
+					groups.put(entry.category, group);
+				}
+				group.add(entry);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		String categoryId = CheckbookDbHelper.CategoryContract.TABLE_NAME + "." + CheckbookDbHelper.CategoryContract._ID;
+		cursor = db.query(CategorySubtotalsContract.generateSQL(String.valueOf(month)),
+				new String[] { categoryId,
+					CheckbookDbHelper.CategoryContract.COL_NAME_CAPTION,
+					CheckbookDbHelper.CategoryMonthTotalsContract.COL_NAME_VALUE },
+				null, null, null, null,
+				categoryId);
+		try {
+			while (cursor.moveToNext()) {
+				long id = cursor.getLong(0);
+				List<Entry> entries = groups.get(id);
+				if (entries == null)
+					entries = Collections.emptyList();
+				categories.add(new Category(id, cursor.getString(1), cursor.isNull(2) ? null : cursor.getLong(2), entries));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		cursor = db.query(CheckbookDbHelper.MonthContract.TABLE_NAME,
+				new String[] { CheckbookDbHelper.MonthContract.COL_NAME_VALUE },
+				CheckbookDbHelper.MonthContract._ID + "=" + month,
+				null, null, null, null);
+		long total = 0;
+		try {
+			if (cursor.moveToFirst())
+				total = cursor.getLong(0);
+		} finally {
+			cursor.close();
+		}
+		return new MonthSnapshot(month, categories, total);
+	}
+
+	/**
+	 * Returns a new cursor over all categories and their subtotals, with the columns in
+	 * {@link #CATEGORY_COLUMNS}. The position of a category in the cursor matches its index in
+	 * {@link #categories}.
+	 */
+	public Cursor getCategoriesCursor() {
+		MatrixCursor cursor = new MatrixCursor(CATEGORY_COLUMNS, categories.size());
+		for (Category category: categories)
+			cursor.addRow(new Object[] { category.id, category.caption, category.subtotal });
+		return cursor;
+	}
+
+	/**
+	 * Returns a new cursor over the entries of the category at the passed index, with the columns
+	 * in {@link #ENTRY_COLUMNS}.
+	 */
+	public Cursor getEntriesCursor(int categoryIndex) {
+		List<Entry> entries = categories.get(categoryIndex).entries;
+		MatrixCursor cursor = new MatrixCursor(ENTRY_COLUMNS, entries.size());
+		for (Entry entry: entries)
+			cursor.addRow(new Object[] { entry.id, entry.caption, entry.category, entry.datetime, entry.value });
+		return cursor;
+	}
+}
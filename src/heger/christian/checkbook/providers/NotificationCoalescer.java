@@ -0,0 +1,159 @@
+package heger.christian.checkbook.providers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.net.Uri;
+
+/**
+ * Collects change notifications during a transaction and sends them to the content resolver once the
+ * outermost transaction has been committed. Every URI is notified at most once, no matter how many times
+ * it was changed within the transaction. Nothing is notified if the transaction is rolled back.
+ * <p>
+ * Changes to single rows are recorded with {@link #notifyRow(Uri, long)}, which notifies the row's URI. If
+ * more than {@link #getRowLimit()} rows of the same table were changed, a single notification for the table
+ * URI is sent instead, so that observers of the table re-query once rather than once per row.
+ * <p>
+ * Transactions are tracked per thread and may be nested. They are demarcated in the same way as transactions
+ * on an <code>SQLiteDatabase</code>:
+ * <pre>
+ *   notifications.beginTransaction();
+ *   try {
+ *     ...
+ *     notifications.setTransactionSuccessful();
+ *   } finally {
+ *     notifications.endTransaction();
+ *   }
+ * </pre>
+ * If any nesting level ends without being marked successful, the whole transaction is considered rolled back.
+ * Notifications outside of a transaction are sent immediately.
+ */
+public class NotificationCoalescer {
+	/** Default maximum number of row notifications per table and transaction */
+	public static final int DEFAULT_ROW_LIMIT = 10;
+
+	private static class Batch {
+		/** Success flags of all currently open nesting levels */
+		final List<Boolean> levels = new ArrayList<Boolean>();
+		boolean failed = false;
+		/** Row ids by table URI */
+		final Map<Uri, Set<Long>> rows = new LinkedHashMap<Uri, Set<Long>>();
+		final Set<Uri> uris = new LinkedHashSet<Uri>();
+	}
+
+	private final ContentResolver resolver;
+	private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+	private int rowLimit = DEFAULT_ROW_LIMIT;
+
+	public NotificationCoalescer(ContentResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	public void beginTransaction() {
+		Batch current = batch.get();
+		if (current == null) {
+			current = new Batch();
+			batch.set(current);
+		}
+		current.levels.add(false);
+	}
+
+	public void setTransactionSuccessful() {
+		List<Boolean> levels = getBatch().levels;
+		levels.set(levels.size() - 1, true);
+	}
+
+	/**
+	 * Ends the current nesting level. If this was the outermost level, and no level was rolled back,
+	 * all collected notifications are sent.
+	 */
+	public void endTransaction() {
+		Batch current = getBatch();
+		if (!current.levels.remove(current.levels.size() - 1))
+			current.failed = true;
+		if (!current.levels.isEmpty())
+			return;
+		batch.remove();
+		if (!current.failed)
+			dispatch(current);
+	}
+
+	private Batch getBatch() {
+		Batch current = batch.get();
+		if (current == null)
+			throw new IllegalStateException("No transaction in progress");
+		return current;
+	}
+
+	/**
+	 * Returns whether the calling thread currently has a transaction in progress.
+	 */
+	public boolean inTransaction() {
+		return batch.get() != null;
+	}
+
+	/**
+	 * Records a change to the passed URI as a whole.
+	 */
+	public void notifyChange(Uri uri) {
+		Batch current = batch.get();
+		if (current == null)
+			resolver.notifyChange(uri, null);
+		else
+			current.uris.add(uri);
+	}
+
+	/**
+	 * Records a change to the row with the passed id in the table identified by the passed URI.
+	 * @param table - The content URI of the table, without an id
+	 * @param id - The id of the changed row
+	 */
+	public void notifyRow(Uri table, long id) {
+		Batch current = batch.get();
+		if (current == null) {
+			resolver.notifyChange(ContentUris.withAppendedId(table, id), null);
+			return;
+		}
+		Set<Long> ids = current.rows.get(table);
+		if (ids == null) {
+			ids = new LinkedHashSet<Long>();
+			current.rows.put(table, ids);
+		}
+		ids.add(id);
+	}
+
+	private void dispatch(Batch batch) {
+		for (Map.Entry<Uri, Set<Long>> entry: batch.rows.entrySet()) {
+			Uri table = entry.getKey();
+			// If the table is notified as a whole anyway, row notifications are redundant
+			if (batch.uris.contains(table))
+				continue;
+			if (entry.getValue().size() > rowLimit) {
+				resolver.notifyChange(table, null);
+			} else {
+				for (long id: entry.getValue())
+					resolver.notifyChange(ContentUris.withAppendedId(table, id), null);
+			}
+		}
+		for (Uri uri: batch.uris)
+			resolver.notifyChange(uri, null);
+	}
+
+	/**
+	 * Sets the number of rows of a single table that may be notified individually per transaction. If more rows
+	 * were changed, the table is notified instead.
+	 */
+	public void setRowLimit(int rowLimit) {
+		this.rowLimit = rowLimit;
+	}
+
+	public int getRowLimit() {
+		return rowLimit;
+	}
+}
@@ -1,6 +1,16 @@
 package heger.christian.checkbook.providers;
 
+import heger.christian.checkbook.db.CheckbookDbHelper.EntryContract;
+import heger.christian.checkbook.db.CheckbookDbHelper.MonthContract;
+import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
@@ -9,16 +19,34 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
 
 /**
  * This class helps in situations where multiple operations have to executed changing between providers.
- *
+ * Operations can either be executed all at once using {@link #applyBatch(List)}, or in several chunks
+ * between {@link #begin()} and {@link #end()}. Changes from the server can also be applied in chunks as a
+ * {@link StatementBatch}, which bypasses the providers. An instance can only run one transaction at a time.
  */
 public class SharedTransaction {
 
 	private ContentResolver resolver;
+	// State of the running transaction, only set between begin() and end()
+	private ContentProviderClient dataClient;
+	private ContentProviderClient metaClient;
+	private CheckbookContentProvider data;
+	private MetaContentProvider meta;
+	private SQLiteDatabase db;
+	// Statements compiled by apply(StatementBatch), by their SQL. They are kept until end().
+	private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
 
 	private SharedTransaction(ContentResolver resolver) {
 		this.resolver = resolver;
@@ -43,31 +71,279 @@ public class SharedTransaction {
 	 * {@link ContentProviderOperation#apply(android.content.ContentProvider, ContentProviderResult[], int)}
 	 */
 	public ContentProviderResult[] applyBatch(List<ContentProviderOperation> operations) throws OperationApplicationException {
+		begin();
+		try {
+			ContentProviderResult[] results = apply(operations);
+			setTransactionSuccessful();
+			return results;
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Begins the shared transaction. Operations can then be applied in several calls to
+	 * {@link #apply(List)}, which allows executing large amounts of operations without holding all of
+	 * them in memory at the same time. The transaction must be ended by calling {@link #end()}, and
+	 * will be rolled back unless {@link #setTransactionSuccessful()} was called before:
+	 * <pre>
+	 *   transaction.begin();
+	 *   try {
+	 *     transaction.apply(chunk);
+	 *     ...
+	 *     transaction.setTransactionSuccessful();
+	 *   } finally {
+	 *     transaction.end();
+	 *   }
+	 * </pre>
+	 * This must be run from the same process as the underlying providers.
+	 */
+	public void begin() {
+		if (db != null)
+			throw new IllegalStateException("Transaction already begun");
+		dataClient = resolver.acquireContentProviderClient(CheckbookContentProvider.AUTHORITY);
+		data = (CheckbookContentProvider) dataClient.getLocalContentProvider();
+		metaClient = resolver.acquireContentProviderClient(MetaContentProvider.AUTHORITY);
+		meta = (MetaContentProvider) metaClient.getLocalContentProvider();
+		db = data.getHelper().getWritableDatabase();
+
+		// The operations may contain journal writes, so have the journal index invalidated on rollback
+		db.beginTransactionWithListener(meta.getJournalIndex());
+		// Hold back the data provider's change notifications until the whole transaction has been committed,
+		// so every affected URI is notified only once
+		data.getNotificationCoalescer().beginTransaction();
+	}
+
+	/**
+	 * Executes the passed operations within the transaction begun by {@link #begin()}. Back references
+	 * can only refer to operations within the same call.
+	 * @param operations - A list of <code>ContentProviderOperation</code>s to execute
+	 * @return An array containing the results of the operations
+	 * @throws OperationApplicationException - Handed through from the underlying call to
+	 * {@link ContentProviderOperation#apply(android.content.ContentProvider, ContentProviderResult[], int)}
+	 */
+	public ContentProviderResult[] apply(List<ContentProviderOperation> operations) throws OperationApplicationException {
+		if (db == null)
+			throw new IllegalStateException("Transaction has not been begun");
 		ContentProviderResult[] results = new ContentProviderResult[operations.size()];
-		ContentProviderClient dataClient = resolver.acquireContentProviderClient(CheckbookContentProvider.AUTHORITY);
-		CheckbookContentProvider data = (CheckbookContentProvider) dataClient.getLocalContentProvider();
-		ContentProviderClient metaClient = resolver.acquireContentProviderClient(MetaContentProvider.AUTHORITY);
-		MetaContentProvider meta = (MetaContentProvider) metaClient.getLocalContentProvider();
-		SQLiteDatabase db = data.getHelper().getWritableDatabase();
+		for (int i = 0; i < operations.size(); i++) {
+			ContentProviderOperation operation = operations.get(i);
+			Uri uri = operation.getUri();
+			if (CheckbookContentProvider.URI_MATCHER.match(uri) != UriMatcher.NO_MATCH) {
+				results[i] = operation.apply(data, results, i);
+			} else if (MetaContentProvider.URI_MATCHER.match(uri) != UriMatcher.NO_MATCH) {
+				results[i] = operation.apply(meta, results, i);
+			} else
+				throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+		return results;
+	}
 
-		db.beginTransaction();
-		try {
-			for (int i = 0; i < operations.size(); i++) {
-				ContentProviderOperation operation = operations.get(i);
-				Uri uri = operation.getUri();
-				if (CheckbookContentProvider.URI_MATCHER.match(uri) != UriMatcher.NO_MATCH) {
-					results[i] = operation.apply(data, results, i);
-				} else if (MetaContentProvider.URI_MATCHER.match(uri) != UriMatcher.NO_MATCH) {
-					results[i] = operation.apply(meta, results, i);
-				} else
-					throw new IllegalArgumentException("Unknown URI " + uri);
+	/**
+	 * Executes the operations in <code>batch</code> within the transaction begun by {@link #begin()}, as
+	 * precompiled <code>SQLiteStatement</code>s instead of going through the providers. A statement is compiled
+	 * the first time an operation needs it, for its table, kind and set of columns, and is kept until
+	 * {@link #end()}, so that every further row only needs to be bound. Operations are executed in the order of
+	 * the batch.
+	 * <p>
+	 * The operations are applied as the sync adapter's, as if through
+	 * {@link CheckbookContentProvider#asSyncAdapter(Uri)}: nothing is written to the journal, whether or not
+	 * journaling is enabled. Change notifications are sent as the providers would send them.
+	 * @param batch - The operations to execute
+	 * @throws SQLException - If a row could not be inserted
+	 */
+	public void apply(StatementBatch batch) {
+		if (db == null)
+			throw new IllegalStateException("Transaction has not been begun");
+		// Ids of the changed rows by table, and the months entries were in before and after, for change notifications
+		Map<String, Set<Long>> ids = new HashMap<String, Set<Long>>();
+		Set<Long> months = new HashSet<Long>();
+		boolean revisions = false;
+		for (StatementBatch.Operation operation: batch.getOperations()) {
+			SQLiteStatement statement = getStatement(operation);
+			statement.clearBindings();
+			boolean entry = operation.table.equals(EntryContract.TABLE_NAME);
+			boolean changed = false;
+			switch (operation.kind) {
+				case StatementBatch.INSERT:
+					bindValues(statement, operation);
+					if (statement.executeInsert() == -1)
+						throw new SQLException("Failed to insert row into " + operation.table + ": " + operation.values);
+					changed = true;
+					break;
+				case StatementBatch.UPDATE:
+					if (entry)
+						addMonth(months, operation.row);
+					bindValues(statement, operation);
+					statement.bindLong(operation.columns.length + 1, operation.row);
+					changed = statement.executeUpdateDelete() > 0;
+					break;
+				case StatementBatch.DELETE:
+					if (entry)
+						addMonth(months, operation.row);
+					statement.bindLong(1, operation.row);
+					changed = statement.executeUpdateDelete() > 0;
+					break;
+				case StatementBatch.INSERT_REVISION:
+					statement.bindString(1, operation.table);
+					statement.bindLong(2, operation.row);
+					statement.bindString(3, operation.column);
+					statement.bindLong(4, operation.revision);
+					// The revision table is a view, so this never reports a row id
+					statement.executeInsert();
+					revisions = true;
+					break;
+				case StatementBatch.UPDATE_REVISION:
+					statement.bindLong(1, operation.revision);
+					statement.bindString(2, operation.table);
+					statement.bindLong(3, operation.row);
+					statement.bindString(4, operation.column);
+					statement.executeUpdateDelete();
+					revisions = true;
+					break;
 			}
-			db.setTransactionSuccessful();
-		} finally {
+			if (changed) {
+				Set<Long> tableIds = ids.get(operation.table);
+				if (tableIds == null) {
+					tableIds = new HashSet<Long>();
+					ids.put(operation.table, tableIds);
+				}
+				tableIds.add(operation.row);
+				// Inserted and updated entries may be in a new month
+				if (entry && operation.kind != StatementBatch.DELETE)
+					addMonth(months, operation.row);
+			}
+		}
+		for (Map.Entry<String, Set<Long>> entry: ids.entrySet()) {
+			Set<Long> tableMonths = entry.getKey().equals(EntryContract.TABLE_NAME) ? months : Collections.<Long>emptySet();
+			data.notifyChange(entry.getKey(), entry.getValue(), tableMonths);
+		}
+		if (revisions)
+			meta.notifyRevisionsChanged();
+	}
+
+	/**
+	 * Returns the statement for <code>operation</code>, compiling it if this is the first operation of its
+	 * table, kind and columns in this transaction.
+	 */
+	private SQLiteStatement getStatement(StatementBatch.Operation operation) {
+		String sql;
+		switch (operation.kind) {
+			case StatementBatch.INSERT:
+				String[] placeholders = new String[operation.columns.length];
+				Arrays.fill(placeholders, "?");
+				sql = "insert into " + operation.table + " (" + TextUtils.join(",", operation.columns) + ") values (" + TextUtils.join(",", placeholders) + ")";
+				break;
+			case StatementBatch.UPDATE:
+				sql = "update " + operation.table + " set " + TextUtils.join("=?,", operation.columns) + "=? where " + BaseColumns._ID + "=?";
+				break;
+			case StatementBatch.DELETE:
+				sql = "delete from " + operation.table + " where " + BaseColumns._ID + "=?";
+				break;
+			case StatementBatch.INSERT_REVISION:
+				sql = "insert into " + RevisionTableContract.TABLE_NAME + " ("
+						+ RevisionTableContract.COL_NAME_TABLE + ","
+						+ RevisionTableContract.COL_NAME_ROW + ","
+						+ RevisionTableContract.COL_NAME_COLUMN + ","
+						+ RevisionTableContract.COL_NAME_REVISION + ") values (?,?,?,?)";
+				break;
+			case StatementBatch.UPDATE_REVISION:
+				sql = "update " + RevisionTableContract.TABLE_NAME + " set " + RevisionTableContract.COL_NAME_REVISION + "=? where "
+						+ RevisionTableContract.COL_NAME_TABLE + "=? and "
+						+ RevisionTableContract.COL_NAME_ROW + "=? and "
+						+ RevisionTableContract.COL_NAME_COLUMN + "=?";
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown kind of operation " + operation.kind);
+		}
+		return compile(sql);
+	}
+
+	private SQLiteStatement compile(String sql) {
+		SQLiteStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = db.compileStatement(sql);
+			statements.put(sql, statement);
+		}
+		return statement;
+	}
+
+	private static void bindValues(SQLiteStatement statement, StatementBatch.Operation operation) {
+		for (int i = 0; i < operation.columns.length; i++)
+			DatabaseUtils.bindObjectToProgram(statement, i + 1, operation.values.get(operation.columns[i]));
+	}
+
+	/**
+	 * Adds the month (as months elapsed since January 1970) of the entry with the passed id to <code>months</code>,
+	 * if there is such an entry.
+	 */
+	private void addMonth(Set<Long> months, long id) {
+		SQLiteStatement statement = compile("select " + MonthContract.monthOf(EntryContract.COL_NAME_DATETIME)
+				+ " from " + EntryContract.TABLE_NAME + " where " + BaseColumns._ID + "=?");
+		statement.bindLong(1, id);
+		try {
+			months.add(statement.simpleQueryForLong());
+		} catch (SQLiteDoneException x) {
+			// No such entry
+		}
+	}
+
+	/**
+	 * Queries the provider responsible for <code>uri</code> within the transaction begun by {@link #begin()},
+	 * so that the result reflects the operations applied so far.
+	 * @see android.content.ContentProvider#query(Uri, String[], String, String[], String)
+	 */
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		if (db == null)
+			throw new IllegalStateException("Transaction has not been begun");
+		if (CheckbookContentProvider.URI_MATCHER.match(uri) != UriMatcher.NO_MATCH)
+			return data.query(uri, projection, selection, selectionArgs, sortOrder);
+		else if (MetaContentProvider.URI_MATCHER.match(uri) != UriMatcher.NO_MATCH)
+			return meta.query(uri, projection, selection, selectionArgs, sortOrder);
+		else
+			throw new IllegalArgumentException("Unknown URI " + uri);
+	}
+
+	/**
+	 * Calls the passed provider-defined method of <code>MetaContentProvider</code> within the transaction
+	 * begun by {@link #begin()}.
+	 * @see MetaContentProvider#call(String, String, Bundle)
+	 */
+	public Bundle callMeta(String method, String arg, Bundle extras) {
+		if (db == null)
+			throw new IllegalStateException("Transaction has not been begun");
+		return meta.call(method, arg, extras);
+	}
+
+	/**
+	 * Marks the transaction as successful, so that it is committed by {@link #end()}.
+	 */
+	public void setTransactionSuccessful() {
+		db.setTransactionSuccessful();
+		data.getNotificationCoalescer().setTransactionSuccessful();
+	}
+
+	/**
+	 * Ends the transaction, committing it if it was marked successful and rolling it back otherwise.
+	 */
+	public void end() {
+		try {
 			db.endTransaction();
-			dataClient.release();
-			metaClient.release();
+		} finally {
+			try {
+				data.getNotificationCoalescer().endTransaction();
+			} finally {
+				for (SQLiteStatement statement: statements.values())
+					statement.close();
+				statements.clear();
+				dataClient.release();
+				metaClient.release();
+				db = null;
+				data = null;
+				meta = null;
+				dataClient = null;
+				metaClient = null;
+			}
 		}
-		return results;
 	}
 }
@@ -0,0 +1,120 @@
+package heger.christian.checkbook.providers;
+
+import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import android.content.ContentValues;
+import android.provider.BaseColumns;
+
+/**
+ * A list of row operations on the data tables and the revision table, for applying through
+ * {@link SharedTransaction#apply(StatementBatch)}. Unlike <code>ContentProviderOperation</code>s, these do not go
+ * through the providers, but are executed directly as <code>SQLiteStatement</code>s, which are compiled once per
+ * table, kind of operation and set of columns and then only bound for every row. This avoids matching URIs,
+ * copying values and building selections for every single operation.
+ * <p>
+ * Operations are executed in the order in which they were added. They are made on behalf of the sync adapter,
+ * so they are never journaled.
+ */
+public class StatementBatch {
+	/* package private */ static final int INSERT = 0;
+	/* package private */ static final int UPDATE = 1;
+	/* package private */ static final int DELETE = 2;
+	/* package private */ static final int INSERT_REVISION = 3;
+	/* package private */ static final int UPDATE_REVISION = 4;
+
+	/* package private */ static class Operation {
+		final int kind;
+		final String table;
+		final long row;
+		/** The values to write, or <code>null</code> for deletions */
+		final ContentValues values;
+		/** The columns of <code>values</code> in the order in which they are bound */
+		final String[] columns;
+		/** The revisioned column, for revision operations only */
+		final String column;
+		final int revision;
+
+		Operation(int kind, String table, long row, ContentValues values, String column, int revision) {
+			this.kind = kind;
+			this.table = table;
+			this.row = row;
+			this.values = values;
+			// Sorted, so that operations on the same columns share a statement regardless of the order of values
+			this.columns = values != null ? new TreeSet<String>(values.keySet()).toArray(new String[values.size()]) : null;
+			this.column = column;
+			this.revision = revision;
+		}
+	}
+
+	private final List<Operation> operations = new ArrayList<Operation>();
+
+	/**
+	 * Adds the insertion of a row with the passed id and values into <code>table</code>. The values are copied,
+	 * so the original won't be changed when the id is added.
+	 */
+	public StatementBatch insert(String table, long row, ContentValues values) {
+		values = new ContentValues(values);
+		values.put(BaseColumns._ID, row);
+		operations.add(new Operation(INSERT, table, row, values, null, 0));
+		return this;
+	}
+
+	/**
+	 * Adds an update of the passed values of row <code>row</code> in <code>table</code>.
+	 */
+	public StatementBatch update(String table, long row, ContentValues values) {
+		if (values.size() == 0)
+			throw new IllegalArgumentException("No values to update");
+		operations.add(new Operation(UPDATE, table, row, values, null, 0));
+		return this;
+	}
+
+	/**
+	 * Adds the deletion of row <code>row</code> from <code>table</code>.
+	 */
+	public StatementBatch delete(String table, long row) {
+		operations.add(new Operation(DELETE, table, row, null, null, 0));
+		return this;
+	}
+
+	/**
+	 * Adds writing a revision through {@link RevisionTableContract}, as inserting into its <code>CONTENT_URI</code>
+	 * would.
+	 */
+	public StatementBatch insertRevision(String table, long row, String column, int revision) {
+		operations.add(new Operation(INSERT_REVISION, table, row, null, column, revision));
+		return this;
+	}
+
+	/**
+	 * Adds updating a revision through {@link RevisionTableContract}, as updating its <code>CONTENT_URI</code>
+	 * with a selection of table, row and column would.
+	 */
+	public StatementBatch updateRevision(String table, long row, String column, int revision) {
+		operations.add(new Operation(UPDATE_REVISION, table, row, null, column, revision));
+		return this;
+	}
+
+	/**
+	 * Returns the number of operations in this batch.
+	 */
+	public int size() {
+		return operations.size();
+	}
+
+	public boolean isEmpty() {
+		return operations.isEmpty();
+	}
+
+	public void clear() {
+		operations.clear();
+	}
+
+	/* package private */ List<Operation> getOperations() {
+		return operations;
+	}
+}
@@ -0,0 +1,236 @@
+package heger.christian.checkbook.sync;
+
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_ARRAY;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_BLOB;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_END;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_FALSE;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_FLOAT;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_INTEGER;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_NAME;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_NULL;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_OBJECT;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_STRING;
+import static heger.christian.checkbook.sync.BinaryWriter.TAG_TRUE;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Pull parser for messages written by {@link BinaryWriter}, modelled after <code>JsonReader</code>. Values are
+ * returned as the same types <code>JSONObject</code> would use when parsing the JSON representation of the
+ * message, so that decoding a binary message gives exactly the same result as parsing its JSON equivalent.
+ * <p>
+ * If the message does not have the expected structure, an <code>IllegalStateException</code> is thrown. If it
+ * ends prematurely, an <code>EOFException</code> is thrown.
+ */
+public class BinaryReader {
+	private final InputStream in;
+	private final NameTable names = new NameTable();
+	/** For each enclosing object or array, whether it is an object */
+	private final List<Boolean> stack = new ArrayList<Boolean>();
+	/** The next tag or name reference if it has been peeked at, or -1 */
+	private long peeked = -1;
+
+	/**
+	 * Creates a new reader and reads the message header from <code>in</code>.
+	 * @throws IllegalStateException - If <code>in</code> does not hold a binary message of a supported version
+	 */
+	public BinaryReader(InputStream in) throws IOException {
+		this.in = new BufferedInputStream(in);
+		for (byte b: BinaryWriter.MAGIC) {
+			if (read() != (b & 0xFF))
+				throw new IllegalStateException("Not a binary sync message, or unsupported version");
+		}
+	}
+
+	public void beginObject() throws IOException {
+		expect(TAG_OBJECT);
+		stack.add(true);
+	}
+
+	public void endObject() throws IOException {
+		if (!inObject() || hasNext())
+			throw new IllegalStateException("Expected end of object");
+		peeked = -1;
+		stack.remove(stack.size() - 1);
+	}
+
+	public void beginArray() throws IOException {
+		expect(TAG_ARRAY);
+		stack.add(false);
+	}
+
+	public void endArray() throws IOException {
+		if (inObject() || hasNext())
+			throw new IllegalStateException("Expected end of array");
+		peeked = -1;
+		stack.remove(stack.size() - 1);
+	}
+
+	/**
+	 * Returns whether the current object or array has another element.
+	 */
+	public boolean hasNext() throws IOException {
+		if (stack.isEmpty())
+			return false;
+		if (inObject())
+			return peekVarint() != 0;
+		return peekTag() != TAG_END;
+	}
+
+	public String nextName() throws IOException {
+		if (!inObject() || !hasNext())
+			throw new IllegalStateException("Expected a name");
+		long reference = peeked - 1;
+		peeked = -1;
+		return readName(reference);
+	}
+
+	public long nextLong() throws IOException {
+		expect(TAG_INTEGER);
+		return readSignedVarint();
+	}
+
+	/**
+	 * Reads the next value, recursing into objects and arrays. Integers are returned as <code>Integer</code> if
+	 * they fit, and as <code>Long</code> otherwise. Null values are returned as <code>JSONObject.NULL</code>.
+	 */
+	public Object nextValue() throws IOException {
+		int tag = peekTag();
+		switch (tag) {
+			case TAG_OBJECT:
+				JSONObject object = new JSONObject();
+				beginObject();
+				while (hasNext()) {
+					String name = nextName();
+					try {
+						object.put(name, nextValue());
+					} catch (JSONException x) {
+						// Only thrown for non-finite doubles, which BinaryWriter does not reject
+						throw new IllegalStateException(x);
+					}
+				}
+				endObject();
+				return object;
+			case TAG_ARRAY:
+				JSONArray array = new JSONArray();
+				beginArray();
+				while (hasNext())
+					array.put(nextValue());
+				endArray();
+				return array;
+		}
+		peeked = -1;
+		switch (tag) {
+			case TAG_NULL:
+				return JSONObject.NULL;
+			case TAG_INTEGER:
+				long value = readSignedVarint();
+				if (Integer.MIN_VALUE <= value && Integer.MAX_VALUE >= value)
+					return Integer.valueOf((int) value);
+				return Long.valueOf(value);
+			case TAG_FLOAT:
+				long bits = 0;
+				for (int i = 0; i < 8; i++)
+					bits = (bits << 8) | read();
+				return Double.longBitsToDouble(bits);
+			case TAG_STRING:
+				return new String(readBytes(), "UTF-8");
+			case TAG_BLOB:
+				return readBytes();
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_NAME:
+				return readName(readVarint());
+			default:
+				throw new IllegalStateException("Unknown tag " + tag);
+		}
+	}
+
+	public void skipValue() throws IOException {
+		nextValue();
+	}
+
+	private boolean inObject() {
+		return !stack.isEmpty() && stack.get(stack.size() - 1);
+	}
+
+	private void expect(int tag) throws IOException {
+		int actual = peekTag();
+		if (actual != tag)
+			throw new IllegalStateException("Expected tag " + tag + " but was " + actual);
+		peeked = -1;
+	}
+
+	private int peekTag() throws IOException {
+		if (peeked == -1)
+			peeked = read();
+		return (int) peeked;
+	}
+
+	private long peekVarint() throws IOException {
+		if (peeked == -1)
+			peeked = readVarint();
+		return peeked;
+	}
+
+	/**
+	 * Resolves a name reference, reading the name if the reference is to the next free index.
+	 */
+	private String readName(long reference) throws IOException {
+		if (reference < names.size())
+			return names.getName((int) reference);
+		if (reference > names.size())
+			throw new IllegalStateException("Name reference " + reference + " out of range");
+		String name = new String(readBytes(), "UTF-8");
+		names.intern(name);
+		return name;
+	}
+
+	private byte[] readBytes() throws IOException {
+		long length = readVarint();
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalStateException("Length " + length + " out of range");
+		byte[] bytes = new byte[(int) length];
+		for (int read = 0; read < bytes.length; ) {
+			int count = in.read(bytes, read, bytes.length - read);
+			if (count == -1)
+				throw new EOFException();
+			read += count;
+		}
+		return bytes;
+	}
+
+	private long readSignedVarint() throws IOException {
+		long value = readVarint();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = read();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalStateException("Variable length quantity too long");
+	}
+
+	private int read() throws IOException {
+		int b = in.read();
+		if (b == -1)
+			throw new EOFException();
+		return b;
+	}
+}
@@ -0,0 +1,198 @@
+package heger.christian.checkbook.sync;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+
+/**
+ * Writes sync messages in a compact binary encoding, as an alternative to JSON. The encoding has the same
+ * structure as the JSON representation and decodes to exactly the same <code>JSONObject</code>s, see
+ * {@link BinaryReader}, but avoids most of its overhead:
+ * <ul>
+ * <li>Names - object keys as well as the values of the table and column name fields - are dictionary coded.
+ * A name is written out once, the first time it occurs in a message, and referred to by its index afterwards.
+ * <li>Integers are written as variable length quantities, so that row ids and revisions mostly take one or
+ * two bytes.
+ * <li>Every value is preceded by a tag giving its type. The tags for the types a cursor can return are
+ * the <code>Cursor.FIELD_TYPE_*</code> constants.
+ * </ul>
+ * A message starts with the {@link #MAGIC} bytes, followed by a single value. Objects are encoded as
+ * {@link #TAG_OBJECT}, followed by name reference and value pairs and terminated by a 0 byte. The name
+ * references in objects are offset by one to make room for the terminator. Arrays are encoded as
+ * {@link #TAG_ARRAY}, followed by their values and terminated by {@link #TAG_END}.
+ * <p>
+ * Like <code>JsonWriter</code>, this class does not check that names and values alternate within objects.
+ */
+public class BinaryWriter {
+	/** The MIME type of binary sync messages, used for content negotiation */
+	public static final String CONTENT_TYPE = "application/x-checkbook-sync";
+
+	/** Start of every binary message. The last byte is the format version. */
+	static final byte[] MAGIC = { 'C', 'B', 'S', 1 };
+
+	static final int TAG_NULL = Cursor.FIELD_TYPE_NULL;
+	static final int TAG_INTEGER = Cursor.FIELD_TYPE_INTEGER;
+	static final int TAG_FLOAT = Cursor.FIELD_TYPE_FLOAT;
+	static final int TAG_STRING = Cursor.FIELD_TYPE_STRING;
+	static final int TAG_BLOB = Cursor.FIELD_TYPE_BLOB;
+	static final int TAG_FALSE = 5;
+	static final int TAG_TRUE = 6;
+	/** A string value that is dictionary coded like a name */
+	static final int TAG_NAME = 7;
+	static final int TAG_OBJECT = 8;
+	static final int TAG_ARRAY = 9;
+	static final int TAG_END = 10;
+
+	private final OutputStream out;
+	private final NameTable names = new NameTable();
+	/** The name most recently written, which determines whether a string value is dictionary coded */
+	private String name;
+
+	/**
+	 * Creates a new writer and writes the message header to <code>out</code>.
+	 */
+	public BinaryWriter(OutputStream out) throws IOException {
+		this.out = new BufferedOutputStream(out);
+		this.out.write(MAGIC);
+	}
+
+	/**
+	 * Returns whether string values of the field <code>name</code> are table or column names.
+	 */
+	static boolean isNameField(String name) {
+		return JSONBuilder.JSON_FIELD_TABLE.equals(name) || JSONBuilder.JSON_FIELD_COLUMN.equals(name);
+	}
+
+	public BinaryWriter beginObject() throws IOException {
+		out.write(TAG_OBJECT);
+		return this;
+	}
+
+	public BinaryWriter endObject() throws IOException {
+		out.write(0);
+		return this;
+	}
+
+	public BinaryWriter beginArray() throws IOException {
+		out.write(TAG_ARRAY);
+		return this;
+	}
+
+	public BinaryWriter endArray() throws IOException {
+		out.write(TAG_END);
+		return this;
+	}
+
+	public BinaryWriter name(String name) throws IOException {
+		writeName(name, 1);
+		this.name = name;
+		return this;
+	}
+
+	public BinaryWriter value(long value) throws IOException {
+		out.write(TAG_INTEGER);
+		writeVarint((value << 1) ^ (value >> 63));
+		return this;
+	}
+
+	/**
+	 * Writes <code>value</code>, which may be anything a <code>JSONObject</code> can hold, or a byte array as
+	 * returned for blob columns by {@link Translator#translate(Cursor, String[])}. Objects and arrays are written
+	 * recursively.
+	 */
+	public BinaryWriter value(Object value) throws IOException {
+		if (value == null || value == JSONObject.NULL) {
+			out.write(TAG_NULL);
+		} else if (value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			beginObject();
+			@SuppressWarnings("unchecked")
+			Iterator<String> keys = object.keys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				name(key);
+				value(object.opt(key));
+			}
+			endObject();
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			beginArray();
+			for (int i = 0; i < array.length(); i++)
+				value(array.opt(i));
+			endArray();
+		} else if (value instanceof Boolean) {
+			out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+		} else if (value instanceof Double || value instanceof Float) {
+			double number = ((Number) value).doubleValue();
+			if (number == (long) number) {
+				// JSON renders these without a fractional part, so they are read back as integers
+				value((long) number);
+			} else {
+				out.write(TAG_FLOAT);
+				long bits = Double.doubleToLongBits(number);
+				for (int shift = 56; shift >= 0; shift -= 8)
+					out.write((int) (bits >>> shift));
+			}
+		} else if (value instanceof Number) {
+			value(((Number) value).longValue());
+		} else if (value instanceof byte[]) {
+			byte[] blob = (byte[]) value;
+			out.write(TAG_BLOB);
+			writeVarint(blob.length);
+			out.write(blob);
+		} else if (isNameField(name)) {
+			out.write(TAG_NAME);
+			writeName(value.toString(), 0);
+		} else {
+			out.write(TAG_STRING);
+			writeString(value.toString());
+		}
+		return this;
+	}
+
+	/**
+	 * Flushes the written message to the underlying stream, which is not closed.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Writes a reference to <code>name</code> in the dictionary, plus <code>offset</code>. If the name is not in
+	 * the dictionary yet, the reference is the next free index and is followed by the name itself.
+	 */
+	private void writeName(String name, int offset) throws IOException {
+		int id = names.getId(name);
+		if (id != -1) {
+			writeVarint(id + offset);
+		} else {
+			writeVarint(names.size() + offset);
+			writeString(name);
+			names.intern(name);
+		}
+	}
+
+	private void writeString(String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		writeVarint(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Writes <code>value</code> as an unsigned variable length quantity, seven bits per byte, least significant
+	 * group first. The high bit is set on all bytes but the last.
+	 */
+	private void writeVarint(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+}
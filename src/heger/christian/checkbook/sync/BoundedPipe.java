@@ -0,0 +1,197 @@
+package heger.christian.checkbook.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes bytes from a producer thread to a consumer thread through a queue holding at most a fixed number of
+ * chunks. The producer blocks while the queue is full, and the consumer while it is empty, so neither can get
+ * further ahead of the other than the capacity of the queue.
+ * <p>
+ * The producer must end the stream by either closing the output stream or calling
+ * {@link #closeWithError(IOException)}, which makes the consumer's next read throw. If the consumer closes the
+ * input stream before the end, the producer's next write throws. Unlike <code>PipedInputStream</code>,
+ * neither side relies on the other thread still being alive.
+ */
+public class BoundedPipe {
+	/** Default number of chunks the queue holds */
+	public static final int DEFAULT_CAPACITY = 16;
+	/** Default size of the chunks passed through the queue */
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+	/** Marks the end of the stream */
+	private static final byte[] END = new byte[0];
+	/** How long the producer waits for room in the queue before checking whether the consumer is gone */
+	private static final long OFFER_TIMEOUT_MS = 100;
+
+	private final BlockingQueue<byte[]> queue;
+	private final int chunkSize;
+	private volatile IOException error;
+	private volatile boolean consumerClosed = false;
+
+	private final OutputStream out = new OutputStream() {
+		private byte[] chunk;
+		private int count = 0;
+		private boolean closed = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			if (closed)
+				throw new IOException("Pipe has been closed");
+			while (length > 0) {
+				if (chunk == null)
+					chunk = new byte[chunkSize];
+				int n = Math.min(length, chunkSize - count);
+				System.arraycopy(buffer, offset, chunk, count, n);
+				count += n;
+				offset += n;
+				length -= n;
+				if (count == chunkSize)
+					flush();
+			}
+		}
+
+		/**
+		 * Passes on the bytes written so far. This blocks while the queue is full.
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (count == 0)
+				return;
+			byte[] full = chunk;
+			if (count < chunkSize) {
+				full = new byte[count];
+				System.arraycopy(chunk, 0, full, 0, count);
+			} else {
+				chunk = null;
+			}
+			count = 0;
+			put(full);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			flush();
+			closed = true;
+			put(END);
+		}
+	};
+
+	private final InputStream in = new InputStream() {
+		private byte[] chunk;
+		private int position = 0;
+		private boolean ended = false;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0)
+				return 0;
+			while (chunk == null || position == chunk.length) {
+				if (ended)
+					return -1;
+				try {
+					chunk = queue.take();
+				} catch (InterruptedException x) {
+					throw new InterruptedIOException("Interrupted while waiting for data");
+				}
+				position = 0;
+				if (chunk == END) {
+					ended = true;
+					if (error != null)
+						throw new IOException("Producer failed", error);
+				}
+			}
+			int n = Math.min(length, chunk.length - position);
+			System.arraycopy(chunk, position, buffer, offset, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			consumerClosed = true;
+			// Make room, so that a blocked producer notices
+			queue.clear();
+		}
+	};
+
+	public BoundedPipe() {
+		this(DEFAULT_CAPACITY, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param capacity - The number of chunks the queue holds
+	 * @param chunkSize - The size of the chunks in bytes. Flushing the output stream may pass on smaller ones.
+	 */
+	public BoundedPipe(int capacity, int chunkSize) {
+		if (capacity < 1 || chunkSize < 1)
+			throw new IllegalArgumentException("Capacity and chunk size must be positive, but were " + capacity + " and " + chunkSize);
+		queue = new ArrayBlockingQueue<byte[]>(capacity);
+		this.chunkSize = chunkSize;
+	}
+
+	private void put(byte[] chunk) throws IOException {
+		try {
+			while (!queue.offer(chunk, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				if (consumerClosed)
+					break;
+			}
+		} catch (InterruptedException x) {
+			throw new InterruptedIOException("Interrupted while waiting for room");
+		}
+		if (consumerClosed)
+			throw new IOException("Pipe has been closed by the consumer");
+	}
+
+	/**
+	 * Returns the stream the producer writes to. It must be used from only one thread.
+	 */
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * Returns the stream the consumer reads from. It must be used from only one thread.
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * Ends the stream because the producer failed. After the bytes written before, the consumer's next read
+	 * throws an <code>IOException</code> caused by <code>cause</code>.
+	 */
+	public void closeWithError(IOException cause) {
+		error = cause;
+		try {
+			out.close();
+		} catch (IOException x) {
+			// The consumer is gone, so there is nobody left to tell
+		}
+	}
+
+	/**
+	 * Returns whether the consumer has closed the input stream.
+	 */
+	public boolean isClosedByConsumer() {
+		return consumerClosed;
+	}
+}
@@ -3,8 +3,11 @@ package heger.christian.checkbook.sync;
 import heger.christian.checkbook.providers.Journaler;
 import heger.christian.checkbook.providers.MetaContentProvider.JournalContract;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -15,6 +18,9 @@ import android.database.Cursor;
  * from the cursor may result in a lot of cursor moving if the access pattern is sequential in the
  * cursor.
  * <p>
+ * The snapshot is held in a compact form: table and column names are stored only once, rows are kept in
+ * maps keyed by primitive ids, and the columns updated in a row are kept as a bit set.
+ * <p>
  * This class relies on the original journal being <i>optimized</i>, that is, for any given combination of
  * table name, row id and column name (including if the column is unspecified), at most one operation must exist in the journal.
  * <p>
@@ -23,13 +29,28 @@ import android.database.Cursor;
  * has taken place. It is intended solely as a helper object for synchronization.
  */
 class JournalSnapshot {
+	/** Operation types, in the order of their indices in the per-table arrays */
+	private static final String[] OPERATIONS = { Journaler.OP_TYPE_CREATE, Journaler.OP_TYPE_UPDATE, Journaler.OP_TYPE_DELETE };
+
+	private final NameTable tables = new NameTable();
+	private final NameTable columns = new NameTable();
 	/*
-	 * Think of this as a function table -> operation -> row -> [column]
+	 * Think of this as a function table -> operation -> row -> [column], where tables are indexed by their
+	 * ids in the tables name table, operations by their index in OPERATIONS, and column sets are bit sets of
+	 * the columns' ids in the columns name table. A row maps to null if it has no columns.
 	 */
-	private Map<String, Map<String, Map<Long, Set<String>>>> journal = new HashMap<String, Map<String, Map<Long, Set<String>>>>();
+	private final List<LongHashMap<BitSet>[]> journal = new ArrayList<LongHashMap<BitSet>[]>();
 
 	private JournalSnapshot() {}
 
+	private static int indexOf(String operation) {
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			if (OPERATIONS[i].equals(operation))
+				return i;
+		}
+		return -1;
+	}
+
 	public static JournalSnapshot createFromCursor(Cursor journal) {
 		final class Columns {
 			/* public int colSequenceNumber = -1; */
@@ -51,40 +72,92 @@ class JournalSnapshot {
 		JournalSnapshot result = new JournalSnapshot();
 		journal.moveToPosition(-1);
 		while (journal.moveToNext()) {
-			String table = journal.getString(columns.colTable);
+			int operation = indexOf(journal.getString(columns.colOperation));
+			if (operation == -1)
+				continue;
+
 			// The journal for a set table. Think of this as a function operation -> row -> [column].
 			// This is the function implied by the field result.journal curried once.
-			Map<String, Map<Long, Set<String>>> curried = result.journal.get(table);
-			if (curried == null) {
-				curried = new HashMap<String,Map<Long, Set<String>>>();
-				result.journal.put(table, curried);
+			int table = result.tables.intern(journal.getString(columns.colTable));
+			if (table == result.journal.size()) {
+				@SuppressWarnings("unchecked")
+				LongHashMap<BitSet>[] curried = new LongHashMap[OPERATIONS.length];
+				result.journal.add(curried);
 			}
+			LongHashMap<BitSet>[] curried = result.journal.get(table);
 
 			// The journal for a set table and operation. Think of this as a function row -> [column].
 			// This is the function implied by the field result.journal curried twice.
-			String operation = journal.getString(columns.colOperation);
-			Map<Long, Set<String>> curried2 = curried.get(operation);
-			if (curried2 == null) {
-				curried2 = new HashMap<Long, Set<String>>();
-				curried.put(operation, curried2);
-			}
+			if (curried[operation] == null)
+				curried[operation] = new LongHashMap<BitSet>();
+			LongHashMap<BitSet> curried2 = curried[operation];
 
 			// The journal for a set table, operation and row, that is, the set of columns.
 			// This is the function implied by the field result.journal curried three times.
 			long row = journal.getLong(columns.colRow);
-			Set<String> curried3 = curried2.get(row);
+			BitSet curried3 = curried2.get(row);
 			// Only do something when the column isn't null in the cursor
 			if (!journal.isNull(columns.colColumn)) {
 				if (curried3 == null) {
-					curried3 = new HashSet<String>();
+					curried3 = new BitSet();
 				}
-				curried3.add(journal.getString(columns.colColumn));
+				curried3.set(result.columns.intern(journal.getString(columns.colColumn)));
 			}
 			curried2.put(row, curried3);
 		}
 		return result;
 	}
 
+	private LongHashMap<BitSet> getRowMap(String table, String operation) {
+		int id = tables.getId(table);
+		int index = indexOf(operation);
+		if (id == -1 || index == -1)
+			return null;
+		return journal.get(id)[index];
+	}
+
+	/**
+	 * Returns the names of all tables for which the journal contains operations of any type.
+	 */
+	public List<String> getTables() {
+		List<String> result = new ArrayList<String>(tables.size());
+		for (int i = 0; i < tables.size(); i++)
+			result.add(tables.getName(i));
+		return result;
+	}
+
+	/**
+	 * Returns the ids of all rows in the given table to which the given operation type was applied,
+	 * in ascending order. If there are none, the result is empty.
+	 */
+	public long[] getRows(String table, String operation) {
+		LongHashMap<BitSet> rows = getRowMap(table, operation);
+		return rows != null ? rows.keys() : new long[0];
+	}
+
+	/**
+	 * Returns the ids of all rows in the given table to which any operation was applied, in ascending order.
+	 */
+	public long[] getRows(String table) {
+		int id = tables.getId(table);
+		if (id == -1)
+			return new long[0];
+		LongHashMap<BitSet>[] curried = journal.get(id);
+		int count = 0;
+		for (LongHashMap<BitSet> rows: curried) {
+			if (rows != null)
+				count += rows.size();
+		}
+		LongHashMap<Object> union = new LongHashMap<Object>(count);
+		for (LongHashMap<BitSet> rows: curried) {
+			if (rows != null) {
+				for (long row: rows.keys())
+					union.put(row, null);
+			}
+		}
+		return union.keys();
+	}
+
 	/**
 	 * Returns the <i>agenda</i> for the given operation, that is,
 	 * a mapping from table names to row ids to which the given operation
@@ -101,14 +174,15 @@ class JournalSnapshot {
 	 */
 	public Map<String,Set<Long>> getAgenda(String operation) {
 		Map<String, Set<Long>> agenda = new HashMap<String,Set<Long>>();
-		for (String table: journal.keySet()) {
-			Map<String, Map<Long, Set<String>>> curried = journal.get(table);
-			// curried == null means there were no operations at all on that table
-			// curried.get(operation) == null means there were no operations of the requested type on that table
-			if (curried != null && curried.get(operation) != null) {
-					Set<Long> current = new HashSet<Long>();
-					current.addAll(curried.get(operation).keySet());
-					agenda.put(table, current);
+		for (int i = 0; i < tables.size(); i++) {
+			String table = tables.getName(i);
+			// getRowMap(...) == null means there were no operations of the requested type on that table
+			LongHashMap<BitSet> rows = getRowMap(table, operation);
+			if (rows != null) {
+				Set<Long> current = new HashSet<Long>();
+				for (long row: rows.keys())
+					current.add(row);
+				agenda.put(table, current);
 			}
 		}
 		return agenda;
@@ -119,10 +193,13 @@ class JournalSnapshot {
 	 * If no updates exist for this combination, <code>null</code> is returned.
 	 */
 	public Set<String> getColumns(String table, long row) {
-		try {
-			return journal.get(table).get(Journaler.OP_TYPE_UPDATE).get(row);
-		} catch (NullPointerException x) {
+		LongHashMap<BitSet> rows = getRowMap(table, Journaler.OP_TYPE_UPDATE);
+		BitSet bits = rows != null ? rows.get(row) : null;
+		if (bits == null)
 			return null;
-		}
+		Set<String> result = new HashSet<String>();
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+			result.add(columns.getName(i));
+		return result;
 	}
 }
@@ -56,6 +56,8 @@ public class KeySeriesRequester {
 		try {
 			response = webb.post(Endpoints.URL_KEY_REQUEST)
 				.header(Webb.HDR_ACCEPT, Webb.APP_JSON)
+				// Webb decompresses the response if the server chooses to compress it
+				.header(Webb.HDR_ACCEPT_ENCODING, "gzip")
 				.header(Webb.HDR_AUTHORIZATION, "Bearer " + token)
 				.header("Pragma", "no-cache")
 				.header("Cache-Control", "no-cache")
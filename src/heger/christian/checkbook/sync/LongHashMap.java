@@ -0,0 +1,124 @@
+package heger.christian.checkbook.sync;
+
+import java.util.Arrays;
+
+/**
+ * Minimal hash map from primitive <code>long</code> keys to objects. Unlike a <code>HashMap&lt;Long, V&gt;</code>,
+ * it does not box its keys or allocate an entry object per mapping: keys and values are stored in two parallel
+ * arrays using open addressing with linear probing. Mappings cannot be removed.
+ * <p>
+ * <code>null</code> values are permitted; use {@link #containsKey(long)} to distinguish them from absent keys.
+ */
+final class LongHashMap<V> {
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private boolean[] used;
+	private int size = 0;
+
+	public LongHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize - The number of mappings the map should be able to hold without growing
+	 */
+	public LongHashMap(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		// Keep the load factor at or below 1/2
+		while (capacity < 2 * expectedSize)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		used = new boolean[capacity];
+	}
+
+	private static int hash(long key) {
+		// Spread the bits, so that sequential keys don't end up in sequential slots
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Returns the slot for <code>key</code>, which is either the slot holding it or the empty slot it
+	 * would be put into.
+	 */
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (used[slot] && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = find(key);
+		return used[slot] ? (V) values[slot] : null;
+	}
+
+	public boolean containsKey(long key) {
+		return used[find(key)];
+	}
+
+	/**
+	 * Maps <code>key</code> to <code>value</code>.
+	 * @return The value previously mapped to <code>key</code>, or <code>null</code> if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int slot = find(key);
+		if (used[slot]) {
+			V previous = (V) values[slot];
+			values[slot] = value;
+			return previous;
+		}
+		if (2 * (size + 1) > keys.length) {
+			grow();
+			slot = find(key);
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		used[slot] = true;
+		size++;
+		return null;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(2 * oldKeys.length);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				used[slot] = true;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a new array of all keys in the map, in ascending order.
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int j = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i])
+				result[j++] = keys[i];
+		}
+		Arrays.sort(result);
+		return result;
+	}
+}
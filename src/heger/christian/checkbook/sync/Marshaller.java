@@ -3,6 +3,11 @@ package heger.christian.checkbook.sync;
 import heger.christian.checkbook.providers.CheckbookContentProvider;
 import heger.christian.checkbook.providers.Journaler;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -27,187 +32,323 @@ public class Marshaller {
 	public static final String JSON_FIELD_CREATED = "created";
 	public static final String JSON_FIELD_DELETED = "deleted";
 	public static final String JSON_FIELD_UPDATED = "updated";
+	/**
+	 * Present only in requests carrying a segment of a chunked sync that is not the last one. Holds the
+	 * sequence number up to which (exclusively) the journal has been sent. The server acknowledges such a
+	 * segment by responding with this number as the anchor.
+	 */
+	public static final String JSON_FIELD_UNTIL = "until";
 
 	private static final String TAG = Marshaller.class.getSimpleName();
 
+	/**
+	 * Maximum number of ids per data query. SQLite limits the number of parameters in a single statement
+	 * to 999 by default.
+	 */
+	static final int MAX_IDS_PER_QUERY = 999;
+
+	private static final byte CREATIONS = 0;
+	private static final byte UPDATES = 1;
+	private static final byte DELETIONS = 2;
+	/** Names of the JSON fields holding the operations of each type, indexed by operation type */
+	private static final String[] JSON_FIELDS = { JSON_FIELD_CREATED, JSON_FIELD_UPDATED, JSON_FIELD_DELETED };
+
+	/**
+	 * Receives the marshalled operations. For each operation type, in the order creations, updates, deletions,
+	 * <code>begin</code> is called, followed by <code>put</code> for every operation of that type and finally
+	 * <code>end</code>.
+	 */
+	private static abstract class Sink {
+		void begin(byte type) throws IOException {}
+		abstract void put(byte type, JSONObject operation) throws IOException;
+		void end(byte type) throws IOException {}
+	}
+
 	private SyncStats stats;
 
-	private String getFilterString(Set<Long> ids) {
-		String result = "";
-		for (long id: ids) {
-			result += result.isEmpty() ? id : "," + id;
+	/**
+	 * Returns a parenthesized list of <code>count</code> parameter placeholders, suitable for use with the
+	 * <code>in</code> operator.
+	 */
+	static String getFilterString(int count) {
+		StringBuilder result = new StringBuilder(2 * count + 1);
+		result.append('(');
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				result.append(',');
+			result.append('?');
 		}
-		result = "(" + result + ")";
+		return result.append(')').toString();
+	}
+
+	/**
+	 * Returns the ids in <code>ids</code> from <code>start</code> (inclusive) to <code>end</code> (exclusive) as
+	 * selection arguments.
+	 */
+	static String[] getSelectionArgs(long[] ids, int start, int end) {
+		String[] result = new String[end - start];
+		for (int i = start; i < end; i++)
+			result[i - start] = Long.toString(ids[i]);
 		return result;
 	}
 
 	/**
 	 * Tries to move the given <code>cursor</code> to the row with the requested <code>id</code>.
-	 * This method assumes that the cursor has an _id column.
-	 * <p>
-	 * This method works by searching the cursor to its end from its current position, then wrapping
-	 * around at the end and searching from the beginning. Therefore, it only produces a relatively
-	 * minor performance penalty on sequential calls with ids in the same order as they are in the cursor.
-	 * Notice however that going backward in that order requires searching once through the entire cursor.
+	 * The cursor must be sorted by ascending id, and successive calls must request ascending ids. The
+	 * cursor and the requested ids can then be walked in lockstep: rows before the cursor's current position
+	 * never need to be looked at again, so finding all rows takes a single pass through the cursor.
 	 * @param cursor - The cursor to search
+	 * @param index - The index of the _id column in <code>cursor</code>
 	 * @param id - The id to find
 	 * @return <code>True</code> if a row with the given id was found, in which case <code>cursor</code> is
-	 * now pointing to that row. <code>False</code> if no such row was found.
+	 * now pointing to that row. <code>False</code> if no such row was found, in which case <code>cursor</code>
+	 * is pointing to the first row with a greater id, or after the last row.
 	 */
-	private boolean findRowInCursor(Cursor cursor, long id) {
-		int position = cursor.getPosition();
-		int index = cursor.getColumnIndex(BaseColumns._ID);
-
-		if (cursor.getCount() == 0)
+	private static boolean moveToRow(Cursor cursor, int index, long id) {
+		if (cursor.isBeforeFirst() && !cursor.moveToFirst())
 			return false;
+		while (!cursor.isAfterLast() && cursor.getLong(index) < id)
+			cursor.moveToNext();
+		return !cursor.isAfterLast() && cursor.getLong(index) == id;
+	}
+
+	public JSONObject marshal(JournalSnapshot journalSnapshot, RevisionTableSnapshot revisionTableSnapshot, ContentProviderClient provider, long anchor) {
+		// Array of three JSONArrays for creations, updates and deletions
+		final JSONArray[] array = { new JSONArray(), new JSONArray(), new JSONArray() };
+		try {
+			marshal(journalSnapshot, revisionTableSnapshot, provider, new Sink() {
+				@Override
+				void put(byte type, JSONObject operation) {
+					array[type].put(operation);
+				}
+			});
+		} catch (IOException x) {
+			// Can't happen, the sink doesn't do any I/O
+			throw new IllegalStateException(x);
+		}
 
-		if (cursor.isBeforeFirst())
-			cursor.moveToFirst();
-
-		// Searches forward through the cursor from its current position
-		// This is a do-while loop to catch the case where the cursor is already
-		// on the requested row quickly rather than having to loop once through
-		// the entire cursor
-		do {
-			if (cursor.getLong(index) == id)
-				return true; // Found the correct row => leave the cursor on this position and exit
-		} while (cursor.moveToNext());
-
-		// Wrap around and search from beginning to original position
-		cursor.moveToPosition(-1);
-		while (cursor.moveToNext() && cursor.getPosition() < position) {
-			if (cursor.getLong(index) == id)
-				return true;
+		try {
+			JSONObject json = new JSONObject();
+			json.put(JSON_FIELD_CREATED, array[CREATIONS]);
+			json.put(JSON_FIELD_UPDATED, array[UPDATES]);
+			json.put(JSON_FIELD_DELETED, array[DELETIONS]);
+			json.put(JSON_FIELD_ANCHOR, anchor);
+			return json;
+		} catch (JSONException x) {
+			/*
+			 * Note: None of the above should throw a JSONException, because we're not putting in any floats
+			 * that could be NaN/Infinite and only using constants as keys.
+			 */
+			error(null, null, null, x);
+			return null;
 		}
-		return false;
 	}
 
-	public JSONObject marshal(JournalSnapshot journalSnapshot, RevisionTableSnapshot revisionTableSnapshot, ContentProviderClient provider, long anchor) {
-		final byte CREATIONS = 0;
-		final byte UPDATES = 1;
-		final byte DELETIONS = 2;
+	/**
+	 * Marshals the synchronization data directly to the passed stream as UTF-8 encoded JSON, without building
+	 * the complete representation in memory. Only one operation is held in memory at any time.
+	 * <p>
+	 * The output is identical to the string representation of the object returned by
+	 * {@link #marshal(JournalSnapshot, RevisionTableSnapshot, ContentProviderClient, long)} for the same
+	 * input. The stream is flushed, but not closed.
+	 * @throws IOException - If writing to <code>out</code> fails
+	 */
+	public void marshal(JournalSnapshot journalSnapshot, RevisionTableSnapshot revisionTableSnapshot, ContentProviderClient provider, long anchor, OutputStream out) throws IOException {
+		marshal(journalSnapshot, revisionTableSnapshot, provider, anchor, null, out);
+	}
 
+	/**
+	 * Marshals a segment of a chunked sync to the passed stream, as described for
+	 * {@link #marshal(JournalSnapshot, RevisionTableSnapshot, ContentProviderClient, long, OutputStream)}.
+	 * @param until - The sequence number up to which (exclusively) the journal snapshot reaches, or
+	 * <code>null</code> if this is the last segment
+	 * @see #JSON_FIELD_UNTIL
+	 */
+	public void marshal(JournalSnapshot journalSnapshot, RevisionTableSnapshot revisionTableSnapshot, ContentProviderClient provider, long anchor, Long until, OutputStream out) throws IOException {
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		writer.write('{');
+		marshal(journalSnapshot, revisionTableSnapshot, provider, new Sink() {
+			private boolean first;
+			@Override
+			void begin(byte type) throws IOException {
+				if (type != CREATIONS)
+					writer.write(',');
+				writer.write(JSONObject.quote(JSON_FIELDS[type]));
+				writer.write(":[");
+				first = true;
+			}
+			@Override
+			void put(byte type, JSONObject operation) throws IOException {
+				if (!first)
+					writer.write(',');
+				first = false;
+				// Individual operations are small, so they can be rendered by JSONObject itself. This ensures
+				// the output is the same as that of the in-memory representation.
+				writer.write(operation.toString());
+			}
+			@Override
+			void end(byte type) throws IOException {
+				writer.write(']');
+			}
+		});
+		writer.write(',');
+		writer.write(JSONObject.quote(JSON_FIELD_ANCHOR));
+		writer.write(':');
+		writer.write(Long.toString(anchor));
+		if (until != null) {
+			writer.write(',');
+			writer.write(JSONObject.quote(JSON_FIELD_UNTIL));
+			writer.write(':');
+			writer.write(until.toString());
+		}
+		writer.write('}');
+		writer.flush();
+	}
+
+	/**
+	 * Marshals a segment of a chunked sync to the passed stream in the binary encoding of {@link BinaryWriter}.
+	 * Like {@link #marshal(JournalSnapshot, RevisionTableSnapshot, ContentProviderClient, long, Long, OutputStream)},
+	 * only one operation is held in memory at any time. Decoding the output with {@link BinaryReader} gives the
+	 * same result as parsing the JSON output for the same input. The stream is flushed, but not closed.
+	 * @param until - The sequence number up to which (exclusively) the journal snapshot reaches, or
+	 * <code>null</code> if this is the last segment
+	 * @throws IOException - If writing to <code>out</code> fails
+	 */
+	public void marshalBinary(JournalSnapshot journalSnapshot, RevisionTableSnapshot revisionTableSnapshot, ContentProviderClient provider, long anchor, Long until, OutputStream out) throws IOException {
+		final BinaryWriter writer = new BinaryWriter(out);
+		writer.beginObject();
+		marshal(journalSnapshot, revisionTableSnapshot, provider, new Sink() {
+			@Override
+			void begin(byte type) throws IOException {
+				writer.name(JSON_FIELDS[type]).beginArray();
+			}
+			@Override
+			void put(byte type, JSONObject operation) throws IOException {
+				writer.value(operation);
+			}
+			@Override
+			void end(byte type) throws IOException {
+				writer.endArray();
+			}
+		});
+		writer.name(JSON_FIELD_ANCHOR).value(anchor);
+		if (until != null)
+			writer.name(JSON_FIELD_UNTIL).value(until.longValue());
+		writer.endObject();
+		writer.flush();
+	}
+
+	private void marshal(JournalSnapshot journalSnapshot, RevisionTableSnapshot revisionTableSnapshot, ContentProviderClient provider, Sink sink) throws IOException {
 		stats = new SyncStats();
 
+		String[] operations = { Journaler.OP_TYPE_CREATE, Journaler.OP_TYPE_UPDATE, Journaler.OP_TYPE_DELETE };
 		// Create agenda (map from table names to rows for that table)
 		@SuppressWarnings("unchecked")
 		Map<String, Set<Long>>[] agenda = new Map[] {
-				journalSnapshot.getAgenda(Journaler.OP_TYPE_CREATE),
-				journalSnapshot.getAgenda(Journaler.OP_TYPE_UPDATE),
-				journalSnapshot.getAgenda(Journaler.OP_TYPE_DELETE)
+				journalSnapshot.getAgenda(operations[CREATIONS]),
+				journalSnapshot.getAgenda(operations[UPDATES]),
+				journalSnapshot.getAgenda(operations[DELETIONS])
 			};
 
-		// Array of three JSONArrays for creations, updates and deletions
-		JSONArray[] array = { new JSONArray(), new JSONArray(), new JSONArray() };
-
 		// The translator to use for dealing with data rows
 		Translator translator = new Translator();
 
 		// Iterate over operation types
 		for (byte i = CREATIONS; i <= DELETIONS; i++) {
+			sink.begin(i);
 			// Iterate over all tables in the agenda of the current operation type
 			for (String table: agenda[i].keySet()) {
-				Set<Long> ids = agenda[i].get(table);
-				// Prepare a data cursor unless we're dealing with deletions
-				Cursor data = null;
-//				if (i != DELETIONS) {
+				// Ids are sorted, so that they can be matched against the data cursor in a single pass
+				long[] ids = journalSnapshot.getRows(table, operations[i]);
+				for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+					int end = Math.min(ids.length, start + MAX_IDS_PER_QUERY);
+					// Prepare a data cursor for the current chunk of ids
+					Cursor data = null;
 					try {
 						data = provider.query(CheckbookContentProvider.getUriForTable(table),
 								null,
-								BaseColumns._ID + " in " + getFilterString(ids),
-								null,
-								null);
+								BaseColumns._ID + " in " + getFilterString(end - start),
+								getSelectionArgs(ids, start, end),
+								BaseColumns._ID);
 					} catch (RemoteException x) {
 						error(table, null, null, x);
-						// TODO Shouldn't this be stats.numSkippedEntries += ids.size()
-						stats.numSkippedEntries++;
-						continue;
-					}
-//				} else {
-//					data = new MatrixCursor(new String[] { BaseColumns._ID });
-//				}
-
-				// Iterate over all the rows in the current table
-				for (long id: ids) {
-					// Get array of columns if this is an update, and bogus one-element array otherwise
-					String[] columns;
-					if (i == UPDATES)
-						columns = journalSnapshot.getColumns(table, id).toArray(new String[] {});
-					else
-						columns = data.getColumnNames();
-
-					if (i != DELETIONS && !findRowInCursor(data, id)) {
-						error(table, id, null, new IllegalStateException("No data found"));
-						stats.numSkippedEntries += i == UPDATES ? columns.length : 1;
+						stats.numSkippedEntries += end - start;
 						continue;
 					}
+					int index = data.getColumnIndex(BaseColumns._ID);
+
+					try {
+						// Iterate over all the rows in the current chunk
+						for (int k = start; k < end; k++) {
+							long id = ids[k];
+							// Get array of columns if this is an update, and bogus one-element array otherwise
+							String[] columns;
+							if (i == UPDATES)
+								columns = journalSnapshot.getColumns(table, id).toArray(new String[] {});
+							else
+								columns = data.getColumnNames();
 
-					// FIXME Change from scalar to Map column -> revision
-					int iterations = i == UPDATES ? columns.length : 1;
-					for (int j = 0; j < iterations; j++) {
-					// Iterate over all the columns for the current row.
+							if (i != DELETIONS && !moveToRow(data, index, id)) {
+								error(table, id, null, new IllegalStateException("No data found"));
+								stats.numSkippedEntries += i == UPDATES ? columns.length : 1;
+								continue;
+							}
+
+							// FIXME Change from scalar to Map column -> revision
+							int iterations = i == UPDATES ? columns.length : 1;
+							for (int j = 0; j < iterations; j++) {
+							// Iterate over all the columns for the current row.
 //					for (String column: columns) {
-						// Create the appropriate builder
-						JSONBuilder builder = null;
+								// Create the appropriate builder
+								JSONBuilder builder = null;
 //						int revision = 0;
-						Map<String, Integer> revisions = new HashMap<String, Integer>();
-						switch (i) {
-							case CREATIONS:
-								builder = JSONBuilder.newCreateBuilder();
-								// FIXME Fill revision map with 0 for all columns
-								for (String column: columns) {
-									revisions.put(column, 0);
-								}
+								Map<String, Integer> revisions = new HashMap<String, Integer>();
+								switch (i) {
+									case CREATIONS:
+										builder = JSONBuilder.newCreateBuilder();
+										// FIXME Fill revision map with 0 for all columns
+										for (String column: columns) {
+											revisions.put(column, 0);
+										}
 //								revision = 0;
-								break;
-							case UPDATES:
-								builder = JSONBuilder.newUpdateBuilder();
-								// FIXME Turn into single entry map
-								// Because there will be further iteration cycles for each update operation, we do not
-								// need to put all column revisions into the map at this point
-								// I.e. no loop for column:columns
-								revisions.put(columns[j], revisionTableSnapshot.getRevision(table, id, columns[j]));
+										break;
+									case UPDATES:
+										builder = JSONBuilder.newUpdateBuilder();
+										// FIXME Turn into single entry map
+										// Because there will be further iteration cycles for each update operation, we do not
+										// need to put all column revisions into the map at this point
+										// I.e. no loop for column:columns
+										revisions.put(columns[j], revisionTableSnapshot.getRevision(table, id, columns[j]));
 //								revision = revisionTableSnapshot.getRevision(table, id, columns[j]);
-								break;
-							case DELETIONS:
-								builder = JSONBuilder.newDeleteBuilder();
-								// FIXME Fill map with revisions for all columns
-								for (String column: columns) {
-									revisions.put(column, revisionTableSnapshot.getRevision(table, id, column));
-								}
+										break;
+									case DELETIONS:
+										builder = JSONBuilder.newDeleteBuilder();
+										// FIXME Fill map with revisions for all columns
+										for (String column: columns) {
+											revisions.put(column, revisionTableSnapshot.getRevision(table, id, column));
+										}
 //								revision = revisionTableSnapshot.getMaxRevision(table, id);
-								break;
-						}
-						try {
-							array[i].put(builder.withTable(table)
-									.withRow(id)
-									.withColumn(columns[j])
-									.withData(translator.translate(data, i == UPDATES ? new String[] { columns[j] } : null))
-									.withRevisions(revisions)
-									.build());
-						} catch (JSONException x) {
-							error(table, id, i == UPDATES ? columns[j] : "n/a", x);
-							stats.numSkippedEntries++;
+										break;
+								}
+								try {
+									sink.put(i, builder.withTable(table)
+											.withRow(id)
+											.withColumn(columns[j])
+											.withData(translator.translate(data, i == UPDATES ? new String[] { columns[j] } : null))
+											.withRevisions(revisions)
+											.build());
+								} catch (JSONException x) {
+									error(table, id, i == UPDATES ? columns[j] : "n/a", x);
+									stats.numSkippedEntries++;
+								}
+							}
 						}
+					} finally {
+						data.close();
 					}
 				}
 			}
-		}
-
-		try {
-			JSONObject json = new JSONObject();
-			json.put(JSON_FIELD_CREATED, array[CREATIONS]);
-			json.put(JSON_FIELD_UPDATED, array[UPDATES]);
-			json.put(JSON_FIELD_DELETED, array[DELETIONS]);
-			json.put(JSON_FIELD_ANCHOR, anchor);
-			return json;
-		} catch (JSONException x) {
-			/*
-			 * Note: None of the above should throw a JSONException, because we're not putting in any floats
-			 * that could be NaN/Infinite and only using constants as keys.
-			 */
-			error(null, null, null, x);
-			return null;
+			sink.end(i);
 		}
 	}
 
@@ -216,7 +357,7 @@ public class Marshaller {
 	 * <ul>
 	 * <li> numSkippedEntries
 	 * </ul>
-	 * @return Sync stats about the last call to {@link #marshal(JournalSnapshot, RevisionTableSnapshot, ContentProviderClient, long)}. If
+	 * @return Sync stats about the last call to one of the <code>marshal</code> methods. If
 	 * <code>marshal</code> has never been called, this will be <code>null</code>.
 	 */
 	public SyncStats getStats() {
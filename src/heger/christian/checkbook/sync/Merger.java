@@ -0,0 +1,172 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.CheckbookContentProvider;
+import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
+import heger.christian.checkbook.providers.SharedTransaction;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+
+/**
+ * Compares incoming operations against the local state before they are turned into
+ * <code>ContentProviderOperation</code>s, so that writes that would not change anything are skipped. Most of the
+ * updates in a server response are typically echoes of changes that are already present locally, and applying
+ * them again would cost a write, a change notification and a revision write each.
+ * <p>
+ * For an update, only the columns whose incoming value differs from the local one are written, and only the
+ * revisions that differ from the local ones. If neither differs, the update is dropped altogether. A creation is
+ * dropped if the row already exists with the same values and revisions. Anything else, including operations on
+ * rows that do not exist locally, is passed through unchanged.
+ * <p>
+ * The local state is read within the passed transaction, so operations applied earlier in it are taken into
+ * account.
+ */
+public class Merger {
+	public static final String JSON_FIELD_TABLE = JSONBuilder.JSON_FIELD_TABLE;
+	public static final String JSON_FIELD_ROW = JSONBuilder.JSON_FIELD_ROW;
+	public static final String JSON_FIELD_DATA = JSONBuilder.JSON_FIELD_DATA;
+	public static final String JSON_FIELD_REVISIONS = JSONBuilder.JSON_FIELD_REVISIONS;
+
+	private final SharedTransaction transaction;
+	private final Translator translator = new Translator();
+	private int numDropped = 0;
+
+	/**
+	 * @param transaction - The transaction the merged operations are applied in. It must have been begun before
+	 * any of the <code>merge</code> methods are called.
+	 */
+	public Merger(SharedTransaction transaction) {
+		this.transaction = transaction;
+	}
+
+	/**
+	 * Merges an incoming creation.
+	 * @return <code>json</code> itself, or <code>null</code> if the row exists locally with the same values and
+	 * revisions
+	 * @throws JSONException - If <code>json</code> lacks the table or row
+	 */
+	public JSONObject mergeCreation(JSONObject json) throws JSONException {
+		if (merge(json) == null) {
+			numDropped++;
+			return null;
+		}
+		return json;
+	}
+
+	/**
+	 * Merges an incoming update.
+	 * @return An update with only the changed values and revisions, or <code>null</code> if nothing changed
+	 * @throws JSONException - If <code>json</code> lacks the table or row
+	 */
+	public JSONObject mergeUpdate(JSONObject json) throws JSONException {
+		JSONObject merged = merge(json);
+		if (merged == null)
+			numDropped++;
+		return merged;
+	}
+
+	/**
+	 * Returns <code>json</code> with the unchanged values and revisions removed, <code>null</code> if none are
+	 * left, or <code>json</code> itself if there is nothing to compare against.
+	 */
+	private JSONObject merge(JSONObject json) throws JSONException {
+		String table = json.getString(JSON_FIELD_TABLE);
+		long row = json.getLong(JSON_FIELD_ROW);
+		JSONObject data = json.optJSONObject(JSON_FIELD_DATA);
+		JSONObject revisions = json.optJSONObject(JSON_FIELD_REVISIONS);
+		if (data == null || revisions == null)
+			return json;
+
+		JSONObject local;
+		Cursor cursor = transaction.query(ContentUris.withAppendedId(CheckbookContentProvider.getUriForTable(table), row), null, null, null, null);
+		try {
+			if (!cursor.moveToFirst())
+				return json;
+			local = translator.translate(cursor, null);
+		} finally {
+			cursor.close();
+		}
+		Map<String, Integer> localRevisions = getRevisions(table, row);
+
+		JSONObject changedData = new JSONObject();
+		@SuppressWarnings("unchecked")
+		Iterator<String> iterator = data.keys();
+		while (iterator.hasNext()) {
+			String column = iterator.next();
+			Object value = data.get(column);
+			if (!local.has(column) || !equal(value, local.get(column)))
+				changedData.put(column, value);
+		}
+		JSONObject changedRevisions = new JSONObject();
+		@SuppressWarnings("unchecked")
+		Iterator<String> columns = revisions.keys();
+		while (columns.hasNext()) {
+			String column = columns.next();
+			Integer revision = localRevisions.get(column);
+			if (revision == null || revision != revisions.getInt(column))
+				changedRevisions.put(column, revisions.get(column));
+		}
+		if (changedData.length() == 0 && changedRevisions.length() == 0)
+			return null;
+
+		JSONObject result = new JSONObject();
+		@SuppressWarnings("unchecked")
+		Iterator<String> names = json.keys();
+		while (names.hasNext()) {
+			String name = names.next();
+			result.put(name, json.get(name));
+		}
+		result.put(JSON_FIELD_DATA, changedData);
+		result.put(JSON_FIELD_REVISIONS, changedRevisions);
+		return result;
+	}
+
+	private Map<String, Integer> getRevisions(String table, long row) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		Cursor cursor = transaction.query(RevisionTableContract.CONTENT_URI,
+				new String[] { RevisionTableContract.COL_NAME_COLUMN, RevisionTableContract.COL_NAME_REVISION },
+				RevisionTableContract.COL_NAME_TABLE + "=? and " + RevisionTableContract.COL_NAME_ROW + "=" + row,
+				new String[] { table },
+				null);
+		try {
+			while (cursor.moveToNext())
+				result.put(cursor.getString(0), cursor.getInt(1));
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Compares an incoming value against a local one as read by {@link Translator#translate(Cursor, String[])}.
+	 * Numbers are compared by value regardless of their type, and booleans are considered equal to 1 and 0, the
+	 * way they are stored.
+	 */
+	static boolean equal(Object incoming, Object local) {
+		if (incoming instanceof Boolean)
+			incoming = (Boolean) incoming ? 1 : 0;
+		if (incoming instanceof Number && local instanceof Number) {
+			Number a = (Number) incoming;
+			Number b = (Number) local;
+			if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+				return a.doubleValue() == b.doubleValue();
+			return a.longValue() == b.longValue();
+		}
+		return incoming.equals(local);
+	}
+
+	/**
+	 * Returns the number of operations dropped since this merger was created because they would not have
+	 * changed anything.
+	 */
+	public int getNumDropped() {
+		return numDropped;
+	}
+}
@@ -0,0 +1,48 @@
+package heger.christian.checkbook.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns small consecutive integer ids to names, such as table and column names, so that they can be
+ * used as array indices and bit positions. Each distinct name is only stored once, no matter how often
+ * it is interned.
+ */
+final class NameTable {
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+
+	/**
+	 * Returns the id of <code>name</code>, assigning the next free id if it has none yet.
+	 */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = names.size();
+			ids.put(name, id);
+			names.add(name);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the id of <code>name</code>, or -1 if it has never been interned.
+	 */
+	public int getId(String name) {
+		Integer id = ids.get(name);
+		return id != null ? id : -1;
+	}
+
+	public String getName(int id) {
+		return names.get(id);
+	}
+
+	/**
+	 * Returns the number of interned names. Ids range from 0 to <code>size() - 1</code>.
+	 */
+	public int size() {
+		return names.size();
+	}
+}
@@ -2,10 +2,13 @@ package heger.christian.checkbook.sync;
 
 import heger.christian.checkbook.providers.CheckbookContentProvider;
 import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
+import heger.christian.checkbook.providers.StatementBatch;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -15,7 +18,8 @@ import android.content.ContentUris;
 import android.net.Uri;
 
 /**
- * Factory to translate JSON encoded operations into <code>ContentProviderOperation</code>s.
+ * Factory to translate JSON encoded operations into <code>ContentProviderOperation</code>s, or into
+ * operations of a {@link StatementBatch}.
  */
 public class OperationFactory {
 	public static final String JSON_FIELD_TABLE = JSONBuilder.JSON_FIELD_TABLE;
@@ -31,8 +35,12 @@ public class OperationFactory {
 		this.translator = translator;
 	}
 
+	/**
+	 * Returns the URI of the passed row, marked as written by the sync adapter so that the operations are not
+	 * journaled.
+	 */
 	private Uri getUri(String table, long row) {
-		return ContentUris.withAppendedId(CheckbookContentProvider.getUriForTable(table), row);
+		return CheckbookContentProvider.asSyncAdapter(ContentUris.withAppendedId(CheckbookContentProvider.getUriForTable(table), row));
 	}
 
 	public List<ContentProviderOperation> getCreateOperations(JSONObject json) throws JSONException {
@@ -80,10 +88,13 @@ public class OperationFactory {
 		JSONObject revisions = json.getJSONObject(JSON_FIELD_REVISIONS);
 
 		List<ContentProviderOperation> result = new ArrayList<ContentProviderOperation>(1 + revisions.length());
-		ContentProviderOperation dataOperation = ContentProviderOperation.newUpdate(getUri(table, row))
-				.withValues(translator.translate(data))
-				.build();
-		result.add(dataOperation);
+		// Merging may leave an update with only revisions to write
+		if (data.length() > 0) {
+			ContentProviderOperation dataOperation = ContentProviderOperation.newUpdate(getUri(table, row))
+					.withValues(translator.translate(data))
+					.build();
+			result.add(dataOperation);
+		}
 
 		// FIXME Change to iteration over revision object (should atm only have one key, but let's be future proof)
 		Iterator<String> iterator = revisions.keys();
@@ -131,6 +142,64 @@ public class OperationFactory {
 		return result;
 	}
 
+	/**
+	 * Reads the revisions of <code>json</code> completely, so that a malformed entry is rejected before any of
+	 * its operations have been added to a batch.
+	 */
+	private static Map<String, Integer> readRevisions(JSONObject json) throws JSONException {
+		JSONObject revisions = json.getJSONObject(JSON_FIELD_REVISIONS);
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		Iterator<String> iterator = revisions.keys();
+		while (iterator.hasNext()) {
+			String column = iterator.next();
+			result.put(column, revisions.getInt(column));
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the operations {@link #getCreateOperations(JSONObject)} would return to <code>batch</code>.
+	 */
+	public void addCreateOperations(JSONObject json, StatementBatch batch) throws JSONException {
+		String table = json.getString(JSON_FIELD_TABLE);
+		long row = json.getLong(JSON_FIELD_ROW);
+		JSONObject data = json.getJSONObject(JSON_FIELD_DATA);
+		Map<String, Integer> revisions = readRevisions(json);
+
+		batch.insert(table, row, translator.translate(data));
+		for (Map.Entry<String, Integer> revision: revisions.entrySet())
+			batch.insertRevision(table, row, revision.getKey(), revision.getValue());
+	}
+
+	/**
+	 * Adds the operations {@link #getUpdateOperations(JSONObject)} would return to <code>batch</code>.
+	 */
+	public void addUpdateOperations(JSONObject json, StatementBatch batch) throws JSONException {
+		String table = json.getString(JSON_FIELD_TABLE);
+		long row = json.getLong(JSON_FIELD_ROW);
+		JSONObject data = json.getJSONObject(JSON_FIELD_DATA);
+		Map<String, Integer> revisions = readRevisions(json);
+
+		// Merging may leave an update with only revisions to write
+		if (data.length() > 0)
+			batch.update(table, row, translator.translate(data));
+		for (Map.Entry<String, Integer> revision: revisions.entrySet())
+			batch.updateRevision(table, row, revision.getKey(), revision.getValue());
+	}
+
+	/**
+	 * Adds the operations {@link #getDeleteOperations(JSONObject)} would return to <code>batch</code>.
+	 */
+	public void addDeleteOperations(JSONObject json, StatementBatch batch) throws JSONException {
+		String table = json.getString(JSON_FIELD_TABLE);
+		long row = json.getLong(JSON_FIELD_ROW);
+		Map<String, Integer> revisions = readRevisions(json);
+
+		batch.delete(table, row);
+		for (Map.Entry<String, Integer> revision: revisions.entrySet())
+			batch.updateRevision(table, row, revision.getKey(), revision.getValue());
+	}
+
 	/**
 	 * @return the translator
 	 */
@@ -2,10 +2,14 @@ package heger.christian.checkbook.sync;
 
 import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
+import android.content.ContentResolver;
 import android.database.Cursor;
 
 /**
@@ -15,53 +19,26 @@ import android.database.Cursor;
  * <p>
  * Revisions can be queried using {@link #getRevision(String, long, String)}.
  * <p>
+ * The snapshot is held in a compact form: table and column names are stored only once, rows are kept in
+ * maps keyed by primitive ids, and the revisions of a row are kept in an array indexed by column. Use
+ * {@link #createForJournal(ContentResolver, JournalSnapshot)} to read only the rows needed for synchronization.
+ * <p>
  * This class is <i>not</i> intended to be used as an alternative to querying the revision table. In particular,
  * it does not update itself to any changes that happen to the revision table in storage after construction
  * has taken place. It is intended solely as a helper object for synchronization.
  */
 class RevisionTableSnapshot {
-	/**
-	 * Key to map revision number to.
-	 */
-	private static class Key {
-		private final long row;
-		private final String table;
-
-		public Key(String table, long row) {
-			if (table == null)
-				throw new IllegalArgumentException("Table must not be null");
-			this.table = table;
-			this.row = row;
-		}
+	/** Marks columns without a revision in the per-row revision arrays */
+	private static final int NONE = Integer.MIN_VALUE;
 
-		/**
-		 * Returns true iff <code>o</code> is a <code>Key</code> and
-		 * <code>this</code> and <code>o</code> have equal <code>table</code> and
-		 * <code>row</code>.
-		 */
-		@Override
-		public boolean equals(Object o) {
-			if (!(o instanceof Key))
-				return false;
-			Key k2 = (Key) o;
-			boolean result = table.equals(k2.table)
-					&& row == k2.row;
-			return result;
-		}
-		/**
-		 * Returns a hash code of this key as the
-		 * the xor combination of the hash codes of <code>table</code> and <code>row</code>.
-		 */
-		@Override
-		public int hashCode() {
-			int result = table.hashCode() ^ Long.valueOf(row).hashCode();
-			return result;
-		}
-		@Override
-		public String toString() {
-			return "(" + table + "," + row + ")";
-		}
-	}
+	private final NameTable tables = new NameTable();
+	private final NameTable columns = new NameTable();
+	/*
+	 * Think of this as a function table -> row -> column -> revision, where tables are indexed by their ids
+	 * in the tables name table, and the revisions of a row are an array indexed by the columns' ids in the
+	 * columns name table.
+	 */
+	private final List<LongHashMap<int[]>> revisions = new ArrayList<LongHashMap<int[]>>();
 
 	private RevisionTableSnapshot() {}
 
@@ -70,6 +47,44 @@ class RevisionTableSnapshot {
 	 * constructed from the passed cursor.
 	 */
 	public static RevisionTableSnapshot createFromCursor(Cursor cursor) {
+		RevisionTableSnapshot result = new RevisionTableSnapshot();
+		result.read(cursor);
+		return result;
+	}
+
+	/**
+	 * Creates and returns a new <code>RevisionTableSnapshot</code> holding only the revisions of rows for which
+	 * the passed journal snapshot contains operations. Only these are needed for synchronization, so this avoids
+	 * reading the entire revision table.
+	 */
+	public static RevisionTableSnapshot createForJournal(ContentResolver resolver, JournalSnapshot journal) {
+		RevisionTableSnapshot result = new RevisionTableSnapshot();
+		// One parameter is needed for the table name
+		final int rowsPerQuery = Marshaller.MAX_IDS_PER_QUERY - 1;
+		for (String table: journal.getTables()) {
+			long[] rows = journal.getRows(table);
+			for (int start = 0; start < rows.length; start += rowsPerQuery) {
+				int end = Math.min(rows.length, start + rowsPerQuery);
+				String[] args = new String[end - start + 1];
+				args[0] = table;
+				System.arraycopy(Marshaller.getSelectionArgs(rows, start, end), 0, args, 1, end - start);
+				Cursor cursor = resolver.query(RevisionTableContract.CONTENT_URI,
+						null,
+						RevisionTableContract.COL_NAME_TABLE + "=? and "
+								+ RevisionTableContract.COL_NAME_ROW + " in " + Marshaller.getFilterString(end - start),
+						args,
+						null);
+				try {
+					result.read(cursor);
+				} finally {
+					cursor.close();
+				}
+			}
+		}
+		return result;
+	}
+
+	private void read(Cursor cursor) {
 		/**
 		 * Helper class to cache column indices.
 		 */
@@ -92,25 +107,35 @@ class RevisionTableSnapshot {
 		Columns columns = new Columns();
 		columns.indexColumns(cursor);
 
-		RevisionTableSnapshot result = new RevisionTableSnapshot();
 		cursor.moveToPosition(-1);
 		while (cursor.moveToNext()) {
-			String table = cursor.getString(columns.colTable);
+			int table = tables.intern(cursor.getString(columns.colTable));
+			if (table == revisions.size())
+				revisions.add(new LongHashMap<int[]>());
+			LongHashMap<int[]> rows = revisions.get(table);
+
 			long row = cursor.getLong(columns.colRow);
-			String column = cursor.getString(columns.colColumn);
-			Key key = new Key(table, row);
-			if (!result.revisions.containsKey(key)) {
-				result.revisions.put(key, new HashMap<String, Integer>());
+			int column = this.columns.intern(cursor.getString(columns.colColumn));
+			int[] curried = rows.get(row);
+			if (curried == null || curried.length <= column) {
+				int length = curried == null ? 0 : curried.length;
+				// Make room for all columns known so far, so most rows only need to be allocated once
+				curried = curried == null ? new int[this.columns.size()] : Arrays.copyOf(curried, this.columns.size());
+				Arrays.fill(curried, length, curried.length, NONE);
+				rows.put(row, curried);
 			}
-			result.revisions.get(key).put(column, cursor.getInt(columns.colRevision));
+			curried[column] = cursor.getInt(columns.colRevision);
 		}
-		return result;
 	}
 
-	/*
-	 * Think of this as a function (table,row) -> column -> revision
+	/**
+	 * Returns the revisions of the specified row, indexed by column id, or <code>null</code> if
+	 * there are none.
 	 */
-	private Map<Key, Map<String, Integer>> revisions = new HashMap<Key, Map<String, Integer>>();
+	private int[] getRow(String table, long row) {
+		int id = tables.getId(table);
+		return id != -1 ? revisions.get(id).get(row) : null;
+	}
 
 	/**
 	 * Gets the revision number for the passed table, row and column.
@@ -118,14 +143,10 @@ class RevisionTableSnapshot {
 	 * a <code>NoSuchElementException</code> is thrown.
 	 */
 	public int getRevision(String table, long row, String column) {
-		Integer result = null;
-		Map<String, Integer> curried = revisions.get(new Key(table, row));
-		if (curried != null) {
-			result = curried.get(column);
-		}
-
-		if (result != null)
-			return result;
+		int[] curried = getRow(table, row);
+		int id = columns.getId(column);
+		if (curried != null && id != -1 && id < curried.length && curried[id] != NONE)
+			return curried[id];
 		else
 			throw new NoSuchElementException("No entry for table " + table + ", row " + row + " and column " + column);
 	}
@@ -138,11 +159,11 @@ class RevisionTableSnapshot {
 	 */
 	public int getMaxRevision(String table, long row) {
 		int result = 0;
-		Map<String, Integer> curried = revisions.get(new Key(table, row));
+		int[] curried = getRow(table, row);
 		if (curried == null)
 			throw new NoSuchElementException("No entry for table " + table + " and row " + row);
 
-		for (Integer revision: curried.values())
+		for (int revision: curried)
 			result = Math.max(result, revision);
 		return result;
 	}
@@ -154,9 +175,14 @@ class RevisionTableSnapshot {
 	 * @return A map from column names to their revision numbers. Never <code>null</code>.
 	 */
 	public Map<String, Integer> getRevisionsForRow(String table, long row) {
-		Map<String, Integer> curried = revisions.get(new Key(table,row));
+		int[] curried = getRow(table, row);
 		if (curried == null)
 			throw new NoSuchElementException("No entry for table " + table + " and row " + row);
-		return curried;
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for (int i = 0; i < curried.length; i++) {
+			if (curried[i] != NONE)
+				result.put(columns.getName(i), curried[i]);
+		}
+		return result;
 	}
 }
@@ -1,28 +1,19 @@
 package heger.christian.checkbook.sync;
 
+import heger.christian.checkbook.R;
 import heger.christian.checkbook.accounts.Authenticator;
-import heger.christian.checkbook.network.CheckbookSSLContextFactory;
+import heger.christian.checkbook.network.CheckbookHttpClient;
 import heger.christian.checkbook.network.Endpoints;
 import heger.christian.checkbook.network.TruststoreException;
 import heger.christian.checkbook.network.UnauthorizedAccessException;
 import heger.christian.checkbook.providers.CheckbookContentProvider;
-import heger.christian.checkbook.providers.Journaler;
-import heger.christian.checkbook.providers.MetaContentProvider.JournalContract;
 import heger.christian.checkbook.providers.MetaContentProvider.KeyGenerationContract;
-import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
-import heger.christian.checkbook.providers.MetaContentProvider.SequenceAnchorContract;
-import heger.christian.checkbook.providers.SharedTransaction;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.net.HttpURLConnection;
+import java.net.URL;
 
-import javax.net.ssl.HttpsURLConnection;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import javax.net.ssl.SSLSocketFactory;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -31,21 +22,14 @@ import android.accounts.OperationCanceledException;
 import android.annotation.TargetApi;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.content.SyncResult;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
 
-import com.goebl.david.Response;
-import com.goebl.david.Webb;
-import com.goebl.david.WebbException;
-
 
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
 	private static final String TAG = SyncAdapter.class.getSimpleName();
@@ -73,42 +57,29 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 		super(context, autoInitialize, allowParallelSyncs);
 	}
 
-	private List<ContentProviderOperation> getUpdateRevisionsOperation(JournalSnapshot journal, RevisionTableSnapshot revisions) {
-		List<ContentProviderOperation> operations = new LinkedList<ContentProviderOperation>();
-		// Handle revision updates for creations and deletions
-//		Map<String, Set<Long>> agenda = journal.getAgenda(Journaler.OP_TYPE_CREATE);
-//		agenda.putAll(journal.getAgenda(Journaler.OP_TYPE_DELETE));
-		@SuppressWarnings("unchecked")
-		Map<String, Set<Long>>[] agenda = new Map[] { journal.getAgenda(Journaler.OP_TYPE_CREATE), journal.getAgenda(Journaler.OP_TYPE_UPDATE), journal.getAgenda(Journaler.OP_TYPE_DELETE) };
-		byte CREATIONS = 0;
-		byte UPDATES = 1;
-		byte DELETIONS = 2;
-		for (byte i = CREATIONS; i <= DELETIONS; i++)
-			for (String table: agenda[i].keySet()) {
-				for (long row: agenda[i].get(table)) {
-					Set<String> columns = i == UPDATES ? journal.getColumns(table, row) : revisions.getRevisionsForRow(table, row).keySet();
-					for (String column: columns)
-						operations.add(ContentProviderOperation.newUpdate(RevisionTableContract.CONTENT_URI)
-								.withSelection(
-										RevisionTableContract.COL_NAME_TABLE + "=? "
-												+ "and " + RevisionTableContract.COL_NAME_ROW + "=" + row + " "
-												+ "and " + RevisionTableContract.COL_NAME_COLUMN + "=?",
-												new String[] { table, column })
-												.withValue(RevisionTableContract.COL_NAME_REVISION, revisions.getRevision(table, row, column) + 1)
-												.build());
-				}
-			}
-		return operations;
+	/**
+	 * Performs the sync and stores how long each of its phases took, even if the sync fails.
+	 * @see SyncTrace
+	 */
+	@Override
+	public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+		SyncTrace trace = new SyncTrace();
+		try {
+			performSync(account, provider, syncResult, trace);
+		} finally {
+			Log.i(TAG, "Sync phases: " + trace);
+			trace.save(getContext());
+		}
 	}
 
-	@Override
 	@TargetApi(android.os.Build.VERSION_CODES.JELLY_BEAN_MR1)
-	public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+	private void performSync(Account account, ContentProviderClient provider, SyncResult syncResult, SyncTrace trace) {
 		ContentResolver resolver = getContext().getContentResolver();
 		/*
 		 * Get an access token
 		 */
 		String token = null;
+		SyncTrace.Span span = trace.begin(SyncTrace.PHASE_TOKEN);
 		try {
 			token = AccountManager.get(getContext()).blockingGetAuthToken(account, Authenticator.TOKEN_TYPE_ACCESS, true);
 			Log.d(TAG, "Token we got was: " + token);
@@ -136,77 +107,71 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 		} catch (IOException x) {
 			syncResult.stats.numIoExceptions++;
 			return;
+		} finally {
+			span.end();
 		}
 
 		/*
 		 * Get a new key series if so desired
 		 */
-		boolean wantsKeys = false;
-		if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.JELLY_BEAN_MR1) {
-			try {
-				Bundle bundle = provider.call(CheckbookContentProvider.METHOD_WANTS_KEYS, null, null);
-				wantsKeys = bundle.getBoolean(CheckbookContentProvider.METHOD_WANTS_KEYS, false);
-			} catch (RemoteException x) {
+		span = trace.begin(SyncTrace.PHASE_KEYS);
+		try {
+			boolean wantsKeys = false;
+			if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.JELLY_BEAN_MR1) {
+				try {
+					Bundle bundle = provider.call(CheckbookContentProvider.METHOD_WANTS_KEYS, null, null);
+					wantsKeys = bundle.getBoolean(CheckbookContentProvider.METHOD_WANTS_KEYS, false);
+				} catch (RemoteException x) {
+					Bundle bundle = resolver.call(CheckbookContentProvider.CONTENT_URI, CheckbookContentProvider.METHOD_WANTS_KEYS, null, null);
+					wantsKeys = bundle.getBoolean(CheckbookContentProvider.METHOD_WANTS_KEYS, false);
+				}
+			} else {
 				Bundle bundle = resolver.call(CheckbookContentProvider.CONTENT_URI, CheckbookContentProvider.METHOD_WANTS_KEYS, null, null);
 				wantsKeys = bundle.getBoolean(CheckbookContentProvider.METHOD_WANTS_KEYS, false);
 			}
-		} else {
-			Bundle bundle = resolver.call(CheckbookContentProvider.CONTENT_URI, CheckbookContentProvider.METHOD_WANTS_KEYS, null, null);
-			wantsKeys = bundle.getBoolean(CheckbookContentProvider.METHOD_WANTS_KEYS, false);
-		}
-		if (wantsKeys) {
-			KeySeriesRequester requester = new KeySeriesRequester();
-			try {
-				requester.setSSLSocketFactory(new CheckbookSSLContextFactory(getContext()).createSSLContext().getSocketFactory());
-				Bundle bundle = requester.request(token);
-				// If response has a new key series, write it to storage
-				if (bundle.containsKey(KeySeriesRequester.KEY_NEXT_KEY) && bundle.containsKey(KeySeriesRequester.KEY_UPPER_BOUND)) {
-					ContentValues values = new ContentValues();
-					values.put(KeyGenerationContract.COL_NAME_NEXT_KEY, bundle.getLong(KeySeriesRequester.KEY_NEXT_KEY));
-					values.put(KeyGenerationContract.COL_NAME_UPPER_BOUND, bundle.getLong(KeySeriesRequester.KEY_UPPER_BOUND));
-					Context context = getContext();
-					if (context != null) {
-						context.getContentResolver().insert(KeyGenerationContract.CONTENT_URI, values);
+			if (wantsKeys) {
+				KeySeriesRequester requester = new KeySeriesRequester();
+				try {
+					requester.setSSLSocketFactory(CheckbookHttpClient.getInstance(getContext()).getSSLSocketFactory());
+					Bundle bundle = requester.request(token);
+					// If response has a new key series, write it to storage
+					if (bundle.containsKey(KeySeriesRequester.KEY_NEXT_KEY) && bundle.containsKey(KeySeriesRequester.KEY_UPPER_BOUND)) {
+						ContentValues values = new ContentValues();
+						values.put(KeyGenerationContract.COL_NAME_NEXT_KEY, bundle.getLong(KeySeriesRequester.KEY_NEXT_KEY));
+						values.put(KeyGenerationContract.COL_NAME_UPPER_BOUND, bundle.getLong(KeySeriesRequester.KEY_UPPER_BOUND));
+						Context context = getContext();
+						if (context != null) {
+							context.getContentResolver().insert(KeyGenerationContract.CONTENT_URI, values);
+						}
 					}
+				} catch (IOException x) {
+					syncResult.stats.numIoExceptions++;
+					return;
+				} catch (TruststoreException x) {
+					Log.e(TAG, x.toString());
+					// TODO Is numIoExceptions really the best value here?
+					// A certificate error need not necessarily be the app's fault if
+					// server certificates have changed, so it could be seen as a
+					// network error (which IOException in this context usually implies).
+					// On the other hand, this is not really a soft error, the only way
+					// to resolve it is usually updating the app.
+					syncResult.stats.numIoExceptions++;
+				} catch (UnauthorizedAccessException x) {
+					syncResult.fullSyncRequested = true;
+					AccountManager.get(getContext()).invalidateAuthToken(account.type, token);
+					return;
 				}
-			} catch (IOException x) {
-				syncResult.stats.numIoExceptions++;
-				return;
-			} catch (TruststoreException x) {
-				Log.e(TAG, x.toString());
-				// TODO Is numIoExceptions really the best value here?
-				// A certificate error need not necessarily be the app's fault if
-				// server certificates have changed, so it could be seen as a
-				// network error (which IOException in this context usually implies).
-				// On the other hand, this is not really a soft error, the only way
-				// to resolve it is usually updating the app.
-				syncResult.stats.numIoExceptions++;
-			} catch (UnauthorizedAccessException x) {
-				syncResult.fullSyncRequested = true;
-				AccountManager.get(getContext()).invalidateAuthToken(account.type, token);
-				return;
 			}
-
+		} finally {
+			span.end();
 		}
 
 		/*
-		 * Client side preparation phase
+		 * Exchange the journal with the server, in segments of bounded size
 		 */
-		// Find out from which sequence anchor we need to sync
-		Cursor cursor = resolver.query(SequenceAnchorContract.CONTENT_URI, null, null, null, null);
-		long anchor = (cursor.moveToFirst()) ? cursor.getLong(0) : 0;
-
-		// Create journal and revision table snapshots
-		JournalSnapshot journalSnapshot = JournalSnapshot.createFromCursor(resolver.query(JournalContract.CONTENT_URI, null, "sqn >= " + anchor, null, JournalContract.COL_NAME_TABLE));
-		RevisionTableSnapshot revisions = RevisionTableSnapshot.createFromCursor(resolver.query(RevisionTableContract.CONTENT_URI, null, null, null, null));
-
-		Marshaller marshaller = new Marshaller();
-		JSONObject json = marshaller.marshal(journalSnapshot, revisions, provider, anchor);
-
-
-		Webb webb = com.goebl.david.Webb.create();
+		SSLSocketFactory factory;
 		try {
-			webb.setSSLSocketFactory(new CheckbookSSLContextFactory(getContext()).createSSLContext().getSocketFactory());
+			factory = CheckbookHttpClient.getInstance(getContext()).getSSLSocketFactory();
 		} catch (TruststoreException x) {
 			Log.e(TAG, "Could not load the truststore for syncing. \n"
 					+ "Error type: " + x.getCause().getClass().getSimpleName() + "\n"
@@ -215,17 +180,17 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 			return;
 		}
 
-		Response<JSONObject> response = null;
 		try {
-			response = webb.post(Endpoints.URL_SYNC)
-					.header(Webb.HDR_ACCEPT, Webb.APP_JSON)
-					.header(Webb.HDR_AUTHORIZATION, "Bearer " + token)
-					.header(Webb.HDR_CONTENT_TYPE, Webb.APP_JSON)
-					.body(json)
-					.ensureSuccess()
-					.asJsonObject();
-		} catch (WebbException x) {
-			if (x.getResponse() != null && x.getResponse().getStatusCode() == HttpsURLConnection.HTTP_UNAUTHORIZED) {
+			SyncSession session = new SyncSession(getContext(), new URL(Endpoints.URL_SYNC), token, factory);
+			session.setJournalChunkSize(getContext().getResources().getInteger(R.integer.sync_journal_chunk_size));
+			session.setApplyChunkSize(getContext().getResources().getInteger(R.integer.sync_chunk_size));
+			session.setPipelined(getContext().getResources().getBoolean(R.bool.sync_pipelined));
+			session.setTrace(trace);
+			int status = session.run(provider, syncResult);
+			Log.i(TAG, "Sync sent " + session.getBytesSent() + " bytes (" + session.getBytesSentUncompressed() + " uncompressed) "
+					+ "and received " + session.getBytesReceived() + " bytes (" + session.getBytesReceivedUncompressed() + " uncompressed) "
+					+ "in " + session.getNumSegments() + " segments");
+			if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
 				// The access token we used was invalid, which we couldn't have known before because the Authenticator
 				// doesn't verify token validity, i.e. tokens are used optimistically.
 				// Therefore retry the sync immediately to force renegotiation of tokens.
@@ -233,66 +198,14 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 				// because this (as a hard error) will keep the sync from rerunning.
 				// Besides, arguably authentication hasn't failed, since there might
 				// be a valid refresh token around.
+				// Segments acknowledged before are not sent again.
 				syncResult.fullSyncRequested = true;
 				AccountManager.get(getContext()).invalidateAuthToken(account.type, token);
-				return;
-			} else {
+			} else if (status / 100 != 2) {
 				syncResult.stats.numIoExceptions++;
-				return;
-			}
-		}
-
-		/*
-		 * Client side processing phase: process the received message from the server
-		 */
-		json = response.getBody();
-		Unmarshaller unmarshaller = new Unmarshaller();
-		List<ContentProviderOperation> operations = getUpdateRevisionsOperation(journalSnapshot, revisions);
-		operations.addAll(unmarshaller.unmarshal(json));
-		try {
-			operations.add(ContentProviderOperation.newInsert(SequenceAnchorContract.CONTENT_URI)
-					.withValue(heger.christian.checkbook.providers.MetaContentProvider.SequenceAnchorContract.COL_NAME_SEQUENCE_ANCHOR, json.get(Unmarshaller.JSON_FIELD_ANCHOR))
-					.build());
-		} catch (JSONException x) {
-			syncResult.stats.numParseExceptions++;
-		}
-
-		try {
-			// Disable journaling
-			boolean goThroughResolver = android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
-			if (!goThroughResolver) {
-				// Use ContentProviderClient if platform is >= API 17 (ContentProviderClient.call unavailable on earlier versions)
-				try {
-					provider.call(CheckbookContentProvider.METHOD_DISABLE_JOURNALING, null, null);
-				} catch (RemoteException x) {
-					// Remote call on ContentProviderClient failed, go through content resolver instead
-					goThroughResolver = true;
-				}
-			}
-			if (goThroughResolver) {
-				// Use content resolver if platform is < API 17 or the client failed
-				getContext().getContentResolver().call(CheckbookContentProvider.CONTENT_URI, CheckbookContentProvider.METHOD_DISABLE_JOURNALING, null, null);
-			}
-
-			SharedTransaction transaction = SharedTransaction.newInstance(getContext());
-			transaction.applyBatch(operations);
-		} catch (OperationApplicationException x) {
-			syncResult.databaseError = true;
-		} finally {
-			// Enable journaling
-			boolean goThroughResolver = android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
-			if (!goThroughResolver) {
-				try {
-					provider.call(CheckbookContentProvider.METHOD_ENABLE_JOURNALING, null, null);
-				} catch (RemoteException x) {
-					// Going through the client failed, go through the content resolver
-					goThroughResolver = true;
-				}
-			}
-			if (goThroughResolver) {
-				getContext().getContentResolver().call(CheckbookContentProvider.CONTENT_URI, CheckbookContentProvider.METHOD_ENABLE_JOURNALING, null, null);
 			}
+		} catch (IOException x) {
+			syncResult.stats.numIoExceptions++;
 		}
 	}
-
 }
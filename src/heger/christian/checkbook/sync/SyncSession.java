@@ -0,0 +1,862 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.CheckbookContentProvider;
+import heger.christian.checkbook.providers.Journaler;
+import heger.christian.checkbook.providers.MetaContentProvider;
+import heger.christian.checkbook.providers.MetaContentProvider.JournalContract;
+import heger.christian.checkbook.providers.MetaContentProvider.SequenceAnchorContract;
+import heger.christian.checkbook.providers.SharedTransaction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.content.SyncStats;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+import android.util.MalformedJsonException;
+
+import com.goebl.david.Webb;
+
+/**
+ * Exchanges the journal with the server and applies the server's response. This is the part of a sync that
+ * follows acquiring an access token and key series.
+ * <p>
+ * If a journal chunk size is set, the journal is sent in segments of at most that many entries, in order of
+ * their sequence numbers. Each segment is marshalled, posted and applied on its own, and the sequence anchor is
+ * advanced past it once the server has acknowledged it. If the sync is interrupted, the next one resumes with
+ * the first segment that has not been acknowledged. All segments but the last carry
+ * {@link Marshaller#JSON_FIELD_UNTIL}. Their responses are applied like any other, but the anchor is never
+ * advanced beyond the end of the segment, so no journal entries are skipped even if the server does not
+ * support chunking.
+ * <p>
+ * Request bodies are gzip compressed, and compressed responses are accepted. If the server rejects a
+ * compressed request as an unsupported media type, the request is repeated uncompressed, and no further
+ * compressed requests are sent for the lifetime of the process. The number of bytes transferred, both on
+ * the wire and uncompressed, is available after the session has run.
+ * <p>
+ * The binary encoding of {@link BinaryWriter} is preferred over JSON through the Accept header. Requests are
+ * sent as JSON until the server has answered in the binary encoding once, and in the binary encoding from
+ * then on for the lifetime of the process. If the server rejects a binary request as an unsupported media type,
+ * the segment is sent again as JSON. Responses are decoded according to their content type.
+ * <p>
+ * If pipelined, network I/O is overlapped with marshalling the request and applying the response, as
+ * described for {@link #setPipelined(boolean)}.
+ * <p>
+ * The time spent in each phase is measured in the session's {@link SyncTrace}.
+ */
+public class SyncSession {
+	private static final String TAG = SyncSession.class.getSimpleName();
+	private static final String ENCODING_GZIP = "gzip";
+
+	/**
+	 * Counts the bytes read through it, so that the size of a response can be measured before it is
+	 * decompressed.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int result = super.read();
+			if (result != -1)
+				count++;
+			return result;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int result = super.read(buffer, offset, length);
+			if (result != -1)
+				count += result;
+			return result;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long result = super.skip(n);
+			count += result;
+			return result;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Counts the bytes written through it.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			// FilterOutputStream would write byte by byte
+			out.write(buffer, offset, length);
+			count += length;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * The part of the journal exchanged in a single request.
+	 */
+	private static class Segment {
+		final JournalSnapshot journalSnapshot;
+		final RevisionTableSnapshot revisions;
+		final int numJournalEntries;
+		final long anchor;
+		/** The end of the segment, or <code>null</code> for the last segment */
+		final Long until;
+		/** Whether the segment is sent in the binary encoding rather than JSON */
+		final boolean binary;
+
+		Segment(JournalSnapshot journalSnapshot, RevisionTableSnapshot revisions, int numJournalEntries, long anchor, Long until, boolean binary) {
+			this.journalSnapshot = journalSnapshot;
+			this.revisions = revisions;
+			this.numJournalEntries = numJournalEntries;
+			this.anchor = anchor;
+			this.until = until;
+			this.binary = binary;
+		}
+	}
+
+	/**
+	 * Set once the server has rejected a compressed request body. Further requests are then sent
+	 * uncompressed.
+	 */
+	/* package private */ static volatile boolean compressedRequestsRejected = false;
+	/**
+	 * Set once the server has answered in the binary encoding, which shows it understands binary requests as well.
+	 */
+	/* package private */ static volatile boolean binaryAccepted = false;
+
+	private final Context context;
+	private final URL endpoint;
+	private final String token;
+	private final SSLSocketFactory factory;
+	private int journalChunkSize = 0;
+	private int applyChunkSize = Unmarshaller.DEFAULT_CHUNK_SIZE;
+	private int numSegments;
+	private boolean compressRequests = true;
+	private boolean useBinary = true;
+	private boolean pipelined = false;
+	/** Runs marshalling and applying while the session is running pipelined */
+	private ExecutorService executor;
+	/** Whether the response to the last successful post was in the binary encoding */
+	private boolean binaryResponse;
+	private long bytesSent;
+	private long bytesSentUncompressed;
+	private long bytesReceived;
+	private long bytesReceivedUncompressed;
+	private SyncTrace trace = new SyncTrace();
+
+	/**
+	 * @param endpoint - The URL of the sync endpoint
+	 * @param token - The access token to authorize with
+	 * @param factory - The socket factory to use if <code>endpoint</code> is an HTTPS URL. This should be the
+	 * one of {@link heger.christian.checkbook.network.CheckbookHttpClient}, so that connections can be reused.
+	 */
+	public SyncSession(Context context, URL endpoint, String token, SSLSocketFactory factory) {
+		this.context = context;
+		this.endpoint = endpoint;
+		this.token = token;
+		this.factory = factory;
+	}
+
+	/**
+	 * Sets the maximum number of journal entries sent per request. A value of 0, the default, sends the
+	 * entire journal in a single request.
+	 */
+	public void setJournalChunkSize(int journalChunkSize) {
+		this.journalChunkSize = journalChunkSize;
+	}
+
+	/**
+	 * Sets the maximum number of operations applied at once when applying a response.
+	 */
+	public void setApplyChunkSize(int applyChunkSize) {
+		this.applyChunkSize = applyChunkSize;
+	}
+
+	/**
+	 * Sets whether request bodies are compressed. This is the default.
+	 */
+	public void setCompressRequests(boolean compressRequests) {
+		this.compressRequests = compressRequests;
+	}
+
+	/**
+	 * Sets whether the binary encoding is negotiated with the server. This is the default. If not, only
+	 * JSON is sent and accepted.
+	 */
+	public void setUseBinary(boolean useBinary) {
+		this.useBinary = useBinary;
+	}
+
+	/**
+	 * Sets whether network I/O is overlapped with marshalling and applying. By default, it is not.
+	 * <p>
+	 * Normally, each segment is marshalled into a temporary file, which is then posted, and the response is
+	 * downloaded into a temporary file before it is applied. When pipelined, the segment is marshalled on a
+	 * database thread while it is being sent, and the response is applied on that thread while it is being
+	 * received. This saves time on slow connections, at the cost of keeping the database locked for as long as
+	 * the response takes to arrive.
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	/**
+	 * Sets the trace the phases of the session are measured in. By default, a session measures into a trace of
+	 * its own.
+	 */
+	public void setTrace(SyncTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Returns the trace the phases of the session are measured in.
+	 */
+	public SyncTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Returns the number of request body bytes sent over the wire by the last run, including requests that
+	 * had to be repeated.
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Returns the number of request body bytes of the last run before compression.
+	 */
+	public long getBytesSentUncompressed() {
+		return bytesSentUncompressed;
+	}
+
+	/**
+	 * Returns the number of response body bytes received over the wire by the last run.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Returns the number of response body bytes of the last run after decompression.
+	 */
+	public long getBytesReceivedUncompressed() {
+		return bytesReceivedUncompressed;
+	}
+
+	/**
+	 * Returns the number of segments that were posted by the last call to {@link #run(ContentProviderClient, SyncResult)}.
+	 */
+	public int getNumSegments() {
+		return numSegments;
+	}
+
+	/**
+	 * Sends the journal and applies the responses, segment by segment, until the whole journal has been sent
+	 * or an error occurs. Errors other than I/O errors and unsuccessful responses are recorded in
+	 * <code>syncResult</code>.
+	 * @return The HTTP status code of the last response. If it does not indicate success, the remaining
+	 * segments have not been sent.
+	 * @throws IOException - If communicating with the server, or writing or reading the temporary files
+	 * holding request and response, failed
+	 */
+	public int run(ContentProviderClient provider, SyncResult syncResult) throws IOException {
+		numSegments = 0;
+		bytesSent = bytesSentUncompressed = bytesReceived = bytesReceivedUncompressed = 0;
+		ContentResolver resolver = context.getContentResolver();
+		if (pipelined)
+			executor = Executors.newSingleThreadExecutor();
+		try {
+			while (true) {
+				SyncTrace.Span span = trace.begin(SyncTrace.PHASE_ANCHOR);
+				long anchor;
+				Long until;
+				try {
+					anchor = getAnchor(resolver);
+					until = journalChunkSize > 0 ? getSegmentEnd(resolver, anchor) : null;
+				} finally {
+					span.end();
+				}
+
+				span = trace.begin(SyncTrace.PHASE_SNAPSHOT);
+				JournalSnapshot journalSnapshot;
+				RevisionTableSnapshot revisions;
+				int numJournalEntries = 0;
+				try {
+					String selection = JournalContract.COL_NAME_SEQUENCE_NUMBER + ">=" + anchor;
+					if (until != null)
+						selection += " and " + JournalContract.COL_NAME_SEQUENCE_NUMBER + "<" + until;
+					Cursor cursor = resolver.query(JournalContract.CONTENT_URI, null, selection, null, JournalContract.COL_NAME_TABLE);
+					try {
+						numJournalEntries = cursor.getCount();
+						journalSnapshot = JournalSnapshot.createFromCursor(cursor);
+					} finally {
+						cursor.close();
+					}
+					// Only the revisions of rows in the journal are needed
+					revisions = RevisionTableSnapshot.createForJournal(resolver, journalSnapshot);
+				} finally {
+					span.end(numJournalEntries, 0);
+				}
+
+				boolean binary = useBinary && binaryAccepted;
+				Segment segment = new Segment(journalSnapshot, revisions, numJournalEntries, anchor, until, binary);
+				int status = pipelined ? exchangePipelined(segment, provider, syncResult) : exchange(segment, provider, syncResult);
+				if (binary && status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+					Log.i(TAG, "Server does not accept binary requests, sending JSON from now on");
+					binaryAccepted = false;
+					continue;
+				}
+				numSegments++;
+				if (status / 100 != 2 || until == null)
+					return status;
+				// A successful response has been applied, which advances the anchor unless it failed
+				if (getAnchor(resolver) <= anchor) {
+					// Without progress, further segments would only repeat this one
+					Log.e(TAG, "Segment ending at " + until + " was not acknowledged, stopping sync");
+					return status;
+				}
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
+	}
+
+	/**
+	 * Marshals the segment into a temporary file, posts it and applies the response, if it was successful.
+	 * @return The HTTP status code of the response
+	 */
+	private int exchange(Segment segment, ContentProviderClient provider, SyncResult syncResult) throws IOException {
+		// Marshal into a temporary file rather than into memory, so that memory use does not grow with the
+		// size of the journal. The file is then streamed to the server as the request body.
+		// The response is downloaded into a temporary file as well, so that it can be applied in chunks without
+		// keeping the database locked while waiting for the network.
+		File body = File.createTempFile("sync", segment.binary ? ".bin" : ".json", context.getCacheDir());
+		File response = null;
+		try {
+			SyncTrace.Span span = trace.begin(SyncTrace.PHASE_MARSHAL);
+			try {
+				OutputStream out = new FileOutputStream(body);
+				try {
+					marshal(segment, provider, out);
+				} finally {
+					out.close();
+				}
+			} finally {
+				span.end(segment.numJournalEntries, body.length());
+			}
+			response = File.createTempFile("sync", ".response", context.getCacheDir());
+			int status = post(body, segment.binary, response);
+			if (status / 100 == 2) {
+				/*
+				 * Client side processing phase: process the received message from the server
+				 */
+				apply(new FileInputStream(response), binaryResponse, segment.journalSnapshot, segment.until, syncResult);
+			}
+			return status;
+		} finally {
+			body.delete();
+			if (response != null)
+				response.delete();
+		}
+	}
+
+	/**
+	 * Marshals the segment into the request body while it is being sent, and applies the response while it is being
+	 * received. Marshalling and applying run on the database thread, while this thread does the network I/O. The
+	 * two are connected by {@link BoundedPipe}s, so neither can get far ahead of the other. The request is compressed
+	 * unless compression is disabled or has been rejected before.
+	 * @return The HTTP status code of the response
+	 */
+	private int exchangePipelined(Segment segment, ContentProviderClient provider, SyncResult syncResult) throws IOException {
+		if (compressRequests && !compressedRequestsRejected) {
+			int status = exchangePipelined(segment, ENCODING_GZIP, provider, syncResult);
+			// As in post(File, boolean, File), a rejected binary request is put down to its encoding first
+			if (status != HttpURLConnection.HTTP_UNSUPPORTED_TYPE || segment.binary)
+				return status;
+			Log.i(TAG, "Server does not accept compressed requests, sending uncompressed from now on");
+			compressedRequestsRejected = true;
+		}
+		// The request body has not been kept, so it is marshalled again
+		return exchangePipelined(segment, null, provider, syncResult);
+	}
+
+	private int exchangePipelined(final Segment segment, String encoding, final ContentProviderClient provider, final SyncResult syncResult) throws IOException {
+		SyncTrace.Span span = trace.begin(SyncTrace.PHASE_HTTP);
+		long sent = 0;
+		long received = 0;
+		HttpURLConnection connection = openConnection(segment.binary, encoding);
+		try {
+			// The length is not known up front
+			connection.setChunkedStreamingMode(0);
+			final BoundedPipe request = new BoundedPipe();
+			Future<Void> marshalling = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					SyncTrace.Span span = trace.begin(SyncTrace.PHASE_MARSHAL);
+					CountingOutputStream out = new CountingOutputStream(request.getOutputStream());
+					try {
+						marshal(segment, provider, out);
+						out.close();
+					} catch (IOException x) {
+						request.closeWithError(x);
+						throw x;
+					} catch (RuntimeException x) {
+						request.closeWithError(new IOException("Marshalling failed", x));
+						throw x;
+					} finally {
+						span.end(segment.numJournalEntries, out.getCount());
+					}
+					return null;
+				}
+			});
+			CountingOutputStream wire = null;
+			CountingOutputStream plain = null;
+			try {
+				wire = new CountingOutputStream(connection.getOutputStream());
+				plain = new CountingOutputStream(encoding != null ? new GZIPOutputStream(wire) : wire);
+				copy(request.getInputStream(), plain);
+				plain.close();
+			} catch (IOException x) {
+				// Closing the pipe stops the marshaller
+				request.getInputStream().close();
+				awaitQuietly(marshalling);
+				throw x;
+			}
+			await(marshalling);
+			sent = wire.getCount();
+			bytesSentUncompressed += plain.getCount();
+
+			int status = connection.getResponseCode();
+			if (status / 100 != 2) {
+				drainErrorStream(connection);
+				return status;
+			}
+			readContentType(connection);
+
+			/*
+			 * Client side processing phase: process the received message from the server while receiving it
+			 */
+			final BoundedPipe response = new BoundedPipe();
+			final boolean binary = binaryResponse;
+			Future<Long> applying = executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws IOException {
+					return apply(response.getInputStream(), binary, segment.journalSnapshot, segment.until, syncResult);
+				}
+			});
+			CountingInputStream raw = null;
+			CountingOutputStream out = new CountingOutputStream(response.getOutputStream());
+			try {
+				raw = new CountingInputStream(connection.getInputStream());
+				copy(ENCODING_GZIP.equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(raw) : raw, out);
+				out.close();
+			} catch (IOException x) {
+				// If applying failed, the database thread has stopped reading and recorded the failure in syncResult.
+				// Otherwise receiving failed, and the database thread needs to be stopped.
+				if (!response.isClosedByConsumer()) {
+					response.closeWithError(x);
+					awaitQuietly(applying);
+					throw x;
+				}
+			}
+			await(applying);
+			received = raw != null ? raw.getCount() : 0;
+			bytesReceived += received;
+			bytesReceivedUncompressed += out.getCount();
+			return status;
+		} finally {
+			connection.disconnect();
+			bytesSent += sent;
+			span.end(0, sent + received);
+		}
+	}
+
+	/**
+	 * Marshals the segment to <code>out</code>, in the binary encoding or as JSON.
+	 */
+	private static void marshal(Segment segment, ContentProviderClient provider, OutputStream out) throws IOException {
+		if (segment.binary)
+			new Marshaller().marshalBinary(segment.journalSnapshot, segment.revisions, provider, segment.anchor, segment.until, out);
+		else
+			new Marshaller().marshal(segment.journalSnapshot, segment.revisions, provider, segment.anchor, segment.until, out);
+	}
+
+	/**
+	 * Waits for a task on the database thread to complete, and passes on its result or the exception it threw.
+	 */
+	private static <T> T await(Future<T> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException x) {
+			task.cancel(true);
+			throw new InterruptedIOException("Interrupted while waiting for the database thread");
+		} catch (ExecutionException x) {
+			Throwable cause = x.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException("Database thread failed", cause);
+		}
+	}
+
+	/**
+	 * Waits for a task on the database thread to complete, ignoring its outcome. This is for when the exchange
+	 * has already failed.
+	 */
+	private static void awaitQuietly(Future<?> task) {
+		try {
+			task.get();
+		} catch (InterruptedException x) {
+			task.cancel(true);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException x) {
+			Log.d(TAG, "Database thread stopped with " + x.getCause());
+		}
+	}
+
+	private static long getAnchor(ContentResolver resolver) {
+		Cursor cursor = resolver.query(SequenceAnchorContract.CONTENT_URI, null, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the first journal entry that does not fit into the segment starting at
+	 * <code>anchor</code>, or <code>null</code> if all remaining entries fit.
+	 */
+	private Long getSegmentEnd(ContentResolver resolver, long anchor) {
+		// The provider passes the sort order through to SQLite, which allows limiting the query
+		Cursor cursor = resolver.query(JournalContract.CONTENT_URI,
+				new String[] { JournalContract.COL_NAME_SEQUENCE_NUMBER },
+				JournalContract.COL_NAME_SEQUENCE_NUMBER + ">=" + anchor,
+				null,
+				JournalContract.COL_NAME_SEQUENCE_NUMBER + " limit 1 offset " + journalChunkSize);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Posts the contents of <code>request</code> to the sync endpoint and, if the request was successful, writes the
+	 * response body to <code>response</code>. Both bodies are streamed, so their size is not limited by memory. The
+	 * request is compressed unless compression is disabled or has been rejected before.
+	 * @param binary - Whether <code>request</code> is in the binary encoding rather than JSON
+	 * @return The HTTP status code of the response
+	 */
+	private int post(File request, boolean binary, File response) throws IOException {
+		if (compressRequests && !compressedRequestsRejected) {
+			File compressed = File.createTempFile("sync", ".json.gz", context.getCacheDir());
+			try {
+				SyncTrace.Span span = trace.begin(SyncTrace.PHASE_COMPRESS);
+				try {
+					gzip(request, compressed);
+				} finally {
+					span.end(0, compressed.length());
+				}
+				int status = post(compressed, binary, ENCODING_GZIP, response);
+				// A binary request may have been rejected for its encoding rather than its compression. That is
+				// ruled out first by falling back to JSON.
+				if (status != HttpURLConnection.HTTP_UNSUPPORTED_TYPE || binary) {
+					bytesSentUncompressed += request.length();
+					return status;
+				}
+				Log.i(TAG, "Server does not accept compressed requests, sending uncompressed from now on");
+				compressedRequestsRejected = true;
+			} finally {
+				compressed.delete();
+			}
+		}
+		int status = post(request, binary, null, response);
+		bytesSentUncompressed += request.length();
+		return status;
+	}
+
+	/**
+	 * Posts <code>body</code> with the passed content encoding, which may be <code>null</code>, and writes the
+	 * decompressed response body to <code>response</code> if the request was successful.
+	 * @return The HTTP status code of the response
+	 */
+	private int post(File body, boolean binary, String encoding, File response) throws IOException {
+		SyncTrace.Span span = trace.begin(SyncTrace.PHASE_HTTP);
+		long received = 0;
+		HttpURLConnection connection = openConnection(binary, encoding);
+		try {
+			connection.setFixedLengthStreamingMode((int) body.length());
+
+			OutputStream out = connection.getOutputStream();
+			try {
+				copy(new FileInputStream(body), out);
+			} finally {
+				out.close();
+			}
+			bytesSent += body.length();
+
+			int status = connection.getResponseCode();
+			if (status / 100 == 2) {
+				CountingInputStream raw = new CountingInputStream(connection.getInputStream());
+				InputStream in = ENCODING_GZIP.equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(raw) : raw;
+				OutputStream file = new FileOutputStream(response);
+				try {
+					copy(in, file);
+				} finally {
+					file.close();
+				}
+				received = raw.getCount();
+				bytesReceived += received;
+				bytesReceivedUncompressed += response.length();
+				readContentType(connection);
+			} else {
+				drainErrorStream(connection);
+			}
+			return status;
+		} finally {
+			connection.disconnect();
+			span.end(0, body.length() + received);
+		}
+	}
+
+	/**
+	 * Opens a connection to the sync endpoint for posting a request with the passed content encoding, which may be
+	 * <code>null</code>. Only the length of the body is left to set.
+	 * @param binary - Whether the request is in the binary encoding rather than JSON
+	 */
+	private HttpURLConnection openConnection(boolean binary, String encoding) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+		if (connection instanceof HttpsURLConnection && factory != null)
+			((HttpsURLConnection) connection).setSSLSocketFactory(factory);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty(Webb.HDR_ACCEPT, useBinary ? BinaryWriter.CONTENT_TYPE + ", " + Webb.APP_JSON + ";q=0.5" : Webb.APP_JSON);
+		// Setting this explicitly turns off transparent decompression, so the compressed size can be measured
+		connection.setRequestProperty(Webb.HDR_ACCEPT_ENCODING, ENCODING_GZIP);
+		connection.setRequestProperty(Webb.HDR_AUTHORIZATION, "Bearer " + token);
+		connection.setRequestProperty(Webb.HDR_CONTENT_TYPE, binary ? BinaryWriter.CONTENT_TYPE : Webb.APP_JSON);
+		if (encoding != null)
+			connection.setRequestProperty(Webb.HDR_CONTENT_ENCODING, encoding);
+		connection.setDoOutput(true);
+		return connection;
+	}
+
+	/**
+	 * Sets {@link #binaryResponse} from the content type of a successful response, and notes whether the server
+	 * has shown it understands the binary encoding.
+	 */
+	private void readContentType(HttpURLConnection connection) {
+		String type = connection.getContentType();
+		binaryResponse = type != null && BinaryWriter.CONTENT_TYPE.equalsIgnoreCase(type.split(";")[0].trim());
+		if (binaryResponse && !binaryAccepted) {
+			Log.i(TAG, "Server answered in the binary encoding, sending binary requests from now on");
+			binaryAccepted = true;
+		}
+	}
+
+	/**
+	 * Reads the error body of an unsuccessful response, so that the connection can go back to the pool.
+	 */
+	private static void drainErrorStream(HttpURLConnection connection) throws IOException {
+		InputStream error = connection.getErrorStream();
+		if (error != null)
+			copy(error, new ByteArrayOutputStream());
+	}
+
+	/**
+	 * Writes the gzip compressed contents of <code>in</code> to <code>out</code>.
+	 */
+	private static void gzip(File in, File out) throws IOException {
+		OutputStream compressed = new GZIPOutputStream(new FileOutputStream(out));
+		try {
+			copy(new FileInputStream(in), compressed);
+		} finally {
+			compressed.close();
+		}
+	}
+
+	/**
+	 * Copies <code>in</code> to <code>out</code> and closes <code>in</code>.
+	 */
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the agenda of everything that is being synced, for incrementing its revisions through
+	 * {@link MetaContentProvider#METHOD_INCREMENT_REVISIONS}. Created and deleted rows are put on the
+	 * agenda as a whole, updated rows with their updated columns.
+	 */
+	private static Bundle getRevisionAgenda(JournalSnapshot journal) {
+		List<String> tables = new ArrayList<String>();
+		List<Long> rows = new ArrayList<Long>();
+		List<String> columns = new ArrayList<String>();
+		String[] rowOperations = new String[] { Journaler.OP_TYPE_CREATE, Journaler.OP_TYPE_DELETE };
+		for (String table: journal.getTables()) {
+			for (String operation: rowOperations) {
+				for (long row: journal.getRows(table, operation)) {
+					tables.add(table);
+					rows.add(row);
+					columns.add(null);
+				}
+			}
+			for (long row: journal.getRows(table, Journaler.OP_TYPE_UPDATE)) {
+				for (String column: journal.getColumns(table, row)) {
+					tables.add(table);
+					rows.add(row);
+					columns.add(column);
+				}
+			}
+		}
+		long[] rowArray = new long[rows.size()];
+		for (int i = 0; i < rowArray.length; i++)
+			rowArray[i] = rows.get(i);
+		Bundle agenda = new Bundle();
+		agenda.putStringArray(MetaContentProvider.EXTRA_TABLES, tables.toArray(new String[tables.size()]));
+		agenda.putLongArray(MetaContentProvider.EXTRA_ROWS, rowArray);
+		agenda.putStringArray(MetaContentProvider.EXTRA_COLUMNS, columns.toArray(new String[columns.size()]));
+		return agenda;
+	}
+
+	/**
+	 * Applies the server's response read from <code>response</code> in a shared transaction as the sync adapter, so
+	 * that it is not journaled, and stores the new sequence anchor. The response is parsed and applied in chunks of at most the apply chunk size.
+	 * <code>response</code> is closed afterwards.
+	 * @param binary - Whether the response is in the binary encoding rather than JSON
+	 * @param until - The end of the segment the response belongs to, or <code>null</code> for the last segment.
+	 * The stored anchor will not exceed it.
+	 * @return The stored anchor, or <code>null</code> if the response could not be applied
+	 */
+	private Long apply(InputStream response, boolean binary, JournalSnapshot journalSnapshot, Long until, SyncResult syncResult) throws IOException {
+		CountingInputStream in = new CountingInputStream(response);
+		try {
+			SharedTransaction transaction = SharedTransaction.newInstance(context);
+			Unmarshaller unmarshaller = new Unmarshaller();
+			unmarshaller.setTrace(trace);
+			unmarshaller.setUseStatements(true);
+			Long anchor;
+			transaction.begin();
+			try {
+				SyncTrace.Span span = trace.begin(SyncTrace.PHASE_REVISIONS);
+				Bundle result = null;
+				try {
+					result = transaction.callMeta(MetaContentProvider.METHOD_INCREMENT_REVISIONS, null, getRevisionAgenda(journalSnapshot));
+				} finally {
+					span.end(result != null ? result.getInt(MetaContentProvider.EXTRA_COUNT) : 0, 0);
+				}
+				// Applying chunks is measured separately, and not counted for unmarshalling
+				span = trace.begin(SyncTrace.PHASE_UNMARSHAL);
+				try {
+					if (binary)
+						anchor = unmarshaller.unmarshal(in, transaction, applyChunkSize);
+					else
+						anchor = unmarshaller.unmarshal(new InputStreamReader(in, "UTF-8"), transaction, applyChunkSize);
+				} finally {
+					SyncStats stats = unmarshaller.getStats();
+					long count = stats != null ? stats.numInserts + stats.numUpdates + stats.numDeletes + stats.numSkippedEntries + unmarshaller.getNumDropped() : 0;
+					span.end(count, in.getCount());
+				}
+				if (anchor != null && until != null)
+					anchor = Math.min(anchor, until);
+				if (anchor != null) {
+					transaction.apply(Collections.singletonList(ContentProviderOperation.newInsert(SequenceAnchorContract.CONTENT_URI)
+							.withValue(SequenceAnchorContract.COL_NAME_SEQUENCE_ANCHOR, anchor)
+							.build()));
+				}
+				transaction.setTransactionSuccessful();
+			} finally {
+				transaction.end();
+			}
+			SyncStats stats = unmarshaller.getStats();
+			syncResult.stats.numInserts += stats.numInserts;
+			syncResult.stats.numUpdates += stats.numUpdates;
+			syncResult.stats.numDeletes += stats.numDeletes;
+			syncResult.stats.numSkippedEntries += stats.numSkippedEntries;
+			syncResult.stats.numParseExceptions += stats.numParseExceptions;
+			syncResult.stats.numEntries += stats.numEntries;
+			Log.d(TAG, "Applied " + stats.numEntries + " operations in chunks taking " + unmarshaller.getChunkTimes() + "ms, "
+					+ "dropped " + unmarshaller.getNumDropped() + " operations that changed nothing");
+			return anchor;
+		} catch (MalformedJsonException x) {
+			syncResult.stats.numParseExceptions++;
+		} catch (IllegalStateException x) {
+			// Thrown by JsonReader and BinaryReader if the response does not have the expected structure
+			syncResult.stats.numParseExceptions++;
+		} catch (OperationApplicationException x) {
+			syncResult.databaseError = true;
+		} finally {
+			in.close();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,270 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.MetaContentProvider.SyncTraceContract;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.Log;
+
+/**
+ * Measures the time spent in each phase of a sync, along with the number of items and bytes processed in it.
+ * Time is measured on the monotonic clock of <code>System.nanoTime()</code>, so it is not affected by changes to
+ * the wall clock.
+ * <p>
+ * A phase is measured by beginning a {@link Span} and ending it when the phase is over. A phase may be entered
+ * any number of times, for instance once per segment, and the times are added up. Spans begun on the same
+ * thread while another one is open are nested in it, and their time is not counted for the enclosing span. The
+ * durations of the phases measured on one thread therefore add up to no more than the duration of the sync.
+ * Phases measured on different threads, as in a pipelined {@link SyncSession}, may overlap.
+ * <p>
+ * {@link #save(Context)} stores the trace in {@link SyncTraceContract}, which keeps the history of the most
+ * recent syncs. In debuggable builds, the history is then exported to {@link #EXPORT_FILE_NAME} in the files
+ * directory, where it can be read with <code>adb shell run-as heger.christian.checkbook cat files/sync_trace.csv</code>.
+ */
+public class SyncTrace {
+	private static final String TAG = SyncTrace.class.getSimpleName();
+
+	public static final String PHASE_TOKEN = "token";
+	public static final String PHASE_KEYS = "keys";
+	public static final String PHASE_ANCHOR = "anchor";
+	public static final String PHASE_SNAPSHOT = "snapshot";
+	public static final String PHASE_MARSHAL = "marshal";
+	public static final String PHASE_COMPRESS = "compress";
+	public static final String PHASE_HTTP = "http";
+	public static final String PHASE_UNMARSHAL = "unmarshal";
+	public static final String PHASE_REVISIONS = "revisions";
+	public static final String PHASE_APPLY = "apply";
+
+	/** Name of the file in the files directory the history is exported to in debuggable builds */
+	public static final String EXPORT_FILE_NAME = "sync_trace.csv";
+
+	private static class Phase {
+		long duration;
+		int spans;
+		long count;
+		long bytes;
+	}
+
+	/**
+	 * A single measurement of a phase, which is running from when it is begun until it is ended.
+	 */
+	public class Span {
+		private final String phase;
+		private final Span parent;
+		private final long start;
+		/** Time spent in nested spans */
+		private long nested = 0;
+		private boolean ended = false;
+
+		private Span(String phase, Span parent) {
+			this.phase = phase;
+			this.parent = parent;
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * Ends this span without recording any items or bytes.
+		 */
+		public void end() {
+			end(0, 0);
+		}
+
+		/**
+		 * Ends this span and records the passed number of items and bytes processed in it. Ending a span more
+		 * than once has no effect.
+		 */
+		public void end(long count, long bytes) {
+			if (ended)
+				return;
+			ended = true;
+			long duration = System.nanoTime() - start;
+			if (parent != null)
+				parent.nested += duration;
+			current.set(parent);
+			record(phase, duration - nested, count, bytes);
+		}
+	}
+
+	private final long started;
+	private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+	private final ThreadLocal<Span> current = new ThreadLocal<Span>();
+
+	public SyncTrace() {
+		this(System.currentTimeMillis());
+	}
+
+	/**
+	 * @param started - The wall clock time in milliseconds identifying the sync
+	 */
+	/* package private */ SyncTrace(long started) {
+		this.started = started;
+	}
+
+	/**
+	 * Begins measuring <code>phase</code>. The returned span must be ended on the same thread.
+	 */
+	public Span begin(String phase) {
+		Span span = new Span(phase, current.get());
+		current.set(span);
+		return span;
+	}
+
+	private synchronized void record(String name, long duration, long count, long bytes) {
+		Phase phase = phases.get(name);
+		if (phase == null) {
+			phase = new Phase();
+			phases.put(name, phase);
+		}
+		phase.duration += duration;
+		phase.spans++;
+		phase.count += count;
+		phase.bytes += bytes;
+	}
+
+	/**
+	 * Returns the wall clock time in milliseconds at which this trace was created.
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * Returns the phases measured so far, in the order in which they were first ended.
+	 */
+	public synchronized List<String> getPhases() {
+		return new ArrayList<String>(phases.keySet());
+	}
+
+	/**
+	 * Returns the time spent in <code>phase</code> in microseconds, excluding nested phases, or 0 if it
+	 * has not been measured.
+	 */
+	public synchronized long getDuration(String phase) {
+		Phase result = phases.get(phase);
+		return result != null ? result.duration / 1000 : 0;
+	}
+
+	/**
+	 * Returns the number of spans ended for <code>phase</code>.
+	 */
+	public synchronized int getSpans(String phase) {
+		Phase result = phases.get(phase);
+		return result != null ? result.spans : 0;
+	}
+
+	/**
+	 * Returns the number of items recorded for <code>phase</code>.
+	 */
+	public synchronized long getCount(String phase) {
+		Phase result = phases.get(phase);
+		return result != null ? result.count : 0;
+	}
+
+	/**
+	 * Returns the number of bytes recorded for <code>phase</code>.
+	 */
+	public synchronized long getBytes(String phase) {
+		Phase result = phases.get(phase);
+		return result != null ? result.bytes : 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder result = new StringBuilder();
+		for (Map.Entry<String, Phase> entry: phases.entrySet()) {
+			Phase phase = entry.getValue();
+			if (result.length() > 0)
+				result.append(", ");
+			result.append(String.format(Locale.US, "%s %.1fms", entry.getKey(), phase.duration / 1e6));
+			if (phase.spans > 1)
+				result.append(" in ").append(phase.spans).append(" spans");
+			if (phase.count > 0)
+				result.append(", ").append(phase.count).append(" items");
+			if (phase.bytes > 0)
+				result.append(", ").append(phase.bytes).append(" bytes");
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Stores this trace through <code>context</code>'s content resolver, and exports the history in debuggable
+	 * builds. Failures are logged, but not passed on, so that tracing never fails a sync.
+	 */
+	public void save(Context context) {
+		try {
+			ContentResolver resolver = context.getContentResolver();
+			save(resolver);
+			if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+				export(resolver, new File(context.getFilesDir(), EXPORT_FILE_NAME));
+		} catch (SQLException x) {
+			Log.e(TAG, "Could not store sync trace: " + x.getMessage());
+		} catch (IOException x) {
+			Log.e(TAG, "Could not export sync trace: " + x.getMessage());
+		}
+	}
+
+	/**
+	 * Stores this trace in {@link SyncTraceContract}, one row per phase.
+	 */
+	public void save(ContentResolver resolver) {
+		List<ContentValues> values = new ArrayList<ContentValues>();
+		synchronized (this) {
+			for (Map.Entry<String, Phase> entry: phases.entrySet()) {
+				Phase phase = entry.getValue();
+				ContentValues row = new ContentValues();
+				row.put(SyncTraceContract.COL_NAME_SYNC, started);
+				row.put(SyncTraceContract.COL_NAME_PHASE, entry.getKey());
+				row.put(SyncTraceContract.COL_NAME_DURATION, phase.duration / 1000);
+				row.put(SyncTraceContract.COL_NAME_SPANS, phase.spans);
+				row.put(SyncTraceContract.COL_NAME_COUNT, phase.count);
+				row.put(SyncTraceContract.COL_NAME_BYTES, phase.bytes);
+				values.add(row);
+			}
+		}
+		resolver.bulkInsert(SyncTraceContract.CONTENT_URI, values.toArray(new ContentValues[values.size()]));
+	}
+
+	/**
+	 * Writes the history in {@link SyncTraceContract} to <code>file</code> as comma separated values, with the
+	 * column names in the first line, oldest sync first.
+	 */
+	public static void export(ContentResolver resolver, File file) throws IOException {
+		Cursor cursor = resolver.query(SyncTraceContract.CONTENT_URI,
+				new String[] { SyncTraceContract.COL_NAME_SYNC, SyncTraceContract.COL_NAME_PHASE, SyncTraceContract.COL_NAME_DURATION,
+						SyncTraceContract.COL_NAME_SPANS, SyncTraceContract.COL_NAME_COUNT, SyncTraceContract.COL_NAME_BYTES },
+				null, null, SyncTraceContract.COL_NAME_SYNC + ", rowid");
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			try {
+				String[] columns = cursor.getColumnNames();
+				for (int i = 0; i < columns.length; i++)
+					out.write((i > 0 ? "," : "") + columns[i]);
+				out.write('\n');
+				while (cursor.moveToNext()) {
+					for (int i = 0; i < columns.length; i++)
+						out.write((i > 0 ? "," : "") + cursor.getString(i));
+					out.write('\n');
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -1,15 +1,26 @@
 package heger.christian.checkbook.sync;
 
+import heger.christian.checkbook.providers.SharedTransaction;
+import heger.christian.checkbook.providers.StatementBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
 import android.content.SyncStats;
+import android.os.SystemClock;
+import android.util.JsonReader;
 import android.util.Log;
 
 public class Unmarshaller {
@@ -18,12 +29,54 @@ public class Unmarshaller {
 	public static final String JSON_FIELD_DELETED = Marshaller.JSON_FIELD_DELETED;
 	public static final String JSON_FIELD_UPDATED = Marshaller.JSON_FIELD_UPDATED;
 
+	/** Default number of operations applied per chunk by {@link #unmarshal(Reader, SharedTransaction, int)} */
+	public static final int DEFAULT_CHUNK_SIZE = 200;
+
 	private static final String TAG = Unmarshaller.class.getSimpleName();
 
+	/**
+	 * Supplies the structure of a response to {@link Unmarshaller#unmarshal(Source, SharedTransaction, int)},
+	 * independently of its encoding.
+	 */
+	private static abstract class Source {
+		abstract void beginObject() throws IOException;
+		abstract void endObject() throws IOException;
+		abstract void beginArray() throws IOException;
+		abstract void endArray() throws IOException;
+		abstract boolean hasNext() throws IOException;
+		abstract String nextName() throws IOException;
+		abstract long nextLong() throws IOException;
+		abstract void skipValue() throws IOException;
+		/** Reads the next value, which must be an object, as a <code>JSONObject</code> */
+		abstract JSONObject nextObject() throws IOException, JSONException;
+	}
+
 	private SyncStats stats;
+	private List<Long> chunkTimes;
+	private int numDropped;
+	private SyncTrace trace;
+	private boolean useStatements = false;
+
+	/**
+	 * Sets the trace that applying chunks is measured in as {@link SyncTrace#PHASE_APPLY}, or <code>null</code>
+	 * to not measure it. Chunk times are kept either way.
+	 */
+	public void setTrace(SyncTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Sets whether chunks are applied as a {@link StatementBatch} through {@link SharedTransaction#apply(StatementBatch)}
+	 * instead of as <code>ContentProviderOperation</code>s, which is considerably faster. Only applies to the
+	 * <code>unmarshal</code> methods taking a transaction.
+	 */
+	public void setUseStatements(boolean useStatements) {
+		this.useStatements = useStatements;
+	}
 
 	public List<ContentProviderOperation> unmarshal(JSONObject json) {
 		stats = new SyncStats();
+		chunkTimes = null;
 		final short CREATIONS = 0;
 		final short UPDATES = 1;
 		final short DELETIONS = 2;
@@ -64,6 +117,246 @@ public class Unmarshaller {
 		return result;
 	}
 
+	/**
+	 * Reads the server's response from the passed reader and applies the resulting operations in the passed
+	 * transaction, which must already have been begun. The response is read with a pull parser and operations
+	 * are applied in chunks of about <code>chunkSize</code> operations, so that neither the response nor the
+	 * complete list of operations is ever held in memory. (The operations for a single entry in the response are
+	 * never split between chunks, so a chunk may be slightly larger.) Committing or rolling back the transaction is left to
+	 * the caller.
+	 * <p>
+	 * Unlike {@link #unmarshal(JSONObject)}, operations are applied in the order in which they appear in the
+	 * response. The time taken to apply each chunk can be obtained from {@link #getChunkTimes()}.
+	 * <p>
+	 * Creations and updates are passed through a {@link Merger} first, so that values which are already present
+	 * locally are not written again. The number of operations dropped entirely can be obtained from
+	 * {@link #getNumDropped()}.
+	 * @param reader - The reader to read the response from
+	 * @param transaction - A shared transaction that has been begun
+	 * @param chunkSize - The number of operations after which to apply a chunk
+	 * @return The sequence anchor contained in the response, or <code>null</code> if there was none
+	 * @throws IOException - If reading from <code>reader</code> failed, or the response is not well-formed JSON
+	 * @throws OperationApplicationException - Handed through from {@link SharedTransaction#apply(List)}
+	 */
+	public Long unmarshal(Reader reader, SharedTransaction transaction, int chunkSize) throws IOException, OperationApplicationException {
+		final JsonReader json = new JsonReader(reader);
+		return unmarshal(new Source() {
+			@Override
+			void beginObject() throws IOException { json.beginObject(); }
+			@Override
+			void endObject() throws IOException { json.endObject(); }
+			@Override
+			void beginArray() throws IOException { json.beginArray(); }
+			@Override
+			void endArray() throws IOException { json.endArray(); }
+			@Override
+			boolean hasNext() throws IOException { return json.hasNext(); }
+			@Override
+			String nextName() throws IOException { return json.nextName(); }
+			@Override
+			long nextLong() throws IOException { return json.nextLong(); }
+			@Override
+			void skipValue() throws IOException { json.skipValue(); }
+			@Override
+			JSONObject nextObject() throws IOException, JSONException { return readObject(json); }
+		}, transaction, chunkSize);
+	}
+
+	/**
+	 * Reads a response in the binary encoding of {@link BinaryWriter} from the passed stream and applies it as
+	 * described for {@link #unmarshal(Reader, SharedTransaction, int)}.
+	 * @throws IOException - If reading from <code>in</code> failed
+	 * @throws IllegalStateException - If the response is not a well-formed binary message
+	 */
+	public Long unmarshal(InputStream in, SharedTransaction transaction, int chunkSize) throws IOException, OperationApplicationException {
+		final BinaryReader binary = new BinaryReader(in);
+		return unmarshal(new Source() {
+			@Override
+			void beginObject() throws IOException { binary.beginObject(); }
+			@Override
+			void endObject() throws IOException { binary.endObject(); }
+			@Override
+			void beginArray() throws IOException { binary.beginArray(); }
+			@Override
+			void endArray() throws IOException { binary.endArray(); }
+			@Override
+			boolean hasNext() throws IOException { return binary.hasNext(); }
+			@Override
+			String nextName() throws IOException { return binary.nextName(); }
+			@Override
+			long nextLong() throws IOException { return binary.nextLong(); }
+			@Override
+			void skipValue() throws IOException { binary.skipValue(); }
+			@Override
+			JSONObject nextObject() throws IOException, JSONException {
+				Object value = binary.nextValue();
+				if (!(value instanceof JSONObject))
+					throw new JSONException("Expected an object, but was " + value);
+				return (JSONObject) value;
+			}
+		}, transaction, chunkSize);
+	}
+
+	private Long unmarshal(Source source, SharedTransaction transaction, int chunkSize) throws IOException, OperationApplicationException {
+		if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be positive, but was " + chunkSize);
+		stats = new SyncStats();
+		chunkTimes = new ArrayList<Long>();
+		numDropped = 0;
+		OperationFactory factory = new OperationFactory(new Translator());
+		// Depending on useStatements, operations are collected in either the list or the batch
+		List<ContentProviderOperation> chunk = new ArrayList<ContentProviderOperation>(chunkSize);
+		StatementBatch batch = useStatements ? new StatementBatch() : null;
+		// Rows written by the chunk, which has not been applied yet and so is invisible to the merger
+		Set<String> chunkRows = new HashSet<String>();
+		Merger merger = new Merger(transaction);
+		Long anchor = null;
+
+		source.beginObject();
+		while (source.hasNext()) {
+			String name = source.nextName();
+			if (JSON_FIELD_ANCHOR.equals(name)) {
+				anchor = source.nextLong();
+				continue;
+			}
+			boolean creations = JSON_FIELD_CREATED.equals(name);
+			boolean updates = JSON_FIELD_UPDATED.equals(name);
+			boolean deletions = JSON_FIELD_DELETED.equals(name);
+			if (!creations && !updates && !deletions) {
+				source.skipValue();
+				continue;
+			}
+			source.beginArray();
+			while (source.hasNext()) {
+				JSONObject entry = null;
+				try {
+					entry = source.nextObject();
+					// Apply the chunk first if it writes the same row, so the merger compares against the latest state
+					String row = entry.getString(OperationFactory.JSON_FIELD_TABLE) + '/' + entry.getLong(OperationFactory.JSON_FIELD_ROW);
+					if (chunkRows.contains(row))
+						apply(transaction, chunk, batch, chunkRows);
+					chunkRows.add(row);
+					if (creations) {
+						JSONObject merged = merger.mergeCreation(entry);
+						if (merged != null) {
+							if (batch != null)
+								factory.addCreateOperations(merged, batch);
+							else
+								chunk.addAll(factory.getCreateOperations(merged));
+							stats.numInserts++;
+						}
+					} else if (updates) {
+						JSONObject merged = merger.mergeUpdate(entry);
+						if (merged != null) {
+							if (batch != null)
+								factory.addUpdateOperations(merged, batch);
+							else
+								chunk.addAll(factory.getUpdateOperations(merged));
+							stats.numUpdates++;
+						}
+					} else {
+						if (batch != null)
+							factory.addDeleteOperations(entry, batch);
+						else
+							chunk.addAll(factory.getDeleteOperations(entry));
+						stats.numDeletes++;
+					}
+				} catch (JSONException x) {
+					error(entry, x);
+					stats.numSkippedEntries++;
+				}
+				if (chunk.size() >= chunkSize || batch != null && batch.size() >= chunkSize) {
+					apply(transaction, chunk, batch, chunkRows);
+				}
+			}
+			source.endArray();
+		}
+		source.endObject();
+		apply(transaction, chunk, batch, chunkRows);
+		numDropped = merger.getNumDropped();
+		if (anchor == null)
+			stats.numParseExceptions++;
+		return anchor;
+	}
+
+	/**
+	 * Applies the chunk, which is held in <code>batch</code> if it is not <code>null</code>, and in <code>chunk</code>
+	 * otherwise.
+	 */
+	private void apply(SharedTransaction transaction, List<ContentProviderOperation> chunk, StatementBatch batch, Set<String> chunkRows) throws OperationApplicationException {
+		chunkRows.clear();
+		int size = batch != null ? batch.size() : chunk.size();
+		if (size == 0)
+			return;
+		SyncTrace.Span span = trace != null ? trace.begin(SyncTrace.PHASE_APPLY) : null;
+		long start = SystemClock.elapsedRealtime();
+		try {
+			if (batch != null)
+				transaction.apply(batch);
+			else
+				transaction.apply(chunk);
+		} finally {
+			if (span != null)
+				span.end(size, 0);
+		}
+		long time = SystemClock.elapsedRealtime() - start;
+		chunkTimes.add(time);
+		stats.numEntries += size;
+		Log.v(TAG, "Applied " + size + " operations in " + time + "ms");
+		if (batch != null)
+			batch.clear();
+		else
+			chunk.clear();
+	}
+
+	/**
+	 * Reads the next value from <code>reader</code>, which must be an object, into a <code>JSONObject</code>.
+	 * Values are converted to the same types <code>JSONObject</code> would use when parsing them.
+	 */
+	private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+		JSONObject result = new JSONObject();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			result.put(reader.nextName(), readValue(reader));
+		}
+		reader.endObject();
+		return result;
+	}
+
+	private static Object readValue(JsonReader reader) throws IOException, JSONException {
+		switch (reader.peek()) {
+			case BEGIN_OBJECT:
+				return readObject(reader);
+			case BEGIN_ARRAY:
+				JSONArray array = new JSONArray();
+				reader.beginArray();
+				while (reader.hasNext()) {
+					array.put(readValue(reader));
+				}
+				reader.endArray();
+				return array;
+			case BOOLEAN:
+				return reader.nextBoolean();
+			case NULL:
+				reader.nextNull();
+				return JSONObject.NULL;
+			case NUMBER:
+				String number = reader.nextString();
+				if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+					try {
+						long value = Long.parseLong(number);
+						if (Integer.MIN_VALUE <= value && Integer.MAX_VALUE >= value)
+							return Integer.valueOf((int) value);
+						return Long.valueOf(value);
+					} catch (NumberFormatException x) {
+						// Too large for a long, fall back to double below
+					}
+				}
+				return Double.valueOf(number);
+			default:
+				return reader.nextString();
+		}
+	}
+
 	private static void error(JSONObject json, Throwable cause) {
 		Log.e(TAG, "An error occurred while trying to parse a JSON object \n"
 				+ "  JSON: " + (json != null ? json.toString() : "unknown")
@@ -79,10 +372,31 @@ public class Unmarshaller {
 	 * <li> numParseExceptions
 	 * <li> numSkippedEntries
 	 * </ul>
-	 * @return Sync stats about the last call to {@link #marshal(JournalSnapshot, RevisionTableSnapshot, ContentProviderClient, long)}. If
-	 * <code>marshal</code> has never been called, this will be <code>null</code>.
+	 * When unmarshalling from a reader, numEntries additionally holds the number of operations applied.
+	 * @return Sync stats about the last call to one of the <code>unmarshal</code> methods. If
+	 * <code>unmarshal</code> has never been called, this will be <code>null</code>.
 	 */
 	public SyncStats getStats() {
 		return stats;
 	}
+
+	/**
+	 * Gets the time in milliseconds it took to apply each chunk during the last call to
+	 * {@link #unmarshal(Reader, SharedTransaction, int)} or {@link #unmarshal(InputStream, SharedTransaction, int)},
+	 * in the order the chunks were applied.
+	 * @return The chunk times, or <code>null</code> if the last call was to {@link #unmarshal(JSONObject)} or
+	 * there has been no call at all.
+	 */
+	public List<Long> getChunkTimes() {
+		return chunkTimes;
+	}
+
+	/**
+	 * Gets the number of operations in the response to the last call to {@link #unmarshal(Reader, SharedTransaction, int)}
+	 * or {@link #unmarshal(InputStream, SharedTransaction, int)} that were dropped because they would not have changed
+	 * anything. Dropped operations are not counted in the sync stats.
+	 */
+	public int getNumDropped() {
+		return numDropped;
+	}
 }
@@ -8,7 +8,7 @@ public class CurrencyValueFormatter {
 	private static DecimalFormat nf = (DecimalFormat) NumberFormat.getCurrencyInstance();
 	private static double fraction = Math.pow(10f, nf.getCurrency().getDefaultFractionDigits());
 	
-	public static String format(int value) {
+	public static String format(long value) {
 		return nf.format(((double) value) / fraction);
 	}
 
@@ -5,6 +5,7 @@ import heger.christian.checkbook.adapters.SpreadsheetAdapter;
 import heger.christian.checkbook.control.MonthsElapsedCalculator;
 import heger.christian.checkbook.providers.CategorySubtotalsContract;
 import heger.christian.checkbook.providers.EntryContract;
+import heger.christian.checkbook.providers.MonthSnapshot;
 import heger.christian.checkbook.ui.CurrencyValueFormatter;
 import heger.christian.checkbook.ui.entry.EntryActivity;
 import android.content.ContentUris;
@@ -12,14 +13,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.TypedArray;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.graphics.Paint;
 import android.graphics.Typeface;
-import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -30,7 +28,7 @@ import android.widget.SimpleCursorTreeAdapter.ViewBinder;
 import android.widget.TextView;
 
 
-public class MonthFragment extends Fragment implements LoaderCallbacks<Cursor>, OnChildClickListener {
+public class MonthFragment extends Fragment implements LoaderCallbacks<MonthSnapshot>, OnChildClickListener {
 	private static final String TAG = MonthFragment.class.getSimpleName();
 
 	/**
@@ -56,19 +54,21 @@ public class MonthFragment extends Fragment implements LoaderCallbacks<Cursor>,
 				return true;
 			}
 			if (columnName.equals(EntryContract.COL_NAME_VALUE) || columnName.equals(CategorySubtotalsContract.COL_NAME_VALUE)) {
-				TextView textview = (TextView) view;
-				int value = cursor.getInt(columnIndex);
-				textview.setText(CurrencyValueFormatter.format(value));
-				if (value < 0) {
-					textview.setTextColor(context.getResources().getColor(R.color.red));
-				} else {
-					textview.setTextColor(textColorPrimary);
-				}
+				setValue((TextView) view, cursor.getLong(columnIndex));
 				return true;
 			}
 			return false;
 		}
 
+		public void setValue(TextView textview, long value) {
+			textview.setText(CurrencyValueFormatter.format(value));
+			if (value < 0) {
+				textview.setTextColor(context.getResources().getColor(R.color.red));
+			} else {
+				textview.setTextColor(textColorPrimary);
+			}
+		}
+
 	}
 	private ExpandableListView listEntries;
 	private SpreadsheetAdapter adapter;
@@ -128,6 +128,8 @@ public class MonthFragment extends Fragment implements LoaderCallbacks<Cursor>,
 				new int[] { R.id.txt_caption, R.id.txt_value },
 				MonthsElapsedCalculator.getMonth(month), MonthsElapsedCalculator.getYear(month));
 		adapter.setViewBinder(new RowViewBinder(getActivity()));
+		// Until a snapshot is bound, one query for all of the month's entries instead of one per expanded category
+		adapter.setSingleQuery(true);
 		listEntries.setAdapter(adapter);
 		listEntries.setOnChildClickListener(this);
 
@@ -170,27 +172,16 @@ public class MonthFragment extends Fragment implements LoaderCallbacks<Cursor>,
 
 	/**
 	 * Updates the footer view to the passed value. The caption is the string resource <i>R.string.total</i>.
-	 * It creates a temporary one-row cursor, then passes it to a new instance of <code>{@link MonthFragment.RowViewBinder}</code>.
+	 * The value is formatted by a new instance of <code>{@link MonthFragment.RowViewBinder}</code>.
 	 * The caption will be bound to the footer's child with id <i>R.id.txt_caption</i>, the value to that with id <i>R.id.txt_value</i>.
 	 * @param newValue - The new total to display.
 	 */
-	private void updateFooter(int newValue) {
-		// Create new one-row MatrixCursor
-		// An (empty) _id column is inserted to keep the row indices in line with the actual data cursors and
-		// to ensure compatibility with the ExpandableListView
-		MatrixCursor cursor = new MatrixCursor(new String[] { CategorySubtotalsContract._ID,
-					CategorySubtotalsContract.COL_NAME_CAPTION,
-					CategorySubtotalsContract.COL_NAME_VALUE },
-				1);
-		cursor.addRow(new Object[] { null, getResources().getString(R.string.total), newValue });
-		// Move cursor to its only row
-		cursor.moveToFirst();
-		// Create view binder and pass in the appropriate columns and child views
-		ViewBinder binder = new RowViewBinder(getActivity());
+	private void updateFooter(long newValue) {
+		RowViewBinder binder = new RowViewBinder(getActivity());
 		TextView caption = (TextView) footerView.findViewById(R.id.txt_caption);
 		TextView value = (TextView) footerView.findViewById(R.id.txt_value);
-		binder.setViewValue(caption, cursor, 1);
-		binder.setViewValue(value, cursor, 2);
+		caption.setText(R.string.total);
+		binder.setValue(value, newValue);
 		caption.setTypeface(caption.getTypeface(), Typeface.BOLD);
 		value.setTypeface(value.getTypeface(), Typeface.BOLD);
 		caption.setPaintFlags(caption.getPaintFlags() | Paint.UNDERLINE_TEXT_FLAG);
@@ -198,34 +189,22 @@ public class MonthFragment extends Fragment implements LoaderCallbacks<Cursor>,
 	}
 
 	@Override
-	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-		Uri.Builder builder = CategorySubtotalsContract.CONTENT_URI.buildUpon();
-		builder.appendQueryParameter(CategorySubtotalsContract.QUERY_ARG_MONTH, String.valueOf(month));
-		return new CursorLoader(this.getActivity(),
-				builder.build(),
-				null,
-				null,
-				null,
-				CategorySubtotalsContract._ID);
+	public Loader<MonthSnapshot> onCreateLoader(int id, Bundle args) {
+		MonthSnapshotCache cache = null;
+		if (getActivity() instanceof SpreadsheetActivity)
+			cache = ((SpreadsheetActivity) getActivity()).getSnapshotCache();
+		return new MonthSnapshotLoader(this.getActivity(), month, cache);
 	}
 
 	@Override
-	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-		adapter.setGroupCursor(data);
-		int total = 0;
-		if (data != null) {
-			int valueColumn = data.getColumnIndex(CategorySubtotalsContract.COL_NAME_VALUE);
-			data.moveToPosition(-1);
-			while (data.moveToNext()) {
-				total += data.getInt(valueColumn);
-			}
-		}
-		updateFooter(total);
+	public void onLoadFinished(Loader<MonthSnapshot> loader, MonthSnapshot data) {
+		adapter.setSnapshot(data);
+		updateFooter(data != null ? data.total : 0);
 	}
 
 	@Override
-	public void onLoaderReset(Loader<Cursor> loader) {
-		adapter.setGroupCursor(null);
+	public void onLoaderReset(Loader<MonthSnapshot> loader) {
+		adapter.setSnapshot(null);
 		updateFooter(0);
 	}
 }
@@ -0,0 +1,312 @@
+package heger.christian.checkbook.ui.spreadsheet;
+
+import heger.christian.checkbook.providers.CategorySubtotalsContract;
+import heger.christian.checkbook.providers.CheckbookContentProvider;
+import heger.christian.checkbook.providers.MonthSnapshot;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+
+/**
+ * Least recently used cache of {@link MonthSnapshot}s, so that months can be displayed from memory when
+ * swiping back and forth between them. Snapshots for months that are likely to be displayed next can be
+ * read ahead of time on a background thread using {@link #prefetch(int)}.
+ * <p>
+ * The cache is bounded both by the number of months it holds and by the total number of rows (categories
+ * and entries) in those months. When either bound is exceeded, the least recently used months are evicted.
+ * <p>
+ * While {@link #open()}, the cache observes <code>CheckbookContentProvider</code> and invalidates cached months
+ * according to the notified URIs: A month URI with an id, or a subtotals URI for a month, invalidates only that
+ * month. Single entry URIs invalidate only the months containing that entry; the provider notifies the months an
+ * entry was moved into or inserted into separately. Notifications for rules and entry metadata are ignored, because
+ * they are not part of snapshots. All other notifications (e.g. for the entries table as a whole, or for categories,
+ * which appear in every month) invalidate the entire cache.
+ * <p>
+ * All methods of this class are thread safe.
+ */
+public class MonthSnapshotCache {
+	/** Default maximum number of months held by the cache */
+	public static final int DEFAULT_MAX_MONTHS = 8;
+	/** Default maximum number of rows held by the cache, across all months */
+	public static final int DEFAULT_MAX_ROWS = 4000;
+
+	private final ContentResolver resolver;
+	private final int maxMonths;
+	private final int maxRows;
+	/** Cached snapshots by month, in access order */
+	private final LinkedHashMap<Integer, MonthSnapshot> snapshots = new LinkedHashMap<Integer, MonthSnapshot>(16, 0.75f, true);
+	private int rows = 0;
+	/**
+	 * Number of invalidations per month. A snapshot read from the database will only be stored if no
+	 * invalidation happened while it was being read, otherwise it may already be outdated.
+	 */
+	private final Map<Integer, Integer> generations = new HashMap<Integer, Integer>();
+	/** Number of invalidations of the entire cache */
+	private int generation = 0;
+	/** Months for which a prefetch is currently scheduled or running */
+	private final Set<Integer> pending = new HashSet<Integer>();
+	private ExecutorService executor;
+
+	private final ContentObserver observer = new ContentObserver(new Handler()) {
+		@Override
+		public void onChange(boolean selfChange) {
+			invalidate();
+		}
+
+		@Override
+		@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+		public void onChange(boolean selfChange, Uri uri) {
+			invalidate(uri);
+		}
+	};
+
+	/**
+	 * Creates a new cache with the default bounds. Must be called from a thread with a looper, because change
+	 * notifications are delivered there.
+	 */
+	public MonthSnapshotCache(ContentResolver resolver) {
+		this(resolver, DEFAULT_MAX_MONTHS, DEFAULT_MAX_ROWS);
+	}
+
+	/**
+	 * Creates a new cache. Must be called from a thread with a looper, because change notifications are
+	 * delivered there.
+	 * @param maxMonths - The maximum number of months to hold
+	 * @param maxRows - The maximum number of categories and entries to hold, across all months. A single
+	 * month exceeding this will not be cached at all.
+	 */
+	public MonthSnapshotCache(ContentResolver resolver, int maxMonths, int maxRows) {
+		if (maxMonths < 1) throw new IllegalArgumentException("Maximum number of months must be positive, but was " + maxMonths);
+		this.resolver = resolver;
+		this.maxMonths = maxMonths;
+		this.maxRows = maxRows;
+	}
+
+	/**
+	 * Starts observing changes and prefetching. Until then, calls to {@link #prefetch(int)} have no effect.
+	 */
+	public synchronized void open() {
+		if (executor != null)
+			return;
+		executor = Executors.newSingleThreadExecutor();
+		resolver.registerContentObserver(CheckbookContentProvider.CONTENT_URI, true, observer);
+	}
+
+	/**
+	 * Stops observing changes, cancels all pending prefetches and clears the cache. This should be called
+	 * when the cache is going out of use.
+	 */
+	public synchronized void close() {
+		if (executor == null)
+			return;
+		resolver.unregisterContentObserver(observer);
+		executor.shutdownNow();
+		executor = null;
+		pending.clear();
+		invalidate();
+	}
+
+	private static int getRowCount(MonthSnapshot snapshot) {
+		int count = snapshot.categories.size();
+		for (MonthSnapshot.Category category: snapshot.categories)
+			count += category.entries.size();
+		return count;
+	}
+
+	/**
+	 * Returns the number of invalidations of the entire cache. Record it along with
+	 * {@link #getGeneration(int)} before reading a snapshot, and pass both to
+	 * {@link #putIfCurrent(MonthSnapshot, int, int)} afterwards.
+	 */
+	public synchronized int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns the number of invalidations of the passed month since the entire cache was last invalidated.
+	 */
+	public synchronized int getGeneration(int month) {
+		Integer result = generations.get(month);
+		return result != null ? result : 0;
+	}
+
+	/**
+	 * Returns the cached snapshot for the passed month, or <code>null</code> if it is not cached.
+	 */
+	public synchronized MonthSnapshot get(int month) {
+		return snapshots.get(month);
+	}
+
+	/**
+	 * Puts the passed snapshot into the cache, replacing any previous snapshot for the same month and
+	 * evicting the least recently used months if necessary.
+	 */
+	public synchronized void put(MonthSnapshot snapshot) {
+		remove(snapshot.month);
+		int count = getRowCount(snapshot);
+		if (count > maxRows)
+			return;
+		snapshots.put(snapshot.month, snapshot);
+		rows += count;
+		// Iteration order is access order, so the eldest entries come first
+		Iterator<MonthSnapshot> iterator = snapshots.values().iterator();
+		while (snapshots.size() > maxMonths || rows > maxRows) {
+			MonthSnapshot eldest = iterator.next();
+			rows -= getRowCount(eldest);
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Puts the passed snapshot into the cache as {@link #put(MonthSnapshot)} does, unless its month has been
+	 * invalidated since the passed generations were recorded. This keeps a snapshot that was read while a
+	 * change was being notified from replacing the invalidation.
+	 * @param generation - The result of {@link #getGeneration()} before the snapshot was read
+	 * @param monthGeneration - The result of {@link #getGeneration(int)} for the snapshot's month before it
+	 * was read
+	 * @return Whether the snapshot was current
+	 */
+	public synchronized boolean putIfCurrent(MonthSnapshot snapshot, int generation, int monthGeneration) {
+		if (this.generation != generation || getGeneration(snapshot.month) != monthGeneration)
+			return false;
+		put(snapshot);
+		return true;
+	}
+
+	private void remove(int month) {
+		MonthSnapshot removed = snapshots.remove(month);
+		if (removed != null)
+			rows -= getRowCount(removed);
+	}
+
+	/**
+	 * Reads the snapshot for the passed month on a background thread and puts it into the cache, unless it
+	 * is already cached or being read.
+	 */
+	public synchronized void prefetch(final int month) {
+		if (executor == null || snapshots.containsKey(month) || pending.contains(month))
+			return;
+		pending.add(month);
+		final int expectedGeneration = generation;
+		final int expectedMonthGeneration = getGeneration(month);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				MonthSnapshot snapshot = CheckbookContentProvider.getMonthSnapshot(resolver, month);
+				synchronized (MonthSnapshotCache.this) {
+					if (!pending.remove(month))
+						// Cache was closed meanwhile
+						return;
+					if (snapshot != null)
+						putIfCurrent(snapshot, expectedGeneration, expectedMonthGeneration);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Invalidates the passed month.
+	 */
+	public synchronized void invalidate(int month) {
+		remove(month);
+		generations.put(month, getGeneration(month) + 1);
+	}
+
+	/**
+	 * Invalidates the entire cache.
+	 */
+	public synchronized void invalidate() {
+		snapshots.clear();
+		rows = 0;
+		generations.clear();
+		generation++;
+	}
+
+	/**
+	 * Invalidates the cached months affected by a change notification for the passed URI.
+	 */
+	public synchronized void invalidate(Uri uri) {
+		if (uri == null) {
+			invalidate();
+			return;
+		}
+		switch (CheckbookContentProvider.URI_MATCHER.match(uri)) {
+			case CheckbookContentProvider.URI_MONTHS_ID:
+				invalidate((int) ContentUris.parseId(uri));
+				break;
+			case CheckbookContentProvider.URI_CATEGORIES_SUBTOTALS:
+				String month = uri.getQueryParameter(CategorySubtotalsContract.QUERY_ARG_MONTH);
+				if (month != null)
+					invalidate(Integer.parseInt(month));
+				else
+					invalidate();
+				break;
+			case CheckbookContentProvider.URI_ENTRIES_ID:
+				long id = ContentUris.parseId(uri);
+				for (MonthSnapshot snapshot: snapshots.values().toArray(new MonthSnapshot[snapshots.size()])) {
+					if (contains(snapshot, id))
+						invalidate(snapshot.month);
+				}
+				break;
+			case CheckbookContentProvider.URI_ENTRY_METADATA:	// $FALL-THROUGH$
+			case CheckbookContentProvider.URI_ENTRY_METADATA_ID:	// $FALL-THROUGH$
+			case CheckbookContentProvider.URI_RULES:				// $FALL-THROUGH$
+			case CheckbookContentProvider.URI_RULES_ID:
+				// Not part of snapshots
+				break;
+			default:
+				invalidate();
+		}
+	}
+
+	/**
+	 * Returns whether a change notification for the passed URI may affect the passed month, by the same rules by
+	 * which {@link #invalidate(Uri)} invalidates cached months.
+	 * @param snapshot - The month's current snapshot, or <code>null</code> if there is none. Without a snapshot,
+	 * notifications for single entries are assumed to affect the month.
+	 */
+	public static boolean affects(Uri uri, int month, MonthSnapshot snapshot) {
+		if (uri == null)
+			return true;
+		switch (CheckbookContentProvider.URI_MATCHER.match(uri)) {
+			case CheckbookContentProvider.URI_MONTHS_ID:
+				return ContentUris.parseId(uri) == month;
+			case CheckbookContentProvider.URI_CATEGORIES_SUBTOTALS:
+				String subtotalsMonth = uri.getQueryParameter(CategorySubtotalsContract.QUERY_ARG_MONTH);
+				return subtotalsMonth == null || Integer.parseInt(subtotalsMonth) == month;
+			case CheckbookContentProvider.URI_ENTRIES_ID:
+				return snapshot == null || contains(snapshot, ContentUris.parseId(uri));
+			case CheckbookContentProvider.URI_ENTRY_METADATA:	// $FALL-THROUGH$
+			case CheckbookContentProvider.URI_ENTRY_METADATA_ID:	// $FALL-THROUGH$
+			case CheckbookContentProvider.URI_RULES:				// $FALL-THROUGH$
+			case CheckbookContentProvider.URI_RULES_ID:
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	private static boolean contains(MonthSnapshot snapshot, long entry) {
+		for (MonthSnapshot.Category category: snapshot.categories) {
+			for (MonthSnapshot.Entry candidate: category.entries) {
+				if (candidate.id == entry)
+					return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,122 @@
+package heger.christian.checkbook.ui.spreadsheet;
+
+import heger.christian.checkbook.providers.CheckbookContentProvider;
+import heger.christian.checkbook.providers.MonthSnapshot;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.support.v4.content.AsyncTaskLoader;
+
+/**
+ * Loader for a {@link MonthSnapshot}. The snapshot is read in one go, so once it has been delivered,
+ * displaying the month requires no further database access.
+ * <p>
+ * The loader watches <code>CheckbookContentProvider</code>'s data and reloads the snapshot whenever a change
+ * notification may affect its month, as decided by {@link MonthSnapshotCache#affects(Uri, int, MonthSnapshot)}.
+ * Changes to other months, to rules or to entries that are not part of the month do not cause a reload. Before
+ * Jelly Bean, change notifications don't carry a URI, so every change causes a reload.
+ * <p>
+ * If a {@link MonthSnapshotCache} is supplied, a cached snapshot is delivered immediately when the loader is
+ * first started, without reading from the database. Snapshots read by the loader are put into the cache, unless
+ * the month was invalidated while they were being read.
+ */
+public class MonthSnapshotLoader extends AsyncTaskLoader<MonthSnapshot> {
+	private final int month;
+	private final MonthSnapshotCache cache;
+	private final ContentObserver observer = new ContentObserver(new Handler()) {
+		@Override
+		public boolean deliverSelfNotifications() {
+			return true;
+		}
+
+		@Override
+		public void onChange(boolean selfChange) {
+			onContentChanged();
+		}
+
+		@Override
+		@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+		public void onChange(boolean selfChange, Uri uri) {
+			if (MonthSnapshotCache.affects(uri, month, snapshot))
+				onContentChanged();
+		}
+	};
+	private boolean observing = false;
+	private MonthSnapshot snapshot;
+
+	/**
+	 * @param month - The month to load, in months elapsed since January 1970
+	 */
+	public MonthSnapshotLoader(Context context, int month) {
+		this(context, month, null);
+	}
+
+	/**
+	 * @param month - The month to load, in months elapsed since January 1970
+	 * @param cache - The cache to use, or <code>null</code>
+	 */
+	public MonthSnapshotLoader(Context context, int month, MonthSnapshotCache cache) {
+		super(context);
+		this.month = month;
+		this.cache = cache;
+	}
+
+	@Override
+	public MonthSnapshot loadInBackground() {
+		// Record the generations first, so that a snapshot made outdated by a change during the read is not cached
+		int generation = 0;
+		int monthGeneration = 0;
+		if (cache != null) {
+			synchronized (cache) {
+				generation = cache.getGeneration();
+				monthGeneration = cache.getGeneration(month);
+			}
+		}
+		MonthSnapshot snapshot = CheckbookContentProvider.getMonthSnapshot(getContext().getContentResolver(), month);
+		if (snapshot != null && cache != null)
+			cache.putIfCurrent(snapshot, generation, monthGeneration);
+		return snapshot;
+	}
+
+	@Override
+	public void deliverResult(MonthSnapshot snapshot) {
+		if (isReset())
+			return;
+		this.snapshot = snapshot;
+		if (isStarted())
+			super.deliverResult(snapshot);
+	}
+
+	@Override
+	protected void onStartLoading() {
+		if (snapshot == null && cache != null)
+			snapshot = cache.get(month);
+		if (snapshot != null)
+			deliverResult(snapshot);
+		if (!observing) {
+			getContext().getContentResolver().registerContentObserver(CheckbookContentProvider.CONTENT_URI, true, observer);
+			observing = true;
+		}
+		if (takeContentChanged() || snapshot == null)
+			forceLoad();
+	}
+
+	@Override
+	protected void onStopLoading() {
+		cancelLoad();
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+		onStopLoading();
+		if (observing) {
+			getContext().getContentResolver().unregisterContentObserver(observer);
+			observing = false;
+		}
+		snapshot = null;
+	}
+}
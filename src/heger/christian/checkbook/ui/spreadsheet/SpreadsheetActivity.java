@@ -245,6 +245,7 @@ public class SpreadsheetActivity extends FragmentActivity {
 		@Override
 		public void onPageSelected(int position) {
 			moveToPosition(pagerAdapter.getMonthId(position));
+			prefetchAround(pagerAdapter.getMonthId(position));
 		}
 
 	}
@@ -320,6 +321,25 @@ public class SpreadsheetActivity extends FragmentActivity {
 	private MonthPagerAdapter pagerAdapter;
 	private NavigationAdapter navigationAdapter;
 	private NavigationListener navigationListener = new NavigationListener();
+	private MonthSnapshotCache snapshotCache;
+
+	/**
+	 * Returns the cache for the month snapshots displayed by this activity's pages.
+	 */
+	public MonthSnapshotCache getSnapshotCache() {
+		return snapshotCache;
+	}
+
+	/**
+	 * Prefetches the months before and after the passed one, so they can be displayed from memory
+	 * when swiping to them.
+	 */
+	private void prefetchAround(int monthId) {
+		if (monthId > pagerAdapter.getEarliest())
+			snapshotCache.prefetch(monthId - 1);
+		if (monthId < pagerAdapter.getLatest())
+			snapshotCache.prefetch(monthId + 1);
+	}
 
 	/**
 	 * Converts the month id from a content URI into a page number for the pager adapter.
@@ -354,6 +374,11 @@ public class SpreadsheetActivity extends FragmentActivity {
 			startActivity(intent);
 		}
 
+		snapshotCache = new MonthSnapshotCache(getContentResolver(),
+				getResources().getInteger(R.integer.snapshot_cache_months),
+				getResources().getInteger(R.integer.snapshot_cache_rows));
+		snapshotCache.open();
+
 		setContentView(R.layout.actvy_spreadsheet);
 
 		getActionBar().setNavigationMode(ActionBar.NAVIGATION_MODE_LIST);
@@ -381,6 +406,13 @@ public class SpreadsheetActivity extends FragmentActivity {
 		getActionBar().setListNavigationCallbacks(navigationAdapter, navigationListener);
 
 		pager.setCurrentItem(page);
+		prefetchAround(pagerAdapter.getMonthId(page));
+	}
+
+	@Override
+	protected void onDestroy() {
+		snapshotCache.close();
+		super.onDestroy();
 	}
 
 	@Override
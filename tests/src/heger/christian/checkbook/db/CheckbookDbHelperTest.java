@@ -0,0 +1,309 @@
+package heger.christian.checkbook.db;
+
+import heger.christian.checkbook.providers.MetaContentProvider;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+public class CheckbookDbHelperTest extends AndroidTestCase {
+	private SQLiteDatabase db;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		// In-memory database, so nothing is left over between tests
+		db = SQLiteDatabase.create(null);
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Returns the definitions of all tables, views, indexes and triggers in the passed database.
+	 */
+	private static Set<String> getSchema(SQLiteDatabase db) {
+		Set<String> schema = new HashSet<String>();
+		Cursor cursor = db.rawQuery("select type, name, sql from sqlite_master where sql is not null", null);
+		while (cursor.moveToNext())
+			schema.add(cursor.getString(0) + " " + cursor.getString(1) + ": " + cursor.getString(2));
+		cursor.close();
+		return schema;
+	}
+
+	private static boolean hasIndex(SQLiteDatabase db, String name) {
+		Cursor cursor = db.rawQuery("select name from sqlite_master where type='index' and name=?", new String[] { name });
+		boolean result = cursor.moveToFirst();
+		cursor.close();
+		return result;
+	}
+
+	/**
+	 * Test that migrations are applied in order and only within the requested version range.
+	 */
+	public void testMigrationsOrdered() {
+		int last = 1;
+		for (CheckbookDbHelper.Migration migration: CheckbookDbHelper.MIGRATIONS) {
+			assertEquals("Migrations must be contiguous and in ascending order", last + 1, migration.version);
+			last = migration.version;
+		}
+		assertEquals("DB_VERSION does not match the last migration", CheckbookDbHelper.DB_VERSION, last);
+	}
+
+	/**
+	 * Test that upgrading a version 1 database step by step results in the same schema as creating
+	 * a fresh database.
+	 */
+	public void testUpgradeMatchesCreate() {
+		CheckbookDbHelper helper = new CheckbookDbHelper(getContext());
+
+		CheckbookDbHelper.createBaseSchema(db);
+		for (int version = 1; version < CheckbookDbHelper.DB_VERSION; version++)
+			helper.onUpgrade(db, version, version + 1);
+
+		SQLiteDatabase fresh = SQLiteDatabase.create(null);
+		try {
+			helper.onCreate(fresh);
+			assertEquals("Upgraded schema differs from created schema", getSchema(fresh), getSchema(db));
+		} finally {
+			fresh.close();
+		}
+	}
+
+	public void testUpgradeTo2() {
+		CheckbookDbHelper.createBaseSchema(db);
+		assertFalse(hasIndex(db, CheckbookDbHelper.JournalContract.TABLE_NAME + "_lookup"));
+
+		CheckbookDbHelper.migrate(db, 1, 2);
+		assertTrue("Journal index was not created", hasIndex(db, CheckbookDbHelper.JournalContract.TABLE_NAME + "_lookup"));
+		assertTrue("Entries index was not created", hasIndex(db, CheckbookDbHelper.EntryContract.TABLE_NAME + "_category_datetime"));
+
+		// The optimization lookup should be answered from the index
+		Cursor cursor = db.rawQuery("explain query plan select sqn from " + CheckbookDbHelper.JournalContract.TABLE_NAME
+				+ " where table_name='entries' and row=1 and column_name='value' and operation='u'", null);
+		StringBuilder plan = new StringBuilder();
+		while (cursor.moveToNext())
+			plan.append(cursor.getString(cursor.getColumnCount() - 1));
+		cursor.close();
+		assertTrue("Journal lookup does not use index: " + plan, plan.toString().contains("_lookup"));
+	}
+
+	private void insertEntry(long id, String datetime, long value) {
+		db.execSQL("insert into " + CheckbookDbHelper.EntryContract.TABLE_NAME + " (_id, datetime, value, category) values (?,?,?,1)",
+				new Object[] { id, datetime, value });
+	}
+
+	/**
+	 * Asserts that the materialized monthly totals match those calculated from the entries table.
+	 */
+	private void assertMonthTotalsConsistent() {
+		String expected = "select " + CheckbookDbHelper.MonthContract.monthOf("datetime") + " as m, sum(value), count(*) from "
+				+ CheckbookDbHelper.EntryContract.TABLE_NAME + " group by m";
+		String actual = "select _id, value, entry_count from " + CheckbookDbHelper.MonthContract.TABLE_NAME;
+		Cursor cursor = db.rawQuery("select count(*) from (" + expected + " except " + actual + ")", null);
+		cursor.moveToFirst();
+		assertEquals("Monthly totals are missing rows", 0, cursor.getInt(0));
+		cursor.close();
+		cursor = db.rawQuery("select count(*) from (" + actual + " except " + expected + ")", null);
+		cursor.moveToFirst();
+		assertEquals("Monthly totals have superfluous rows", 0, cursor.getInt(0));
+		cursor.close();
+	}
+
+	public void testUpgradeTo3() {
+		CheckbookDbHelper.createBaseSchema(db);
+		CheckbookDbHelper.migrate(db, 1, 2);
+		insertEntry(1, "2014-01-05 12:00:00", 100);
+		insertEntry(2, "2014-01-20 12:00:00", -30);
+		insertEntry(3, "2014-03-01 00:00:00", 5);
+
+		CheckbookDbHelper.migrate(db, 2, 3);
+		assertMonthTotalsConsistent();
+		Cursor cursor = db.rawQuery("select value from " + CheckbookDbHelper.MonthContract.TABLE_NAME + " where _id=" + (1 + 12 * 44), null);
+		assertTrue("January 2014 is missing", cursor.moveToFirst());
+		assertEquals("Wrong total for January 2014", 70, cursor.getLong(0));
+		cursor.close();
+	}
+
+	public void testMonthTotalsTriggers() {
+		new CheckbookDbHelper(getContext()).onCreate(db);
+		insertEntry(1, "2014-01-05 12:00:00", 100);
+		insertEntry(2, "2014-01-20 12:00:00", -30);
+		insertEntry(3, "2014-03-01 00:00:00", 5);
+		assertMonthTotalsConsistent();
+
+		// Value change within the same month
+		db.execSQL("update " + CheckbookDbHelper.EntryContract.TABLE_NAME + " set value=50 where _id=1");
+		assertMonthTotalsConsistent();
+		// Move to another month, leaving March empty
+		db.execSQL("update " + CheckbookDbHelper.EntryContract.TABLE_NAME + " set datetime='2014-02-01 00:00:00' where _id=3");
+		assertMonthTotalsConsistent();
+		// Change of a column that doesn't contribute
+		db.execSQL("update " + CheckbookDbHelper.EntryContract.TABLE_NAME + " set caption='caption' where _id=2");
+		assertMonthTotalsConsistent();
+		db.execSQL("delete from " + CheckbookDbHelper.EntryContract.TABLE_NAME + " where _id=2");
+		assertMonthTotalsConsistent();
+
+		// Tamper with the totals and have them rebuilt
+		db.execSQL("update " + CheckbookDbHelper.MonthContract.TABLE_NAME + " set value=0");
+		CheckbookDbHelper.MonthContract.rebuild(db);
+		assertMonthTotalsConsistent();
+	}
+
+	public void testUpgradeTo4() {
+		CheckbookDbHelper.createBaseSchema(db);
+		CheckbookDbHelper.migrate(db, 1, 3);
+		insertEntry(1, "2014-01-05 12:00:00", 100);
+		insertEntry(2, "2014-01-20 12:00:00", -30);
+		insertEntry(3, "2014-03-01 00:00:00", 5);
+
+		CheckbookDbHelper.migrate(db, 3, 4);
+		assertEquals("Per-category totals drifted after upgrade", 0, CheckbookDbHelper.CategoryMonthTotalsContract.verify(db));
+	}
+
+	public void testCategoryMonthTotalsTriggers() {
+		new CheckbookDbHelper(getContext()).onCreate(db);
+		insertEntry(1, "2014-01-05 12:00:00", 100);
+		insertEntry(2, "2014-01-20 12:00:00", -30);
+		insertEntry(3, "2014-03-01 00:00:00", 5);
+		assertEquals(0, CheckbookDbHelper.CategoryMonthTotalsContract.verify(db));
+
+		// Move to another category
+		db.execSQL("update " + CheckbookDbHelper.EntryContract.TABLE_NAME + " set category=2 where _id=2");
+		assertEquals("Drift after category change", 0, CheckbookDbHelper.CategoryMonthTotalsContract.verify(db));
+		// Move to another month
+		db.execSQL("update " + CheckbookDbHelper.EntryContract.TABLE_NAME + " set datetime='2014-02-01 00:00:00' where _id=3");
+		assertEquals("Drift after month change", 0, CheckbookDbHelper.CategoryMonthTotalsContract.verify(db));
+		db.execSQL("update " + CheckbookDbHelper.EntryContract.TABLE_NAME + " set value=1 where _id=1");
+		assertEquals("Drift after value change", 0, CheckbookDbHelper.CategoryMonthTotalsContract.verify(db));
+		db.execSQL("delete from " + CheckbookDbHelper.EntryContract.TABLE_NAME + " where _id=1");
+		assertEquals("Drift after delete", 0, CheckbookDbHelper.CategoryMonthTotalsContract.verify(db));
+
+		// Tampering should be reported, and repaired by rebuilding
+		db.execSQL("update " + CheckbookDbHelper.CategoryMonthTotalsContract.TABLE_NAME + " set value=value+1");
+		assertTrue("Drift was not detected", CheckbookDbHelper.CategoryMonthTotalsContract.verify(db) > 0);
+		CheckbookDbHelper.CategoryMonthTotalsContract.rebuild(db);
+		assertEquals("Drift after rebuild", 0, CheckbookDbHelper.CategoryMonthTotalsContract.verify(db));
+	}
+
+	private void insertRevision(String table, long row, String column, long revision) {
+		db.execSQL("insert into " + CheckbookDbHelper.RevisionTableContract.TABLE_NAME + " values (?,?,?,?)",
+				new Object[] { table, row, column, revision });
+	}
+
+	private long getRevision(String table, long row, String column) {
+		return DatabaseUtils.longForQuery(db, "select " + CheckbookDbHelper.RevisionTableContract.COL_NAME_REVISION
+				+ " from " + CheckbookDbHelper.RevisionTableContract.TABLE_NAME
+				+ " where table_name=? and row=? and column_name=?",
+				new String[] { table, Long.toString(row), column });
+	}
+
+	public void testUpgradeTo5() {
+		CheckbookDbHelper.createBaseSchema(db);
+		CheckbookDbHelper.migrate(db, 1, 4);
+		String categories = CheckbookDbHelper.CategoryContract.TABLE_NAME;
+		insertRevision(categories, 1, "_id", 3);
+		insertRevision(categories, 1, "caption", 5);
+		insertRevision(categories, 2, "_id", 0);
+		insertRevision(categories, 2, "caption", 0);
+
+		CheckbookDbHelper.migrate(db, 4, 5);
+		assertEquals(3, getRevision(categories, 1, "_id"));
+		assertEquals(5, getRevision(categories, 1, "caption"));
+		assertEquals(0, getRevision(categories, 2, "_id"));
+		assertEquals(0, getRevision(categories, 2, "caption"));
+		assertEquals(2, DatabaseUtils.queryNumEntries(db, CheckbookDbHelper.RowRevisionContract.TABLE_NAME));
+		assertEquals("Only differing columns should have their own revisions", 1, DatabaseUtils.queryNumEntries(db, CheckbookDbHelper.ColumnRevisionContract.TABLE_NAME));
+	}
+
+	/**
+	 * Returns a meta provider working on the in-memory database of this test.
+	 */
+	private MetaContentProvider createMetaProvider() {
+		final SQLiteOpenHelper helper = new CheckbookDbHelper(getContext()) {
+			@Override
+			public SQLiteDatabase getWritableDatabase() {
+				return db;
+			}
+
+			@Override
+			public SQLiteDatabase getReadableDatabase() {
+				return db;
+			}
+		};
+		MetaContentProvider provider = new MetaContentProvider() {
+			@Override
+			protected SQLiteOpenHelper getHelper() {
+				return helper;
+			}
+		};
+		provider.attachInfo(getContext(), null);
+		return provider;
+	}
+
+	private static int incrementRevisions(MetaContentProvider provider, String[] tables, long[] rows, String[] columns) {
+		Bundle extras = new Bundle();
+		extras.putStringArray(MetaContentProvider.EXTRA_TABLES, tables);
+		extras.putLongArray(MetaContentProvider.EXTRA_ROWS, rows);
+		extras.putStringArray(MetaContentProvider.EXTRA_COLUMNS, columns);
+		return provider.call(MetaContentProvider.METHOD_INCREMENT_REVISIONS, null, extras).getInt(MetaContentProvider.EXTRA_COUNT);
+	}
+
+	public void testRevisionIncrements() {
+		new CheckbookDbHelper(getContext()).onCreate(db);
+		MetaContentProvider provider = createMetaProvider();
+		String categories = CheckbookDbHelper.CategoryContract.TABLE_NAME;
+		insertRevision(categories, 1, "_id", 0);
+		insertRevision(categories, 1, "caption", 2);
+		insertRevision(categories, 2, "_id", 0);
+
+		assertEquals(1, incrementRevisions(provider, new String[] { categories }, new long[] { 1 }, new String[] { "_id" }));
+		assertEquals(1, getRevision(categories, 1, "_id"));
+		assertEquals(2, getRevision(categories, 1, "caption"));
+
+		assertEquals(2, incrementRevisions(provider, new String[] { categories, categories }, new long[] { 1, 2 }, new String[] { null, null }));
+		assertEquals(2, getRevision(categories, 1, "_id"));
+		assertEquals(3, getRevision(categories, 1, "caption"));
+		assertEquals(1, getRevision(categories, 2, "_id"));
+		assertEquals("Columns without their own revision should follow the row", 1, getRevision(categories, 2, "caption"));
+
+		db.execSQL("delete from " + CheckbookDbHelper.RevisionTableContract.TABLE_NAME + " where table_name=? and row=1", new Object[] { categories });
+		assertEquals(2, DatabaseUtils.queryNumEntries(db, CheckbookDbHelper.RevisionTableContract.TABLE_NAME));
+	}
+
+	public void testRevisionAgenda() {
+		new CheckbookDbHelper(getContext()).onCreate(db);
+		String categories = CheckbookDbHelper.CategoryContract.TABLE_NAME;
+		insertRevision(categories, 1, "_id", 0);
+		insertRevision(categories, 1, "caption", 4);
+		insertRevision(categories, 2, "_id", 0);
+		insertRevision(categories, 3, "_id", 0);
+
+		int count;
+		db.beginTransaction();
+		try {
+			count = CheckbookDbHelper.RevisionTableContract.incrementAgenda(db,
+					new String[] { categories, categories, categories },
+					new long[] { 1, 1, 2 },
+					new String[] { null, "caption", "caption" });
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		assertEquals(2, count);
+		assertEquals(1, getRevision(categories, 1, "_id"));
+		assertEquals("Column of a row on the agenda as a whole was incremented twice", 5, getRevision(categories, 1, "caption"));
+		assertEquals(0, getRevision(categories, 2, "_id"));
+		assertEquals(1, getRevision(categories, 2, "caption"));
+		assertEquals(0, getRevision(categories, 3, "caption"));
+	}
+}
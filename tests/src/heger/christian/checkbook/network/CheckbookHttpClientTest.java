@@ -0,0 +1,14 @@
+package heger.christian.checkbook.network;
+
+import android.test.AndroidTestCase;
+
+public class CheckbookHttpClientTest extends AndroidTestCase {
+	public void testShared() throws TruststoreException {
+		CheckbookHttpClient client = CheckbookHttpClient.getInstance(getContext());
+		assertNotNull(client.getSSLSocketFactory());
+		// Connections can only be pooled and sessions resumed if everyone uses the same socket factory
+		assertSame(client, CheckbookHttpClient.getInstance(getContext()));
+		assertSame(client.getSSLSocketFactory(), CheckbookHttpClient.getInstance(getContext()).getSSLSocketFactory());
+		assertNotNull(client.createWebb());
+	}
+}
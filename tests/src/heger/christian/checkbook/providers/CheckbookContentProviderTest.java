@@ -1,10 +1,12 @@
 package heger.christian.checkbook.providers;
 
+import heger.christian.checkbook.control.MonthsElapsedCalculator;
 import heger.christian.checkbook.db.CheckbookDbHelper.KeyGenerationContract;
 import heger.christian.checkbook.providers.MetaContentProvider.JournalContract;
 import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
 
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -12,6 +14,7 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.net.Uri;
 import android.test.ProviderTestCase2;
 
 
@@ -171,4 +174,154 @@ public class CheckbookContentProviderTest extends ProviderTestCase2<CheckbookCon
 			columns.remove(j);
 		}
 	}
+
+	public void testSyncAdapterWrites() {
+		ContentResolver resolver = getMockContentResolver();
+		ContentValues values = new ContentValues();
+		values.put(CategoryContract.COL_NAME_CAPTION, CategoryContract.COL_NAME_CAPTION);
+		long id = ContentUris.parseId(resolver.insert(CheckbookContentProvider.asSyncAdapter(CategoryContract.CONTENT_URI), values));
+		Uri uri = CheckbookContentProvider.asSyncAdapter(ContentUris.withAppendedId(CategoryContract.CONTENT_URI, id));
+		values.put(CategoryContract.COL_NAME_CAPTION, CategoryContract.COL_NAME_CAPTION + CategoryContract.COL_NAME_CAPTION);
+		assertEquals(1, resolver.update(uri, values, null, null));
+
+		Cursor cursor = resolver.query(JournalContract.CONTENT_URI, null, null, null, null);
+		try {
+			assertEquals("Sync adapter writes should not be journaled", 0, cursor.getCount());
+		} finally {
+			cursor.close();
+		}
+		cursor = resolver.query(RevisionTableContract.CONTENT_URI, null, null, null, null);
+		try {
+			assertEquals("Sync adapter writes should not be given revisions", 0, cursor.getCount());
+		} finally {
+			cursor.close();
+		}
+
+		// Other writes are still journaled
+		long other = ContentUris.parseId(resolver.insert(CategoryContract.CONTENT_URI, values));
+		assertEquals(1, resolver.delete(uri, null, null));
+		cursor = resolver.query(JournalContract.CONTENT_URI, null, null, null, null);
+		try {
+			assertEquals(1, cursor.getCount());
+			cursor.moveToFirst();
+			assertEquals("Incorrect row", other, cursor.getLong(cursor.getColumnIndex(JournalContract.COL_NAME_ROW)));
+			assertEquals("Incorrect operation type", Journaler.OP_TYPE_CREATE, cursor.getString(cursor.getColumnIndex(JournalContract.COL_NAME_OPERATION)));
+		} finally {
+			cursor.close();
+		}
+		assertTrue(getProvider().isJournaling());
+	}
+
+	public void testBulkInsert() {
+		ContentResolver resolver = getMockContentResolver();
+		ContentValues[] values = new ContentValues[3];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new ContentValues();
+			values[i].put(CategoryContract.COL_NAME_CAPTION, CategoryContract.COL_NAME_CAPTION + i);
+		}
+		// Supply an id for one of the rows, the others should get keys from the generator
+		values[1].put(CategoryContract._ID, 1000);
+		int count = resolver.bulkInsert(CategoryContract.CONTENT_URI, values);
+		assertEquals("Wrong number of rows inserted", 3, count);
+
+		Cursor cursor = resolver.query(CategoryContract.CONTENT_URI, null, null, null, CategoryContract._ID);
+		assertEquals("Categories were not added", 3, cursor.getCount());
+		cursor.moveToFirst();
+		assertEquals("Generated keys should be consecutive", 0, cursor.getLong(cursor.getColumnIndex(CategoryContract._ID)));
+		cursor.moveToNext();
+		assertEquals("Generated keys should be consecutive", 1, cursor.getLong(cursor.getColumnIndex(CategoryContract._ID)));
+		cursor.moveToNext();
+		assertEquals("Supplied key was not used", 1000, cursor.getLong(cursor.getColumnIndex(CategoryContract._ID)));
+
+		// The key generator should have marked a whole block of keys as used, starting from the first one consumed
+		cursor = resolver.query(KeyGenerationContract.CONTENT_URI, null, null, null, null);
+		assertTrue(cursor.moveToFirst());
+		assertEquals("Consumed keys were not written through", KeyGenerator.DEFAULT_BLOCK_SIZE, cursor.getLong(cursor.getColumnIndex(KeyGenerationContract.COL_NAME_NEXT_KEY)));
+
+		cursor = resolver.query(JournalContract.CONTENT_URI, null, null, null, JournalContract.COL_NAME_SEQUENCE_NUMBER);
+		assertEquals("Journal was not written", 3, cursor.getCount());
+		long lastSqn = -1;
+		while (cursor.moveToNext()) {
+			assertEquals("Incorrect table", CategoryContract.TABLE_NAME, cursor.getString(cursor.getColumnIndex(JournalContract.COL_NAME_TABLE)));
+			assertEquals("Incorrect operation type", Journaler.OP_TYPE_CREATE, cursor.getString(cursor.getColumnIndex(JournalContract.COL_NAME_OPERATION)));
+			long sqn = cursor.getLong(cursor.getColumnIndex(JournalContract.COL_NAME_SEQUENCE_NUMBER));
+			assertTrue("Sequence numbers should be increasing", sqn > lastSqn);
+			lastSqn = sqn;
+		}
+
+		cursor = resolver.query(RevisionTableContract.CONTENT_URI,
+				null,
+				RevisionTableContract.COL_NAME_TABLE + "=?",
+				new String[] { CategoryContract.TABLE_NAME },
+				null);
+		assertEquals("Wrong number of revision table entries", 6, cursor.getCount());
+		while (cursor.moveToNext()) {
+			assertEquals("Incorrect revision number", 0, cursor.getLong(cursor.getColumnIndex(RevisionTableContract.COL_NAME_REVISION)));
+		}
+	}
+
+	public void testBulkInsertOutOfKeys() {
+		ContentResolver resolver = getMockContentResolver();
+		// Setup made 101 keys available, so this should exhaust the supply
+		ContentValues[] values = new ContentValues[102];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new ContentValues();
+			values[i].put(CategoryContract.COL_NAME_CAPTION, CategoryContract.COL_NAME_CAPTION + i);
+		}
+		try {
+			resolver.bulkInsert(CategoryContract.CONTENT_URI, values);
+			fail("Expected an OutOfKeysException");
+		} catch (OutOfKeysException x) {}
+
+		Cursor cursor = resolver.query(CategoryContract.CONTENT_URI, null, null, null, null);
+		assertEquals("No rows should have been inserted", 0, cursor.getCount());
+		cursor = resolver.query(JournalContract.CONTENT_URI, null, null, null, null);
+		assertEquals("Journal should not have been written", 0, cursor.getCount());
+	}
+
+	private long insertEntry(long category, String datetime, long value) {
+		ContentValues values = new ContentValues();
+		values.put(EntryContract.COL_NAME_CAPTION, EntryContract.COL_NAME_CAPTION);
+		values.put(EntryContract.COL_NAME_CATEGORY, category);
+		values.put(EntryContract.COL_NAME_DATETIME, datetime);
+		values.put(EntryContract.COL_NAME_VALUE, value);
+		return ContentUris.parseId(getMockContentResolver().insert(EntryContract.CONTENT_URI, values));
+	}
+
+	public void testMonthSnapshot() {
+		ContentValues values = new ContentValues();
+		values.put(CategoryContract.COL_NAME_CAPTION, "first");
+		long first = ContentUris.parseId(getMockContentResolver().insert(CategoryContract.CONTENT_URI, values));
+		values.put(CategoryContract.COL_NAME_CAPTION, "second");
+		long second = ContentUris.parseId(getMockContentResolver().insert(CategoryContract.CONTENT_URI, values));
+
+		long late = insertEntry(first, "2014-01-20 12:00:00", 100);
+		long early = insertEntry(first, "2014-01-01 00:00:00", -30);
+		// Boundaries of the adjacent months must not be included
+		insertEntry(first, "2013-12-31 23:59:59", 1);
+		insertEntry(first, "2014-02-01 00:00:00", 1);
+
+		MonthSnapshot snapshot = getProvider().getMonthSnapshot(MonthsElapsedCalculator.getMonthsElapsed(Calendar.JANUARY, 2014));
+		assertEquals("Wrong number of categories", 2, snapshot.categories.size());
+		assertEquals("Wrong month total", 70, snapshot.total);
+
+		MonthSnapshot.Category category = snapshot.categories.get(0);
+		assertEquals("Categories are not ordered", first, category.id);
+		assertEquals("Wrong subtotal", Long.valueOf(70), category.subtotal);
+		assertEquals("Wrong number of entries", 2, category.entries.size());
+		assertEquals("Entries are not ordered by date", early, category.entries.get(0).id);
+		assertEquals("Entries are not ordered by date", late, category.entries.get(1).id);
+
+		category = snapshot.categories.get(1);
+		assertEquals(second, category.id);
+		assertNull("Category without entries should have no subtotal", category.subtotal);
+		assertTrue("Category without entries has entries", category.entries.isEmpty());
+
+		Cursor cursor = snapshot.getEntriesCursor(0);
+		assertEquals("Entries cursor does not match snapshot", 2, cursor.getCount());
+		try {
+			category.entries.add(null);
+			fail("Snapshot should be immutable");
+		} catch (UnsupportedOperationException x) {}
+	}
 }
@@ -45,6 +45,8 @@ public class JournalerTest extends ProviderTestCase2<MetaContentProvider> {
 	public void setUp() throws Exception {
 		super.setUp();
 		journaler = new TestingJournaler(getMockContentResolver());
+		// Have every optimization lookup from the journal index checked against the journal table
+		journaler.setConsistencyChecking(true);
 	}
 
 	@Override
@@ -326,4 +328,57 @@ public class JournalerTest extends ProviderTestCase2<MetaContentProvider> {
 		assertTrue(tag + " verify pre-existing values",verifyExistence());
 		assertEquals(tag + " wrong number of entries", cursor.getCount(), 0);
 	}
+
+	/**
+	 * Test that the journal index stays consistent with the journal table through inserts,
+	 * optimizations, anchor changes and arbitrary deletes.
+	 */
+	public void testJournalIndexConsistency() throws RemoteException, OperationApplicationException {
+		populate();
+		String tag = "Journal index consistency: ";
+		JournalIndex index = getProvider().getJournalIndex();
+		assertNotNull(tag + "journaler found no index", journaler.getJournalIndex());
+		// Force the index to be loaded
+		index.getEntries(TABLE, ROW);
+		assertTrue(tag + "after loading", index.isConsistent());
+
+		ContentResolver resolver = getMockContentResolver();
+		ArrayList<ContentProviderOperation> operations = journaler.getJournalCreateOperation(TABLE, ROW + 3);
+		operations.addAll(journaler.getJournalUpdateOperation(TABLE, ROW, COLUMN));
+		resolver.applyBatch(MetaContentProvider.AUTHORITY, operations);
+		assertTrue(tag + "after inserts", index.isConsistent());
+
+		resolver.applyBatch(MetaContentProvider.AUTHORITY, journaler.getJournalDeleteOperation(TABLE, ROW + 3));
+		assertTrue(tag + "after delete optimization", index.isConsistent());
+
+		ContentProviderResult[] results = resolver.applyBatch(MetaContentProvider.AUTHORITY,
+				journaler.getJournalUpdateOperation(TABLE, ROW, COLUMN + COLUMN));
+		ContentValues values = new ContentValues();
+		values.put(SequenceAnchorContract.COL_NAME_SEQUENCE_ANCHOR, ContentUris.parseId(results[0].uri));
+		resolver.insert(SequenceAnchorContract.CONTENT_URI, values);
+		assertTrue(tag + "after anchor change", index.isConsistent());
+
+		resolver.delete(JournalContract.CONTENT_URI, JournalContract.COL_NAME_TABLE + "=?", new String[] { TABLE });
+		assertTrue(tag + "after arbitrary delete", index.getEntries(TABLE, ROW).isEmpty());
+		assertTrue(tag + "after arbitrary delete", index.isConsistent());
+	}
+
+	/**
+	 * Test that a rolled back batch invalidates the journal index.
+	 */
+	public void testJournalIndexRollback() {
+		populate();
+		JournalIndex index = getProvider().getJournalIndex();
+		index.getEntries(TABLE, ROW);
+
+		ArrayList<ContentProviderOperation> operations = journaler.getJournalCreateOperation(TABLE, ROW);
+		// Inserting the same sequence number twice will fail and roll back the batch
+		operations.add(operations.get(0));
+		try {
+			getMockContentResolver().applyBatch(MetaContentProvider.AUTHORITY, operations);
+			fail("Expected batch to fail");
+		} catch (Exception x) {}
+		assertTrue("Journal index still holds a rolled back entry", index.getEntries(TABLE, ROW).isEmpty());
+		assertTrue("Journal index inconsistent after rollback", index.isConsistent());
+	}
 }
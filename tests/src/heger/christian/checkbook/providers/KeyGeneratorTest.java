@@ -0,0 +1,92 @@
+package heger.christian.checkbook.providers;
+
+import heger.christian.checkbook.providers.KeyGenerator.KeyRange;
+import heger.christian.checkbook.providers.MetaContentProvider.KeyGenerationContract;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+public class KeyGeneratorTest extends ProviderTestCase2<MetaContentProvider> {
+	private static final String TABLE = "table";
+	private static final long LOWER_BOUND = 0;
+	private static final long UPPER_BOUND = 99;
+	private static final int BLOCK_SIZE = 10;
+
+	private KeyGenerator generator;
+
+	public KeyGeneratorTest() {
+		super(MetaContentProvider.class, MetaContentProvider.AUTHORITY);
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		writeSeries(LOWER_BOUND, UPPER_BOUND);
+		generator = new KeyGenerator(getMockContentResolver());
+		generator.setBlockSize(BLOCK_SIZE);
+	}
+
+	private void writeSeries(long nextKey, long upperBound) {
+		ContentValues values = new ContentValues();
+		values.put(KeyGenerationContract.COL_NAME_NEXT_KEY, nextKey);
+		values.put(KeyGenerationContract.COL_NAME_UPPER_BOUND, upperBound);
+		getMockContentResolver().insert(KeyGenerationContract.CONTENT_URI, values);
+	}
+
+	private long getStoredNextKey() {
+		Cursor cursor = getMockContentResolver().query(KeyGenerationContract.CONTENT_URI, null, null, null, null);
+		assertTrue("Key generation table is empty", cursor.moveToFirst());
+		return cursor.getLong(cursor.getColumnIndex(KeyGenerationContract.COL_NAME_NEXT_KEY));
+	}
+
+	public void testLease() {
+		long key = generator.generateKey(TABLE);
+		assertEquals("Wrong first key", LOWER_BOUND, key);
+		assertEquals("Lease was not written through before issuing keys", LOWER_BOUND + BLOCK_SIZE, getStoredNextKey());
+
+		// Keys from within the lease should not cause any writes
+		for (int i = 1; i < BLOCK_SIZE; i++)
+			assertEquals("Keys should be consecutive", LOWER_BOUND + i, generator.generateKey(TABLE));
+		assertEquals("Storage was written within lease", LOWER_BOUND + BLOCK_SIZE, getStoredNextKey());
+
+		// Exhausting the lease should take out a new one
+		assertEquals("Keys should be consecutive", LOWER_BOUND + BLOCK_SIZE, generator.generateKey(TABLE));
+		assertEquals("New lease was not written through", LOWER_BOUND + 2 * BLOCK_SIZE, getStoredNextKey());
+	}
+
+	public void testReserveKeys() {
+		KeyRange range = generator.reserveKeys(3);
+		assertEquals("Wrong range start", LOWER_BOUND, range.first);
+		assertEquals("Wrong range size", 3, range.size());
+
+		// A request larger than the block size must be leased completely
+		range = generator.reserveKeys(2 * BLOCK_SIZE);
+		assertEquals("Ranges should be consecutive", LOWER_BOUND + 3, range.first);
+		assertTrue("Reserved keys were not written through", getStoredNextKey() > range.last);
+
+		try {
+			generator.reserveKeys((int) (UPPER_BOUND - LOWER_BOUND));
+			fail("Expected an OutOfKeysException");
+		} catch (OutOfKeysException x) {}
+		// A failed request must not consume keys
+		assertEquals("Failed request consumed keys", range.last + 1, generator.generateKey(TABLE));
+	}
+
+	public void testCrashSafety() {
+		long last = 0;
+		for (int i = 0; i < BLOCK_SIZE / 2; i++)
+			last = generator.generateKey(TABLE);
+
+		// Simulate a process kill: a new generator reading from storage must not reissue any key
+		KeyGenerator restarted = new KeyGenerator(getMockContentResolver());
+		assertTrue("Key was issued twice", restarted.generateKey(TABLE) > last);
+	}
+
+	public void testNewSeries() {
+		generator.generateKey(TABLE);
+		// MockContentResolver does not dispatch change notifications, so tell the generator directly
+		writeSeries(200, 299);
+		generator.initialize();
+		assertEquals("Lease from the old series was used after a new series arrived", 200, generator.generateKey(TABLE));
+	}
+}
@@ -0,0 +1,100 @@
+package heger.christian.checkbook.providers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+public class NotificationCoalescerTest extends AndroidTestCase {
+	/**
+	 * MockContentResolver swallows notifications, so record them instead.
+	 */
+	private static class RecordingContentResolver extends MockContentResolver {
+		final List<Uri> notified = new ArrayList<Uri>();
+		@Override
+		public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+			notified.add(uri);
+		}
+	}
+
+	private static final Uri TABLE = EntryContract.CONTENT_URI;
+	private static final Uri OTHER = MonthContract.CONTENT_URI;
+
+	private RecordingContentResolver resolver;
+	private NotificationCoalescer notifications;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		resolver = new RecordingContentResolver();
+		notifications = new NotificationCoalescer(resolver);
+		notifications.setRowLimit(3);
+	}
+
+	public void testImmediateOutsideTransaction() {
+		notifications.notifyChange(OTHER);
+		notifications.notifyRow(TABLE, 1);
+		assertEquals(2, resolver.notified.size());
+		assertEquals(ContentUris.withAppendedId(TABLE, 1), resolver.notified.get(1));
+	}
+
+	public void testCoalescing() {
+		notifications.beginTransaction();
+		try {
+			notifications.beginTransaction();
+			try {
+				notifications.notifyRow(TABLE, 1);
+				notifications.notifyRow(TABLE, 2);
+				notifications.notifyChange(OTHER);
+				notifications.setTransactionSuccessful();
+			} finally {
+				notifications.endTransaction();
+			}
+			assertTrue("Notified before outermost transaction was committed", resolver.notified.isEmpty());
+			notifications.notifyRow(TABLE, 1);
+			notifications.notifyChange(OTHER);
+			notifications.setTransactionSuccessful();
+		} finally {
+			notifications.endTransaction();
+		}
+		assertEquals("Notifications were not deduplicated", 3, resolver.notified.size());
+		assertTrue(resolver.notified.contains(ContentUris.withAppendedId(TABLE, 1)));
+		assertTrue(resolver.notified.contains(ContentUris.withAppendedId(TABLE, 2)));
+		assertTrue(resolver.notified.contains(OTHER));
+	}
+
+	public void testRowLimit() {
+		notifications.beginTransaction();
+		try {
+			for (long id = 0; id <= notifications.getRowLimit(); id++)
+				notifications.notifyRow(TABLE, id);
+			notifications.setTransactionSuccessful();
+		} finally {
+			notifications.endTransaction();
+		}
+		assertEquals("Rows over the limit should be notified as their table", 1, resolver.notified.size());
+		assertEquals(TABLE, resolver.notified.get(0));
+	}
+
+	public void testRollback() {
+		notifications.beginTransaction();
+		try {
+			notifications.beginTransaction();
+			try {
+				notifications.notifyRow(TABLE, 1);
+				// Not marked successful
+			} finally {
+				notifications.endTransaction();
+			}
+			notifications.setTransactionSuccessful();
+		} finally {
+			notifications.endTransaction();
+		}
+		assertTrue("Rolled back changes were notified", resolver.notified.isEmpty());
+		assertFalse(notifications.inTransaction());
+	}
+}
@@ -0,0 +1,108 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.CategoryContract;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.test.AndroidTestCase;
+
+public class BinaryWriterTest extends AndroidTestCase {
+	private static byte[] encode(Object value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryWriter writer = new BinaryWriter(out);
+		writer.value(value);
+		writer.flush();
+		return out.toByteArray();
+	}
+
+	private static Object decode(byte[] bytes) throws IOException {
+		return new BinaryReader(new ByteArrayInputStream(bytes)).nextValue();
+	}
+
+	private static JSONObject createOperation(long row) throws JSONException {
+		JSONObject data = new JSONObject();
+		data.put("int", row);
+		data.put("long", Long.MAX_VALUE - row);
+		data.put("negative", -row);
+		data.put("double", -12.5);
+		// Rendered as "2" in JSON, and so read back as an integer
+		data.put("whole", 2.0);
+		data.put("string", "\u00dcberweisung " + row);
+		data.put("empty", "");
+		data.put("null", JSONObject.NULL);
+		data.put("boolean", row % 2 == 0);
+		JSONObject revisions = new JSONObject();
+		revisions.put(CategoryContract._ID, 0);
+		revisions.put(CategoryContract.COL_NAME_CAPTION, 300);
+		return JSONBuilder.newUpdateBuilder()
+				.withTable(CategoryContract.TABLE_NAME)
+				.withRow(row)
+				.withColumn(CategoryContract.COL_NAME_CAPTION)
+				.withData(data)
+				.build()
+				.put(JSONBuilder.JSON_FIELD_REVISIONS, revisions);
+	}
+
+	public void testRoundTrip() throws Exception {
+		JSONObject message = new JSONObject();
+		JSONArray updated = new JSONArray();
+		for (long row = 1; row <= 3; row++)
+			updated.put(createOperation(row));
+		message.put(Marshaller.JSON_FIELD_CREATED, new JSONArray());
+		message.put(Marshaller.JSON_FIELD_UPDATED, updated);
+		message.put(Marshaller.JSON_FIELD_ANCHOR, 1L << 40);
+
+		// Decoding must give the same as parsing the JSON, types included
+		JSONObject expected = new JSONObject(message.toString());
+		JSONObject actual = (JSONObject) decode(encode(message));
+		assertEquals(expected.toString(), actual.toString());
+		JSONObject expectedData = expected.getJSONArray(Marshaller.JSON_FIELD_UPDATED).getJSONObject(0).getJSONObject(JSONBuilder.JSON_FIELD_DATA);
+		JSONObject actualData = actual.getJSONArray(Marshaller.JSON_FIELD_UPDATED).getJSONObject(0).getJSONObject(JSONBuilder.JSON_FIELD_DATA);
+		for (String name: new String[] { "int", "long", "negative", "double", "whole", "string", "null", "boolean" })
+			assertEquals(name, expectedData.get(name).getClass(), actualData.get(name).getClass());
+		assertEquals(Long.valueOf(1L << 40), actual.get(Marshaller.JSON_FIELD_ANCHOR));
+	}
+
+	public void testBlob() throws Exception {
+		byte[] blob = { 0, -1, 127, -128 };
+		JSONObject object = new JSONObject();
+		object.put("blob", blob);
+		assertTrue(Arrays.equals(blob, (byte[]) ((JSONObject) decode(encode(object))).get("blob")));
+	}
+
+	public void testNamesWrittenOnce() throws Exception {
+		JSONArray operations = new JSONArray();
+		for (long row = 1; row <= 100; row++)
+			operations.put(createOperation(row));
+		byte[] encoded = encode(operations);
+
+		String string = new String(encoded, "ISO-8859-1");
+		for (String name: new String[] { CategoryContract.TABLE_NAME, CategoryContract.COL_NAME_CAPTION, JSONBuilder.JSON_FIELD_DATA }) {
+			int first = string.indexOf(name);
+			assertTrue(name + " was not written", first != -1);
+			assertEquals(name + " was written more than once", -1, string.indexOf(name, first + 1));
+		}
+		assertTrue(encoded.length < operations.toString().getBytes("UTF-8").length / 2);
+	}
+
+	public void testMalformed() throws Exception {
+		try {
+			decode("{}".getBytes("UTF-8"));
+			fail("JSON should not be accepted as a binary message");
+		} catch (IllegalStateException x) {}
+
+		byte[] encoded = encode(createOperation(1));
+		try {
+			decode(Arrays.copyOf(encoded, encoded.length - 1));
+			fail("Truncated message should not be accepted");
+		} catch (EOFException x) {}
+	}
+}
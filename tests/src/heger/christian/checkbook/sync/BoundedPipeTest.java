@@ -0,0 +1,108 @@
+package heger.christian.checkbook.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+public class BoundedPipeTest extends AndroidTestCase {
+	/**
+	 * Writes <code>data</code> to the pipe on a thread of its own, in pieces of varying size, then ends the stream,
+	 * with an error if one is passed. Any exception thrown while writing is kept in {@link #failure}.
+	 */
+	private static class Producer extends Thread {
+		private final BoundedPipe pipe;
+		private final byte[] data;
+		private final IOException error;
+		volatile IOException failure;
+
+		Producer(BoundedPipe pipe, byte[] data, IOException error) {
+			this.pipe = pipe;
+			this.data = data;
+			this.error = error;
+		}
+
+		@Override
+		public void run() {
+			OutputStream out = pipe.getOutputStream();
+			try {
+				int offset = 0;
+				for (int length = 1; offset < data.length; length = length * 3 % 1000 + 1) {
+					length = Math.min(length, data.length - offset);
+					if (length == 1)
+						out.write(data[offset]);
+					else
+						out.write(data, offset, length);
+					offset += length;
+				}
+				if (error != null)
+					pipe.closeWithError(error);
+				else
+					out.close();
+			} catch (IOException x) {
+				failure = x;
+			}
+		}
+	}
+
+	private static byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (i * 31);
+		return data;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[700];
+		int count;
+		while ((count = in.read(buffer)) != -1)
+			out.write(buffer, 0, count);
+		return out.toByteArray();
+	}
+
+	public void testTransfer() throws Exception {
+		// Far more than fits into the queue, so the producer has to wait for the consumer
+		byte[] data = createData(100000);
+		BoundedPipe pipe = new BoundedPipe(2, 1024);
+		Producer producer = new Producer(pipe, data, null);
+		producer.start();
+		assertTrue(Arrays.equals(data, readAll(pipe.getInputStream())));
+		producer.join();
+		assertNull(producer.failure);
+		assertEquals(-1, pipe.getInputStream().read());
+	}
+
+	public void testProducerError() throws Exception {
+		byte[] data = createData(5000);
+		BoundedPipe pipe = new BoundedPipe(2, 1024);
+		IOException error = new IOException("Marshalling failed");
+		new Producer(pipe, data, error).start();
+		InputStream in = pipe.getInputStream();
+		byte[] buffer = new byte[data.length];
+		for (int read = 0; read < data.length; )
+			read += in.read(buffer, read, data.length - read);
+		assertTrue("Data written before the error should arrive", Arrays.equals(data, buffer));
+		try {
+			in.read();
+			fail("Error should be passed on to the consumer");
+		} catch (IOException x) {
+			assertSame(error, x.getCause());
+		}
+	}
+
+	public void testConsumerClosed() throws Exception {
+		BoundedPipe pipe = new BoundedPipe(2, 1024);
+		Producer producer = new Producer(pipe, createData(100000), null);
+		producer.start();
+		pipe.getInputStream().read();
+		pipe.getInputStream().close();
+		producer.join(5000);
+		assertFalse("Producer should not stay blocked once the consumer is gone", producer.isAlive());
+		assertNotNull(producer.failure);
+		assertTrue(pipe.isClosedByConsumer());
+	}
+}
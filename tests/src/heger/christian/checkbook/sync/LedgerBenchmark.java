@@ -0,0 +1,100 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.CategoryContract;
+import heger.christian.checkbook.providers.CheckbookContentProvider;
+import heger.christian.checkbook.providers.EntryContract;
+import heger.christian.checkbook.providers.MetaContentProvider;
+import heger.christian.checkbook.providers.MetaContentProvider.JournalContract;
+import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
+
+import java.util.Locale;
+
+import android.content.ContentValues;
+import android.test.ProviderTestCase2;
+
+/**
+ * Base class for the sync benchmarks. It sets up the content providers and generates ledgers of
+ * categories and entries. Entries are spread over the categories and the months of a year, so that the
+ * generated values for an id are the same across benchmarks.
+ */
+public abstract class LedgerBenchmark extends ProviderTestCase2<CheckbookContentProvider> {
+	protected static final int NUM_CATEGORIES = 20;
+
+	private MetaContentProvider metaProvider;
+
+	public LedgerBenchmark() {
+		super(CheckbookContentProvider.class, CheckbookContentProvider.AUTHORITY);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		metaProvider = new MetaContentProvider();
+		metaProvider.attachInfo(getMockContext(), null);
+		getMockContentResolver().addProvider(MetaContentProvider.AUTHORITY, metaProvider);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		metaProvider.shutdown();
+		super.tearDown();
+	}
+
+	/**
+	 * Inserts categories with ids <code>1</code> to <code>count</code>.
+	 */
+	protected void createCategories(int count) {
+		ContentValues[] values = new ContentValues[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = new ContentValues();
+			values[i].put(CategoryContract._ID, i + 1);
+			values[i].put(CategoryContract.COL_NAME_CAPTION, "category" + i);
+		}
+		getMockContentResolver().bulkInsert(CategoryContract.CONTENT_URI, values);
+	}
+
+	/**
+	 * Inserts {@link #NUM_CATEGORIES} categories and entries with ids <code>1</code> to <code>count</code>.
+	 * Every third entry has details.
+	 */
+	protected void createLedger(int count) {
+		createCategories(NUM_CATEGORIES);
+
+		ContentValues[] values = new ContentValues[count];
+		for (int i = 0; i < count; i++) {
+			long id = i + 1;
+			values[i] = new ContentValues();
+			values[i].put(EntryContract._ID, id);
+			values[i].put(EntryContract.COL_NAME_CAPTION, "entry" + i);
+			values[i].put(EntryContract.COL_NAME_CATEGORY, getCategory(i));
+			values[i].put(EntryContract.COL_NAME_DATETIME, getDatetime(i));
+			values[i].put(EntryContract.COL_NAME_VALUE, getValue(i));
+			if (i % 3 == 0)
+				values[i].put(EntryContract.COL_NAME_DETAILS, "details for entry " + i);
+		}
+		getMockContentResolver().bulkInsert(EntryContract.CONTENT_URI, values);
+	}
+
+	/** Returns the category of the <code>n</code>th generated entry */
+	protected static long getCategory(long n) {
+		return 1 + n % NUM_CATEGORIES;
+	}
+
+	/** Returns the datetime of the <code>n</code>th generated entry */
+	protected static String getDatetime(long n) {
+		return String.format(Locale.US, "2014-%02d-%02d 12:00:00", 1 + n % 12, 1 + n % 28);
+	}
+
+	/** Returns the value of the <code>n</code>th generated entry */
+	protected static long getValue(long n) {
+		return (n * 7919) % 100000 - 50000;
+	}
+
+	protected JournalSnapshot getJournalSnapshot() {
+		return JournalSnapshot.createFromCursor(getMockContentResolver().query(JournalContract.CONTENT_URI, null, null, null, null));
+	}
+
+	protected RevisionTableSnapshot getRevisionTableSnapshot() {
+		return RevisionTableSnapshot.createFromCursor(getMockContentResolver().query(RevisionTableContract.CONTENT_URI, null, null, null, null));
+	}
+}
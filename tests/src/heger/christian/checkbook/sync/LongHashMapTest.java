@@ -0,0 +1,37 @@
+package heger.christian.checkbook.sync;
+
+import android.test.AndroidTestCase;
+
+public class LongHashMapTest extends AndroidTestCase {
+	public void testPutGet() {
+		LongHashMap<String> map = new LongHashMap<String>();
+		assertNull(map.put(1, "one"));
+		assertNull(map.put(-1, "minus one"));
+		assertNull(map.put(Long.MAX_VALUE, "max"));
+		assertNull(map.put(0, null));
+		assertEquals("one", map.put(1, "uno"));
+
+		assertEquals(4, map.size());
+		assertEquals("uno", map.get(1));
+		assertEquals("minus one", map.get(-1));
+		assertEquals("max", map.get(Long.MAX_VALUE));
+		assertNull(map.get(0));
+		assertTrue(map.containsKey(0));
+		assertFalse(map.containsKey(2));
+	}
+
+	public void testGrow() {
+		final int COUNT = 10000;
+		LongHashMap<Long> map = new LongHashMap<Long>();
+		// Put in descending order to check that keys() sorts
+		for (long key = COUNT - 1; key >= 0; key--)
+			map.put(key * 31, key);
+		assertEquals(COUNT, map.size());
+		long[] keys = map.keys();
+		assertEquals(COUNT, keys.length);
+		for (int i = 0; i < COUNT; i++) {
+			assertEquals(i * 31L, keys[i]);
+			assertEquals(Long.valueOf(i), map.get(i * 31L));
+		}
+	}
+}
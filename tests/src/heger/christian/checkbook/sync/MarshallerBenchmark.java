@@ -0,0 +1,49 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.CheckbookContentProvider;
+
+import org.json.JSONObject;
+
+import android.content.ContentProviderClient;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures marshalling time against the number of dirty rows. Results are written to the log
+ * under this class's name. The row counts are chosen to cross the per-query id limit of
+ * {@link Marshaller#MAX_IDS_PER_QUERY}.
+ */
+@LargeTest
+public class MarshallerBenchmark extends LedgerBenchmark {
+	private static final String TAG = MarshallerBenchmark.class.getSimpleName();
+
+	private void benchmark(int rows) {
+		createCategories(rows);
+
+		JournalSnapshot journalSnapshot = getJournalSnapshot();
+		RevisionTableSnapshot revisionTableSnapshot = getRevisionTableSnapshot();
+		ContentProviderClient provider = getMockContentResolver().acquireContentProviderClient(CheckbookContentProvider.AUTHORITY);
+
+		Marshaller marshaller = new Marshaller();
+		long start = SystemClock.elapsedRealtime();
+		JSONObject json = marshaller.marshal(journalSnapshot, revisionTableSnapshot, provider, 0);
+		long time = SystemClock.elapsedRealtime() - start;
+		Log.i(TAG, "Marshalled " + rows + " dirty rows in " + time + "ms");
+
+		assertEquals(rows, json.optJSONArray(Marshaller.JSON_FIELD_CREATED).length());
+		assertEquals(0, marshaller.getStats().numSkippedEntries);
+	}
+
+	public void testMarshal100() {
+		benchmark(100);
+	}
+
+	public void testMarshal1000() {
+		benchmark(1000);
+	}
+
+	public void testMarshal5000() {
+		benchmark(5000);
+	}
+}
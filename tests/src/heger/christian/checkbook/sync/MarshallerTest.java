@@ -9,7 +9,12 @@ import heger.christian.checkbook.providers.MetaContentProvider.KeyGenerationCont
 import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
 import heger.christian.checkbook.providers.RuleContract;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -263,6 +268,64 @@ public class MarshallerTest extends ProviderTestCase2<CheckbookContentProvider>
 		assertEquals(4, marshaller.getStats().numSkippedEntries);
 	}
 
+	public void testMarshalToStream() throws IOException {
+		Marshaller marshaller = new Marshaller();
+		writeCreations();
+		writeUpdates();
+		writeDeletions();
+		JournalSnapshot journalSnapshot = JournalSnapshot.createFromCursor(getMockContentResolver().query(JournalContract.CONTENT_URI, null, null, null, null));
+		RevisionTableSnapshot revisionTableSnapshot = RevisionTableSnapshot.createFromCursor(getMockContentResolver().query(RevisionTableContract.CONTENT_URI, null, null, null, null));
+
+		ContentProviderClient provider = getMockContentResolver().acquireContentProviderClient(CheckbookContentProvider.AUTHORITY);
+		String expected = marshaller.marshal(journalSnapshot, revisionTableSnapshot, provider, 7).toString();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		marshaller.marshal(journalSnapshot, revisionTableSnapshot, provider, 7, out);
+
+		// Streamed output must be byte for byte the same as the in-memory representation
+		assertTrue(Arrays.equals(expected.getBytes("UTF-8"), out.toByteArray()));
+		assertEquals(4, marshaller.getStats().numSkippedEntries);
+	}
+
+	public void testMarshalBinary() throws Exception {
+		Marshaller marshaller = new Marshaller();
+		writeCreations();
+		writeUpdates();
+		writeDeletions();
+		JournalSnapshot journalSnapshot = JournalSnapshot.createFromCursor(getMockContentResolver().query(JournalContract.CONTENT_URI, null, null, null, null));
+		RevisionTableSnapshot revisionTableSnapshot = RevisionTableSnapshot.createFromCursor(getMockContentResolver().query(RevisionTableContract.CONTENT_URI, null, null, null, null));
+
+		ContentProviderClient provider = getMockContentResolver().acquireContentProviderClient(CheckbookContentProvider.AUTHORITY);
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		marshaller.marshal(journalSnapshot, revisionTableSnapshot, provider, 7, 9L, json);
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		marshaller.marshalBinary(journalSnapshot, revisionTableSnapshot, provider, 7, 9L, binary);
+
+		// Decoded binary output must be the same as the parsed JSON output
+		JSONObject expected = new JSONObject(json.toString("UTF-8"));
+		Object actual = new BinaryReader(new ByteArrayInputStream(binary.toByteArray())).nextValue();
+		assertEquals(expected.toString(), actual.toString());
+		assertTrue(binary.size() < json.size());
+		assertEquals(4, marshaller.getStats().numSkippedEntries);
+	}
+
+	public void testRevisionSnapshotForJournal() {
+		writeCreations();
+		// Only take the journal for rules
+		JournalSnapshot journalSnapshot = JournalSnapshot.createFromCursor(getMockContentResolver().query(JournalContract.CONTENT_URI,
+				null,
+				JournalContract.COL_NAME_TABLE + "=?",
+				new String[] { RuleContract.TABLE_NAME },
+				null));
+		RevisionTableSnapshot revisionTableSnapshot = RevisionTableSnapshot.createForJournal(getMockContentResolver(), journalSnapshot);
+
+		assertEquals(0, revisionTableSnapshot.getRevision(RuleContract.TABLE_NAME, RULE_ID, RuleContract.COL_NAME_ANTECEDENT));
+		assertEquals(3, revisionTableSnapshot.getRevisionsForRow(RuleContract.TABLE_NAME, RULE_ID2).size());
+		try {
+			revisionTableSnapshot.getRevisionsForRow(CategoryContract.TABLE_NAME, CATEGORY_ID);
+			fail("Revisions for rows not in the journal should not be read");
+		} catch (NoSuchElementException x) {}
+	}
+
 	public void testGetStats() {
 //		fail("Not yet implemented");
 	}
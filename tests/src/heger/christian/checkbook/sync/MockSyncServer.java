@@ -0,0 +1,256 @@
+package heger.christian.checkbook.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Minimal HTTP server on the loopback interface for exercising the sync protocol in process, without the
+ * mock server in <code>tests/env</code>. It serves one request per connection on a background thread, records
+ * the request bodies and answers with whatever {@link #respond(int, JSONObject)} returns.
+ * <p>
+ * Request bodies may be sent with a fixed length or chunked. Compressed request bodies are decompressed, or rejected if the server is set to not accept them.
+ * Responses are compressed whenever the client accepts it.
+ * <p>
+ * If the server is set to support the binary encoding, binary request bodies are decoded, and responses are
+ * sent in the binary encoding whenever the client accepts it. Otherwise, binary requests are rejected.
+ */
+public abstract class MockSyncServer {
+	private final ServerSocket socket;
+	private final Thread thread;
+	private final List<JSONObject> requests = Collections.synchronizedList(new ArrayList<JSONObject>());
+	private final List<Boolean> compressed = Collections.synchronizedList(new ArrayList<Boolean>());
+	private final List<Boolean> binary = Collections.synchronizedList(new ArrayList<Boolean>());
+	private volatile boolean acceptCompressedRequests = true;
+	private volatile boolean supportBinary = false;
+
+	public MockSyncServer() throws IOException {
+		socket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket connection = socket.accept();
+						try {
+							serve(connection);
+						} finally {
+							connection.close();
+						}
+					}
+				} catch (SocketException x) {
+					// Server socket was closed
+				} catch (IOException x) {
+					throw new RuntimeException(x);
+				}
+			}
+		});
+		thread.start();
+	}
+
+	/**
+	 * Returns the response body for the <code>index</code>th request, counting from 0, or <code>null</code>
+	 * to answer with an internal server error.
+	 */
+	protected abstract JSONObject respond(int index, JSONObject request) throws JSONException;
+
+	public URL getUrl() throws IOException {
+		return new URL("http", "127.0.0.1", socket.getLocalPort(), "/sync");
+	}
+
+	/**
+	 * Returns the bodies of all requests received so far.
+	 */
+	public List<JSONObject> getRequests() {
+		return requests;
+	}
+
+	/**
+	 * Returns for each request received so far whether its body was compressed, including rejected ones.
+	 */
+	public List<Boolean> getCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Sets whether compressed request bodies are accepted. If not, they are answered with status 415, as
+	 * a server not supporting them would.
+	 */
+	public void setAcceptCompressedRequests(boolean acceptCompressedRequests) {
+		this.acceptCompressedRequests = acceptCompressedRequests;
+	}
+
+	/**
+	 * Returns for each request received so far whether its body was in the binary encoding, including rejected ones.
+	 */
+	public List<Boolean> getBinary() {
+		return binary;
+	}
+
+	/**
+	 * Sets whether the binary encoding is supported. If not, binary requests are answered with status 415.
+	 * By default, it is not supported.
+	 */
+	public void setSupportBinary(boolean supportBinary) {
+		this.supportBinary = supportBinary;
+	}
+
+	public void shutdown() throws IOException, InterruptedException {
+		socket.close();
+		thread.join();
+	}
+
+	private void serve(Socket connection) throws IOException {
+		InputStream in = connection.getInputStream();
+		int length = 0;
+		boolean chunked = false;
+		boolean gzipped = false;
+		boolean acceptsGzip = false;
+		boolean isBinary = false;
+		boolean acceptsBinary = false;
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				continue;
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length"))
+				length = Integer.parseInt(value);
+			else if (name.equalsIgnoreCase("Transfer-Encoding"))
+				chunked = value.equalsIgnoreCase("chunked");
+			else if (name.equalsIgnoreCase("Content-Encoding"))
+				gzipped = value.equalsIgnoreCase("gzip");
+			else if (name.equalsIgnoreCase("Accept-Encoding"))
+				acceptsGzip = value.toLowerCase(Locale.US).contains("gzip");
+			else if (name.equalsIgnoreCase("Content-Type"))
+				isBinary = value.startsWith(BinaryWriter.CONTENT_TYPE);
+			else if (name.equalsIgnoreCase("Accept"))
+				acceptsBinary = value.contains(BinaryWriter.CONTENT_TYPE);
+		}
+		byte[] body;
+		if (chunked) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			while ((length = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+				buffer.write(read(in, length));
+				// Each chunk is followed by a line break
+				readLine(in);
+			}
+			// Skip the trailer
+			while (!readLine(in).isEmpty());
+			body = buffer.toByteArray();
+		} else {
+			body = read(in, length);
+		}
+
+		compressed.add(gzipped);
+		binary.add(isBinary);
+		if ((gzipped && !acceptCompressedRequests) || (isBinary && !supportBinary)) {
+			send(connection, "415 Unsupported Media Type", null, new byte[0], false);
+			return;
+		}
+		if (gzipped)
+			body = gunzip(body);
+
+		String status = "200 OK";
+		String type = "application/json";
+		byte[] response;
+		try {
+			JSONObject request;
+			if (isBinary)
+				request = (JSONObject) new BinaryReader(new ByteArrayInputStream(body)).nextValue();
+			else
+				request = new JSONObject(new String(body, "UTF-8"));
+			int index = requests.size();
+			requests.add(request);
+			JSONObject result = respond(index, request);
+			if (result != null && supportBinary && acceptsBinary) {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				BinaryWriter writer = new BinaryWriter(buffer);
+				writer.value(result);
+				writer.flush();
+				response = buffer.toByteArray();
+				type = BinaryWriter.CONTENT_TYPE;
+			} else if (result != null) {
+				response = result.toString().getBytes("UTF-8");
+			} else {
+				status = "500 Internal Server Error";
+				response = new byte[0];
+			}
+		} catch (JSONException x) {
+			status = "400 Bad Request";
+			response = new byte[0];
+		}
+		send(connection, status, type, response, acceptsGzip && response.length > 0);
+	}
+
+	private static void send(Socket connection, String status, String type, byte[] body, boolean gzip) throws IOException {
+		if (gzip) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			GZIPOutputStream compressor = new GZIPOutputStream(buffer);
+			compressor.write(body);
+			compressor.close();
+			body = buffer.toByteArray();
+		}
+		OutputStream out = connection.getOutputStream();
+		out.write(("HTTP/1.1 " + status + "\r\n"
+				+ (type != null ? "Content-Type: " + type + "\r\n" : "")
+				+ (gzip ? "Content-Encoding: gzip\r\n" : "")
+				+ "Content-Length: " + body.length + "\r\n"
+				+ "Connection: close\r\n"
+				+ "\r\n").getBytes("ISO-8859-1"));
+		out.write(body);
+		out.flush();
+	}
+
+	private static byte[] gunzip(byte[] data) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1)
+				out.write(buffer, 0, count);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] read(InputStream in, int length) throws IOException {
+		byte[] result = new byte[length];
+		for (int read = 0; read < length; ) {
+			int count = in.read(result, read, length - read);
+			if (count == -1)
+				throw new IOException("Request body ended prematurely");
+			read += count;
+		}
+		return result;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (b != '\r')
+				line.write(b);
+		}
+		return line.toString("ISO-8859-1");
+	}
+}
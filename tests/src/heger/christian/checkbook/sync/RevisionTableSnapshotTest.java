@@ -2,6 +2,7 @@ package heger.christian.checkbook.sync;
 
 import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
 
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import android.database.MatrixCursor;
@@ -55,4 +56,22 @@ public class RevisionTableSnapshotTest extends AndroidTestCase {
 		RevisionTableSnapshot snapshot = RevisionTableSnapshot.createFromCursor(cursor);
 		assertEquals(5, snapshot.getMaxRevision(TABLE, ROW));
 	}
+
+	public void testGetRevisionsForRow() {
+		cursor.addRow(new Object[] { TABLE, ROW, COLUMN, 1 });
+		cursor.addRow(new Object[] { TABLE + "2", ROW, COLUMN + "2", 2 });
+		cursor.addRow(new Object[] { TABLE, ROW, COLUMN + "3", 3 });
+
+		RevisionTableSnapshot snapshot = RevisionTableSnapshot.createFromCursor(cursor);
+		Map<String, Integer> revisions = snapshot.getRevisionsForRow(TABLE, ROW);
+		assertEquals(2, revisions.size());
+		assertEquals(Integer.valueOf(1), revisions.get(COLUMN));
+		assertEquals(Integer.valueOf(3), revisions.get(COLUMN + "3"));
+
+		// Columns of other tables must not show up
+		try {
+			snapshot.getRevision(TABLE, ROW, COLUMN + "2");
+			fail();
+		} catch (NoSuchElementException x) {}
+	}
 }
@@ -0,0 +1,190 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.EntryContract;
+import heger.christian.checkbook.providers.SharedTransaction;
+import heger.christian.checkbook.providers.StatementBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentProviderOperation;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares applying sync operations as <code>ContentProviderOperation</code>s through the providers against
+ * applying them as a {@link StatementBatch}, for a mix of creations, updates and deletions of entries. Operations
+ * are built from the same JSON and applied in chunks of {@link Unmarshaller#DEFAULT_CHUNK_SIZE}, as the
+ * {@link Unmarshaller} would, in a transaction that is rolled back afterwards. Results are written to the log
+ * under this class's name.
+ */
+@LargeTest
+public class StatementBatchBenchmark extends LedgerBenchmark {
+	private static final String TAG = StatementBatchBenchmark.class.getSimpleName();
+	private static final String[] REVISIONED_COLUMNS = new String[] { EntryContract.COL_NAME_CAPTION, EntryContract.COL_NAME_CATEGORY,
+			EntryContract.COL_NAME_DATETIME, EntryContract.COL_NAME_VALUE };
+
+	private static final int CREATION = 0;
+	private static final int UPDATE = 1;
+	private static final int DELETION = 2;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		createCategories(NUM_CATEGORIES);
+	}
+
+	private static JSONObject createEntryOperation(long id, int revision, boolean withData) throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put(OperationFactory.JSON_FIELD_TABLE, EntryContract.TABLE_NAME);
+		json.put(OperationFactory.JSON_FIELD_ROW, id);
+		JSONObject revisions = new JSONObject();
+		JSONObject data = new JSONObject();
+		if (withData) {
+			data.put(EntryContract.COL_NAME_CAPTION, "entry" + id + "." + revision);
+			data.put(EntryContract.COL_NAME_CATEGORY, getCategory(id));
+			data.put(EntryContract.COL_NAME_DATETIME, getDatetime(id));
+			data.put(EntryContract.COL_NAME_VALUE, getValue(id));
+		}
+		for (String column: REVISIONED_COLUMNS)
+			revisions.put(column, revision);
+		json.put(OperationFactory.JSON_FIELD_DATA, data);
+		json.put(OperationFactory.JSON_FIELD_REVISIONS, revisions);
+		return json;
+	}
+
+	/**
+	 * Generates sync entries creating, updating and deleting entries that result in at least <code>numOperations</code>
+	 * operations. Every entry is created, every second one is updated afterwards, and every fourth one is deleted.
+	 * @param kinds - Receives the kind of each generated entry
+	 */
+	private static List<JSONObject> createEntries(int numOperations, List<Integer> kinds) throws JSONException {
+		List<JSONObject> entries = new ArrayList<JSONObject>();
+		int count = 0;
+		for (long id = 1; count < numOperations; id++) {
+			entries.add(createEntryOperation(id, 1, true));
+			kinds.add(CREATION);
+			count += 1 + REVISIONED_COLUMNS.length;
+			if (id % 2 == 0) {
+				entries.add(createEntryOperation(id - 1, 2, true));
+				kinds.add(UPDATE);
+				count += 1 + REVISIONED_COLUMNS.length;
+			}
+			if (id % 4 == 0) {
+				entries.add(createEntryOperation(id - 3, 3, false));
+				kinds.add(DELETION);
+				count += 1 + REVISIONED_COLUMNS.length;
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Applies <code>entries</code> in a transaction that is rolled back afterwards.
+	 * @return The time taken in milliseconds
+	 */
+	private long apply(List<JSONObject> entries, List<Integer> kinds, boolean useStatements, int expectedEntries) throws Exception {
+		OperationFactory factory = new OperationFactory(new Translator());
+		List<ContentProviderOperation> chunk = new ArrayList<ContentProviderOperation>(Unmarshaller.DEFAULT_CHUNK_SIZE);
+		StatementBatch batch = new StatementBatch();
+		SharedTransaction transaction = SharedTransaction.newInstance(getMockContext());
+		transaction.begin();
+		try {
+			long start = SystemClock.elapsedRealtime();
+			for (int i = 0; i < entries.size(); i++) {
+				JSONObject entry = entries.get(i);
+				switch (kinds.get(i)) {
+					case CREATION:
+						if (useStatements)
+							factory.addCreateOperations(entry, batch);
+						else
+							chunk.addAll(factory.getCreateOperations(entry));
+						break;
+					case UPDATE:
+						if (useStatements)
+							factory.addUpdateOperations(entry, batch);
+						else
+							chunk.addAll(factory.getUpdateOperations(entry));
+						break;
+					case DELETION:
+						if (useStatements)
+							factory.addDeleteOperations(entry, batch);
+						else
+							chunk.addAll(factory.getDeleteOperations(entry));
+						break;
+				}
+				if (batch.size() >= Unmarshaller.DEFAULT_CHUNK_SIZE || i == entries.size() - 1) {
+					transaction.apply(batch);
+					batch.clear();
+				}
+				if (chunk.size() >= Unmarshaller.DEFAULT_CHUNK_SIZE || i == entries.size() - 1) {
+					transaction.apply(chunk);
+					chunk.clear();
+				}
+			}
+			long time = SystemClock.elapsedRealtime() - start;
+
+			Cursor cursor = transaction.query(EntryContract.CONTENT_URI, null, null, null, null);
+			try {
+				assertEquals(expectedEntries, cursor.getCount());
+			} finally {
+				cursor.close();
+			}
+			return time;
+		} finally {
+			// Not successful, so the next run starts from the same state
+			transaction.end();
+		}
+	}
+
+	private void benchmark(int numOperations) throws Exception {
+		List<Integer> kinds = new ArrayList<Integer>();
+		List<JSONObject> entries = createEntries(numOperations, kinds);
+		int operations = entries.size() * (1 + REVISIONED_COLUMNS.length);
+
+		// Warm up both paths, so that neither pays for compiling the code or opening the database
+		List<JSONObject> warmUp = entries.subList(0, Math.min(entries.size(), 100));
+		apply(warmUp, kinds, false, countEntries(kinds, warmUp.size()));
+		apply(warmUp, kinds, true, countEntries(kinds, warmUp.size()));
+
+		int expectedEntries = countEntries(kinds, kinds.size());
+
+		long operationsTime = apply(entries, kinds, false, expectedEntries);
+		long statementsTime = apply(entries, kinds, true, expectedEntries);
+
+		Log.i(TAG, String.format(Locale.US, "%d operations: ContentProviderOperations %dms, statements %dms (%.1fx)",
+				operations, operationsTime, statementsTime, statementsTime > 0 ? (double) operationsTime / statementsTime : 0));
+	}
+
+	/**
+	 * Returns the number of entries left after applying the first <code>limit</code> generated entries.
+	 */
+	private static int countEntries(List<Integer> kinds, int limit) {
+		int count = 0;
+		for (int i = 0; i < limit; i++) {
+			if (kinds.get(i) == CREATION)
+				count++;
+			else if (kinds.get(i) == DELETION)
+				count--;
+		}
+		return count;
+	}
+
+	public void testOperations1000() throws Exception {
+		benchmark(1000);
+	}
+
+	public void testOperations10000() throws Exception {
+		benchmark(10000);
+	}
+
+	public void testOperations100000() throws Exception {
+		benchmark(100000);
+	}
+}
@@ -0,0 +1,282 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.CategoryContract;
+import heger.christian.checkbook.providers.CheckbookContentProvider;
+import heger.christian.checkbook.providers.MetaContentProvider;
+import heger.christian.checkbook.providers.MetaContentProvider.JournalContract;
+import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
+import heger.christian.checkbook.providers.MetaContentProvider.SequenceAnchorContract;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+public class SyncSessionTest extends ProviderTestCase2<CheckbookContentProvider> {
+	private static final int NUM_CATEGORIES = 5;
+	private static final long FINAL_ANCHOR = 1000;
+
+	private MetaContentProvider metaProvider;
+	private MockSyncServer server;
+	/** Index of the request the server fails, or -1 */
+	private int failedRequest = 1;
+
+	public SyncSessionTest() {
+		super(CheckbookContentProvider.class, CheckbookContentProvider.AUTHORITY);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		metaProvider = new MetaContentProvider();
+		metaProvider.attachInfo(getMockContext(), null);
+		getMockContentResolver().addProvider(MetaContentProvider.AUTHORITY, metaProvider);
+
+		SyncSession.compressedRequestsRejected = false;
+		SyncSession.binaryAccepted = false;
+		// Acknowledges all segments, but fails one request as if the connection had been lost
+		server = new MockSyncServer() {
+			@Override
+			protected JSONObject respond(int index, JSONObject request) throws JSONException {
+				if (index == failedRequest)
+					return null;
+				JSONObject response = new JSONObject();
+				response.put(Unmarshaller.JSON_FIELD_CREATED, new JSONArray());
+				response.put(Unmarshaller.JSON_FIELD_UPDATED, new JSONArray());
+				response.put(Unmarshaller.JSON_FIELD_DELETED, new JSONArray());
+				response.put(Unmarshaller.JSON_FIELD_ANCHOR, request.has(Marshaller.JSON_FIELD_UNTIL) ? request.getLong(Marshaller.JSON_FIELD_UNTIL) : FINAL_ANCHOR);
+				return response;
+			}
+		};
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.shutdown();
+		metaProvider.shutdown();
+		super.tearDown();
+	}
+
+	private long getAnchor() {
+		Cursor cursor = getMockContentResolver().query(SequenceAnchorContract.CONTENT_URI, null, null, null, null);
+		try {
+			assertTrue(cursor.moveToFirst());
+			return cursor.getLong(0);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static int getCreated(JSONObject request) throws JSONException {
+		return request.getJSONArray(Marshaller.JSON_FIELD_CREATED).length();
+	}
+
+	private void insertCategories(int count) {
+		for (int i = 1; i <= count; i++) {
+			ContentValues values = new ContentValues();
+			values.put(CategoryContract._ID, i);
+			values.put(CategoryContract.COL_NAME_CAPTION, "category" + i);
+			getMockContentResolver().insert(CategoryContract.CONTENT_URI, values);
+		}
+	}
+
+	private int run(SyncSession session) throws IOException {
+		ContentProviderClient provider = getMockContentResolver().acquireContentProviderClient(CheckbookContentProvider.AUTHORITY);
+		try {
+			return session.run(provider, new SyncResult());
+		} finally {
+			provider.release();
+		}
+	}
+
+	public void testResume() throws Exception {
+		ContentResolver resolver = getMockContentResolver();
+		insertCategories(NUM_CATEGORIES);
+		long[] sqns = new long[NUM_CATEGORIES];
+		Cursor cursor = resolver.query(JournalContract.CONTENT_URI, new String[] { JournalContract.COL_NAME_SEQUENCE_NUMBER }, null, null, JournalContract.COL_NAME_SEQUENCE_NUMBER);
+		try {
+			assertEquals(NUM_CATEGORIES, cursor.getCount());
+			for (int i = 0; cursor.moveToNext(); i++)
+				sqns[i] = cursor.getLong(0);
+		} finally {
+			cursor.close();
+		}
+
+		SyncSession session = new SyncSession(getMockContext(), server.getUrl(), "token", null);
+		session.setJournalChunkSize(2);
+		ContentProviderClient provider = resolver.acquireContentProviderClient(CheckbookContentProvider.AUTHORITY);
+		try {
+			SyncResult result = new SyncResult();
+			assertEquals("Interrupted sync should report the failed request", 500, session.run(provider, result));
+			assertEquals(2, session.getNumSegments());
+			assertEquals("Anchor should have been advanced past the acknowledged segment only", sqns[2], getAnchor());
+
+			assertEquals(200, session.run(provider, result));
+			assertEquals("Resumed sync should start with the interrupted segment", 2, session.getNumSegments());
+			assertEquals(FINAL_ANCHOR, getAnchor());
+			assertEquals(0, result.stats.numParseExceptions);
+			assertFalse(result.databaseError);
+		} finally {
+			provider.release();
+		}
+
+		List<JSONObject> requests = server.getRequests();
+		assertEquals(4, requests.size());
+		assertEquals(0, requests.get(0).getLong(Marshaller.JSON_FIELD_ANCHOR));
+		assertEquals(sqns[2], requests.get(0).getLong(Marshaller.JSON_FIELD_UNTIL));
+		assertEquals(2, getCreated(requests.get(0)));
+		// The interrupted segment is sent again
+		for (int i = 1; i <= 2; i++) {
+			assertEquals(sqns[2], requests.get(i).getLong(Marshaller.JSON_FIELD_ANCHOR));
+			assertEquals(sqns[4], requests.get(i).getLong(Marshaller.JSON_FIELD_UNTIL));
+			assertEquals(2, getCreated(requests.get(i)));
+		}
+		assertEquals(sqns[4], requests.get(3).getLong(Marshaller.JSON_FIELD_ANCHOR));
+		assertFalse("Last segment must not be marked as partial", requests.get(3).has(Marshaller.JSON_FIELD_UNTIL));
+		assertEquals(1, getCreated(requests.get(3)));
+
+		// Every category was acknowledged exactly once, so its revisions were incremented exactly once
+		cursor = resolver.query(RevisionTableContract.CONTENT_URI, null, null, null, null);
+		try {
+			RevisionTableSnapshot revisions = RevisionTableSnapshot.createFromCursor(cursor);
+			for (int i = 1; i <= NUM_CATEGORIES; i++)
+				assertEquals(1, revisions.getRevision(CategoryContract.TABLE_NAME, i, CategoryContract._ID));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testCompression() throws Exception {
+		failedRequest = -1;
+		insertCategories(50);
+		SyncSession session = new SyncSession(getMockContext(), server.getUrl(), "token", null);
+		assertEquals(200, run(session));
+		assertEquals(FINAL_ANCHOR, getAnchor());
+		assertEquals(Arrays.asList(true), server.getCompressed());
+		assertEquals(50, getCreated(server.getRequests().get(0)));
+		assertTrue("Repetitive request was not compressed: " + session.getBytesSent() + " of " + session.getBytesSentUncompressed() + " bytes",
+				session.getBytesSent() < session.getBytesSentUncompressed());
+		assertTrue(session.getBytesReceived() > 0);
+		assertTrue(session.getBytesReceivedUncompressed() > 0);
+	}
+
+	public void testTrace() throws Exception {
+		failedRequest = -1;
+		insertCategories(NUM_CATEGORIES);
+		SyncSession session = new SyncSession(getMockContext(), server.getUrl(), "token", null);
+		session.setJournalChunkSize(2);
+		assertEquals(200, run(session));
+
+		SyncTrace trace = session.getTrace();
+		int segments = session.getNumSegments();
+		assertEquals(segments, trace.getSpans(SyncTrace.PHASE_SNAPSHOT));
+		assertEquals(segments, trace.getSpans(SyncTrace.PHASE_HTTP));
+		assertEquals(segments, trace.getSpans(SyncTrace.PHASE_UNMARSHAL));
+		assertEquals(NUM_CATEGORIES, trace.getCount(SyncTrace.PHASE_SNAPSHOT));
+		assertEquals(NUM_CATEGORIES, trace.getCount(SyncTrace.PHASE_MARSHAL));
+		assertEquals(session.getBytesSent() + session.getBytesReceived(), trace.getBytes(SyncTrace.PHASE_HTTP));
+		assertEquals(session.getBytesReceivedUncompressed(), trace.getBytes(SyncTrace.PHASE_UNMARSHAL));
+	}
+
+	public void testPipelined() throws Exception {
+		server.setSupportBinary(true);
+		insertCategories(NUM_CATEGORIES);
+		SyncSession session = new SyncSession(getMockContext(), server.getUrl(), "token", null);
+		session.setJournalChunkSize(2);
+		session.setPipelined(true);
+		assertEquals("Interrupted sync should report the failed request", 500, run(session));
+		assertEquals(2, session.getNumSegments());
+		assertEquals(200, run(session));
+		assertEquals(2, session.getNumSegments());
+		assertEquals(FINAL_ANCHOR, getAnchor());
+		assertTrue(session.getBytesSent() > 0);
+		assertTrue(session.getBytesReceivedUncompressed() > 0);
+
+		List<JSONObject> requests = server.getRequests();
+		assertEquals(4, requests.size());
+		assertEquals(Arrays.asList(false, true, true, true), server.getBinary());
+		assertEquals(2, getCreated(requests.get(0)));
+		assertEquals(2, getCreated(requests.get(2)));
+		assertEquals(1, getCreated(requests.get(3)));
+
+		// Every category was acknowledged exactly once
+		Cursor cursor = getMockContentResolver().query(RevisionTableContract.CONTENT_URI, null, null, null, null);
+		try {
+			RevisionTableSnapshot revisions = RevisionTableSnapshot.createFromCursor(cursor);
+			for (int i = 1; i <= NUM_CATEGORIES; i++)
+				assertEquals(1, revisions.getRevision(CategoryContract.TABLE_NAME, i, CategoryContract._ID));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testPipelinedUncompressedFallback() throws Exception {
+		failedRequest = -1;
+		server.setAcceptCompressedRequests(false);
+		insertCategories(NUM_CATEGORIES);
+		SyncSession session = new SyncSession(getMockContext(), server.getUrl(), "token", null);
+		session.setPipelined(true);
+		assertEquals(200, run(session));
+		assertEquals(FINAL_ANCHOR, getAnchor());
+		assertEquals("Rejected request should be marshalled again and sent uncompressed", Arrays.asList(true, false), server.getCompressed());
+		assertEquals(NUM_CATEGORIES, getCreated(server.getRequests().get(0)));
+	}
+
+	public void testUncompressedFallback() throws Exception {
+		failedRequest = -1;
+		server.setAcceptCompressedRequests(false);
+		insertCategories(NUM_CATEGORIES);
+		SyncSession session = new SyncSession(getMockContext(), server.getUrl(), "token", null);
+		assertEquals(200, run(session));
+		assertEquals(FINAL_ANCHOR, getAnchor());
+		assertEquals("Rejected request should be repeated uncompressed", Arrays.asList(true, false), server.getCompressed());
+		assertEquals(NUM_CATEGORIES, getCreated(server.getRequests().get(0)));
+		assertTrue("Rejected request should count towards bytes sent", session.getBytesSent() > session.getBytesSentUncompressed());
+
+		// Later requests go out uncompressed right away
+		assertEquals(200, run(session));
+		assertEquals(Arrays.asList(true, false, false), server.getCompressed());
+	}
+
+	public void testBinaryNegotiation() throws Exception {
+		failedRequest = -1;
+		server.setSupportBinary(true);
+		insertCategories(NUM_CATEGORIES);
+		SyncSession session = new SyncSession(getMockContext(), server.getUrl(), "token", null);
+		session.setJournalChunkSize(2);
+		assertEquals(200, run(session));
+		assertEquals(3, session.getNumSegments());
+		assertEquals(FINAL_ANCHOR, getAnchor());
+		assertEquals("Binary requests should only be sent after a binary response", Arrays.asList(false, true, true), server.getBinary());
+		assertTrue(SyncSession.binaryAccepted);
+		List<JSONObject> requests = server.getRequests();
+		assertEquals(2, getCreated(requests.get(1)));
+		assertEquals(1, getCreated(requests.get(2)));
+	}
+
+	public void testBinaryRejected() throws Exception {
+		failedRequest = -1;
+		// As if a previous server had accepted binary requests
+		SyncSession.binaryAccepted = true;
+		insertCategories(NUM_CATEGORIES);
+		SyncSession session = new SyncSession(getMockContext(), server.getUrl(), "token", null);
+		assertEquals(200, run(session));
+		assertEquals(1, session.getNumSegments());
+		assertEquals(FINAL_ANCHOR, getAnchor());
+		assertEquals("Rejected binary request should be repeated as JSON", Arrays.asList(true, false), server.getBinary());
+		assertEquals("Rejection should not be attributed to compression", Arrays.asList(true, true), server.getCompressed());
+		assertFalse(SyncSession.binaryAccepted);
+		assertFalse(SyncSession.compressedRequestsRejected);
+		assertEquals(NUM_CATEGORIES, getCreated(server.getRequests().get(0)));
+	}
+}
@@ -0,0 +1,95 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.MetaContentProvider;
+import heger.christian.checkbook.providers.MetaContentProvider.SyncTraceContract;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+
+public class SyncTraceTest extends ProviderTestCase2<MetaContentProvider> {
+	public SyncTraceTest() {
+		super(MetaContentProvider.class, MetaContentProvider.AUTHORITY);
+	}
+
+	public void testNesting() {
+		SyncTrace trace = new SyncTrace();
+		SyncTrace.Span outer = trace.begin(SyncTrace.PHASE_UNMARSHAL);
+		for (int i = 0; i < 2; i++) {
+			SyncTrace.Span inner = trace.begin(SyncTrace.PHASE_APPLY);
+			SystemClock.sleep(50);
+			inner.end(10, 0);
+		}
+		outer.end(20, 100);
+		// Ending again must not count twice
+		outer.end(20, 100);
+
+		assertEquals(Arrays.asList(SyncTrace.PHASE_APPLY, SyncTrace.PHASE_UNMARSHAL), trace.getPhases());
+		assertEquals(2, trace.getSpans(SyncTrace.PHASE_APPLY));
+		assertEquals(20, trace.getCount(SyncTrace.PHASE_APPLY));
+		assertEquals(1, trace.getSpans(SyncTrace.PHASE_UNMARSHAL));
+		assertEquals(100, trace.getBytes(SyncTrace.PHASE_UNMARSHAL));
+		assertTrue(trace.getDuration(SyncTrace.PHASE_APPLY) >= 100000);
+		assertTrue("Nested time should not be counted for the enclosing phase", trace.getDuration(SyncTrace.PHASE_UNMARSHAL) < 50000);
+
+		// Spans begun after the outer one has ended are not nested in it
+		trace.begin(SyncTrace.PHASE_HTTP).end();
+		assertEquals(1, trace.getSpans(SyncTrace.PHASE_UNMARSHAL));
+		assertEquals(1, trace.getSpans(SyncTrace.PHASE_HTTP));
+	}
+
+	private static SyncTrace createTrace(long started) {
+		SyncTrace trace = new SyncTrace(started);
+		trace.begin(SyncTrace.PHASE_MARSHAL).end(5, 500);
+		trace.begin(SyncTrace.PHASE_HTTP).end(0, 1000);
+		return trace;
+	}
+
+	public void testHistory() {
+		for (int i = 1; i <= SyncTraceContract.MAX_SYNCS + 2; i++)
+			createTrace(i).save(getMockContentResolver());
+
+		Cursor cursor = getMockContentResolver().query(SyncTraceContract.CONTENT_URI, null, null, null, SyncTraceContract.COL_NAME_SYNC);
+		try {
+			assertEquals("Only the most recent syncs should be kept", SyncTraceContract.MAX_SYNCS * 2, cursor.getCount());
+			assertTrue(cursor.moveToFirst());
+			assertEquals(3, cursor.getLong(cursor.getColumnIndex(SyncTraceContract.COL_NAME_SYNC)));
+			assertTrue(cursor.moveToLast());
+			assertEquals(SyncTraceContract.MAX_SYNCS + 2, cursor.getLong(cursor.getColumnIndex(SyncTraceContract.COL_NAME_SYNC)));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testExport() throws Exception {
+		createTrace(1).save(getMockContentResolver());
+		createTrace(2).save(getMockContentResolver());
+		File file = File.createTempFile("trace", ".csv", getContext().getCacheDir());
+		try {
+			SyncTrace.export(getMockContentResolver(), file);
+			List<String> lines = new ArrayList<String>();
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null)
+					lines.add(line);
+			} finally {
+				reader.close();
+			}
+			assertEquals(5, lines.size());
+			assertTrue(lines.get(0).startsWith(SyncTraceContract.COL_NAME_SYNC + "," + SyncTraceContract.COL_NAME_PHASE));
+			assertTrue(lines.get(1).startsWith("1," + SyncTrace.PHASE_MARSHAL + ","));
+			assertTrue(lines.get(1).endsWith(",1,5,500"));
+			assertTrue(lines.get(4).startsWith("2," + SyncTrace.PHASE_HTTP + ","));
+		} finally {
+			file.delete();
+		}
+	}
+}
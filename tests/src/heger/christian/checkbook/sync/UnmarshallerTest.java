@@ -6,7 +6,10 @@ import heger.christian.checkbook.providers.MetaContentProvider;
 import heger.christian.checkbook.providers.MetaContentProvider.RevisionTableContract;
 import heger.christian.checkbook.providers.RuleContract;
 import heger.christian.checkbook.providers.SharedTransaction;
+import heger.christian.checkbook.providers.StatementBatch;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -261,4 +264,210 @@ public class UnmarshallerTest extends ProviderTestCase2<CheckbookContentProvider
 		assertEquals(0, stats.numUpdates);
 		assertEquals(1, stats.numDeletes);
 	}
+
+	public void testUnmarshalFromReader() throws JSONException, IOException, OperationApplicationException {
+		JSONArray created = json.getJSONArray(Unmarshaller.JSON_FIELD_CREATED);
+		long[] ids = new long[] { CATEGORY_ID, CATEGORY_ID2 };
+		String[] captions = new String[] { CATEGORY_CAPTION, CATEGORY_CAPTION2 };
+		for (int i = 0; i < ids.length; i++) {
+			JSONObject category = new JSONObject();
+			category.put(OperationFactory.JSON_FIELD_TABLE, CategoryContract.TABLE_NAME);
+			category.put(OperationFactory.JSON_FIELD_ROW, ids[i]);
+			Map<String, Integer> revisions = new HashMap<String, Integer>();
+			revisions.put(CategoryContract._ID, CATEGORY_REVISION);
+			revisions.put(CategoryContract.COL_NAME_CAPTION, CATEGORY_REVISION);
+			category.put(OperationFactory.JSON_FIELD_REVISIONS, new JSONObject(revisions));
+			JSONObject data = new JSONObject();
+			data.put(CategoryContract._ID, ids[i]);
+			data.put(CategoryContract.COL_NAME_CAPTION, captions[i]);
+			category.put(OperationFactory.JSON_FIELD_DATA, data);
+			created.put(category);
+		}
+		json.put(Unmarshaller.JSON_FIELD_ANCHOR, 42);
+
+		Unmarshaller unmarshaller = new Unmarshaller();
+		// Disable journaling / revision keeping
+		((CheckbookContentProvider) getMockContentResolver().acquireContentProviderClient(CheckbookContentProvider.AUTHORITY).getLocalContentProvider()).setJournaling(false);
+		SharedTransaction transaction = SharedTransaction.newInstance(getMockContext());
+		Long anchor;
+		transaction.begin();
+		try {
+			// Each creation results in three operations, so this should give one chunk per creation
+			anchor = unmarshaller.unmarshal(new StringReader(json.toString()), transaction, 3);
+			transaction.setTransactionSuccessful();
+		} finally {
+			transaction.end();
+		}
+		assertEquals(Long.valueOf(42), anchor);
+
+		Cursor cursor = getMockContentResolver().query(CategoryContract.CONTENT_URI, null, null, null, CategoryContract._ID);
+		assertEquals(2, cursor.getCount());
+		for (int i = 0; i < ids.length; i++) {
+			cursor.moveToNext();
+			assertEquals(ids[i], cursor.getLong(cursor.getColumnIndex(CategoryContract._ID)));
+			assertEquals(captions[i], cursor.getString(cursor.getColumnIndex(CategoryContract.COL_NAME_CAPTION)));
+		}
+		cursor = getMockContentResolver().query(RevisionTableContract.CONTENT_URI, null, null, null, null);
+		assertEquals(4, cursor.getCount());
+
+		SyncStats stats = unmarshaller.getStats();
+		assertEquals(0, stats.numSkippedEntries);
+		assertEquals(0, stats.numParseExceptions);
+		assertEquals(2, stats.numInserts);
+		assertEquals(6, stats.numEntries);
+		assertEquals(2, unmarshaller.getChunkTimes().size());
+	}
+
+	private static JSONObject createCategoryOperation(long id, String caption, int revision) throws JSONException {
+		JSONObject category = new JSONObject();
+		category.put(OperationFactory.JSON_FIELD_TABLE, CategoryContract.TABLE_NAME);
+		category.put(OperationFactory.JSON_FIELD_ROW, id);
+		JSONObject revisions = new JSONObject();
+		revisions.put(CategoryContract.COL_NAME_CAPTION, revision);
+		category.put(OperationFactory.JSON_FIELD_REVISIONS, revisions);
+		JSONObject data = new JSONObject();
+		data.put(CategoryContract.COL_NAME_CAPTION, caption);
+		category.put(OperationFactory.JSON_FIELD_DATA, data);
+		return category;
+	}
+
+	public void testMergeNoOps() throws JSONException, IOException, OperationApplicationException {
+		ContentResolver resolver = getMockContentResolver();
+		ContentValues values = new ContentValues();
+		values.put(CategoryContract._ID, CATEGORY_ID);
+		values.put(CategoryContract.COL_NAME_CAPTION, CATEGORY_CAPTION);
+		resolver.insert(CategoryContract.CONTENT_URI, values);
+		values.put(CategoryContract._ID, CATEGORY_ID2);
+		values.put(CategoryContract.COL_NAME_CAPTION, CATEGORY_CAPTION2);
+		resolver.insert(CategoryContract.CONTENT_URI, values);
+
+		// Echo of the local state, which should be dropped
+		json.getJSONArray(Unmarshaller.JSON_FIELD_CREATED).put(createCategoryOperation(CATEGORY_ID, CATEGORY_CAPTION, 0));
+		JSONArray updated = json.getJSONArray(Unmarshaller.JSON_FIELD_UPDATED);
+		updated.put(createCategoryOperation(CATEGORY_ID, CATEGORY_CAPTION, 0));
+		// Same value, but a newer revision: only the revision should be written
+		updated.put(createCategoryOperation(CATEGORY_ID2, CATEGORY_CAPTION2, CATEGORY_REVISION2));
+		// Changes the row back after the previous update, which must not be mistaken for an echo
+		updated.put(createCategoryOperation(CATEGORY_ID2, CATEGORY_CAPTION, CATEGORY_REVISION2));
+		updated.put(createCategoryOperation(CATEGORY_ID2, CATEGORY_CAPTION2, CATEGORY_REVISION2));
+
+		Unmarshaller unmarshaller = new Unmarshaller();
+		((CheckbookContentProvider) resolver.acquireContentProviderClient(CheckbookContentProvider.AUTHORITY).getLocalContentProvider()).setJournaling(false);
+		SharedTransaction transaction = SharedTransaction.newInstance(getMockContext());
+		transaction.begin();
+		try {
+			unmarshaller.unmarshal(new StringReader(json.toString()), transaction, 10);
+			transaction.setTransactionSuccessful();
+		} finally {
+			transaction.end();
+		}
+
+		assertEquals(2, unmarshaller.getNumDropped());
+		SyncStats stats = unmarshaller.getStats();
+		assertEquals(0, stats.numInserts);
+		assertEquals(3, stats.numUpdates);
+		// One revision write, then a data write for each of the two changes
+		assertEquals(3, stats.numEntries);
+
+		Cursor cursor = resolver.query(CategoryContract.CONTENT_URI, null, CategoryContract._ID + "=" + CATEGORY_ID2, null, null);
+		assertTrue(cursor.moveToFirst());
+		assertEquals(CATEGORY_CAPTION2, cursor.getString(cursor.getColumnIndex(CategoryContract.COL_NAME_CAPTION)));
+		cursor.close();
+		cursor = resolver.query(RevisionTableContract.CONTENT_URI, null, null, null, null);
+		RevisionTableSnapshot revisions = RevisionTableSnapshot.createFromCursor(cursor);
+		assertEquals(0, revisions.getRevision(CategoryContract.TABLE_NAME, CATEGORY_ID, CategoryContract.COL_NAME_CAPTION));
+		assertEquals(CATEGORY_REVISION2, revisions.getRevision(CategoryContract.TABLE_NAME, CATEGORY_ID2, CategoryContract.COL_NAME_CAPTION));
+	}
+
+	public void testUnmarshalWithStatements() throws JSONException, IOException, OperationApplicationException {
+		ContentResolver resolver = getMockContentResolver();
+		ContentValues values = new ContentValues();
+		values.put(CategoryContract._ID, CATEGORY_ID);
+		values.put(CategoryContract.COL_NAME_CAPTION, CATEGORY_CAPTION);
+		resolver.insert(CategoryContract.CONTENT_URI, values);
+		values.put(CategoryContract._ID, CATEGORY_ID2);
+		values.put(CategoryContract.COL_NAME_CAPTION, CATEGORY_CAPTION2);
+		resolver.insert(CategoryContract.CONTENT_URI, values);
+
+		final long CATEGORY_ID3 = 3;
+		final String CATEGORY_CAPTION3 = CATEGORY_CAPTION + "3";
+		JSONObject creation = createCategoryOperation(CATEGORY_ID3, CATEGORY_CAPTION3, CATEGORY_REVISION);
+		creation.getJSONObject(OperationFactory.JSON_FIELD_DATA).put(CategoryContract._ID, CATEGORY_ID3);
+		creation.getJSONObject(OperationFactory.JSON_FIELD_REVISIONS).put(CategoryContract._ID, CATEGORY_REVISION);
+		json.getJSONArray(Unmarshaller.JSON_FIELD_CREATED).put(creation);
+		json.getJSONArray(Unmarshaller.JSON_FIELD_UPDATED).put(createCategoryOperation(CATEGORY_ID, CATEGORY_CAPTION3, CATEGORY_REVISION2));
+		JSONObject deletion = createCategoryOperation(CATEGORY_ID2, null, CATEGORY_REVISION2);
+		deletion.remove(OperationFactory.JSON_FIELD_DATA);
+		json.getJSONArray(Unmarshaller.JSON_FIELD_DELETED).put(deletion);
+
+		Unmarshaller unmarshaller = new Unmarshaller();
+		unmarshaller.setUseStatements(true);
+		((CheckbookContentProvider) resolver.acquireContentProviderClient(CheckbookContentProvider.AUTHORITY).getLocalContentProvider()).setJournaling(false);
+		SharedTransaction transaction = SharedTransaction.newInstance(getMockContext());
+		transaction.begin();
+		try {
+			// Statements compiled for the first chunk are reused by the later ones
+			unmarshaller.unmarshal(new StringReader(json.toString()), transaction, 2);
+			transaction.setTransactionSuccessful();
+		} finally {
+			transaction.end();
+		}
+
+		SyncStats stats = unmarshaller.getStats();
+		assertEquals(1, stats.numInserts);
+		assertEquals(1, stats.numUpdates);
+		assertEquals(1, stats.numDeletes);
+		assertEquals(7, stats.numEntries);
+
+		Cursor cursor = resolver.query(CategoryContract.CONTENT_URI, null, null, null, CategoryContract._ID);
+		assertEquals(2, cursor.getCount());
+		cursor.moveToFirst();
+		assertEquals(CATEGORY_ID, cursor.getLong(cursor.getColumnIndex(CategoryContract._ID)));
+		assertEquals(CATEGORY_CAPTION3, cursor.getString(cursor.getColumnIndex(CategoryContract.COL_NAME_CAPTION)));
+		cursor.moveToNext();
+		assertEquals(CATEGORY_ID3, cursor.getLong(cursor.getColumnIndex(CategoryContract._ID)));
+		assertEquals(CATEGORY_CAPTION3, cursor.getString(cursor.getColumnIndex(CategoryContract.COL_NAME_CAPTION)));
+		cursor.close();
+
+		cursor = resolver.query(RevisionTableContract.CONTENT_URI, null, null, null, null);
+		RevisionTableSnapshot revisions = RevisionTableSnapshot.createFromCursor(cursor);
+		assertEquals(0, revisions.getRevision(CategoryContract.TABLE_NAME, CATEGORY_ID, CategoryContract._ID));
+		assertEquals(CATEGORY_REVISION2, revisions.getRevision(CategoryContract.TABLE_NAME, CATEGORY_ID, CategoryContract.COL_NAME_CAPTION));
+		assertEquals(CATEGORY_REVISION2, revisions.getRevision(CategoryContract.TABLE_NAME, CATEGORY_ID2, CategoryContract.COL_NAME_CAPTION));
+		assertEquals(CATEGORY_REVISION, revisions.getRevision(CategoryContract.TABLE_NAME, CATEGORY_ID3, CategoryContract._ID));
+		assertEquals(CATEGORY_REVISION, revisions.getRevision(CategoryContract.TABLE_NAME, CATEGORY_ID3, CategoryContract.COL_NAME_CAPTION));
+	}
+
+	public void testStatementsNotJournaled() throws OperationApplicationException {
+		ContentResolver resolver = getMockContentResolver();
+		ContentValues values = new ContentValues();
+		values.put(CategoryContract._ID, CATEGORY_ID);
+		values.put(CategoryContract.COL_NAME_CAPTION, CATEGORY_CAPTION);
+		resolver.insert(CategoryContract.CONTENT_URI, values);
+		resolver.delete(MetaContentProvider.JournalContract.CONTENT_URI, null, null);
+
+		// Journaling stays enabled for everybody else
+		values.put(CategoryContract.COL_NAME_CAPTION, CATEGORY_CAPTION2);
+		SharedTransaction transaction = SharedTransaction.newInstance(getMockContext());
+		transaction.begin();
+		try {
+			transaction.apply(new StatementBatch()
+					.update(CategoryContract.TABLE_NAME, CATEGORY_ID, values)
+					.updateRevision(CategoryContract.TABLE_NAME, CATEGORY_ID, CategoryContract.COL_NAME_CAPTION, CATEGORY_REVISION2));
+			transaction.setTransactionSuccessful();
+		} finally {
+			transaction.end();
+		}
+
+		Cursor cursor = resolver.query(MetaContentProvider.JournalContract.CONTENT_URI, null, null, null, null);
+		assertEquals(0, cursor.getCount());
+		cursor.close();
+		cursor = resolver.query(CategoryContract.CONTENT_URI, null, null, null, null);
+		assertTrue(cursor.moveToFirst());
+		assertEquals(CATEGORY_CAPTION2, cursor.getString(cursor.getColumnIndex(CategoryContract.COL_NAME_CAPTION)));
+		cursor.close();
+		cursor = resolver.query(RevisionTableContract.CONTENT_URI, null, null, null, null);
+		RevisionTableSnapshot revisions = RevisionTableSnapshot.createFromCursor(cursor);
+		assertEquals(CATEGORY_REVISION2, revisions.getRevision(CategoryContract.TABLE_NAME, CATEGORY_ID, CategoryContract.COL_NAME_CAPTION));
+	}
 }
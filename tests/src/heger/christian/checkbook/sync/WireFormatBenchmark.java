@@ -0,0 +1,86 @@
+package heger.christian.checkbook.sync;
+
+import heger.christian.checkbook.providers.CheckbookContentProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+import android.content.ContentProviderClient;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares the binary encoding of {@link BinaryWriter} against JSON on generated ledgers: the time to encode and
+ * decode a marshalled journal, and its size, both plain and gzip compressed. Results are written to the log
+ * under this class's name.
+ */
+@LargeTest
+public class WireFormatBenchmark extends LedgerBenchmark {
+	private static final String TAG = WireFormatBenchmark.class.getSimpleName();
+
+	private static int gzippedSize(byte[] data) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(buffer);
+		out.write(data);
+		out.close();
+		return buffer.size();
+	}
+
+	private void benchmark(int entries) throws Exception {
+		createLedger(entries);
+		JournalSnapshot journalSnapshot = getJournalSnapshot();
+		RevisionTableSnapshot revisionTableSnapshot = getRevisionTableSnapshot();
+		ContentProviderClient provider = getMockContentResolver().acquireContentProviderClient(CheckbookContentProvider.AUTHORITY);
+		// Marshal once up front, so that only encoding is measured and not the queries
+		JSONObject message = new Marshaller().marshal(journalSnapshot, revisionTableSnapshot, provider, 0);
+		provider.release();
+
+		long start = SystemClock.elapsedRealtime();
+		byte[] json = message.toString().getBytes("UTF-8");
+		long jsonEncode = SystemClock.elapsedRealtime() - start;
+
+		start = SystemClock.elapsedRealtime();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		BinaryWriter writer = new BinaryWriter(buffer);
+		writer.value(message);
+		writer.flush();
+		byte[] binary = buffer.toByteArray();
+		long binaryEncode = SystemClock.elapsedRealtime() - start;
+
+		start = SystemClock.elapsedRealtime();
+		JSONObject fromJson = new JSONObject(new String(json, "UTF-8"));
+		long jsonDecode = SystemClock.elapsedRealtime() - start;
+
+		start = SystemClock.elapsedRealtime();
+		Object fromBinary = new BinaryReader(new ByteArrayInputStream(binary)).nextValue();
+		long binaryDecode = SystemClock.elapsedRealtime() - start;
+
+		Log.i(TAG, String.format(Locale.US, "%d entries: JSON %d bytes (%d gzipped), encoded in %dms, decoded in %dms; "
+				+ "binary %d bytes (%d gzipped), encoded in %dms, decoded in %dms",
+				entries,
+				json.length, gzippedSize(json), jsonEncode, jsonDecode,
+				binary.length, gzippedSize(binary), binaryEncode, binaryDecode));
+
+		assertEquals(entries + NUM_CATEGORIES, message.getJSONArray(Marshaller.JSON_FIELD_CREATED).length());
+		assertEquals(fromJson.toString(), fromBinary.toString());
+		assertTrue(binary.length < json.length);
+	}
+
+	public void testLedger100() throws Exception {
+		benchmark(100);
+	}
+
+	public void testLedger1000() throws Exception {
+		benchmark(1000);
+	}
+
+	public void testLedger5000() throws Exception {
+		benchmark(5000);
+	}
+}